@@ -61,6 +61,19 @@ public interface OIOSAMLConstants {
 	/** Hashing algorithms */
     public static final String SHA_HASH_ALGORHTM = "SHA-1";
 	public static final String SHA1_WITH_RSA = "SHA1withRSA";
+	public static final String SHA256_WITH_RSA = "SHA256withRSA";
+	public static final String SHA1_WITH_ECDSA = "SHA1withECDSA";
+	public static final String SHA256_WITH_ECDSA = "SHA256withECDSA";
+
+	/** Signature algorithm URIs */
+	public static final String ALGO_ID_SIGNATURE_RSA_SHA1 = "http://www.w3.org/2000/09/xmldsig#rsa-sha1";
+	public static final String ALGO_ID_SIGNATURE_RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+	public static final String ALGO_ID_SIGNATURE_ECDSA_SHA1 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha1";
+	public static final String ALGO_ID_SIGNATURE_ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
+
+	/** Metadata extension for algorithm support, sstc-saml-metadata-algsupport-v1.0 */
+	public static final String ALGSUPPORT_NS = "urn:oasis:names:tc:SAML:metadata:algsupport";
+	public static final String ALGSUPPORT_SIGNING_METHOD = "SigningMethod";
     
     /** Code format */
     public static final String UTF_8 = "UTF-8";
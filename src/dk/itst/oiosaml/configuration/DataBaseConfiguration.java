@@ -22,9 +22,11 @@ package dk.itst.oiosaml.configuration;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.URL;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.sql.Connection;
@@ -43,6 +45,7 @@ import org.apache.commons.configuration.DatabaseConfiguration;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.log4j.Logger;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.x509.BasicX509Credential;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.configuration.jdbc.JdbcConfiguration;
@@ -54,6 +57,7 @@ public class DataBaseConfiguration implements SAMLConfiguration {
 	private static final Logger log = Logger.getLogger(DatabaseConfiguration.class);
 	private JdbcConfiguration jdbcConfiguration;
 	private Configuration systemConfiguration;
+	private volatile LoadedKeystore loadedKeystore;
 
 	public DataBaseConfiguration() {
 		String datasourceJNDI = SystemConfiguration.getDatasourceJNDI();
@@ -126,20 +130,44 @@ public class DataBaseConfiguration implements SAMLConfiguration {
 	}
 
 	public KeyStore getKeystore() throws WrappedException, NoSuchAlgorithmException, CertificateException, IllegalStateException, IOException, KeyStoreException {
-		KeyStore keystore = KeyStore.getInstance("JKS");
+		return getLoadedKeystore().getKeystore();
+	}
+
+	/**
+	 * Get the signing credential from the keystore. The credential is cached together with the keystore.
+	 */
+	public BasicX509Credential getCredential() throws WrappedException, NoSuchAlgorithmException, CertificateException, IllegalStateException, IOException, KeyStoreException {
+		return getLoadedKeystore().getCredential();
+	}
+
+	/**
+	 * Get the keystore. The stored keystore is only decoded again if its checksum has changed since it was last loaded.
+	 */
+	private LoadedKeystore getLoadedKeystore() throws NoSuchAlgorithmException, CertificateException, IOException, KeyStoreException {
+		byte[] keystoreBytes;
 		Connection con = jdbcConfiguration.getConnection();
 		try {
 			PreparedStatement ps = con.prepareStatement("SELECT keystore FROM oiosaml_java_keystore");
 			ResultSet rs = ps.executeQuery();
 			rs.next();
-			byte[] keystoreBytes = rs.getBytes(1);
-			keystore.load(new ByteArrayInputStream(keystoreBytes), getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD).toCharArray());
+			keystoreBytes = rs.getBytes(1);
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
 			jdbcConfiguration.closeConnection(con);
 		}
-		return keystore;
+		String password = getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD);
+		String version = new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(keystoreBytes)).toString(16);
+
+		LoadedKeystore loaded = loadedKeystore;
+		if (!LoadedKeystore.isCurrent(loaded, version, password)) {
+			log.debug("Loading keystore with checksum " + version);
+			KeyStore keystore = KeyStore.getInstance("JKS");
+			keystore.load(new ByteArrayInputStream(keystoreBytes), password.toCharArray());
+			loaded = new LoadedKeystore(version, password, keystore);
+			loadedKeystore = loaded;
+		}
+		return loaded;
 	}
 
 	public XMLObject getSPMetaData() throws WrappedException {
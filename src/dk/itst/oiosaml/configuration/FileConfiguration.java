@@ -37,11 +37,21 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.Configuration;
@@ -50,12 +60,14 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.x509.BasicX509Credential;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import dk.itst.oiosaml.sp.metadata.MetadataIndex;
 import dk.itst.oiosaml.sp.service.SPFilter;
 import dk.itst.oiosaml.sp.service.util.Constants;
 
@@ -74,6 +86,7 @@ public class FileConfiguration implements SAMLConfiguration {
 	private String homeDir;
 	private String configurationFileName;
 	private Configuration systemConfiguration;
+	private volatile LoadedKeystore loadedKeystore;
 
     /**
      * Tries to resolve {@link Constants#INIT_OIOSAML_FILE}, {@link Constants#INIT_OIOSAML_HOME} and {@link Constants#INIT_OIOSAML_NAME} from web.xml file.
@@ -184,8 +197,20 @@ public class FileConfiguration implements SAMLConfiguration {
 	}
 
     public KeyStore getKeystore() throws WrappedException {
-        KeyStore keystore = null;
+        return getLoadedKeystore().getKeystore();
+    }
+
+    /**
+     * Get the signing credential from the keystore. The credential is cached together with the keystore.
+     */
+    public BasicX509Credential getCredential() throws WrappedException {
+        return getLoadedKeystore().getCredential();
+    }
 
+    /**
+     * Get the keystore, and load it again if the file has been modified since it was last loaded.
+     */
+    private LoadedKeystore getLoadedKeystore() throws WrappedException {
         File keystoreFile = new File(getSystemConfiguration().getString(
                 Constants.PROP_CERTIFICATE_LOCATION));
         // If path is not absolute ... check if the path is relative to the home dir.
@@ -193,19 +218,31 @@ public class FileConfiguration implements SAMLConfiguration {
             keystoreFile = new File(homeDir + getSystemConfiguration().getString(
                     Constants.PROP_CERTIFICATE_LOCATION));
         }
+        String password = getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD);
+        String version = keystoreFile.getAbsolutePath() + ":" + keystoreFile.lastModified() + ":" + keystoreFile.length();
+
+        LoadedKeystore loaded = loadedKeystore;
+        if (!LoadedKeystore.isCurrent(loaded, version, password)) {
+            log.debug("Loading keystore " + keystoreFile.getAbsolutePath());
+            loaded = new LoadedKeystore(version, password, loadKeystore(keystoreFile, password));
+            loadedKeystore = loaded;
+        }
+        return loaded;
+    }
+
+    private KeyStore loadKeystore(File keystoreFile, String password) throws WrappedException {
+        KeyStore keystore = null;
         try {
             InputStream input = new FileInputStream(keystoreFile);
             input = new BufferedInputStream(input);
             input.mark(1024 * 1024);
             try {
-                keystore = loadStore(input, getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD),
-                        "PKCS12");
+                keystore = loadStore(input, password, "PKCS12");
             } catch (IOException e) {
                 log.debug("Keystore is not of type 'PCKS12' Trying type 'JKS'.");
                 try {
                     input.reset();
-                    keystore = loadStore(input,
-                            getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD), "JKS");
+                    keystore = loadStore(input, password, "JKS");
                 } catch (IOException ioe) {
                     log.error("Unable to find keystore file. Looking for: " + keystoreFile.getAbsolutePath());
                     throw new WrappedException(Layer.DATAACCESS, ioe);
@@ -250,67 +287,191 @@ public class FileConfiguration implements SAMLConfiguration {
 		return unmarshallElementFromFile;
 	}
 
+	/**
+	 * Load all IdP metadata files. When metadata is read from a directory, the files are parsed in parallel using up to
+	 * {@link Constants#PROP_IDP_METADATA_LOAD_THREADS} threads. The descriptors are returned in file name order, so the
+	 * result does not depend on which file finishes first.
+	 */
 	public List<XMLObject> getListOfIdpMetadata() throws WrappedException {
+		long start = System.currentTimeMillis();
+		final String protocol = getSystemConfiguration().getString(Constants.PROP_PROTOCOL);
+		List<File> files = getIdpMetadataFiles();
+		int threads = Math.min(files.size(), getSystemConfiguration().getInt(Constants.PROP_IDP_METADATA_LOAD_THREADS, Runtime.getRuntime().availableProcessors()));
+
 		List<XMLObject> descriptors = new ArrayList<XMLObject>();
-		String protocol = getSystemConfiguration().getString(Constants.PROP_PROTOCOL);
-		if (getSystemConfiguration().getString(Constants.IDP_METADATA_FILE) != null) {
-			String idpFileName = homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY) + "/"
-					+ getSystemConfiguration().getString(Constants.IDP_METADATA_FILE);
-			File md = new File(idpFileName);
-			log.info("Loading " + protocol + " metadata from " + md);
-			try {
-				XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(md.getAbsolutePath());
-				if (descriptor instanceof EntityDescriptor) {
-					descriptors.add(descriptor);
-				} else if (descriptor instanceof EntitiesDescriptor) {
-					EntitiesDescriptor desc = (EntitiesDescriptor) descriptor;
-					descriptors.addAll(desc.getEntityDescriptors());
-				} else {
-					throw new RuntimeException("Metadata file " + md + " does not contain an EntityDescriptor. Found "
-							+ descriptor.getElementQName() + ", expected " + EntityDescriptor.ELEMENT_QNAME);
-				}
-			} catch (RuntimeException e) {
-				log.error("Unable to load metadata from " + md
-						+ ". File must contain valid XML and have EntityDescriptor as top tag", e);
-				throw e;
+		if (threads <= 1) {
+			for (File md : files) {
+				descriptors.addAll(loadIdpMetadata(md, protocol));
 			}
 		} else {
-			String directory = homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY);
-			File idpDir = new File(directory);
-			File[] files = idpDir.listFiles(new FilenameFilter() {
-				public boolean accept(File dir, String name) {
-					return name.toLowerCase().endsWith(".xml");
+			ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IdP metadata loader");
+					t.setDaemon(true);
+					return t;
 				}
 			});
-			if (files != null) {
-				for (File md : files) {
-					log.info("Loading " + protocol + " metadata from " + md);
-					try {
-						XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(md.getAbsolutePath());
-						if (descriptor instanceof EntityDescriptor) {
-							descriptors.add(descriptor);
-						} else if (descriptor instanceof EntitiesDescriptor) {
-							EntitiesDescriptor desc = (EntitiesDescriptor) descriptor;
-							descriptors.addAll(desc.getEntityDescriptors());
-						} else {
-							throw new RuntimeException("Metadata file " + md
-									+ " does not contain an EntityDescriptor. Found " + descriptor.getElementQName()
-									+ ", expected " + EntityDescriptor.ELEMENT_QNAME);
+			try {
+				List<Future<List<EntityDescriptor>>> results = new ArrayList<Future<List<EntityDescriptor>>>();
+				for (final File md : files) {
+					results.add(executor.submit(new Callable<List<EntityDescriptor>>() {
+						public List<EntityDescriptor> call() {
+							return loadIdpMetadata(md, protocol);
 						}
-					} catch (RuntimeException e) {
-						log.error("Unable to load metadata from " + md
-								+ ". File must contain valid XML and have EntityDescriptor as top tag", e);
-						throw e;
+					}));
+				}
+				// wait for all files, so every failing file is logged, and report the first failure
+				Throwable failure = null;
+				for (Future<List<EntityDescriptor>> result : results) {
+					try {
+						descriptors.addAll(result.get());
+					} catch (ExecutionException e) {
+						if (failure == null) failure = e.getCause();
 					}
 				}
+				if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				} else if (failure != null) {
+					throw new WrappedException(Layer.DATAACCESS, failure);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WrappedException(Layer.DATAACCESS, e);
+			} finally {
+				executor.shutdownNow();
 			}
 		}
 		if (descriptors.isEmpty()) {
-			throw new IllegalStateException("No IdP descriptors found in ! At least one file is required.");
+			throw new IllegalStateException("No IdP descriptors found in " + files + "! At least one file is required.");
 		}
+		log.info("Loaded " + descriptors.size() + " IdP descriptors from " + files.size() + " files in " + (System.currentTimeMillis() - start) + " ms using " + Math.max(1, threads) + " threads");
 		return descriptors;
 	}
 
+	private List<EntityDescriptor> loadIdpMetadata(File md, String protocol) {
+		log.info("Loading " + protocol + " metadata from " + md);
+		try {
+			XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(md.getAbsolutePath());
+			if (descriptor instanceof EntityDescriptor) {
+				return Collections.singletonList((EntityDescriptor) descriptor);
+			} else if (descriptor instanceof EntitiesDescriptor) {
+				return ((EntitiesDescriptor) descriptor).getEntityDescriptors();
+			} else {
+				throw new RuntimeException("Metadata file " + md + " does not contain an EntityDescriptor. Found "
+						+ descriptor.getElementQName() + ", expected " + EntityDescriptor.ELEMENT_QNAME);
+			}
+		} catch (RuntimeException e) {
+			log.error("Unable to load metadata from " + md
+					+ ". File must contain valid XML and have EntityDescriptor as top tag", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the IdP metadata files, which are the same files as read by {@link #getListOfIdpMetadata()}.
+	 * 
+	 * @return The files, sorted by name when metadata is read from a directory.
+	 */
+	public List<File> getIdpMetadataFiles() {
+		List<File> files = new ArrayList<File>();
+		if (getSystemConfiguration().getString(Constants.IDP_METADATA_FILE) != null) {
+			files.add(new File(homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY) + "/"
+					+ getSystemConfiguration().getString(Constants.IDP_METADATA_FILE)));
+		} else {
+			File[] xmlFiles = new File(homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY)).listFiles(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.toLowerCase().endsWith(".xml");
+				}
+			});
+			if (xmlFiles != null) {
+				Arrays.sort(xmlFiles);
+				files.addAll(Arrays.asList(xmlFiles));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Get the location of the compiled IdP metadata snapshot.
+	 * 
+	 * @return The file, or <code>null</code> if snapshots are not enabled. Relative paths are resolved against the configuration directory.
+	 */
+	public File getIdpMetadataSnapshotFile() {
+		String location = getSystemConfiguration().getString(Constants.PROP_IDP_METADATA_SNAPSHOT);
+		if (location == null || location.trim().length() == 0) return null;
+
+		File file = new File(location);
+		return file.isAbsolute() ? file : new File(homeDir, location);
+	}
+
+	/**
+	 * Get the certificate used to verify IdP metadata fetched from {@link Constants#PROP_IDP_METADATA_URL}.
+	 * 
+	 * @return The certificate, or <code>null</code> if no certificate is configured. Relative paths are resolved against the configuration directory.
+	 */
+	public X509Certificate getIdpMetadataUrlCertificate() throws WrappedException {
+		String location = getSystemConfiguration().getString(Constants.PROP_IDP_METADATA_URL_CERTIFICATE);
+		if (location == null || location.trim().length() == 0) return null;
+
+		File file = new File(location);
+		if (!file.isAbsolute()) {
+			file = new File(homeDir, location);
+		}
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			log.error("Unable to read metadata certificate " + file);
+			throw new WrappedException(Layer.DATAACCESS, e);
+		} catch (CertificateException e) {
+			log.error("Unable to read metadata certificate " + file);
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	/**
+	 * Index the IdP metadata files, without unmarshalling the entities in them.
+	 * 
+	 * The same files as in {@link #getListOfIdpMetadata()} are read.
+	 */
+	public List<MetadataIndex> getIdpMetadataIndexes(String protocol) {
+		List<MetadataIndex> indexes = new ArrayList<MetadataIndex>();
+		List<File> files = getIdpMetadataFiles();
+		int entities = 0;
+		for (File md : files) {
+			log.info("Indexing " + protocol + " metadata from " + md);
+			try {
+				MetadataIndex index = new MetadataIndex(md, protocol);
+				indexes.add(index);
+				entities += index.size();
+			} catch (RuntimeException e) {
+				log.error("Unable to index metadata from " + md
+						+ ". File must contain valid XML and have EntityDescriptor or EntitiesDescriptor as top tag", e);
+				throw e;
+			}
+		}
+		if (entities == 0) {
+			throw new IllegalStateException("No IdP descriptors found in " + files + "! At least one file is required.");
+		}
+		return indexes;
+	}
+
+	/**
+	 * Get the directory containing IdP metadata files.
+	 * 
+	 * @return The directory, or <code>null</code> if metadata is loaded from a single file, or the directory does not exist.
+	 */
+	public File getIdpMetadataDirectory() {
+		if (getSystemConfiguration().getString(Constants.IDP_METADATA_FILE) != null) return null;
+
+		File dir = new File(homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY));
+		return dir.isDirectory() ? dir : null;
+	}
+
     /**
      * This method ONLY exists to support unit and integration tests. Do not use it for other purposes.
      * Either {@link Constants#INIT_OIOSAML_FILE} or {@link Constants#INIT_OIOSAML_HOME} must be specified. If both is specified then {@link Constants#INIT_OIOSAML_FILE} takes precedense
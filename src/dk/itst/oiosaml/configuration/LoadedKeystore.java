@@ -0,0 +1,67 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.configuration;
+
+import java.security.KeyStore;
+
+import org.opensaml.xml.security.x509.BasicX509Credential;
+
+import dk.itst.oiosaml.security.CredentialRepository;
+
+/**
+ * Keystore loaded by a configuration, together with the credential read from it.
+ * 
+ * The version identifies the contents the keystore was loaded from, for example the modification time of a file
+ * or a checksum. The keystore is only loaded again when the version or the password changes.
+ */
+final class LoadedKeystore {
+	private final String version;
+	private final String password;
+	private final KeyStore keystore;
+	private volatile BasicX509Credential credential;
+
+	LoadedKeystore(String version, String password, KeyStore keystore) {
+		this.version = version;
+		this.password = password;
+		this.keystore = keystore;
+	}
+
+	static boolean isCurrent(LoadedKeystore loaded, String version, String password) {
+		if (loaded == null || !loaded.version.equals(version)) {
+			return false;
+		}
+		return password == null ? loaded.password == null : password.equals(loaded.password);
+	}
+
+	KeyStore getKeystore() {
+		return keystore;
+	}
+
+	BasicX509Credential getCredential() {
+		if (credential == null) {
+			credential = CredentialRepository.createCredential(keystore, password);
+		}
+		return credential;
+	}
+}
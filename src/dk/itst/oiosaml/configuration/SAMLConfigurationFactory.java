@@ -20,12 +20,25 @@
  */
 package dk.itst.oiosaml.configuration;
 
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+
+import org.opensaml.xml.security.x509.BasicX509Credential;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
 /**
  * This factory returns the configuration from the META-INF/services/dk.itst.oiosaml.configuration.SAMLConfiguration file. Default is {@link #FileConfiguration}.
  * 
@@ -39,6 +52,10 @@ public class SAMLConfigurationFactory {
 	private static final Logger log = LoggerFactory.getLogger(SAMLConfigurationFactory.class);
 
 	private static SAMLConfiguration configuration;
+	/**
+	 * Credentials read from keystores of other configurations, keyed on the keystore instance.
+	 */
+	private static final Map<KeyStore, CachedCredential> credentials = new WeakHashMap<KeyStore, CachedCredential>();
 
 	public static SAMLConfiguration getConfiguration() {
 		if (configuration == null) {
@@ -71,4 +88,41 @@ public class SAMLConfigurationFactory {
 		}
 		return configuration;
 	}
+
+	/**
+	 * Get the signing credential from the keystore of a configuration.
+	 * 
+	 * {@link FileConfiguration} and {@link DataBaseConfiguration} cache the credential with the keystore. For other 
+	 * configurations, the credential is cached as long as the configuration returns the same keystore instance.
+	 */
+	public static BasicX509Credential getCredential(SAMLConfiguration configuration) throws WrappedException, NoSuchAlgorithmException, CertificateException, IllegalStateException, IOException, KeyStoreException {
+		if (configuration instanceof FileConfiguration) {
+			return ((FileConfiguration) configuration).getCredential();
+		} else if (configuration instanceof DataBaseConfiguration) {
+			return ((DataBaseConfiguration) configuration).getCredential();
+		}
+		KeyStore keystore = configuration.getKeystore();
+		String password = configuration.getSystemConfiguration().getString(Constants.PROP_CERTIFICATE_PASSWORD);
+		synchronized (credentials) {
+			CachedCredential cached = credentials.get(keystore);
+			if (cached == null || !(password == null ? cached.password == null : password.equals(cached.password))) {
+				cached = new CachedCredential(password, CredentialRepository.createCredential(keystore, password));
+				credentials.put(keystore, cached);
+			}
+			return cached.credential;
+		}
+	}
+
+	/**
+	 * The value must not refer to the keystore, or the keystore would never be removed from the map.
+	 */
+	private static class CachedCredential {
+		private final String password;
+		private final BasicX509Credential credential;
+
+		private CachedCredential(String password, BasicX509Credential credential) {
+			this.password = password;
+			this.credential = credential;
+		}
+	}
 }
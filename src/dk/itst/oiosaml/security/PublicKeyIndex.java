@@ -0,0 +1,169 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.security;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.signature.X509SKI;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+
+/**
+ * Immutable index of the public keys of a set of certificates.
+ *
+ * Keys can be looked up using the hints in a signature's KeyInfo: either the SHA-1 digest of an embedded certificate, or
+ * the subject key identifier from a X509SKI element. This makes it possible to verify a signature against the right key first,
+ * instead of trying every key in turn.
+ *
+ * Instances are immutable and can be shared across threads.
+ */
+public class PublicKeyIndex {
+	private static final Logger log = LoggerFactory.getLogger(PublicKeyIndex.class);
+	private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+
+	private final List<PublicKey> keys;
+	private final Map<String, PublicKey> byDigest = new HashMap<String, PublicKey>();
+	private final Map<String, PublicKey> bySki = new HashMap<String, PublicKey>();
+
+	public PublicKeyIndex(Collection<? extends Certificate> certificates) {
+		List<PublicKey> keys = new ArrayList<PublicKey>(certificates.size());
+		for (Certificate certificate : certificates) {
+			PublicKey key = certificate.getPublicKey();
+			keys.add(key);
+			try {
+				byDigest.put(digest(certificate.getEncoded()), key);
+			} catch (CertificateEncodingException e) {
+				log.warn("Unable to encode certificate " + certificate, e);
+			}
+			if (certificate instanceof X509Certificate) {
+				String ski = getSubjectKeyIdentifier((X509Certificate) certificate);
+				if (ski != null) {
+					bySki.put(ski, key);
+				}
+			}
+		}
+		this.keys = Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * Get all keys in the index, in the order of the certificates.
+	 */
+	public List<PublicKey> getKeys() {
+		return keys;
+	}
+
+	public boolean isEmpty() {
+		return keys.isEmpty();
+	}
+
+	/**
+	 * Find the key identified by a KeyInfo.
+	 *
+	 * @return The key, or <code>null</code> if the KeyInfo does not contain a certificate or subject key identifier matching a key in the index.
+	 */
+	public PublicKey findKey(KeyInfo keyInfo) {
+		if (keyInfo == null) return null;
+
+		for (X509Data data : keyInfo.getX509Datas()) {
+			for (org.opensaml.xml.signature.X509Certificate cert : data.getX509Certificates()) {
+				// the KeyInfo has not been verified, so the value may not be valid base64
+				byte[] encoded = cert.getValue() != null ? Base64.decode(cert.getValue()) : null;
+				if (encoded == null) continue;
+				PublicKey key = byDigest.get(digest(encoded));
+				if (key != null) return key;
+			}
+			for (X509SKI ski : data.getX509SKIs()) {
+				byte[] identifier = ski.getValue() != null ? Base64.decode(ski.getValue()) : null;
+				if (identifier == null) continue;
+				PublicKey key = bySki.get(Base64.encodeBytes(identifier, Base64.DONT_BREAK_LINES));
+				if (key != null) return key;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the keys in the order they should be tried when verifying a signature with the given KeyInfo.
+	 *
+	 * If the KeyInfo identifies a key, it is returned first, followed by the remaining keys.
+	 */
+	public List<PublicKey> getCandidates(KeyInfo keyInfo) {
+		PublicKey hinted = findKey(keyInfo);
+		if (hinted == null || keys.size() == 1) return keys;
+
+		List<PublicKey> res = new ArrayList<PublicKey>(keys.size());
+		res.add(hinted);
+		for (PublicKey key : keys) {
+			if (key != hinted) {
+				res.add(key);
+			}
+		}
+		return res;
+	}
+
+	private static String getSubjectKeyIdentifier(X509Certificate certificate) {
+		byte[] value = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER);
+		if (value == null) return null;
+		try {
+			ASN1OctetString ski = ASN1OctetString.getInstance(X509ExtensionUtil.fromExtensionValue(value));
+			return Base64.encodeBytes(ski.getOctets(), Base64.DONT_BREAK_LINES);
+		} catch (IOException e) {
+			log.debug("Unable to read subject key identifier from " + certificate.getSubjectDN(), e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			log.debug("Unable to read subject key identifier from " + certificate.getSubjectDN(), e);
+			return null;
+		}
+	}
+
+	private static String digest(byte[] data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM);
+			return Base64.encodeBytes(md.digest(data), Base64.DONT_BREAK_LINES);
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+}
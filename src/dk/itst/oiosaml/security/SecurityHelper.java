@@ -57,6 +57,8 @@ import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.util.Base64;
 
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
 /**
  * Some utility methods for doing security, credential, key and JCE related tests.
  */
@@ -167,6 +169,11 @@ public class SecurityHelper {
         return keyPair;
     }
     
+    /**
+     * Generate a self-signed certificate for a credential.
+     * 
+     * The certificate is signed using SHA-256 with RSA or ECDSA, depending on the type of the key.
+     */
     public static X509Certificate generateCertificate(Credential credential, String entityId) throws Exception {
         X500Name issuer = new X500Name("o=keymanager, ou=oiosaml-sp");
         BigInteger serialNumber = BigInteger.valueOf(System.currentTimeMillis());
@@ -182,7 +189,12 @@ public class SecurityHelper {
     	gen.addExtension(X509Extension.subjectKeyIdentifier, false, new JcaX509ExtensionUtils().createSubjectKeyIdentifier(credential.getPublicKey()));
     	gen.addExtension(X509Extension.authorityKeyIdentifier, false, new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(credential.getPublicKey()));
 
-        ContentSigner sigGen = new JcaContentSignerBuilder("SHA1withRSA").setProvider("BC").build(credential.getPrivateKey());
+        String algorithm = SignatureAlgorithms.getJCAAlgorithm(SignatureAlgorithms.getSignatureAlgorithm(credential, null, false));
+        if (OIOSAMLConstants.SHA1_WITH_RSA.equals(algorithm)) {
+            // certificates are signed using SHA-256 regardless of the message signature algorithm
+            algorithm = OIOSAMLConstants.SHA256_WITH_RSA;
+        }
+        ContentSigner sigGen = new JcaContentSignerBuilder(algorithm).setProvider("BC").build(credential.getPrivateKey());
         X509CertificateHolder certificateHolder = gen.build(sigGen);
 
         X509Certificate x509Certificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate(certificateHolder);
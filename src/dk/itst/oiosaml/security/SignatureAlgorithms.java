@@ -0,0 +1,317 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.security;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.opensaml.Configuration;
+import org.opensaml.xml.security.BasicSecurityConfiguration;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+
+/**
+ * Signature algorithms supported for signing and verifying messages.
+ *
+ * RSA keys can sign using RSA-SHA1 or RSA-SHA256, EC keys using ECDSA-SHA256 (or ECDSA-SHA1 for XML signatures, if
+ * the XML security library does not support ECDSA-SHA256). The default algorithm for each key type is registered in
+ * the OpenSAML global security configuration by {@link #configure(String)}, so the configured algorithm is also used
+ * by OpenSAML itself.
+ *
+ * {@link Signature} instances are kept per thread and per algorithm, so a provider is not looked up on each call.
+ */
+public final class SignatureAlgorithms {
+	private static final Logger log = LoggerFactory.getLogger(SignatureAlgorithms.class);
+
+	private static final String RSA = "RSA";
+	private static final String EC = "EC";
+
+	private static final Map<String, String> JCA_ALGORITHMS = new HashMap<String, String>();
+	private static final Map<String, String> KEY_TYPES = new HashMap<String, String>();
+	static {
+		register(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, OIOSAMLConstants.SHA1_WITH_RSA, RSA);
+		register(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, OIOSAMLConstants.SHA256_WITH_RSA, RSA);
+		register(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, OIOSAMLConstants.SHA1_WITH_ECDSA, EC);
+		register(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, OIOSAMLConstants.SHA256_WITH_ECDSA, EC);
+	}
+
+	/**
+	 * Algorithms in order of preference, used when the peer lists the algorithms it supports.
+	 */
+	private static final List<String> PREFERENCE = Arrays.asList(
+			OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256,
+			OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+			OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1,
+			OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
+
+	private static final ThreadLocal<Map<String, Signature>> signatures = new ThreadLocal<Map<String, Signature>>() {
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
+
+	private SignatureAlgorithms() {}
+
+	private static void register(String uri, String jcaAlgorithm, String keyType) {
+		JCA_ALGORITHMS.put(uri, jcaAlgorithm);
+		KEY_TYPES.put(uri, keyType);
+	}
+
+	/**
+	 * Register the default signature algorithms in the global OpenSAML security configuration.
+	 *
+	 * EC keys are registered with ECDSA-SHA256 if the XML security library supports it. If <code>algorithmURI</code> is
+	 * set, it is registered as the default for its key type.
+	 *
+	 * @param algorithmURI The configured signature algorithm, or <code>null</code> to keep the OpenSAML defaults.
+	 * @throws IllegalArgumentException If the algorithm is not supported.
+	 */
+	public static void configure(String algorithmURI) {
+		SecurityConfiguration config = Configuration.getGlobalSecurityConfiguration();
+		if (!(config instanceof BasicSecurityConfiguration)) {
+			log.warn("Global security configuration " + config + " cannot be configured, using OpenSAML defaults");
+			return;
+		}
+		BasicSecurityConfiguration bsc = (BasicSecurityConfiguration) config;
+		if (bsc.getSignatureAlgorithmURI(EC) == null) {
+			String ec = getDefaultAlgorithm(EC, true);
+			bsc.registerSignatureAlgorithmURI(EC, ec);
+			bsc.registerSignatureAlgorithmURI("ECDSA", ec);
+		}
+
+		if (algorithmURI == null || algorithmURI.trim().length() == 0) return;
+
+		algorithmURI = algorithmURI.trim();
+		String keyType = KEY_TYPES.get(algorithmURI);
+		if (keyType == null) {
+			throw new IllegalArgumentException("Unsupported signature algorithm " + algorithmURI + ", supported algorithms: " + KEY_TYPES.keySet());
+		}
+		if (!isSupportedByXMLSecurity(algorithmURI)) {
+			log.warn("Signature algorithm " + algorithmURI + " is not supported by the XML security library, it will only be used for the HTTP Redirect binding");
+		}
+		log.info("Using signature algorithm " + algorithmURI + " for " + keyType + " keys");
+		bsc.registerSignatureAlgorithmURI(keyType, algorithmURI);
+		if (EC.equals(keyType)) {
+			bsc.registerSignatureAlgorithmURI("ECDSA", algorithmURI);
+		}
+	}
+
+	/**
+	 * Map a signature algorithm URI to a JCA signature algorithm name.
+	 * @return The JCA name, or <code>null</code> if the algorithm is not supported.
+	 */
+	public static String getJCAAlgorithm(String algorithmURI) {
+		if (algorithmURI == null) return null;
+		return JCA_ALGORITHMS.get(algorithmURI);
+	}
+
+	/**
+	 * Check if a key can be used with a signature algorithm.
+	 */
+	public static boolean isCompatible(String algorithmURI, Key key) {
+		if (algorithmURI == null || key == null) return false;
+		String keyType = KEY_TYPES.get(algorithmURI);
+		return keyType != null && keyType.equals(getKeyType(key));
+	}
+
+	/**
+	 * Get the signature algorithm to use when signing with a credential.
+	 *
+	 * @param credential The signing credential.
+	 * @param preferred The preferred algorithm, for example selected using {@link #select(Credential, Collection)}. Ignored if <code>null</code> or
+	 * if it cannot be used with the credential.
+	 * @param xml <code>true</code> if the algorithm is used for an XML signature, which requires support from the XML security library.
+	 * @return The algorithm URI. Never <code>null</code>.
+	 */
+	public static String getSignatureAlgorithm(Credential credential, String preferred, boolean xml) {
+		Key key = getSigningKey(credential);
+		if (isUsable(preferred, key, xml)) {
+			return preferred;
+		}
+
+		SecurityConfiguration config = Configuration.getGlobalSecurityConfiguration();
+		if (config != null) {
+			String configured = config.getSignatureAlgorithmURI(credential);
+			if (isUsable(configured, key, xml)) {
+				return configured;
+			}
+		}
+		return getDefaultAlgorithm(getKeyType(key), xml);
+	}
+
+	/**
+	 * Select a signature algorithm supported by a peer.
+	 *
+	 * The configured algorithm is used if the peer supports it. Otherwise, the strongest algorithm supported by both the peer and the
+	 * signing key is used.
+	 *
+	 * @param credential The signing credential.
+	 * @param peerAlgorithms The algorithms supported by the peer, for example from the SigningMethod metadata extension.
+	 * @return The algorithm URI, or <code>null</code> if the peer does not list any algorithm usable with the credential.
+	 */
+	public static String select(Credential credential, Collection<String> peerAlgorithms) {
+		if (peerAlgorithms == null || peerAlgorithms.isEmpty()) return null;
+
+		Key key = getSigningKey(credential);
+		SecurityConfiguration config = Configuration.getGlobalSecurityConfiguration();
+		if (config != null) {
+			String configured = config.getSignatureAlgorithmURI(credential);
+			if (peerAlgorithms.contains(configured) && isCompatible(configured, key)) {
+				return configured;
+			}
+		}
+		for (String algorithm : PREFERENCE) {
+			if (peerAlgorithms.contains(algorithm) && isCompatible(algorithm, key)) {
+				return algorithm;
+			}
+		}
+		if (log.isDebugEnabled()) log.debug("None of the algorithms " + peerAlgorithms + " can be used with key type " + getKeyType(key));
+		return null;
+	}
+
+	/**
+	 * Sign data.
+	 *
+	 * @param algorithmURI The signature algorithm URI.
+	 * @return The raw signature value.
+	 * @throws IllegalArgumentException If the algorithm is not supported.
+	 */
+	public static byte[] sign(String algorithmURI, PrivateKey key, byte[] data) {
+		String algorithm = getJCAAlgorithm(algorithmURI);
+		if (algorithm == null) {
+			throw new IllegalArgumentException("Unsupported signature algorithm " + algorithmURI);
+		}
+		try {
+			Signature signer = getSignature(algorithm);
+			signer.initSign(key);
+			signer.update(data);
+			return signer.sign();
+		} catch (InvalidKeyException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		} catch (SignatureException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
+	/**
+	 * Verify a signature.
+	 *
+	 * @param algorithmURI The signature algorithm URI.
+	 * @return <code>true</code> if the signature was made with the private key matching <code>key</code>. <code>false</code> if the
+	 * algorithm is not supported or cannot be used with the key.
+	 */
+	public static boolean verify(String algorithmURI, PublicKey key, byte[] data, byte[] signature) {
+		String algorithm = getJCAAlgorithm(algorithmURI);
+		if (algorithm == null || !isCompatible(algorithmURI, key)) {
+			return false;
+		}
+		return verifyJCA(algorithm, key, data, signature);
+	}
+
+	/**
+	 * Verify a signature using a JCA algorithm name.
+	 *
+	 * @param algorithm JCA algorithm name, for example {@link OIOSAMLConstants#SHA1_WITH_RSA}.
+	 */
+	public static boolean verifyJCA(String algorithm, PublicKey key, byte[] data, byte[] signature) {
+		try {
+			Signature verifier = getSignature(algorithm);
+			verifier.initVerify(key);
+			verifier.update(data);
+			return verifier.verify(signature);
+		} catch (InvalidKeyException e) {
+			throw new WrappedException(Layer.CLIENT, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.CLIENT, e);
+		} catch (SignatureException e) {
+			throw new WrappedException(Layer.CLIENT, e);
+		}
+	}
+
+	private static Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+		Map<String, Signature> map = signatures.get();
+		Signature signature = map.get(algorithm);
+		if (signature == null) {
+			signature = Signature.getInstance(algorithm);
+			map.put(algorithm, signature);
+		}
+		return signature;
+	}
+
+	private static boolean isUsable(String algorithmURI, Key key, boolean xml) {
+		return isCompatible(algorithmURI, key) && (!xml || isSupportedByXMLSecurity(algorithmURI));
+	}
+
+	private static String getDefaultAlgorithm(String keyType, boolean xml) {
+		if (EC.equals(keyType)) {
+			if (!xml || isSupportedByXMLSecurity(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256)) {
+				return OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256;
+			}
+			return OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1;
+		}
+		return OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1;
+	}
+
+	private static boolean isSupportedByXMLSecurity(String algorithmURI) {
+		if (!org.apache.xml.security.Init.isInitialized()) {
+			org.apache.xml.security.Init.init();
+		}
+		return JCEMapper.translateURItoJCEID(algorithmURI) != null;
+	}
+
+	private static String getKeyType(Key key) {
+		if (key == null) return null;
+		String algorithm = key.getAlgorithm();
+		if (EC.equals(algorithm) || "ECDSA".equals(algorithm)) {
+			return EC;
+		}
+		return algorithm;
+	}
+
+	private static Key getSigningKey(Credential credential) {
+		if (credential.getPrivateKey() != null) {
+			return credential.getPrivateKey();
+		}
+		return credential.getPublicKey();
+	}
+}
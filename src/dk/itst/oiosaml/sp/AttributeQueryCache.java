@@ -0,0 +1,382 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
+import dk.itst.oiosaml.sp.model.validation.ValidationException;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Cache of attribute query results.
+ * 
+ * <p>Results are cached by IdP, NameID, NameID format and the set of requested attributes. If the IdP response cannot 
+ * be validated, for example because the subject is unknown, the {@link ValidationException} is cached for a shorter period.
+ * Transport errors are not cached.</p>
+ * 
+ * <p>Concurrent identical queries are coalesced, so only one query is sent to the IdP and the other callers wait for its result.
+ * All cached results for a subject are removed when the subject logs out, see {@link #logout(String, String)}. Expired results
+ * of all subjects are removed by the first query after each TTL period, so they do not stay in memory until the subject
+ * is evicted.</p>
+ * 
+ * <p>The shared cache is configured with {@link Constants#PROP_ATTRIBUTE_QUERY_CACHE_TTL}, and is disabled if the TTL is 0.</p>
+ */
+public class AttributeQueryCache {
+	private static final Logger log = LoggerFactory.getLogger(AttributeQueryCache.class);
+	private static AttributeQueryCache instance;
+
+	private final long ttl;
+	private final long negativeTtl;
+	private final Map<Subject, Map<Query, CachedResult>> subjects;
+	private long hits;
+	private long misses;
+	private long coalesced;
+	private long nextPurge;
+
+	/**
+	 * @param ttl Milliseconds a result is cached. If 0, results are not cached.
+	 * @param negativeTtl Milliseconds a validation error is cached.
+	 * @param maxSubjects Maximum number of subjects with cached results. The least recently used subject is removed first.
+	 */
+	public AttributeQueryCache(long ttl, long negativeTtl, final int maxSubjects) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.subjects = new LinkedHashMap<Subject, Map<Query, CachedResult>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Subject, Map<Query, CachedResult>> eldest) {
+				return size() > maxSubjects;
+			}
+		};
+	}
+
+	/**
+	 * Get the shared cache, configured from the system configuration.
+	 */
+	public static synchronized AttributeQueryCache getInstance() {
+		if (instance == null) {
+			Configuration conf = SAMLConfigurationFactory.getConfiguration().getSystemConfiguration();
+			instance = new AttributeQueryCache(conf.getInt(Constants.PROP_ATTRIBUTE_QUERY_CACHE_TTL, 0) * 1000L, 
+					conf.getInt(Constants.PROP_ATTRIBUTE_QUERY_CACHE_NEGATIVE_TTL, 10) * 1000L, 
+					conf.getInt(Constants.PROP_ATTRIBUTE_QUERY_CACHE_SIZE, 10000));
+		}
+		return instance;
+	}
+
+	public static synchronized void setInstance(AttributeQueryCache cache) {
+		instance = cache;
+	}
+
+	/**
+	 * Remove all results for a subject from the shared cache. Called when the subject logs out.
+	 */
+	public static void logout(String idpEntityId, String nameId) {
+		AttributeQueryCache cache;
+		synchronized (AttributeQueryCache.class) {
+			cache = instance;
+		}
+		if (cache != null) {
+			cache.invalidate(idpEntityId, nameId);
+		}
+	}
+
+	/**
+	 * Get the result of a query, loading it if it is not cached.
+	 * 
+	 * @param loader Sends the query to the IdP. Only called if the result is not cached, and no identical query is in progress.
+	 */
+	public Collection<UserAttribute> get(String idpEntityId, String nameId, NameIDFormat format, UserAttribute[] attributes, Loader loader) throws IOException {
+		if (ttl <= 0) {
+			return loader.load();
+		}
+		Subject subject = new Subject(idpEntityId, nameId);
+		Query query = new Query(format, attributes);
+		CachedResult entry;
+		boolean load = false;
+		synchronized (subjects) {
+			long now = System.currentTimeMillis();
+			if (now >= nextPurge) {
+				purge(now);
+				nextPurge = now + ttl;
+			}
+			Map<Query, CachedResult> queries = subjects.get(subject);
+			if (queries == null) {
+				queries = new HashMap<Query, CachedResult>();
+				subjects.put(subject, queries);
+			}
+			entry = queries.get(query);
+			if (entry == null || entry.isExpired(now)) {
+				entry = new CachedResult();
+				queries.put(query, entry);
+				load = true;
+				misses++;
+			} else if (entry.isDone()) {
+				hits++;
+			} else {
+				coalesced++;
+			}
+		}
+		
+		if (load) {
+			try {
+				entry.setResult(loader.load(), System.currentTimeMillis() + ttl);
+			} catch (ValidationException e) {
+				entry.setNegative(e, System.currentTimeMillis() + negativeTtl);
+			} catch (IOException e) {
+				remove(subject, query, entry);
+				entry.setFailure(e);
+			} catch (RuntimeException e) {
+				remove(subject, query, entry);
+				entry.setFailure(e);
+			} catch (Error e) {
+				remove(subject, query, entry);
+				entry.setFailure(e);
+			}
+		} else if (log.isDebugEnabled()) {
+			log.debug("Using cached attributes for " + nameId + " from " + idpEntityId);
+		}
+		return entry.get();
+	}
+
+	/**
+	 * Remove all results for a subject.
+	 */
+	public void invalidate(String idpEntityId, String nameId) {
+		synchronized (subjects) {
+			if (subjects.remove(new Subject(idpEntityId, nameId)) != null && log.isDebugEnabled()) {
+				log.debug("Removed cached attributes for " + nameId + " from " + idpEntityId);
+			}
+		}
+	}
+
+	/**
+	 * Remove expired results, and subjects without results. Must be called while holding the lock on subjects.
+	 */
+	private void purge(long now) {
+		int removed = 0;
+		for (Iterator<Map<Query, CachedResult>> i = subjects.values().iterator(); i.hasNext(); ) {
+			Map<Query, CachedResult> queries = i.next();
+			for (Iterator<CachedResult> j = queries.values().iterator(); j.hasNext(); ) {
+				if (j.next().isExpired(now)) {
+					j.remove();
+					removed++;
+				}
+			}
+			if (queries.isEmpty()) {
+				i.remove();
+			}
+		}
+		if (removed > 0 && log.isDebugEnabled()) {
+			log.debug("Removed " + removed + " expired attribute query results");
+		}
+	}
+
+	private void remove(Subject subject, Query query, CachedResult entry) {
+		synchronized (subjects) {
+			Map<Query, CachedResult> queries = subjects.get(subject);
+			if (queries != null && queries.get(query) == entry) {
+				queries.remove(query);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of queries answered from the cache.
+	 */
+	public long getHits() {
+		synchronized (subjects) {
+			return hits;
+		}
+	}
+
+	/**
+	 * @return Number of queries sent to the IdP.
+	 */
+	public long getMisses() {
+		synchronized (subjects) {
+			return misses;
+		}
+	}
+
+	/**
+	 * @return Number of queries which waited for an identical query in progress.
+	 */
+	public long getCoalesced() {
+		synchronized (subjects) {
+			return coalesced;
+		}
+	}
+
+	/**
+	 * @return The fraction of queries which were not sent to the IdP, or 0 if there have been no queries.
+	 */
+	public double getHitRate() {
+		synchronized (subjects) {
+			long total = hits + coalesced + misses;
+			return total == 0 ? 0 : (double) (hits + coalesced) / total;
+		}
+	}
+
+	/**
+	 * @return Number of subjects with cached results.
+	 */
+	public int size() {
+		synchronized (subjects) {
+			return subjects.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (subjects) {
+			return "AttributeQueryCache[subjects=" + subjects.size() + ", hits=" + hits + ", coalesced=" + coalesced + ", misses=" + misses + "]";
+		}
+	}
+
+	public interface Loader {
+		public Collection<UserAttribute> load() throws IOException;
+	}
+
+	private static class Subject {
+		private final String idpEntityId;
+		private final String nameId;
+
+		private Subject(String idpEntityId, String nameId) {
+			this.idpEntityId = idpEntityId;
+			this.nameId = nameId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Subject)) return false;
+			Subject s = (Subject) obj;
+			return idpEntityId.equals(s.idpEntityId) && nameId.equals(s.nameId);
+		}
+
+		@Override
+		public int hashCode() {
+			return idpEntityId.hashCode() * 31 + nameId.hashCode();
+		}
+	}
+
+	private static class Query {
+		private final NameIDFormat format;
+		private final Set<String> attributes = new HashSet<String>();
+
+		private Query(NameIDFormat format, UserAttribute[] attributes) {
+			this.format = format;
+			for (UserAttribute attribute : attributes) {
+				this.attributes.add(attribute.getName() + "|" + attribute.getFormat());
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Query)) return false;
+			Query q = (Query) obj;
+			return format == q.format && attributes.equals(q.attributes);
+		}
+
+		@Override
+		public int hashCode() {
+			return (format == null ? 0 : format.hashCode()) * 31 + attributes.hashCode();
+		}
+	}
+
+	/**
+	 * A result, which is pending until the query has completed.
+	 */
+	private static class CachedResult {
+		private boolean done;
+		private long expires;
+		private Collection<UserAttribute> attributes;
+		private ValidationException negative;
+		private Throwable failure;
+
+		private synchronized boolean isDone() {
+			return done;
+		}
+
+		private synchronized boolean isExpired(long now) {
+			return done && now >= expires;
+		}
+
+		private synchronized void setResult(Collection<UserAttribute> attributes, long expires) {
+			this.attributes = attributes;
+			complete(expires);
+		}
+
+		private synchronized void setNegative(ValidationException e, long expires) {
+			this.negative = e;
+			complete(expires);
+		}
+
+		private synchronized void setFailure(Throwable e) {
+			this.failure = e;
+			complete(0);
+		}
+
+		private void complete(long expires) {
+			this.expires = expires;
+			this.done = true;
+			notifyAll();
+		}
+
+		private synchronized Collection<UserAttribute> get() throws IOException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for attribute query");
+				}
+			}
+			if (negative != null) {
+				throw negative;
+			} else if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure != null) {
+				throw (Error) failure;
+			}
+			return new ArrayList<UserAttribute>(attributes);
+		}
+	}
+}
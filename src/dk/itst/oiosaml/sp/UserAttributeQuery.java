@@ -30,16 +30,30 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.core.Attribute;
 import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
 import dk.itst.oiosaml.error.InvalidCertificateException;
+import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
-import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.metadata.SPMetadata;
@@ -51,7 +65,11 @@ import dk.itst.oiosaml.sp.service.util.SOAPClient;
 import dk.itst.oiosaml.sp.util.AttributeUtil;
 
 public class UserAttributeQuery {
-	private static final CredentialRepository credentialRepository = new CredentialRepository();
+	private static final Logger log = LoggerFactory.getLogger(UserAttributeQuery.class);
+	/**
+	 * Limits of the concurrent queries of bulk queries, by IdP entity id.
+	 */
+	private static final Map<String, Limit> limits = new HashMap<String, Limit>();
 	private final String username;
 	private final String password;
 	private final SOAPClient client;
@@ -60,6 +78,7 @@ public class UserAttributeQuery {
 	private final boolean requireEncryption;
 	private final Metadata idpMetadata;
 	private final String spEntityId;
+	private final AttributeQueryCache cache;
 
 	public UserAttributeQuery() throws WrappedException, NoSuchAlgorithmException, CertificateException,
 			IllegalStateException, KeyStoreException, IOException {
@@ -75,19 +94,27 @@ public class UserAttributeQuery {
 
 	public UserAttributeQuery(String idpEntityId, String username, String password) throws WrappedException,
 			NoSuchAlgorithmException, CertificateException, IllegalStateException, KeyStoreException, IOException {
-		this(IdpMetadata.getInstance().getMetadata(idpEntityId), username, password, new HttpSOAPClient(),
-				credentialRepository.getCredential(
-						SAMLConfigurationFactory.getConfiguration().getKeystore(),
-						SAMLConfigurationFactory.getConfiguration().getSystemConfiguration()
-								.getString(Constants.PROP_CERTIFICATE_PASSWORD)), SAMLConfigurationFactory
+		this(IdpMetadata.getInstance().getMetadata(idpEntityId), username, password,
+				new HttpSOAPClient(SAMLConfigurationFactory.getConfiguration().getSystemConfiguration()),
+				SAMLConfigurationFactory.getCredential(SAMLConfigurationFactory.getConfiguration()), SAMLConfigurationFactory
 						.getConfiguration().getSystemConfiguration().getBoolean(Constants.PROP_IGNORE_CERTPATH, false),
 				SAMLConfigurationFactory.getConfiguration().getSystemConfiguration()
-						.getBoolean(Constants.PROP_REQUIRE_ENCRYPTION, true), SPMetadata.getInstance().getEntityID());
+						.getBoolean(Constants.PROP_REQUIRE_ENCRYPTION, true), SPMetadata.getInstance().getEntityID(),
+				AttributeQueryCache.getInstance());
 	}
 
 	public UserAttributeQuery(Metadata idpMetadata, String username, String password, SOAPClient client,
 			Credential credential, boolean ignoreCertPath, boolean requireEncryption, String spEntityId) {
+		this(idpMetadata, username, password, client, credential, ignoreCertPath, requireEncryption, spEntityId, null);
+	}
+
+	/**
+	 * @param cache Cache of query results, or <code>null</code> if results should not be cached.
+	 */
+	public UserAttributeQuery(Metadata idpMetadata, String username, String password, SOAPClient client,
+			Credential credential, boolean ignoreCertPath, boolean requireEncryption, String spEntityId, AttributeQueryCache cache) {
 		this.spEntityId = spEntityId;
+		this.cache = cache;
 		if (idpMetadata == null)
 			throw new IllegalArgumentException("IdP Metadata cannot be null");
 		this.idpMetadata = idpMetadata;
@@ -108,16 +135,130 @@ public class UserAttributeQuery {
 		return query(nameId, format, attrs);
 	}
 
-	public Collection<UserAttribute> query(String nameId, NameIDFormat format, UserAttribute... attributes)
+	public Collection<UserAttribute> query(final String nameId, final NameIDFormat format, final UserAttribute... attributes)
 			throws InvalidCertificateException, IOException {
+		if (cache == null) {
+			return execute(nameId, format, attributes);
+		}
+		return cache.get(idpMetadata.getEntityID(), nameId, format, attributes, new AttributeQueryCache.Loader() {
+			public Collection<UserAttribute> load() throws IOException {
+				return execute(nameId, format, attributes);
+			}
+		});
+	}
+
+	/**
+	 * Query the attributes of a number of subjects concurrently.
+	 * 
+	 * <p>At most <code>parallelism</code> queries are sent to the IdP at the same time. The limit is shared by all bulk queries
+	 * to the same IdP, also when they are made by different threads or objects. If they give different limits, the limit of 
+	 * the latest query applies. All queries share the signing credential
+	 * and the SOAP client of this object, so when using {@link HttpSOAPClient}, connections to the IdP are reused and limited
+	 * by {@link Constants#PROP_SOAP_CONNECTIONS}.</p>
+	 * 
+	 * <p>Results are passed to the handler as the queries complete, which is not necessarily in the order of the name ids. 
+	 * The handler is called on the calling thread, one result at a time. This method returns when all queries have completed.
+	 * A query which fails, also with an {@link Error}, does not stop the other queries.</p>
+	 * 
+	 * @param nameIds The subjects to query.
+	 * @param parallelism Maximum number of concurrent queries.
+	 * @throws InterruptedException If the calling thread is interrupted. Queries in progress are cancelled.
+	 */
+	public void query(Collection<String> nameIds, final NameIDFormat format, int parallelism, ResultHandler handler, final UserAttribute... attributes) throws InterruptedException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+		}
+		if (nameIds.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Limit limit = getLimit(idpMetadata.getEntityID(), parallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, nameIds.size()), new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UserAttributeQuery-" + ++count);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+		int failures = 0;
+		try {
+			Iterator<String> i = nameIds.iterator();
+			int pending = 0;
+			// submit queries as others complete, so no more than parallelism queries are queued
+			while (pending < parallelism && i.hasNext()) {
+				submit(completion, limit, i.next(), format, attributes);
+				pending++;
+			}
+			while (pending > 0) {
+				Result result = completion.take().get();
+				pending--;
+				if (i.hasNext()) {
+					submit(completion, limit, i.next(), format, attributes);
+					pending++;
+				}
+				if (!result.isSuccess()) {
+					failures++;
+				}
+				handler.handle(result);
+			}
+		} catch (ExecutionException e) {
+			throw new WrappedException(Layer.CLIENT, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("Queried attributes of " + nameIds.size() + " subjects from " + idpMetadata.getEntityID() + " in " + (System.currentTimeMillis() - start) + " ms, " + failures + " failed");
+	}
+
+	private void submit(CompletionService<Result> completion, final Semaphore limit, final String nameId, final NameIDFormat format, final UserAttribute[] attributes) {
+		completion.submit(new Callable<Result>() {
+			public Result call() throws InterruptedException {
+				long start = System.currentTimeMillis();
+				limit.acquire();
+				try {
+					Collection<UserAttribute> attrs = query(nameId, format, attributes);
+					return new Result(nameId, attrs, null, System.currentTimeMillis() - start);
+				} catch (Exception e) {
+					log.debug("Attribute query for " + nameId + " failed", e);
+					return new Result(nameId, null, e, System.currentTimeMillis() - start);
+				} catch (Error e) {
+					log.warn("Attribute query for " + nameId + " failed", e);
+					return new Result(nameId, null, new WrappedException(Layer.CLIENT, e), System.currentTimeMillis() - start);
+				} finally {
+					limit.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the limit of concurrent queries to an IdP, and set it to a number of permits.
+	 */
+	private static Limit getLimit(String idpEntityId, int permits) {
+		synchronized (limits) {
+			Limit limit = limits.get(idpEntityId);
+			if (limit == null) {
+				limit = new Limit(permits);
+				limits.put(idpEntityId, limit);
+			} else {
+				limit.setPermits(permits);
+			}
+			return limit;
+		}
+	}
+
+	private Collection<UserAttribute> execute(String nameId, NameIDFormat format, UserAttribute... attributes) throws IOException {
 		OIOAttributeQuery q = OIOAttributeQuery.newQuery(
 				idpMetadata.getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI), nameId, format,
 				spEntityId);
 		for (UserAttribute attribute : attributes) {
 			q.addAttribute(attribute.getName(), attribute.getFormat());
 		}
+		q.setSignatureAlgorithm(SignatureAlgorithms.select(credential, idpMetadata.getSigningMethods()));
 		OIOAssertion res = q.executeQuery(client, credential, username, password, ignoreCertPath,
-				idpMetadata.getCertificates(), !requireEncryption);
+				idpMetadata.getPublicKeyIndex(), !requireEncryption);
 		Collection<UserAttribute> attrs = new ArrayList<UserAttribute>();
 		for (AttributeStatement attrStatement : res.getAssertion().getAttributeStatements()) {
 			for (Attribute attr : attrStatement.getAttributes()) {
@@ -127,4 +268,81 @@ public class UserAttributeQuery {
 		}
 		return attrs;
 	}
+
+	/**
+	 * Semaphore with a number of permits which can be changed while permits are held.
+	 */
+	private static class Limit extends Semaphore {
+		private static final long serialVersionUID = 1L;
+		private int permits;
+
+		private Limit(int permits) {
+			super(permits);
+			this.permits = permits;
+		}
+
+		private synchronized void setPermits(int permits) {
+			if (permits > this.permits) {
+				release(permits - this.permits);
+			} else if (permits < this.permits) {
+				reducePermits(this.permits - permits);
+			}
+			this.permits = permits;
+		}
+	}
+
+	public interface ResultHandler {
+		public void handle(Result result);
+	}
+
+	/**
+	 * The outcome of a single query made by {@link UserAttributeQuery#query(Collection, NameIDFormat, int, ResultHandler, UserAttribute...)}.
+	 */
+	public static class Result {
+		private final String nameId;
+		private final Collection<UserAttribute> attributes;
+		private final Exception error;
+		private final long latency;
+
+		private Result(String nameId, Collection<UserAttribute> attributes, Exception error, long latency) {
+			this.nameId = nameId;
+			this.attributes = attributes;
+			this.error = error;
+			this.latency = latency;
+		}
+
+		public String getNameId() {
+			return nameId;
+		}
+
+		/**
+		 * @return The attributes of the subject, or <code>null</code> if the query failed.
+		 */
+		public Collection<UserAttribute> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return The reason the query failed, or <code>null</code> if it succeeded.
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return Duration of the query in milliseconds, including any time spent waiting for other queries to the IdP or for a SOAP connection.
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return nameId + ": " + (error == null ? attributes : error.toString()) + " (" + latency + " ms)";
+		}
+	}
 }
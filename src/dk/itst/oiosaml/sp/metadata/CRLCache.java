@@ -0,0 +1,530 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Cache of downloaded CRLs, keyed by distribution point URL.
+ *
+ * A cached CRL is downloaded again when the server reports a new version, using the ETag and Last-Modified
+ * values of the previous download. If the server does not send these values, the CRL is only downloaded
+ * again after its nextUpdate time. Concurrent requests for the same URL share one download. A CRL is never used
+ * after its nextUpdate time: if the server reports that it has not been modified, it is downloaded again, and if
+ * the downloaded CRL is also out of date, it is rejected.
+ *
+ * CRLs are never loaded into memory. They are read as a stream into a {@link CRLIndex} of the revoked serial
+ * numbers, so large CRLs use the same amount of heap as small ones. If a CRL refers to delta CRLs, the index is
+ * rebuilt by merging the delta CRL into the index of the base CRL, without reading the base CRL again.
+ *
+ * When a directory is given, CRLs are also stored on disk, so they do not have to be downloaded again after a
+ * restart. Temporary files are deleted when the entry using them is replaced, or when the cache is cleared.
+ */
+class CRLCache {
+	private static final Logger log = LoggerFactory.getLogger(CRLCache.class);
+
+	private final File directory;
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+	/**
+	 * @param directory Directory used to store CRLs. If <code>null</code>, CRLs are stored in temporary files.
+	 */
+	CRLCache(File directory) {
+		this.directory = directory;
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Unable to create CRL cache directory " + directory + ", CRLs are stored in temporary files");
+		}
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Remove all entries and delete their temporary files. CRLs stored in the cache directory are kept.
+	 */
+	void clear() {
+		List<Slot> removed;
+		synchronized (slots) {
+			removed = new ArrayList<Slot>(slots.values());
+			slots.clear();
+		}
+		for (Slot slot : removed) {
+			synchronized (slot) {
+				if (slot.entry != null) {
+					slot.entry.delete();
+					slot.entry = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a CRL, downloading it if it is not cached or has changed. If the CRL refers to delta CRLs, the first
+	 * delta CRL which can be read is applied.
+	 *
+	 * @param url The distribution point.
+	 * @param timeout Connect and read timeout in milliseconds.
+	 * @param trustStore Keys trusted to sign CRLs, or <code>null</code> if signatures are not checked.
+	 * @throws CRLException If the CRL cannot be read, or is not signed by a trusted key.
+	 */
+	Entry get(URL url, int timeout, CRLTrustStore trustStore) throws IOException, CRLException {
+		Entry base = getEntry(url, timeout, trustStore);
+		for (String location : base.info.getFreshestCRL()) {
+			URL deltaUrl;
+			try {
+				deltaUrl = new URL(location);
+			} catch (MalformedURLException e) {
+				log.debug("Ignoring delta CRL " + location + " for " + url);
+				continue;
+			}
+			// LDAP locations are not supported
+			if (!"http".equals(deltaUrl.getProtocol()) && !"https".equals(deltaUrl.getProtocol()) && !"file".equals(deltaUrl.getProtocol())) {
+				continue;
+			}
+			try {
+				return applyDelta(url, base, deltaUrl, getEntry(deltaUrl, timeout, trustStore));
+			} catch (IOException e) {
+				log.warn("Unable to read delta CRL from " + deltaUrl + ", using base CRL from " + url, e);
+			} catch (CRLException e) {
+				log.warn("Unable to use delta CRL from " + deltaUrl + ", using base CRL from " + url, e);
+			}
+		}
+		return base;
+	}
+
+	private Entry getEntry(URL url, int timeout, CRLTrustStore trustStore) throws IOException, CRLException {
+		Slot slot;
+		synchronized (slots) {
+			slot = slots.get(url.toString());
+			if (slot == null) {
+				slot = new Slot();
+				slots.put(url.toString(), slot);
+			}
+		}
+		synchronized (slot) {
+			if (slot.entry == null) {
+				slot.entry = load(url);
+			}
+			long now = System.currentTimeMillis();
+			try {
+				Entry entry = fetch(url, slot.entry, timeout, now);
+				if (slot.entry != null && slot.entry != entry) {
+					slot.entry.delete();
+				}
+				slot.entry = entry;
+			} catch (IOException e) {
+				if (slot.entry == null || now >= slot.entry.nextUpdate) throw e;
+				log.warn("Unable to read CRL from " + url + ", using cached CRL until " + slot.entry.info.getNextUpdate(), e);
+			}
+
+			// the file of the current entry is only replaced while holding the lock
+			Entry entry = slot.entry;
+			if (trustStore != null && entry.trustStore != trustStore) {
+				entry.trusted = trustStore.verify(entry.info);
+				entry.trustStore = trustStore;
+			}
+			if (trustStore != null && !entry.trusted) {
+				throw new CRLException("CRL from " + url + " issued by " + entry.info.getIssuer() + " is not signed by a trusted key");
+			}
+			return entry;
+		}
+	}
+
+	private Entry fetch(URL url, Entry cached, int timeout, long now) throws IOException, CRLException {
+		return fetch(url, cached, timeout, now, true);
+	}
+
+	/**
+	 * @param conditional Whether to send the ETag and Last-Modified values of the cached CRL.
+	 */
+	private Entry fetch(URL url, Entry cached, int timeout, long now, boolean conditional) throws IOException, CRLException {
+		boolean validators = cached != null && (cached.etag != null || cached.lastModified > 0);
+		if (cached != null && !validators && now < cached.nextUpdate) {
+			log.debug("Using cached CRL for " + url + ", next update at " + cached.info.getNextUpdate());
+			return cached;
+		}
+
+		URLConnection c = url.openConnection();
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		c.setUseCaches(false);
+		if (cached != null && conditional) {
+			if (cached.etag != null) {
+				c.setRequestProperty("If-None-Match", cached.etag);
+			}
+			if (cached.lastModified > 0) {
+				c.setIfModifiedSince(cached.lastModified);
+			}
+		}
+		File file = null;
+		try {
+			if (c instanceof HttpURLConnection) {
+				int status = ((HttpURLConnection) c).getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+					if (isStale(cached, now)) {
+						log.warn("CRL from " + url + " has not been modified, but the next update was due at " + cached.info.getNextUpdate() + ", downloading it again");
+						return fetch(url, cached, timeout, now, false);
+					}
+					return notModified(url, cached, now);
+				}
+				if (status != HttpURLConnection.HTTP_OK) {
+					throw new IOException("Unable to read CRL from " + url + ", server returned " + status);
+				}
+			}
+			String etag = c.getHeaderField("ETag");
+			long lastModified = c.getLastModified();
+			// not all servers, and no local files, support conditional requests
+			if (cached != null && (etag != null && etag.equals(cached.etag) || etag == null && lastModified > 0 && lastModified == cached.lastModified)) {
+				return notModified(url, cached, now);
+			}
+
+			long start = System.currentTimeMillis();
+			file = isPersistent() ? getFile(url, ".crl.tmp") : createTempFile(".crl");
+			copy(c.getInputStream(), file);
+			Entry entry = parse(url, file, etag, lastModified);
+			if (isStale(entry, now)) {
+				entry.delete();
+				throw new CRLException("CRL from " + url + " is out of date, the next update was due at " + entry.info.getNextUpdate());
+			}
+			if (isPersistent()) {
+				try {
+					store(url, entry);
+				} catch (IOException e) {
+					entry.delete();
+					throw e;
+				}
+			}
+			file = null;
+			log.info("Downloaded CRL from " + url + " with " + entry.index.size() + " revoked certificates in " + (System.currentTimeMillis() - start) + " ms. Next update at " + entry.info.getNextUpdate());
+			return entry;
+		} finally {
+			if (file != null) {
+				file.delete();
+			}
+			if (c instanceof HttpURLConnection) {
+				((HttpURLConnection) c).disconnect();
+			}
+		}
+	}
+
+	private Entry notModified(URL url, Entry cached, long now) throws CRLException {
+		if (isStale(cached, now)) {
+			throw new CRLException("CRL from " + url + " has not been updated, the next update was due at " + cached.info.getNextUpdate());
+		}
+		log.debug("CRL from " + url + " has not been modified");
+		return cached;
+	}
+
+	/**
+	 * @return <code>true</code> if the nextUpdate time of the CRL has passed.
+	 */
+	private static boolean isStale(Entry entry, long now) {
+		return entry.nextUpdate > 0 && now >= entry.nextUpdate;
+	}
+
+	/**
+	 * Read a CRL file into an index.
+	 */
+	private Entry parse(URL url, File file, String etag, long lastModified) throws IOException, CRLException {
+		CRLIndex.Builder revoked = new CRLIndex.Builder(createTempFile(".idx"));
+		CRLIndex.Builder removed = new CRLIndex.Builder(createTempFile(".idx"));
+		try {
+			CRLInfo info = CRLInfo.read(file, revoked, removed);
+			CRLIndex removedIndex = removed.build();
+			if (removedIndex.size() == 0) {
+				delete(removedIndex);
+				removedIndex = null;
+			}
+			return new Entry(info, revoked.build(), removedIndex, etag, lastModified, getTime(info.getNextUpdate()), !isPersistent());
+		} catch (IOException e) {
+			revoked.abort();
+			removed.abort();
+			throw e;
+		} catch (CRLException e) {
+			revoked.abort();
+			removed.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			revoked.abort();
+			removed.abort();
+			throw new CRLException("Unable to read CRL from " + url + ": " + e);
+		}
+	}
+
+	/**
+	 * Apply a delta CRL to a base CRL. The result is cached in the base entry until another delta CRL is applied.
+	 */
+	private Entry applyDelta(URL url, Entry base, URL deltaUrl, Entry delta) throws IOException, CRLException {
+		CRLInfo b = base.info;
+		CRLInfo d = delta.info;
+		if (d.getBaseCRLNumber() == null) {
+			throw new CRLException("CRL from " + deltaUrl + " is not a delta CRL");
+		}
+		if (!d.getIssuer().equals(b.getIssuer())) {
+			throw new CRLException("Delta CRL from " + deltaUrl + " is issued by " + d.getIssuer() + ", not " + b.getIssuer());
+		}
+		if (b.getCRLNumber() == null || d.getBaseCRLNumber().compareTo(b.getCRLNumber()) > 0) {
+			throw new CRLException("Delta CRL from " + deltaUrl + " requires base CRL " + d.getBaseCRLNumber() + ", the CRL from " + url + " is " + b.getCRLNumber());
+		}
+		if (d.getCRLNumber() != null && d.getCRLNumber().compareTo(b.getCRLNumber()) <= 0) {
+			log.debug("Delta CRL from " + deltaUrl + " is older than the CRL from " + url);
+			return base;
+		}
+
+		synchronized (base) {
+			if (base.delta != delta) {
+				long start = System.currentTimeMillis();
+				CRLIndex index = CRLIndex.merge(base.index, delta.index, delta.removed, createTempFile(".idx"));
+				if (base.merged != null) {
+					delete(base.merged.index);
+				}
+				base.merged = new Entry(b, index, null, base.etag, base.lastModified, delta.nextUpdate, false);
+				base.delta = delta;
+				log.info("Applied delta CRL from " + deltaUrl + " to " + url + ", " + index.size() + " revoked certificates, in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			return base.merged;
+		}
+	}
+
+	/**
+	 * Load a CRL stored by a previous run.
+	 *
+	 * @return The entry, or <code>null</code> if the CRL has not been stored or cannot be read.
+	 */
+	private Entry load(URL url) {
+		if (!isPersistent()) return null;
+
+		File crlFile = getFile(url, ".crl");
+		File propertiesFile = getFile(url, ".properties");
+		if (!crlFile.isFile() || !propertiesFile.isFile()) return null;
+
+		try {
+			Properties props = new Properties();
+			InputStream is = new FileInputStream(propertiesFile);
+			try {
+				props.load(is);
+			} finally {
+				is.close();
+			}
+			if (!url.toString().equals(props.getProperty("url"))) {
+				return null;
+			}
+			Entry entry = parse(url, crlFile, props.getProperty("etag"), Long.parseLong(props.getProperty("lastModified", "0")));
+			log.debug("Loaded CRL for " + url + " from " + crlFile);
+			return entry;
+		} catch (IOException e) {
+			log.warn("Unable to read cached CRL for " + url + " from " + crlFile, e);
+		} catch (CRLException e) {
+			log.warn("Unable to read cached CRL for " + url + " from " + crlFile, e);
+		} catch (RuntimeException e) {
+			log.warn("Unable to read cached CRL for " + url + " from " + crlFile, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Move a downloaded CRL into the cache directory.
+	 */
+	private void store(URL url, Entry entry) throws IOException {
+		File crlFile = getFile(url, ".crl");
+		rename(entry.info.getFile(), crlFile);
+		entry.info.setFile(crlFile);
+
+		try {
+			Properties props = new Properties();
+			props.setProperty("url", url.toString());
+			if (entry.etag != null) {
+				props.setProperty("etag", entry.etag);
+			}
+			props.setProperty("lastModified", Long.toString(entry.lastModified));
+			File file = getFile(url, ".properties");
+			File tmp = new File(file.getAbsolutePath() + ".tmp");
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				props.store(os, "CRL cache entry");
+			} finally {
+				os.close();
+			}
+			rename(tmp, file);
+		} catch (IOException e) {
+			log.warn("Unable to store CRL for " + url + " in " + directory, e);
+		}
+	}
+
+	private static void copy(InputStream is, File file) throws IOException {
+		try {
+			OutputStream os = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[65536];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void rename(File tmp, File file) throws IOException {
+		// rename does not replace existing files on all platforms
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+	}
+
+	private boolean isPersistent() {
+		return directory != null && directory.isDirectory();
+	}
+
+	/**
+	 * Indexes, and CRLs which are not stored in the cache directory, are kept in temporary files. The files are
+	 * deleted by {@link Entry#delete()}.
+	 */
+	private static File createTempFile(String suffix) throws IOException {
+		return File.createTempFile("crl", suffix);
+	}
+
+	private File getFile(URL url, String suffix) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new File(directory, Utils.toHex(digest.digest(url.toString().getBytes(OIOSAMLConstants.UTF_8))) + suffix);
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	private static void delete(CRLIndex index) {
+		if (!index.delete()) {
+			log.warn("Unable to delete CRL index " + index.getFile());
+		}
+	}
+
+	private static long getTime(Date date) {
+		return date != null ? date.getTime() : 0;
+	}
+
+	private static class Slot {
+		private Entry entry;
+	}
+
+	/**
+	 * A CRL with an index of the revoked serial numbers.
+	 */
+	static class Entry {
+		private final CRLInfo info;
+		private final CRLIndex index;
+		private final CRLIndex removed;
+		private final String etag;
+		private final long lastModified;
+		private final long nextUpdate;
+		private final boolean temporary;
+
+		// guarded by the slot of the entry
+		private CRLTrustStore trustStore;
+		private boolean trusted;
+
+		// guarded by the entry
+		private Entry delta;
+		private Entry merged;
+
+		private Entry(CRLInfo info, CRLIndex index, CRLIndex removed, String etag, long lastModified, long nextUpdate, boolean temporary) {
+			this.info = info;
+			this.index = index;
+			this.removed = removed;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.nextUpdate = nextUpdate;
+			this.temporary = temporary;
+		}
+
+		CRLInfo getCRL() {
+			return info;
+		}
+
+		boolean isRevoked(BigInteger serialNumber) {
+			return index.contains(serialNumber);
+		}
+
+		/**
+		 * @return The number of revoked certificates, including those from an applied delta CRL.
+		 */
+		int getRevokedCount() {
+			return index.size();
+		}
+
+		long getNextUpdate() {
+			return nextUpdate;
+		}
+
+		/**
+		 * Delete the files of a replaced entry. Threads using the entry can still read the index.
+		 */
+		private synchronized void delete() {
+			CRLCache.delete(index);
+			if (removed != null) {
+				CRLCache.delete(removed);
+			}
+			if (merged != null) {
+				CRLCache.delete(merged.index);
+			}
+			if (temporary && !info.getFile().delete()) {
+				log.warn("Unable to delete " + info.getFile());
+			}
+		}
+	}
+}
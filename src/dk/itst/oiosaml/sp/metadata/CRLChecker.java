@@ -25,31 +25,35 @@
  */
 package dk.itst.oiosaml.sp.metadata;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.Security;
-import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
+import java.security.KeyStore;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.security.cert.PKIXParameters;
-import java.security.cert.TrustAnchor;
-import java.security.cert.X509CRL;
-import java.security.cert.X509CRLEntry;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,17 +63,14 @@ import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.DERIA5String;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.cert.ocsp.OCSPException;
 import org.bouncycastle.i18n.filter.UntrustedUrlInput;
 import org.bouncycastle.x509.extension.X509ExtensionUtil;
-import org.opensaml.xml.security.x509.X509Credential;
 
+import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
-import dk.itst.oiosaml.error.Layer;
-import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
-import dk.itst.oiosaml.security.CredentialRepository;
-import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.service.util.Constants;
 
 /**
@@ -88,44 +89,142 @@ public class CRLChecker {
 	private static final Logger log = LoggerFactory.getLogger(CRLChecker.class);
 	private static final String AUTH_INFO_ACCESS = X509Extension.authorityInfoAccess.getId();
 	private Timer timer;
+	private CRLCache crlCache;
+	private final OCSPClient ocspClient = new OCSPClient();
+	private X509Certificate ocspCA;
+	private String ocspCALocation;
+	private CRLTrustStore trustStore;
+	private Object trustStoreSource;
 
-	public void checkCertificates(IdpMetadata metadata, Configuration conf) {
+	/**
+	 * Check the revocation status of all certificates in the metadata.
+	 * 
+	 * Certificates are checked in parallel using up to {@link Constants#PROP_CRL_THREADS} threads. Each check must
+	 * complete within {@link Constants#PROP_CRL_DEADLINE} seconds, and all connections use
+	 * {@link Constants#PROP_CRL_TIMEOUT} as connect and read timeout. A certificate which cannot be checked, because
+	 * of an error or because the check did not complete in time, is marked as revoked. Other certificates are not
+	 * affected.
+	 * 
+	 * @return A summary of the run.
+	 */
+	public Summary checkCertificates(IdpMetadata metadata, Configuration conf) {
+		long start = System.currentTimeMillis();
+		List<Check> checks = new ArrayList<Check>();
 		for (String entityId : metadata.getEntityIDs()) {
-			Metadata md = metadata.getMetadata(entityId);
+			// only the certificates are kept, indexed entities may be evicted from the cache during the run
+			for (X509Certificate certificate : metadata.getMetadata(entityId).getAllCertificates()) {
+				checks.add(new Check(conf, entityId, metadata, certificate));
+			}
+		}
+		Summary summary = new Summary(metadata.getEntityIDs().size(), checks.size());
+		if (checks.isEmpty()) {
+			return summary;
+		}
 
-			for (X509Certificate certificate : md.getAllCertificates()) {
+		int threads = Math.max(1, Math.min(checks.size(), conf.getInt(Constants.PROP_CRL_THREADS, 4)));
+		long deadline = 1000L * conf.getInt(Constants.PROP_CRL_DEADLINE, 30);
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
 
-				try {
-					if (doOCSPCheck(conf, entityId, md, certificate)) {
-						Audit.log(Operation.OCSPCHECK, false, entityId, "Revoked: NO");
-						continue;
-					}
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CRLChecker-" + ++count);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ocspClient.setTimeout(1000 * conf.getInt(Constants.PROP_CRL_TIMEOUT, 10));
+		CRLTrustStore trustStore = null;
+		if (conf.getString(Constants.PROP_CRL_TRUSTSTORE) != null) {
+			try {
+				trustStore = getTrustStore(conf);
+			} catch (Exception e) {
+				log.error("Unable to load CRL truststore " + conf.getString(Constants.PROP_CRL_TRUSTSTORE) + ", no CRL signatures can be verified", e);
+				trustStore = CRLTrustStore.EMPTY;
+			}
+		}
+		try {
+			Map<X509Certificate, OCSPClient.Status> ocsp = prefetchOCSP(executor, checks, conf, deadline);
+			for (Check check : checks) {
+				check.ocspStatus = ocsp.get(check.certificate);
+				check.trustStore = trustStore;
+				check.future = executor.submit(check);
+			}
+			for (Check check : checks) {
+				summary.add(await(check, deadline));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		summary.time = System.currentTimeMillis() - start;
+		log.info("CRL checker finished: " + summary);
+		return summary;
+	}
 
-					if (doCRLCheck(conf, entityId, md, certificate)) {
-						Audit.log(Operation.CRLCHECK, false, entityId, "Revoked: NO");
-						continue;
+	/**
+	 * Wait for a check to complete, and update the certificate status.
+	 * The deadline is counted from when the check starts running, not from when it was submitted.
+	 */
+	private Status await(Check check, long deadline) {
+		Status status;
+		try {
+			while (true) {
+				long started = check.started;
+				long wait = started == 0 ? deadline : started + deadline - System.currentTimeMillis();
+				try {
+					status = check.future.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+					break;
+				} catch (TimeoutException e) {
+					if (check.started != 0 && System.currentTimeMillis() - check.started >= deadline) {
+						check.future.cancel(true);
+						log.error("Revocation check of certificate " + check.certificate.getSubjectDN() + " for " + check.entityId + " did not complete within " + deadline + " ms");
+						status = Status.TIMEOUT;
+						break;
 					}
-
-					md.setCertificateValid(certificate, false);
-
-					log.debug("Revocation check failed or could not be performed. Permanent failure.");
-
-					Audit.log(Operation.CRLCHECK, false, entityId, "Revoked: YES");
-
-				} catch (Exception e) {
-					log.error("Unexpected error while checking revokation of certificates.", e);
-
-					Audit.log(Operation.CRLCHECK, false, entityId,
-							"Unable to perform revocation check. certificate is state is set to - Revoked: YES");
-
-					// Default to non-valid certificate.
-					if (certificate != null && md != null)
-						md.setCertificateValid(certificate, false);
-
-					throw new WrappedException(Layer.BUSINESS, e);
 				}
 			}
+		} catch (ExecutionException e) {
+			log.error("Unexpected error while checking revokation of certificate " + check.certificate.getSubjectDN() + " for " + check.entityId, e.getCause());
+			status = Status.FAILED;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			check.future.cancel(true);
+			status = Status.FAILED;
+		}
+
+		switch (status) {
+		case OCSP_VALID:
+			Audit.log(Operation.OCSPCHECK, false, check.entityId, "Revoked: NO");
+			break;
+		case CRL_VALID:
+			Audit.log(Operation.CRLCHECK, false, check.entityId, "Revoked: NO");
+			break;
+		case REVOKED:
+			check.metadata.setCertificateValid(check.entityId, check.certificate, false);
+			log.debug("Revocation check failed or could not be performed. Permanent failure.");
+			Audit.log(Operation.CRLCHECK, false, check.entityId, "Revoked: YES");
+			break;
+		default:
+			// Default to non-valid certificate.
+			check.metadata.setCertificateValid(check.entityId, check.certificate, false);
+			Audit.log(Operation.CRLCHECK, false, check.entityId,
+					"Unable to perform revocation check. certificate is state is set to - Revoked: YES");
 		}
+		return status;
+	}
+
+	private Status check(Configuration conf, String entityId, X509Certificate certificate, OCSPClient.Status ocspStatus, CRLTrustStore trustStore) {
+		ocspStatus = doOCSPCheck(conf, entityId, certificate, ocspStatus);
+		if (ocspStatus == OCSPClient.Status.GOOD) {
+			return Status.OCSP_VALID;
+		}
+		if (ocspStatus == OCSPClient.Status.REVOKED) {
+			log.debug("Certificate " + certificate.getSubjectDN() + " is revoked according to OCSP");
+			return Status.REVOKED;
+		}
+		if (doCRLCheck(conf, entityId, certificate, trustStore)) {
+			return Status.CRL_VALID;
+		}
+		return Status.REVOKED;
 	}
 
 	/**
@@ -133,94 +232,162 @@ public class CRLChecker {
 	 * 
 	 * @param conf
 	 * @param entityId
-	 * @param md
 	 * @param certificate
-	 * @return true if an OCSP check was completed, otherwise false.
-	 * @throws CertificateException
+	 * @param prefetched The status from a combined request for several certificates, or <code>null</code>.
+	 * @return The status from the OCSP responder, or <code>null</code> if no OCSP check could be performed.
 	 */
-	private boolean doOCSPCheck(Configuration conf, String entityId, Metadata md, X509Certificate certificate)
-			throws CertificateException {
+	private OCSPClient.Status doOCSPCheck(Configuration conf, String entityId, X509Certificate certificate, OCSPClient.Status prefetched) {
+		if (prefetched != null) {
+			log.debug("OCSP status of certificate " + certificate.getSubjectDN() + ": " + prefetched);
+			return prefetched;
+		}
 		String ocspServer = getOCSPUrl(conf, entityId, certificate);
 
 		if (ocspServer == null) {
 			log.debug("No OCSP access location could be found for " + entityId);
-			return false;
+			return null;
 		}
 
 		log.debug("Starting OCSP validation of certificate " + certificate.getSubjectDN());
 
 		X509Certificate ca = getCertificateCA(conf, ocspServer);
 		if (ca == null) {
+			return null;
+		}
+		if (!isIssuedBy(certificate, ca)) {
+			return OCSPClient.Status.REVOKED;
+		}
+
+		try {
+			OCSPClient.Status status = ocspClient.getStatus(new URL(ocspServer), ca, Collections.singletonList(certificate)).get(certificate);
+			log.debug("OCSP status of certificate " + certificate.getSubjectDN() + ": " + status);
+			return status;
+		} catch (IOException e) {
+			log.error("Unable to validate certificate using OCSP responder " + ocspServer, e);
+		} catch (OCSPException e) {
+			log.error("Unable to validate certificate using OCSP responder " + ocspServer, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Check that a certificate is issued by the CA of the OCSP responder. The OCSP response only covers the issuer
+	 * name and key hash in the request, so a certificate from another issuer must not be checked against it.
+	 */
+	private boolean isIssuedBy(X509Certificate certificate, X509Certificate ca) {
+		if (!ca.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+			log.error("Certificate " + certificate.getSubjectDN() + " is issued by " + certificate.getIssuerX500Principal() + ", not by the OCSP CA " + ca.getSubjectX500Principal());
 			return false;
 		}
+		try {
+			certificate.verify(ca.getPublicKey());
+			return true;
+		} catch (GeneralSecurityException e) {
+			log.error("Certificate " + certificate.getSubjectDN() + " is not signed by the OCSP CA " + ca.getSubjectX500Principal(), e);
+			return false;
+		}
+	}
 
-		// Create certificate chain
-		List<X509Certificate> certList = new ArrayList<X509Certificate>();
-		certList.add(certificate);
-		certList.add(ca);
-		CertPath cp;
+	/**
+	 * Check certificates which use the same OCSP responder using a single request for each responder.
+	 * 
+	 * @return The status of the certificates which could be checked.
+	 */
+	private Map<X509Certificate, OCSPClient.Status> prefetchOCSP(ExecutorService executor, List<Check> checks, Configuration conf, long deadline) {
+		Map<X509Certificate, OCSPClient.Status> res = new HashMap<X509Certificate, OCSPClient.Status>();
+		if (conf.getString(Constants.PROP_OCSP_CA) == null) {
+			return res;
+		}
 
-		CertificateFactory cf;
-		cf = CertificateFactory.getInstance("X.509");
-		cp = cf.generateCertPath(certList);
+		Map<String, List<X509Certificate>> responders = new LinkedHashMap<String, List<X509Certificate>>();
+		for (Check check : checks) {
+			String url = getOCSPUrl(conf, check.entityId, check.certificate);
+			if (url == null) continue;
 
-		// Enable OCSP
-		Security.setProperty("ocsp.enable", "true");
-		Security.setProperty("ocsp.responderURL", ocspServer);
+			List<X509Certificate> certificates = responders.get(url);
+			if (certificates == null) {
+				certificates = new ArrayList<X509Certificate>();
+				responders.put(url, certificates);
+			}
+			if (!certificates.contains(check.certificate)) {
+				certificates.add(check.certificate);
+			}
+		}
 
-		try {
-			TrustAnchor anchor = new TrustAnchor(ca, null);
-			PKIXParameters params = new PKIXParameters(Collections.singleton(anchor));
-			params.setRevocationEnabled(true);
+		Map<String, Future<Map<X509Certificate, OCSPClient.Status>>> results = new LinkedHashMap<String, Future<Map<X509Certificate, OCSPClient.Status>>>();
+		for (final Map.Entry<String, List<X509Certificate>> e : responders.entrySet()) {
+			if (e.getValue().size() < 2) continue;
 
-			// Validate and obtain results
-			CertPathValidator cpv = CertPathValidator.getInstance("PKIX");
-			cpv.validate(cp, params);
+			final X509Certificate ca = getCertificateCA(conf, e.getKey());
+			if (ca == null) continue;
 
-			log.debug("Certificate successfully validated.");
+			for (Iterator<X509Certificate> i = e.getValue().iterator(); i.hasNext(); ) {
+				X509Certificate certificate = i.next();
+				if (!isIssuedBy(certificate, ca)) {
+					res.put(certificate, OCSPClient.Status.REVOKED);
+					i.remove();
+				}
+			}
+			if (e.getValue().isEmpty()) continue;
 
-		} catch (CertPathValidatorException cpve) {
-			log.debug("Validation failure, cert[" + cpve.getIndex() + "] :" + cpve.getMessage());
-			return false;
-		} catch (NoSuchAlgorithmException e) {
-			log.error("Unexpected error while validating certficate using OCSP.", e);
-			return false;
-		} catch (InvalidAlgorithmParameterException e) {
-			log.error("Unexpected error while validating certficate using OCSP.", e);
-			return false;
+			results.put(e.getKey(), executor.submit(new Callable<Map<X509Certificate, OCSPClient.Status>>() {
+				public Map<X509Certificate, OCSPClient.Status> call() throws Exception {
+					return ocspClient.getStatus(new URL(e.getKey()), ca, e.getValue());
+				}
+			}));
 		}
-
-		return true;
+		long end = System.currentTimeMillis() + deadline;
+		for (Map.Entry<String, Future<Map<X509Certificate, OCSPClient.Status>>> e : results.entrySet()) {
+			try {
+				res.putAll(e.getValue().get(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+			} catch (ExecutionException ex) {
+				log.error("Unable to validate certificates using OCSP responder " + e.getKey() + ", checking each certificate", ex.getCause());
+			} catch (TimeoutException ex) {
+				e.getValue().cancel(true);
+				log.error("OCSP responder " + e.getKey() + " did not respond within " + deadline + " ms, checking each certificate");
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return res;
 	}
 
-	private X509Certificate getCertificateCA(Configuration conf, String certificateUrl) throws CertificateException {
-		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+	/**
+	 * Get the CA certificate used for validating OCSP responses. The certificate is only downloaded again when
+	 * the location is changed, or the certificate has expired.
+	 */
+	private synchronized X509Certificate getCertificateCA(Configuration conf, String certificateUrl) {
+		String caPath = conf.getString(Constants.PROP_OCSP_CA);
+
+		if (caPath == null) {
+			log.debug("CA certificate path is not configured");
+			return null;
+		}
+		if (caPath.equals(ocspCALocation) && ocspCA != null && ocspCA.getNotAfter().getTime() > System.currentTimeMillis()) {
+			return ocspCA;
+		}
+
 		X509Certificate ca = null;
 		InputStream is = null;
 
 		try {
-			String caPath = conf.getString(Constants.PROP_OCSP_CA);
-
-			if (caPath == null) {
-				log.debug("CA certificate path is not configured");
-				return null;
-			}
-
 			log.debug("Fetching CA certificate located at: " + caPath);
 
-			URL u = new URL(conf.getString(Constants.PROP_OCSP_CA));
-			is = u.openStream();
+			CertificateFactory cf = CertificateFactory.getInstance("X.509");
+			URL u = new URL(caPath);
+			is = openStream(u, conf);
 			ca = (X509Certificate) cf.generateCertificate(is);
 			is.close();
 
 		} catch (IOException e) {
-			log.error("Unable to read CA certficate from: " + certificateUrl, e);
+			log.error("Unable to read CA certficate from: " + caPath, e);
 			return null;
 		} catch (CertificateException e) {
-			log.error("Unable to validate CA certficate from: " + certificateUrl, e);
+			log.error("Unable to validate CA certficate from: " + caPath, e);
 			return null;
 		} catch (Exception e) {
-			log.error("Unexpected error while validating CA certficate from: " + certificateUrl, e);
+			log.error("Unexpected error while validating CA certficate from: " + caPath, e);
 			return null;
 		} finally {
 			if (is != null) {
@@ -231,6 +398,8 @@ public class CRLChecker {
 			}
 		}
 
+		ocspCA = ca;
+		ocspCALocation = caPath;
 		return ca;
 	}
 
@@ -314,12 +483,12 @@ public class CRLChecker {
 	 * 
 	 * @param conf
 	 * @param entityId
-	 * @param md
 	 * @param certificate
+	 * @param trustStore Keys trusted to sign CRLs, or <code>null</code> if CRL signatures are not checked.
 	 * @return true if CRL check was completed and the certificate is not
 	 *         revoked.
 	 */
-	private boolean doCRLCheck(Configuration conf, String entityId, Metadata md, X509Certificate certificate) {
+	private boolean doCRLCheck(Configuration conf, String entityId, X509Certificate certificate, CRLTrustStore trustStore) {
 		String url = getCRLUrl(conf, entityId, certificate);
 
 		if (url == null) {
@@ -327,23 +496,13 @@ public class CRLChecker {
 			return false;
 		}
 
-		InputStream is = null;
-
 		try {
 			URL u = new URL(url);
-			is = u.openStream();
+			CRLCache.Entry entry = getCRLCache(conf).get(u, 1000 * conf.getInt(Constants.PROP_CRL_TIMEOUT, 10), trustStore);
 
-			CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			X509CRL crl = (X509CRL) cf.generateCRL(is);
+			log.debug("CRL for " + url + " issued by " + entry.getCRL().getIssuer() + ", next update " + entry.getCRL().getNextUpdate());
 
-			log.debug("CRL for " + url + ": " + crl);
-
-			if (!checkCRLSignature(crl, certificate, conf)) {
-				return false;
-			}
-
-			X509CRLEntry revokedCertificate = crl.getRevokedCertificate(certificate.getSerialNumber());
-			if (revokedCertificate != null) {
+			if (entry.isRevoked(certificate.getSerialNumber())) {
 				log.debug("Certificate found in revocation list " + certificate.getSubjectDN());
 				return false;
 			}
@@ -357,16 +516,42 @@ public class CRLChecker {
 			log.error("Unable to read CRL from " + url, e);
 			return false;
 		} catch (GeneralSecurityException e) {
-			log.error("Unexpected error reading CRL from " + url, e);
+			log.error("Unable to use CRL from " + url, e);
 			return false;
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-				}
+		}
+	}
+
+	/**
+	 * Get the CRL cache, using the directory from {@link Constants#PROP_CRL_CACHE}. Relative paths are resolved
+	 * against oiosaml.home.
+	 */
+	private synchronized CRLCache getCRLCache(Configuration conf) {
+		File directory = null;
+		String path = conf.getString(Constants.PROP_CRL_CACHE);
+		if (path != null) {
+			directory = new File(path);
+			if (!directory.isAbsolute() && conf.getString(SAMLUtil.OIOSAML_HOME) != null) {
+				directory = new File(conf.getString(SAMLUtil.OIOSAML_HOME), path);
 			}
 		}
+		if (crlCache == null || (directory == null ? crlCache.getDirectory() != null : !directory.equals(crlCache.getDirectory()))) {
+			if (crlCache != null) {
+				crlCache.clear();
+			}
+			crlCache = new CRLCache(directory);
+		}
+		return crlCache;
+	}
+
+	/**
+	 * Open a URL using the connect and read timeout from {@link Constants#PROP_CRL_TIMEOUT}.
+	 */
+	private InputStream openStream(URL u, Configuration conf) throws IOException {
+		int timeout = 1000 * conf.getInt(Constants.PROP_CRL_TIMEOUT, 10);
+		URLConnection c = u.openConnection();
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		return c.getInputStream();
 	}
 
 	/**
@@ -415,39 +600,67 @@ public class CRLChecker {
 	}
 
 	/**
-	 * Check whether a certificate revocation list (CRL) has a valid signature.
+	 * Get the keys trusted to sign CRLs from {@link Constants#PROP_CRL_TRUSTSTORE}. Relative paths are resolved
+	 * against oiosaml.home. If the truststore is not a file, the keystore from the configuration is used.
 	 * 
-	 * @param crl
-	 * @param certificate
-	 * @param conf
-	 * @return true if signature is valid, otherwise false.
-	 * @throws IOException
-	 * @throws KeyStoreException
-	 * @throws IllegalStateException
-	 * @throws CertificateException
-	 * @throws NoSuchAlgorithmException
-	 * @throws WrappedException
+	 * The truststore is only loaded again when the file has been modified, or when the configuration returns a
+	 * different keystore.
 	 */
-	private boolean checkCRLSignature(X509CRL crl, X509Certificate certificate, Configuration conf)
-			throws WrappedException, NoSuchAlgorithmException, CertificateException, IllegalStateException,
-			KeyStoreException, IOException {
-		if (conf.getString(Constants.PROP_CRL_TRUSTSTORE, null) == null)
-			return true;
+	private synchronized CRLTrustStore getTrustStore(Configuration conf) throws GeneralSecurityException, IOException {
+		String location = conf.getString(Constants.PROP_CRL_TRUSTSTORE);
+		File file = new File(location);
+		if (!file.isAbsolute() && conf.getString(SAMLUtil.OIOSAML_HOME) != null) {
+			file = new File(conf.getString(SAMLUtil.OIOSAML_HOME), location);
+		}
 
-		CredentialRepository cr = new CredentialRepository();
-		cr.getCertificate(SAMLConfigurationFactory.getConfiguration().getKeystore(),
-				conf.getString(Constants.PROP_CRL_TRUSTSTORE_PASSWORD), null);
+		KeyStore keystore = null;
+		Object source;
+		if (file.isFile()) {
+			source = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+		} else {
+			keystore = SAMLConfigurationFactory.getConfiguration().getKeystore();
+			source = keystore;
+		}
+		if (trustStore != null && source.equals(trustStoreSource)) {
+			return trustStore;
+		}
 
-		for (X509Credential cred : cr.getCredentials()) {
-			try {
-				crl.verify(cred.getPublicKey());
-			} catch (Exception e) {
-				log.debug("CRL not signed by " + cred);
-				return false;
-			}
+		if (keystore == null) {
+			keystore = loadKeystore(file, conf.getString(Constants.PROP_CRL_TRUSTSTORE_PASSWORD));
+		}
+		trustStore = new CRLTrustStore(keystore);
+		trustStoreSource = source;
+		log.info("Loaded " + trustStore.size() + " trusted CRL issuer certificates from " + (file.isFile() ? file : "the configured keystore"));
+		return trustStore;
+	}
+
+	private static KeyStore loadKeystore(File file, String password) throws GeneralSecurityException, IOException {
+		char[] pwd = password != null ? password.toCharArray() : null;
+		try {
+			return loadKeystore(file, pwd, "JKS");
+		} catch (IOException e) {
+			log.debug("Truststore " + file + " is not of type JKS, trying PKCS12");
+			return loadKeystore(file, pwd, "PKCS12");
+		}
+	}
+
+	private static KeyStore loadKeystore(File file, char[] password, String type) throws GeneralSecurityException, IOException {
+		KeyStore ks = KeyStore.getInstance(type);
+		InputStream is = new FileInputStream(file);
+		try {
+			ks.load(is, password);
+		} finally {
+			is.close();
 		}
+		return ks;
+	}
 
-		return true;
+	/**
+	 * Start checking the certificates in the current IdP metadata. The metadata is looked up on each run, so
+	 * certificates are also checked after the metadata has been reloaded.
+	 */
+	public void startChecker(long period, final Configuration conf) {
+		startChecker(period, null, conf);
 	}
 
 	public void startChecker(long period, final IdpMetadata metadata, final Configuration conf) {
@@ -466,7 +679,7 @@ public class CRLChecker {
 		}
 
 		log.info("Starting CRL checker, running with " + period + " seconds interval. Checking "
-				+ metadata.getEntityIDs().size() + " certificates");
+				+ (metadata != null ? metadata : IdpMetadata.getInstance()).getEntityIDs().size() + " certificates");
 		timer = new Timer("CRLChecker");
 		timer.schedule(new TimerTask() {
 			@Override
@@ -474,7 +687,7 @@ public class CRLChecker {
 				log.debug("Running CRL checker task");
 
 				try {
-					checkCertificates(metadata, conf);
+					checkCertificates(metadata != null ? metadata : IdpMetadata.getInstance(), conf);
 				} catch (Exception e) {
 					log.error("Unable to run CRL checker", e);
 				}
@@ -488,5 +701,125 @@ public class CRLChecker {
 			timer.cancel();
 			timer = null;
 		}
+		synchronized (this) {
+			if (crlCache != null) {
+				crlCache.clear();
+			}
+		}
+	}
+
+	private enum Status {
+		OCSP_VALID, CRL_VALID, REVOKED, FAILED, TIMEOUT
+	}
+
+	/**
+	 * Revocation check of a single certificate.
+	 */
+	private class Check implements Callable<Status> {
+		private final Configuration conf;
+		private final String entityId;
+		private final IdpMetadata metadata;
+		private final X509Certificate certificate;
+		private volatile long started;
+		private volatile OCSPClient.Status ocspStatus;
+		private volatile CRLTrustStore trustStore;
+		private Future<Status> future;
+
+		private Check(Configuration conf, String entityId, IdpMetadata metadata, X509Certificate certificate) {
+			this.conf = conf;
+			this.entityId = entityId;
+			this.metadata = metadata;
+			this.certificate = certificate;
+		}
+
+		public Status call() throws Exception {
+			started = System.currentTimeMillis();
+			return check(conf, entityId, certificate, ocspStatus, trustStore);
+		}
+	}
+
+	/**
+	 * Result of a run of {@link CRLChecker#checkCertificates(IdpMetadata, Configuration)}.
+	 */
+	public static class Summary {
+		private final int entities;
+		private final int certificates;
+		private int valid;
+		private int revoked;
+		private int failed;
+		private int timedOut;
+		private long time;
+
+		private Summary(int entities, int certificates) {
+			this.entities = entities;
+			this.certificates = certificates;
+		}
+
+		private void add(Status status) {
+			switch (status) {
+			case OCSP_VALID:
+			case CRL_VALID:
+				valid++;
+				break;
+			case REVOKED:
+				revoked++;
+				break;
+			case FAILED:
+				failed++;
+				break;
+			case TIMEOUT:
+				timedOut++;
+				break;
+			}
+		}
+
+		public int getEntities() {
+			return entities;
+		}
+
+		public int getCertificates() {
+			return certificates;
+		}
+
+		/**
+		 * @return Number of certificates which were checked and are not revoked.
+		 */
+		public int getValid() {
+			return valid;
+		}
+
+		/**
+		 * @return Number of certificates which are revoked, or for which no revocation check could be performed.
+		 */
+		public int getRevoked() {
+			return revoked;
+		}
+
+		/**
+		 * @return Number of certificates which could not be checked because of an error.
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return Number of certificates which were not checked within the deadline.
+		 */
+		public int getTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * @return Milliseconds used for the run.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return certificates + " certificates for " + entities + " entities checked in " + time + " ms: " + valid + " valid, "
+					+ revoked + " revoked, " + failed + " failed, " + timedOut + " timed out";
+		}
 	}
 }
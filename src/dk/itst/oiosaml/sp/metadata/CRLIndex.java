@@ -0,0 +1,304 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sorted index of revoked serial numbers, stored in a memory-mapped file.
+ *
+ * Each serial number is stored as a fixed length record, so lookups are done using binary search directly on the
+ * mapped file, and the heap used by an index does not depend on the number of serial numbers.
+ */
+final class CRLIndex {
+	/**
+	 * RFC 5280 allows serial numbers of up to 20 octets, plus one octet for the sign.
+	 */
+	static final int RECORD_LENGTH = 21;
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int size;
+
+	private CRLIndex(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length % RECORD_LENGTH != 0 || length / RECORD_LENGTH > Integer.MAX_VALUE / RECORD_LENGTH) {
+				throw new IOException("Invalid CRL index " + file + ", length " + length);
+			}
+			this.size = (int) (length / RECORD_LENGTH);
+			// the mapping stays valid after the channel has been closed
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the serial number is in the index.
+	 */
+	boolean contains(BigInteger serialNumber) {
+		byte[] bytes = encode(serialNumber);
+		if (bytes == null) return false;
+
+		ByteBuffer record = ByteBuffer.wrap(bytes);
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compare(buffer, mid * RECORD_LENGTH, record, 0);
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of serial numbers in the index.
+	 */
+	int size() {
+		return size;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Delete the index file. The index can still be read by threads which are using it.
+	 *
+	 * @return <code>false</code> if the file could not be deleted, for example because it is still mapped on a
+	 * platform which does not allow mapped files to be deleted.
+	 */
+	boolean delete() {
+		return file.delete();
+	}
+
+	/**
+	 * Create an index containing the serial numbers of <code>base</code> and <code>added</code>, except the serial
+	 * numbers in <code>removed</code>. The input indexes are not changed.
+	 */
+	static CRLIndex merge(CRLIndex base, CRLIndex added, CRLIndex removed, File file) throws IOException {
+		Builder builder = new Builder(file);
+		byte[] record = new byte[RECORD_LENGTH];
+		ByteBuffer current = ByteBuffer.wrap(record);
+		int i = 0;
+		int j = 0;
+		int r = 0;
+		while (i < base.size || j < added.size) {
+			int c;
+			if (i == base.size) {
+				c = 1;
+			} else if (j == added.size) {
+				c = -1;
+			} else {
+				c = compare(base.buffer, i * RECORD_LENGTH, added.buffer, j * RECORD_LENGTH);
+			}
+			if (c <= 0) {
+				read(base.buffer, i++, record);
+				if (c == 0) j++;
+			} else {
+				read(added.buffer, j++, record);
+			}
+			// all indexes are sorted, so the removed serial numbers are found by moving forward in the index
+			int c2 = 1;
+			while (removed != null && r < removed.size && (c2 = compare(removed.buffer, r * RECORD_LENGTH, current, 0)) < 0) {
+				r++;
+			}
+			if (removed == null || r == removed.size || c2 != 0) {
+				builder.write(record);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Writes serial numbers in any order to an index file, and sorts the file when the index is built.
+	 */
+	static class Builder {
+		private final File file;
+		private final OutputStream os;
+		private boolean closed;
+
+		Builder(File file) throws IOException {
+			this.file = file;
+			this.os = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		}
+
+		void add(BigInteger serialNumber) throws IOException {
+			byte[] record = encode(serialNumber);
+			if (record == null) {
+				throw new IOException("Serial number " + serialNumber.toString(16) + " is longer than 20 octets");
+			}
+			write(record);
+		}
+
+		private void write(byte[] record) throws IOException {
+			os.write(record);
+		}
+
+		/**
+		 * Sort the written serial numbers and map the index. The builder cannot be used afterwards.
+		 */
+		CRLIndex build() throws IOException {
+			close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				long length = raf.length();
+				if (length > 0) {
+					ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+					sort(buffer, (int) (length / RECORD_LENGTH));
+				}
+			} finally {
+				raf.close();
+			}
+			return new CRLIndex(file);
+		}
+
+		/**
+		 * Discard the builder and its file.
+		 */
+		void abort() {
+			try {
+				close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			file.delete();
+		}
+
+		private void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				os.close();
+			}
+		}
+	}
+
+	/**
+	 * Sort records in place using heap sort, so sorting does not use any heap. Records from CRLs and merged indexes
+	 * are often already sorted, which is checked first.
+	 */
+	private static void sort(ByteBuffer buffer, int size) {
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = compare(buffer, (i - 1) * RECORD_LENGTH, buffer, i * RECORD_LENGTH) <= 0;
+		}
+		if (sorted) return;
+
+		byte[] a = new byte[RECORD_LENGTH];
+		byte[] b = new byte[RECORD_LENGTH];
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(buffer, i, size, a, b);
+		}
+		for (int end = size - 1; end > 0; end--) {
+			swap(buffer, 0, end, a, b);
+			siftDown(buffer, 0, end, a, b);
+		}
+	}
+
+	private static void siftDown(ByteBuffer buffer, int root, int size, byte[] a, byte[] b) {
+		while (true) {
+			int child = 2 * root + 1;
+			if (child >= size) return;
+			if (child + 1 < size && compare(buffer, child * RECORD_LENGTH, buffer, (child + 1) * RECORD_LENGTH) < 0) {
+				child++;
+			}
+			if (compare(buffer, root * RECORD_LENGTH, buffer, child * RECORD_LENGTH) >= 0) return;
+			swap(buffer, root, child, a, b);
+			root = child;
+		}
+	}
+
+	private static void swap(ByteBuffer buffer, int i, int j, byte[] a, byte[] b) {
+		read(buffer, i, a);
+		read(buffer, j, b);
+		for (int k = 0; k < RECORD_LENGTH; k++) {
+			buffer.put(i * RECORD_LENGTH + k, b[k]);
+			buffer.put(j * RECORD_LENGTH + k, a[k]);
+		}
+	}
+
+	private static void read(ByteBuffer buffer, int index, byte[] record) {
+		for (int k = 0; k < RECORD_LENGTH; k++) {
+			record[k] = buffer.get(index * RECORD_LENGTH + k);
+		}
+	}
+
+	/**
+	 * Encode a serial number as a sign extended two's complement record, which sorts like the serial numbers when
+	 * the first octet is compared signed and the rest unsigned.
+	 *
+	 * @return The record, or <code>null</code> if the serial number is too long.
+	 */
+	private static byte[] encode(BigInteger serialNumber) {
+		byte[] bytes = serialNumber.toByteArray();
+		if (bytes.length > RECORD_LENGTH) return null;
+
+		byte[] record = new byte[RECORD_LENGTH];
+		int pad = RECORD_LENGTH - bytes.length;
+		if (serialNumber.signum() < 0) {
+			for (int k = 0; k < pad; k++) {
+				record[k] = (byte) 0xff;
+			}
+		}
+		System.arraycopy(bytes, 0, record, pad, bytes.length);
+		return record;
+	}
+
+	/**
+	 * Compare two records. The 20 octets after the sign are compared as unsigned big endian numbers, which is
+	 * much faster than comparing each octet.
+	 */
+	private static int compare(ByteBuffer b1, int offset1, ByteBuffer b2, int offset2) {
+		int c = b1.get(offset1) - b2.get(offset2);
+		if (c != 0) return c;
+		c = compareUnsigned(b1.getLong(offset1 + 1), b2.getLong(offset2 + 1));
+		if (c != 0) return c;
+		c = compareUnsigned(b1.getLong(offset1 + 9), b2.getLong(offset2 + 9));
+		if (c != 0) return c;
+		return compareUnsigned(b1.getInt(offset1 + 17) & 0xffffffffL, b2.getInt(offset2 + 17) & 0xffffffffL);
+	}
+
+	private static int compareUnsigned(long l1, long l2) {
+		l1 += Long.MIN_VALUE;
+		l2 += Long.MIN_VALUE;
+		return l1 < l2 ? -1 : l1 > l2 ? 1 : 0;
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CRLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.Time;
+
+/**
+ * The information needed from a CRL stored in a file, read without loading the revoked certificates into memory.
+ *
+ * The CRL is read as a stream, and the serial numbers of the revoked certificates are written to a
+ * {@link CRLIndex.Builder}. The signature is verified by reading the signed part of the file again.
+ */
+final class CRLInfo {
+	private static final int SEQUENCE = 0x30;
+	private static final int BOOLEAN = 0x01;
+	private static final int INTEGER = 0x02;
+	private static final int BIT_STRING = 0x03;
+	private static final int OCTET_STRING = 0x04;
+	private static final int OBJECT_IDENTIFIER = 0x06;
+	private static final int ENUMERATED = 0x0a;
+	private static final int UTC_TIME = 0x17;
+	private static final int GENERALIZED_TIME = 0x18;
+	private static final int EXTENSIONS = 0xa0;
+	/**
+	 * The encoded object identifier of the reasonCode extension, 2.5.29.21.
+	 */
+	private static final byte[] REASON_CODE = { 0x55, 0x1d, 0x15 };
+
+	private File file;
+	private X500Principal issuer;
+	private Date thisUpdate;
+	private Date nextUpdate;
+	private BigInteger crlNumber;
+	private BigInteger baseCRLNumber;
+	private byte[] authorityKeyIdentifier;
+	private List<String> freshestCRL = Collections.emptyList();
+	private long tbsOffset;
+	private long tbsLength;
+	private String signatureAlgorithm;
+	private byte[] signature;
+	private int revoked;
+
+	private CRLInfo(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read a DER encoded CRL.
+	 *
+	 * @param revoked Receives the serial numbers of revoked certificates.
+	 * @param removed Receives the serial numbers which a delta CRL removes from the base CRL. If <code>null</code>,
+	 * these serial numbers are ignored.
+	 */
+	static CRLInfo read(File file, CRLIndex.Builder revoked, CRLIndex.Builder removed) throws IOException, CRLException {
+		CRLInfo info = new CRLInfo(file);
+		DERInput in = new DERInput(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			in.expect(SEQUENCE);
+			in.readLength();
+			info.tbsOffset = in.position;
+			in.expect(SEQUENCE);
+			long tbsEnd = in.readLength() + in.position;
+			info.tbsLength = tbsEnd - info.tbsOffset;
+
+			int tag = in.readTag();
+			if (tag == INTEGER) {
+				in.skip(in.readLength());
+				tag = in.readTag();
+			}
+			check(tag, SEQUENCE);
+			in.skip(in.readLength());
+			info.issuer = new X500Principal(in.readElement(in.readTag()));
+			info.thisUpdate = readTime(in.readElement(in.readTag()));
+
+			while (in.position < tbsEnd) {
+				tag = in.readTag();
+				if (tag == UTC_TIME || tag == GENERALIZED_TIME) {
+					info.nextUpdate = readTime(in.readElement(tag));
+				} else if (tag == SEQUENCE) {
+					long end = in.readLength() + in.position;
+					while (in.position < end) {
+						info.readEntry(in, revoked, removed);
+					}
+				} else if (tag == EXTENSIONS) {
+					in.readLength();
+					info.readExtensions(Extensions.getInstance(ASN1Primitive.fromByteArray(in.readElement(in.expect(SEQUENCE)))));
+				} else {
+					throw new CRLException("Unexpected tag " + tag + " in CRL " + file);
+				}
+			}
+			if (in.position != tbsEnd) {
+				throw new CRLException("Invalid length of CRL " + file);
+			}
+
+			info.signatureAlgorithm = AlgorithmIdentifier.getInstance(ASN1Primitive.fromByteArray(in.readElement(in.expect(SEQUENCE)))).getAlgorithm().getId();
+			info.signature = DERBitString.getInstance(ASN1Primitive.fromByteArray(in.readElement(in.expect(BIT_STRING)))).getBytes();
+			return info;
+		} catch (IllegalArgumentException e) {
+			throw new CRLException("Unable to read CRL " + file + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read an entry of the revoked certificates. Entries are read directly from the stream, as parsing each
+	 * entry into ASN.1 objects is slow for large CRLs.
+	 */
+	private void readEntry(DERInput in, CRLIndex.Builder revoked, CRLIndex.Builder removed) throws IOException, CRLException {
+		in.expect(SEQUENCE);
+		long end = in.readLength() + in.position;
+		in.expect(INTEGER);
+		BigInteger serialNumber = new BigInteger(in.readContent(in.readLength()));
+		in.readTag();
+		in.skip(in.readLength());
+
+		boolean remove = false;
+		if (in.position < end) {
+			in.expect(SEQUENCE);
+			in.readLength();
+			while (in.position < end) {
+				in.expect(SEQUENCE);
+				long extensionEnd = in.readLength() + in.position;
+				in.expect(OBJECT_IDENTIFIER);
+				byte[] oid = in.readContent(in.readLength());
+				if (Arrays.equals(oid, REASON_CODE)) {
+					int tag = in.readTag();
+					if (tag == BOOLEAN) {
+						in.skip(in.readLength());
+						tag = in.readTag();
+					}
+					check(tag, OCTET_STRING);
+					in.readLength();
+					in.expect(ENUMERATED);
+					byte[] reason = in.readContent(in.readLength());
+					remove = reason.length == 1 && reason[0] == CRLReason.removeFromCRL;
+				}
+				in.skip(extensionEnd - in.position);
+			}
+		}
+		if (in.position != end) {
+			throw new CRLException("Invalid entry for " + serialNumber + " in CRL " + file);
+		}
+
+		if (remove) {
+			if (removed != null) {
+				removed.add(serialNumber);
+			}
+		} else {
+			revoked.add(serialNumber);
+			this.revoked++;
+		}
+	}
+
+	private void readExtensions(Extensions extensions) {
+		Extension ext = extensions.getExtension(Extension.cRLNumber);
+		if (ext != null) {
+			crlNumber = CRLNumber.getInstance(ext.getParsedValue()).getCRLNumber();
+		}
+		ext = extensions.getExtension(Extension.deltaCRLIndicator);
+		if (ext != null) {
+			baseCRLNumber = CRLNumber.getInstance(ext.getParsedValue()).getCRLNumber();
+		}
+		ext = extensions.getExtension(Extension.authorityKeyIdentifier);
+		if (ext != null) {
+			authorityKeyIdentifier = AuthorityKeyIdentifier.getInstance(ext.getParsedValue()).getKeyIdentifier();
+		}
+		ext = extensions.getExtension(Extension.freshestCRL);
+		if (ext != null) {
+			List<String> urls = new ArrayList<String>();
+			for (DistributionPoint dp : CRLDistPoint.getInstance(ext.getParsedValue()).getDistributionPoints()) {
+				DistributionPointName name = dp.getDistributionPoint();
+				if (name == null || name.getType() != DistributionPointName.FULL_NAME) continue;
+				for (GeneralName gn : GeneralNames.getInstance(name.getName()).getNames()) {
+					if (gn.getTagNo() == GeneralName.uniformResourceIdentifier) {
+						urls.add(gn.getName().toString());
+					}
+				}
+			}
+			freshestCRL = Collections.unmodifiableList(urls);
+		}
+	}
+
+	/**
+	 * Verify the signature of the CRL.
+	 */
+	boolean verify(PublicKey key) throws IOException, GeneralSecurityException {
+		Signature sig = Signature.getInstance(signatureAlgorithm);
+		sig.initVerify(key);
+		InputStream is = new FileInputStream(file);
+		try {
+			long skipped = 0;
+			while (skipped < tbsOffset) {
+				long n = is.skip(tbsOffset - skipped);
+				if (n <= 0) throw new EOFException("Unexpected end of CRL " + file);
+				skipped += n;
+			}
+			byte[] buffer = new byte[65536];
+			long remaining = tbsLength;
+			while (remaining > 0) {
+				int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read == -1) throw new EOFException("Unexpected end of CRL " + file);
+				sig.update(buffer, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			is.close();
+		}
+		return sig.verify(signature);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Set the location of the CRL after the file has been moved.
+	 */
+	void setFile(File file) {
+		this.file = file;
+	}
+
+	X500Principal getIssuer() {
+		return issuer;
+	}
+
+	Date getThisUpdate() {
+		return thisUpdate;
+	}
+
+	/**
+	 * @return The nextUpdate time, or <code>null</code> if the CRL does not have one.
+	 */
+	Date getNextUpdate() {
+		return nextUpdate;
+	}
+
+	BigInteger getCRLNumber() {
+		return crlNumber;
+	}
+
+	/**
+	 * @return The number of the base CRL if this is a delta CRL, otherwise <code>null</code>.
+	 */
+	BigInteger getBaseCRLNumber() {
+		return baseCRLNumber;
+	}
+
+	byte[] getAuthorityKeyIdentifier() {
+		return authorityKeyIdentifier;
+	}
+
+	/**
+	 * @return The URLs of delta CRLs for this CRL.
+	 */
+	List<String> getFreshestCRL() {
+		return freshestCRL;
+	}
+
+	/**
+	 * @return The number of revoked certificates in the CRL.
+	 */
+	int getRevokedCount() {
+		return revoked;
+	}
+
+	private static void check(int tag, int expected) throws CRLException {
+		if (tag != expected) {
+			throw new CRLException("Expected tag " + expected + ", got " + tag);
+		}
+	}
+
+	private static Date readTime(byte[] encoded) throws IOException {
+		return Time.getInstance(ASN1Primitive.fromByteArray(encoded)).getDate();
+	}
+
+	/**
+	 * Minimal reader of definite length DER elements, which keeps track of the position in the stream.
+	 */
+	private static class DERInput {
+		private final InputStream in;
+		private long position;
+
+		private DERInput(InputStream in) {
+			this.in = in;
+		}
+
+		private int read() throws IOException {
+			int b = in.read();
+			if (b == -1) throw new EOFException("Unexpected end of CRL");
+			position++;
+			return b;
+		}
+
+		private int readTag() throws IOException {
+			return read();
+		}
+
+		private int expect(int expected) throws IOException, CRLException {
+			check(readTag(), expected);
+			return expected;
+		}
+
+		private long readLength() throws IOException, CRLException {
+			int b = read();
+			if (b < 0x80) return b;
+
+			int octets = b & 0x7f;
+			if (octets == 0 || octets > 4) {
+				throw new CRLException("Unsupported length encoding in CRL");
+			}
+			long length = 0;
+			for (int i = 0; i < octets; i++) {
+				length = (length << 8) | read();
+			}
+			return length;
+		}
+
+		/**
+		 * Read the rest of an element, after its tag has been read.
+		 *
+		 * @return The complete encoding of the element, including the tag and length.
+		 */
+		private byte[] readElement(int tag) throws IOException, CRLException {
+			long length = readLength();
+			byte[] content = readContent(length);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length + 6);
+			bos.write(tag);
+			if (length < 0x80) {
+				bos.write((int) length);
+			} else {
+				int octets = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+				bos.write(0x80 | octets);
+				for (int i = octets - 1; i >= 0; i--) {
+					bos.write((int) (length >> (8 * i)));
+				}
+			}
+			bos.write(content, 0, content.length);
+			return bos.toByteArray();
+		}
+
+		private byte[] readContent(long length) throws IOException, CRLException {
+			if (length > 1024 * 1024) {
+				throw new CRLException("Element of " + length + " bytes is too long");
+			}
+			byte[] content = new byte[(int) length];
+			int off = 0;
+			while (off < content.length) {
+				int read = in.read(content, off, content.length - off);
+				if (read == -1) throw new EOFException("Unexpected end of CRL");
+				off += read;
+			}
+			position += length;
+			return content;
+		}
+
+		private void skip(long length) throws IOException {
+			long skipped = 0;
+			while (skipped < length) {
+				long n = in.skip(length - skipped);
+				if (n <= 0) {
+					read();
+					n = 1;
+				} else {
+					position += n;
+				}
+				skipped += n;
+			}
+		}
+
+		private void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Immutable set of keys trusted to sign CRLs.
+ *
+ * The keys are indexed by key identifier and by subject DN, so a CRL is verified using the key matching its
+ * authority key identifier, or if the CRL does not have one, the keys of certificates issued to the CRL issuer.
+ */
+final class CRLTrustStore {
+	private static final Logger log = LoggerFactory.getLogger(CRLTrustStore.class);
+	private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+
+	/**
+	 * Trust store without keys, which does not verify any CRL.
+	 */
+	static final CRLTrustStore EMPTY = new CRLTrustStore();
+
+	private final Map<String, PublicKey> byKeyIdentifier;
+	private final Map<X500Principal, List<PublicKey>> bySubject;
+	private final int size;
+
+	private CRLTrustStore() {
+		this.byKeyIdentifier = Collections.emptyMap();
+		this.bySubject = Collections.emptyMap();
+		this.size = 0;
+	}
+
+	/**
+	 * Index the trusted certificates in a keystore. Private key entries are ignored.
+	 */
+	CRLTrustStore(KeyStore keystore) throws KeyStoreException {
+		Map<String, PublicKey> keyIdentifiers = new HashMap<String, PublicKey>();
+		Map<X500Principal, List<PublicKey>> subjects = new HashMap<X500Principal, List<PublicKey>>();
+		int count = 0;
+		Enumeration<String> aliases = keystore.aliases();
+		while (aliases.hasMoreElements()) {
+			String alias = aliases.nextElement();
+			if (!keystore.isCertificateEntry(alias)) continue;
+
+			Certificate certificate = keystore.getCertificate(alias);
+			if (!(certificate instanceof X509Certificate)) continue;
+
+			X509Certificate cert = (X509Certificate) certificate;
+			String keyIdentifier = getKeyIdentifier(cert);
+			if (keyIdentifier != null && !keyIdentifiers.containsKey(keyIdentifier)) {
+				keyIdentifiers.put(keyIdentifier, cert.getPublicKey());
+			}
+			List<PublicKey> keys = subjects.get(cert.getSubjectX500Principal());
+			if (keys == null) {
+				keys = new ArrayList<PublicKey>(1);
+				subjects.put(cert.getSubjectX500Principal(), keys);
+			}
+			keys.add(cert.getPublicKey());
+			count++;
+		}
+		this.byKeyIdentifier = keyIdentifiers;
+		this.bySubject = subjects;
+		this.size = count;
+	}
+
+	/**
+	 * @return <code>true</code> if the CRL is signed by a trusted key.
+	 */
+	boolean verify(CRLInfo crl) {
+		for (PublicKey key : getCandidates(crl)) {
+			try {
+				if (crl.verify(key)) {
+					return true;
+				}
+				log.debug("CRL from " + crl.getIssuer() + " not signed by " + key);
+			} catch (GeneralSecurityException e) {
+				log.debug("CRL from " + crl.getIssuer() + " not signed by " + key, e);
+			} catch (IOException e) {
+				log.warn("Unable to read CRL from " + crl.getIssuer() + " in " + crl.getFile(), e);
+				return false;
+			}
+		}
+		log.debug("CRL from " + crl.getIssuer() + " is not signed by a trusted key");
+		return false;
+	}
+
+	private List<PublicKey> getCandidates(CRLInfo crl) {
+		if (crl.getAuthorityKeyIdentifier() != null) {
+			PublicKey key = byKeyIdentifier.get(Utils.toHex(crl.getAuthorityKeyIdentifier()));
+			if (key != null) {
+				return Collections.singletonList(key);
+			}
+		}
+		List<PublicKey> keys = bySubject.get(crl.getIssuer());
+		if (keys == null) {
+			return Collections.emptyList();
+		}
+		return keys;
+	}
+
+	/**
+	 * @return Number of trusted certificates.
+	 */
+	int size() {
+		return size;
+	}
+
+	private static String getKeyIdentifier(X509Certificate cert) {
+		try {
+			byte[] value = cert.getExtensionValue(SUBJECT_KEY_IDENTIFIER);
+			if (value != null) {
+				return Utils.toHex(SubjectKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(value)).getKeyIdentifier());
+			}
+			// the identifier recommended by RFC 5280, which is used by most CAs
+			return Utils.toHex(new JcaX509ExtensionUtils().createSubjectKeyIdentifier(cert.getPublicKey()).getKeyIdentifier());
+		} catch (IOException e) {
+			log.debug("Unable to read key identifier of " + cert.getSubjectX500Principal(), e);
+		} catch (NoSuchAlgorithmException e) {
+			log.debug("Unable to calculate key identifier of " + cert.getSubjectX500Principal(), e);
+		}
+		return null;
+	}
+}
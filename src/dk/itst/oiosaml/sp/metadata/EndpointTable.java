@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.IndexedEndpoint;
+
+/**
+ * Immutable lookup table for a list of metadata endpoints.
+ *
+ * The table is built when the metadata is loaded, so endpoints can be found by binding or by index
+ * without scanning the metadata on each request. When several endpoints share a binding or an index,
+ * the first one in document order is used, just like a scan of the list would.
+ */
+final class EndpointTable<T extends Endpoint> {
+	private final List<T> endpoints;
+	private final Map<String, T> byBinding;
+	private final Map<String, T> byBindingIgnoreCase;
+	private final Map<Integer, T> byIndex;
+
+	/**
+	 * @param endpoints The endpoints in document order. <code>null</code> creates an empty table.
+	 */
+	EndpointTable(List<? extends T> endpoints) {
+		List<T> list = new ArrayList<T>();
+		Map<String, T> bindings = new HashMap<String, T>();
+		Map<String, T> bindingsIgnoreCase = new HashMap<String, T>();
+		Map<Integer, T> indexes = new HashMap<Integer, T>();
+		if (endpoints != null) {
+			for (T endpoint : endpoints) {
+				list.add(endpoint);
+				String binding = endpoint.getBinding();
+				if (binding != null) {
+					if (!bindings.containsKey(binding)) {
+						bindings.put(binding, endpoint);
+					}
+					String key = binding.toLowerCase();
+					if (!bindingsIgnoreCase.containsKey(key)) {
+						bindingsIgnoreCase.put(key, endpoint);
+					}
+				}
+				if (endpoint instanceof IndexedEndpoint) {
+					Integer index = ((IndexedEndpoint) endpoint).getIndex();
+					if (index != null && !indexes.containsKey(index)) {
+						indexes.put(index, endpoint);
+					}
+				}
+			}
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+		this.byBinding = bindings;
+		this.byBindingIgnoreCase = bindingsIgnoreCase;
+		this.byIndex = indexes;
+	}
+
+	/**
+	 * @return The first endpoint with the given binding, or <code>null</code>.
+	 */
+	T get(String binding) {
+		if (binding == null) return null;
+		return byBinding.get(binding);
+	}
+
+	/**
+	 * @return The first endpoint with the given binding, compared ignoring case, or <code>null</code>.
+	 */
+	T getIgnoreCase(String binding) {
+		if (binding == null) return null;
+		return byBindingIgnoreCase.get(binding.toLowerCase());
+	}
+
+	/**
+	 * @return The endpoint with the given <code>index</code> attribute, or <code>null</code>.
+	 */
+	T getByIndex(int index) {
+		return byIndex.get(index);
+	}
+
+	/**
+	 * @return The first endpoint, or <code>null</code> if there are no endpoints.
+	 */
+	T first() {
+		return endpoints.isEmpty() ? null : endpoints.get(0);
+	}
+
+	/**
+	 * @return All endpoints in document order. The list cannot be modified.
+	 */
+	List<T> getEndpoints() {
+		return endpoints;
+	}
+}
@@ -31,15 +31,25 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
 import org.opensaml.saml2.core.Attribute;
 import org.opensaml.saml2.metadata.ArtifactResolutionService;
 import org.opensaml.saml2.metadata.AttributeAuthorityDescriptor;
@@ -50,16 +60,22 @@ import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml2.metadata.SingleLogoutService;
 import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.AttributeExtensibleXMLObject;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.security.credential.UsageType;
 import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
 
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.configuration.FileConfiguration;
 import dk.itst.oiosaml.configuration.SAMLConfiguration;
 import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.security.SecurityHelper;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.util.BRSArtifact;
 
 /**
  * Utility class to extract relevant values of the meta data related to the Login Site.
@@ -73,51 +89,306 @@ import dk.itst.oiosaml.sp.service.util.Constants;
 public class IdpMetadata {
 	public static final String VERSION = "$Id: IdpMetadata.java 2964 2008-06-02 11:34:06Z jre $";
 	public static final String METADATA_DIRECTORY = "common.saml2.metadata.idp.directory";
-	private static IdpMetadata instance;
+	private static final AtomicReference<IdpMetadata> instance = new AtomicReference<IdpMetadata>();
 
 	private static final Logger log = LoggerFactory.getLogger(IdpMetadata.class);
 
-	private final Map<String, Metadata> metadata = new HashMap<String, Metadata>();
+	private static final QName ALGSUPPORT_SIGNING_METHOD = new QName(OIOSAMLConstants.ALGSUPPORT_NS, OIOSAMLConstants.ALGSUPPORT_SIGNING_METHOD);
+	private static final QName ALGORITHM = new QName("Algorithm");
+
+	private final String protocol;
+
+	/**
+	 * Metadata by entity id, in the order the descriptors were given. The map is not modified after construction.
+	 */
+	private final Map<String, Metadata> metadata;
+
+	/**
+	 * Index entries by entity id for entities which are unmarshalled on first use.
+	 */
+	private final Map<String, List<MetadataIndex.Entry>> indexed;
+	private final Collection<String> entityIDs;
+
+	/**
+	 * Entity ids by the base64 encoded artifact SourceID.
+	 */
+	private final Map<String, String> entityIDsBySourceID;
+
+	/**
+	 * Unmarshalled indexed entities, least recently used first. <code>null</code> if no entities are indexed.
+	 */
+	private final MetadataCache cache;
+
+	/**
+	 * Revoked certificates of indexed entities which are not in the cache.
+	 */
+	private final Map<String, Collection<X509Certificate>> revoked = new ConcurrentHashMap<String, Collection<X509Certificate>>();
 
 	public IdpMetadata(String protocol, EntityDescriptor ... entityDescriptor) {
+		this.protocol = protocol;
+		Map<String, Metadata> metadata = new LinkedHashMap<String, Metadata>();
 		for (EntityDescriptor descriptor : entityDescriptor) {
 			if (metadata.containsKey(descriptor.getEntityID())) {
-				metadata.get(descriptor.getEntityID()).addCertificates(new Metadata(descriptor, protocol).getCertificates());
+				metadata.get(descriptor.getEntityID()).addCertificates(Metadata.create(descriptor, protocol).getCertificates());
 			} else {
-				metadata.put(descriptor.getEntityID(), new Metadata(descriptor, protocol));
+				metadata.put(descriptor.getEntityID(), Metadata.create(descriptor, protocol));
+			}
+		}
+		this.metadata = Collections.unmodifiableMap(metadata);
+		this.indexed = Collections.emptyMap();
+		this.entityIDs = this.metadata.keySet();
+		this.entityIDsBySourceID = indexSourceIDs(entityIDs);
+		this.cache = null;
+	}
+
+	/**
+	 * Create metadata from entities which have already been compiled, for example by {@link MetadataSnapshot}.
+	 * 
+	 * @param entityIDsBySourceID Entity ids by the base64 encoded artifact SourceID.
+	 */
+	IdpMetadata(String protocol, List<Metadata> entities, Map<String, String> entityIDsBySourceID) {
+		this.protocol = protocol;
+		Map<String, Metadata> metadata = new LinkedHashMap<String, Metadata>();
+		for (Metadata md : entities) {
+			metadata.put(md.getEntityID(), md);
+		}
+		this.metadata = Collections.unmodifiableMap(metadata);
+		this.indexed = Collections.emptyMap();
+		this.entityIDs = this.metadata.keySet();
+		this.entityIDsBySourceID = new HashMap<String, String>(entityIDsBySourceID);
+		this.cache = null;
+	}
+
+	/**
+	 * Create metadata from indexed metadata files.
+	 * 
+	 * Entities are only unmarshalled when they are used, and at most <code>cacheSize</code> unmarshalled entities
+	 * are kept in memory. This is intended for large federation aggregates, where most entities are never used.
+	 */
+	public IdpMetadata(String protocol, int cacheSize, MetadataIndex ... indexes) {
+		this.protocol = protocol;
+		Map<String, List<MetadataIndex.Entry>> indexed = new LinkedHashMap<String, List<MetadataIndex.Entry>>();
+		for (MetadataIndex index : indexes) {
+			for (MetadataIndex.Entry entry : index.getEntries()) {
+				List<MetadataIndex.Entry> entries = indexed.get(entry.getEntityID());
+				if (entries == null) {
+					entries = new ArrayList<MetadataIndex.Entry>(1);
+					indexed.put(entry.getEntityID(), entries);
+				}
+				entries.add(entry);
 			}
 		}
+		this.metadata = Collections.emptyMap();
+		this.indexed = Collections.unmodifiableMap(indexed);
+		this.entityIDs = this.indexed.keySet();
+		this.entityIDsBySourceID = indexSourceIDs(entityIDs);
+		this.cache = new MetadataCache(Math.max(1, cacheSize));
+	}
+
+	private static Map<String, String> indexSourceIDs(Collection<String> entityIDs) {
+		Map<String, String> res = new HashMap<String, String>(entityIDs.size() * 2);
+		for (String entityID : entityIDs) {
+			res.put(Base64.encodeBytes(BRSArtifact.getSourceID(entityID), Base64.DONT_BREAK_LINES), entityID);
+		}
+		return res;
 	}
 
+	/**
+	 * Get the current metadata.
+	 * 
+	 * The metadata is loaded from the configuration on the first call. Concurrent first calls wait for a single load 
+	 * instead of each reading the metadata. Later calls return the current instance, which can be replaced at any time 
+	 * using {@link #setMetadata(IdpMetadata)}, for example by {@link IdpMetadataWatcher}. Callers should not keep the 
+	 * returned instance for longer than a request.
+	 */
 	public static IdpMetadata getInstance() {
-		if (instance == null) {
-			SAMLConfiguration configuration = SAMLConfigurationFactory.getConfiguration();
-			String protocol = configuration.getSystemConfiguration().getString(Constants.PROP_PROTOCOL);
-			List<XMLObject> descriptors = configuration.getListOfIdpMetadata();
-			instance = new IdpMetadata(protocol, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		IdpMetadata md = instance.get();
+		if (md != null) {
+			return md;
+		}
+		synchronized (instance) {
+			md = instance.get();
+			if (md == null) {
+				SAMLConfiguration configuration = SAMLConfigurationFactory.getConfiguration();
+				String protocol = configuration.getSystemConfiguration().getString(Constants.PROP_PROTOCOL);
+				if (configuration.getSystemConfiguration().getBoolean(Constants.PROP_IDP_METADATA_INDEXED, false) && configuration instanceof FileConfiguration) {
+					List<MetadataIndex> indexes = ((FileConfiguration) configuration).getIdpMetadataIndexes(protocol);
+					int cacheSize = configuration.getSystemConfiguration().getInt(Constants.PROP_IDP_METADATA_CACHE_SIZE, 500);
+					md = new IdpMetadata(protocol, cacheSize, indexes.toArray(new MetadataIndex[indexes.size()]));
+				} else if (configuration instanceof FileConfiguration && ((FileConfiguration) configuration).getIdpMetadataSnapshotFile() != null) {
+					md = loadWithSnapshot((FileConfiguration) configuration, protocol);
+				} else {
+					long start = System.currentTimeMillis();
+					List<XMLObject> descriptors = configuration.getListOfIdpMetadata();
+					md = new IdpMetadata(protocol, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+					log.info("Loaded " + md.getEntityIDs().size() + " IdP entities in " + (System.currentTimeMillis() - start) + " ms");
+				}
+				instance.set(md);
+			}
+			return md;
 		}
-		return instance ;
 	}
 	
+	/**
+	 * Load metadata from the snapshot if the metadata files have not changed since it was written. Otherwise parse the
+	 * metadata files and write a new snapshot.
+	 */
+	private static IdpMetadata loadWithSnapshot(FileConfiguration configuration, String protocol) {
+		long start = System.currentTimeMillis();
+		MetadataSnapshot snapshot = new MetadataSnapshot(configuration.getIdpMetadataSnapshotFile());
+		String hash = MetadataSnapshot.hash(protocol, configuration.getIdpMetadataFiles());
+		IdpMetadata md = snapshot.read(protocol, hash);
+		if (md != null) {
+			log.info("Loaded " + md.getEntityIDs().size() + " IdP entities from metadata snapshot in " + (System.currentTimeMillis() - start) + " ms");
+			return md;
+		}
+
+		List<XMLObject> descriptors = configuration.getListOfIdpMetadata();
+		md = new IdpMetadata(protocol, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		log.info("Loaded " + md.getEntityIDs().size() + " IdP entities from metadata files in " + (System.currentTimeMillis() - start) + " ms");
+		snapshot.write(hash, md);
+		return md;
+	}
+
 	public static void setMetadata(IdpMetadata metadata) {
-		instance = metadata;
+		instance.set(metadata);
+	}
+
+	/**
+	 * Replace the current metadata, but only if it is still <code>expected</code>.
+	 * 
+	 * @return <code>true</code> if the metadata was replaced.
+	 */
+	static boolean replaceMetadata(IdpMetadata expected, IdpMetadata metadata) {
+		return instance.compareAndSet(expected, metadata);
+	}
+
+	/**
+	 * Copy the revocation status of certificates from another instance.
+	 * 
+	 * Certificates which have been marked as invalid in <code>previous</code> are also marked as invalid here, so
+	 * reloading metadata does not make a revoked certificate valid until the next revocation check.
+	 */
+	void copyCertificateStatus(IdpMetadata previous) {
+		if (previous == null) return;
+		for (String entityID : entityIDs) {
+			Collection<X509Certificate> invalid = previous.getRevokedCertificates(entityID);
+			if (invalid.isEmpty()) continue;
+
+			Metadata md = metadata.get(entityID);
+			if (md != null) {
+				for (X509Certificate certificate : invalid) {
+					md.setCertificateValid(certificate, false);
+				}
+			} else {
+				revoked.put(entityID, invalid);
+			}
+		}
+	}
+
+	/**
+	 * Mark a certificate of an entity as valid or invalid, without unmarshalling the entity. If an indexed entity
+	 * is not in the cache, the status is kept until it is unmarshalled again, so callers must not hold on to
+	 * {@link Metadata} instances, which may have been evicted.
+	 */
+	void setCertificateValid(String entityID, X509Certificate certificate, boolean valid) {
+		Metadata md = metadata.get(entityID);
+		if (md != null || cache == null) {
+			if (md != null) {
+				md.setCertificateValid(certificate, valid);
+			}
+			return;
+		}
+		synchronized (cache) {
+			md = cache.get(entityID);
+			if (md != null) {
+				md.setCertificateValid(certificate, valid);
+				return;
+			}
+			Collection<X509Certificate> invalid = revoked.get(entityID);
+			Collection<X509Certificate> updated = invalid == null ? new ArrayList<X509Certificate>() : new ArrayList<X509Certificate>(invalid);
+			if (valid) {
+				updated.remove(certificate);
+			} else if (!updated.contains(certificate)) {
+				updated.add(certificate);
+			}
+			if (updated.isEmpty()) {
+				revoked.remove(entityID);
+			} else {
+				revoked.put(entityID, updated);
+			}
+		}
+	}
+
+	/**
+	 * Get the revoked certificates of an entity, without unmarshalling it.
+	 */
+	private Collection<X509Certificate> getRevokedCertificates(String entityID) {
+		Metadata md = metadata.get(entityID);
+		if (md == null && cache != null) {
+			synchronized (cache) {
+				md = cache.get(entityID);
+			}
+			if (md == null) {
+				Collection<X509Certificate> res = revoked.get(entityID);
+				return res != null ? res : Collections.<X509Certificate>emptyList();
+			}
+		}
+		return md != null ? md.getRevokedCertificates() : Collections.<X509Certificate>emptyList();
 	}
 
 	public Metadata getMetadata(String entityID) {
 		Metadata md = metadata.get(entityID);
+		if (md == null) {
+			md = getIndexedMetadata(entityID);
+		}
 		if (md == null) {
 			throw new IllegalArgumentException("No metadata found for " + entityID);
 		}
 		return md;
 	}
 
+	/**
+	 * Get an indexed entity, unmarshalling it if it is not in the cache.
+	 * 
+	 * @return The metadata, or <code>null</code> if the entity is not indexed.
+	 */
+	private Metadata getIndexedMetadata(String entityID) {
+		List<MetadataIndex.Entry> entries = indexed.get(entityID);
+		if (entries == null) return null;
+
+		synchronized (cache) {
+			Metadata md = cache.get(entityID);
+			if (md != null) return md;
+		}
+
+		// unmarshal outside the lock, so loading one entity does not block lookups of other entities
+		Metadata md = Metadata.create(entries.get(0).load(), protocol);
+		for (int i = 1; i < entries.size(); i++) {
+			md.addCertificates(Metadata.create(entries.get(i).load(), protocol).getCertificates());
+		}
+		synchronized (cache) {
+			Metadata existing = cache.get(entityID);
+			if (existing != null) return existing;
+
+			Collection<X509Certificate> invalid = revoked.remove(entityID);
+			if (invalid != null) {
+				for (X509Certificate certificate : invalid) {
+					md.setCertificateValid(certificate, false);
+				}
+			}
+			cache.put(entityID, md);
+		}
+		return md;
+	}
+
 	/**
 	 * Check if SAML Discovery Profile should be enabled.
 	 * 
 	 * If more than one metadata file exists, discovery should be enabled, and this method will return true.
 	 */
 	public boolean enableDiscovery() {
-		return metadata.size() > 1;
+		return entityIDs.size() > 1;
 	}
 
 	/**
@@ -131,43 +402,197 @@ public class IdpMetadata {
 	}
 
 	public Collection<String> getEntityIDs() {
-		return metadata.keySet();
+		return entityIDs;
+	}
+
+	/**
+	 * Find the entity which issued an artifact.
+	 * 
+	 * @param sourceID The SourceID of a SAML 2.0 artifact.
+	 * @return The entity id, or <code>null</code> if no entity has the SourceID.
+	 */
+	public String findEntityIDBySourceID(byte[] sourceID) {
+		if (sourceID == null) return null;
+		return entityIDsBySourceID.get(Base64.encodeBytes(sourceID, Base64.DONT_BREAK_LINES));
 	}
 
 
 	public Metadata findSupportedEntity(String ... entityIds) {
 		for (String entityId : entityIds) {
-			Metadata md = metadata.get(entityId);
-			if (md != null) {
-				return md;
+			if (metadata.containsKey(entityId) || indexed.containsKey(entityId)) {
+				return getMetadata(entityId);
 			}
 		}
-		log.debug("No supported idp found in " + Arrays.toString(entityIds) + ". Supported ids: " + metadata.keySet());
+		log.debug("No supported idp found in " + Arrays.toString(entityIds) + ". Supported ids: " + entityIDs);
 		return null;
 	}
 
+	/**
+	 * LRU cache of unmarshalled entities. When an entity is evicted, its revoked certificates are kept, so
+	 * revocation survives the entity being unmarshalled again.
+	 */
+	private class MetadataCache extends LinkedHashMap<String, Metadata> {
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		private MetadataCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+			if (size() <= maxSize) return false;
+
+			Collection<X509Certificate> invalid = eldest.getValue().getRevokedCertificates();
+			if (!invalid.isEmpty()) {
+				revoked.put(eldest.getKey(), invalid);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Immutable view of the valid certificates of an IdP at a given time.
+	 */
+	private static class KeySnapshot {
+		private final Collection<X509Certificate> certificates;
+		private final PublicKeyIndex index;
+		
+		/**
+		 * Time when the first certificate in the snapshot expires.
+		 */
+		private final long expires;
+		
+		/**
+		 * Version of the valid certificate set the snapshot was built from.
+		 */
+		private final int version;
+		
+		private KeySnapshot(String entityId, Collection<X509Certificate> validCertificates, int version, long now) {
+			List<X509Certificate> res = new ArrayList<X509Certificate>(validCertificates.size());
+			long expires = Long.MAX_VALUE;
+			for (X509Certificate certificate : validCertificates) {
+				long notAfter = certificate.getNotAfter().getTime();
+				if (notAfter > now) {
+					res.add(certificate);
+					expires = Math.min(expires, notAfter);
+				} else {
+					log.debug("Local Metadata certificate for " + entityId + " expired at " + certificate.getNotAfter() + ", current: " + new Date(now));
+				}
+			}
+			this.certificates = Collections.unmodifiableList(res);
+			this.index = new PublicKeyIndex(res);
+			this.expires = expires;
+			this.version = version;
+		}
+	}
+
 	public static class Metadata {
-		private EntityDescriptor entityDescriptor;
-		private IDPSSODescriptor idpSSODescriptor;
-		private Collection<X509Certificate> certificates = new ArrayList<X509Certificate>();
-		private Collection<X509Certificate> validCertificates = new HashSet<X509Certificate>();
-
-		private Metadata(EntityDescriptor entityDescriptor, String protocol) {
-			this.entityDescriptor = entityDescriptor;
-			idpSSODescriptor = entityDescriptor.getIDPSSODescriptor(protocol);
+		private final String entityID;
+		private final Collection<X509Certificate> certificates = new CopyOnWriteArrayList<X509Certificate>();
+		private final Set<X509Certificate> validCertificates = new CopyOnWriteArraySet<X509Certificate>();
+		private final AtomicInteger validCertificatesVersion = new AtomicInteger();
+		private volatile KeySnapshot keys;
+		private final List<String> signingMethods;
+		private final EndpointTable<SingleSignOnService> singleSignOnServices;
+		private final EndpointTable<ArtifactResolutionService> artifactResolutionServices;
+		private final EndpointTable<SingleLogoutService> singleLogoutServices;
+		private final EndpointTable<AttributeService> attributeServices;
+		private final Map<String, String> attributeNameFormats;
+		private final String singleLogoutServiceLocation;
+		private final String singleLogoutServiceResponseLocation;
+
+		/**
+		 * Create metadata from the IDPSSODescriptor for <code>protocol</code> in an EntityDescriptor.
+		 * 
+		 * @throws IllegalStateException If the descriptor does not contain a signing certificate.
+		 */
+		private static Metadata create(EntityDescriptor entityDescriptor, String protocol) {
+			IDPSSODescriptor idpSSODescriptor = entityDescriptor.getIDPSSODescriptor(protocol);
+			List<String> signingMethods = getSigningMethods(entityDescriptor, idpSSODescriptor);
+			X509Certificate certificate = buildCertificate(entityDescriptor.getEntityID(), idpSSODescriptor);
+			return new Metadata(entityDescriptor.getEntityID(), signingMethods, Collections.singletonList(certificate),
+					idpSSODescriptor.getSingleSignOnServices(),
+					idpSSODescriptor.getArtifactResolutionServices(),
+					idpSSODescriptor.getSingleLogoutServices(),
+					getAttributeServices(entityDescriptor),
+					getAttributeNameFormats(idpSSODescriptor));
+		}
+
+		/**
+		 * Create metadata from values which have already been extracted from an EntityDescriptor, for example by {@link MetadataSnapshot}.
+		 * 
+		 * @param attributeServices The attribute services, or <code>null</code> if the entity has no AttributeAuthorityDescriptor.
+		 * @param attributeNameFormats Name formats by attribute name, for the attributes listed on the IDPSSODescriptor.
+		 */
+		Metadata(String entityID, List<String> signingMethods, Collection<X509Certificate> certificates,
+				List<? extends SingleSignOnService> singleSignOnServices, List<? extends ArtifactResolutionService> artifactResolutionServices,
+				List<? extends SingleLogoutService> singleLogoutServices, List<? extends AttributeService> attributeServices,
+				Map<String, String> attributeNameFormats) {
+			this.entityID = entityID;
+			this.signingMethods = Collections.unmodifiableList(new ArrayList<String>(signingMethods));
+			this.certificates.addAll(certificates);
+			this.validCertificates.addAll(certificates);
+			this.singleSignOnServices = new EndpointTable<SingleSignOnService>(singleSignOnServices);
+			this.artifactResolutionServices = new EndpointTable<ArtifactResolutionService>(artifactResolutionServices);
+			this.singleLogoutServices = new EndpointTable<SingleLogoutService>(singleLogoutServices);
+			this.attributeServices = attributeServices != null ? new EndpointTable<AttributeService>(attributeServices) : null;
+			this.attributeNameFormats = Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributeNameFormats));
+
+			SingleLogoutService first = this.singleLogoutServices.first();
+			if (first != null) {
+				singleLogoutServiceLocation = first.getLocation();
+
+				// Prefer POST binding - due to browser redirect limitations.
+				SingleLogoutService service = this.singleLogoutServices.get(SAMLConstants.SAML2_POST_BINDING_URI);
+				if (service == null) {
+					service = first;
+				}
+				String location = service.getResponseLocation();
+				singleLogoutServiceResponseLocation = location != null ? location : service.getLocation();
+			} else {
+				singleLogoutServiceLocation = null;
+				singleLogoutServiceResponseLocation = null;
+			}
+		}
+
+		private static List<String> getSigningMethods(EntityDescriptor entityDescriptor, IDPSSODescriptor idpSSODescriptor) {
+			List<String> methods = new ArrayList<String>();
+			addSigningMethods(idpSSODescriptor != null ? idpSSODescriptor.getExtensions() : null, methods);
+			addSigningMethods(entityDescriptor.getExtensions(), methods);
+			return methods;
+		}
+
+		private static X509Certificate buildCertificate(String entityID, IDPSSODescriptor idpSSODescriptor) {
 			try {
-				X509Certificate cert = SecurityHelper.buildJavaX509Cert(getCertificateNode().getValue());
-				certificates.add(cert);
-				validCertificates.add(cert);
+				return SecurityHelper.buildJavaX509Cert(getCertificateNode(entityID, idpSSODescriptor).getValue());
 			} catch (CertificateException e) {
 				throw new WrappedException(Layer.BUSINESS, e);
 			}
 		}
 
+		private static List<AttributeService> getAttributeServices(EntityDescriptor entityDescriptor) {
+			AttributeAuthorityDescriptor descriptor = entityDescriptor.getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS);
+			return descriptor != null ? descriptor.getAttributeServices() : null;
+		}
+
+		private static Map<String, String> getAttributeNameFormats(IDPSSODescriptor idpSSODescriptor) {
+			Map<String, String> res = new LinkedHashMap<String, String>();
+			for (Attribute attr : idpSSODescriptor.getAttributes()) {
+				if (!res.containsKey(attr.getName())) {
+					res.put(attr.getName(), attr.getNameFormat());
+				}
+			}
+			return res;
+		}
+
 
 		public void addCertificates(Collection<X509Certificate> certificates) {
 			this.certificates.addAll(certificates);
-			this.validCertificates.addAll(certificates);
+			if (this.validCertificates.addAll(certificates)) {
+				validCertificatesVersion.incrementAndGet();
+			}
 		}
 
 
@@ -176,7 +601,7 @@ public class IdpMetadata {
 		 * @return The entityID of the Login Site
 		 */
 		public String getEntityID() {
-			return entityDescriptor.getEntityID();
+			return entityID;
 		}
 
 		/**
@@ -184,12 +609,56 @@ public class IdpMetadata {
 		 * @return The location (URL) of {@link ArtifactResolutionService}.
 		 */
 		public String getArtifactResolutionServiceLocation(String binding) throws IllegalArgumentException {
-			for (ArtifactResolutionService artifactResolutionService : idpSSODescriptor.getArtifactResolutionServices()) {
-				if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(artifactResolutionService.getBinding())) {
-					return artifactResolutionService.getLocation();
+			ArtifactResolutionService service = artifactResolutionServices.get(binding);
+			if (service == null) {
+				throw new IllegalArgumentException("No artifact resolution service for binding " + binding);
+			}
+			return service.getLocation();
+		}
+
+		/**
+		 * Get the location of the artifact resolution service selected by the endpoint index of an artifact.
+		 * 
+		 * If no service with the index and binding exists, the first service with the binding is used.
+		 * 
+		 * @param endpointIndex The endpoint index from the artifact.
+		 * @param binding SAML binding name.
+		 * @throws IllegalArgumentException If there is no artifact resolution service for the binding.
+		 */
+		public String getArtifactResolutionServiceLocation(int endpointIndex, String binding) throws IllegalArgumentException {
+			ArtifactResolutionService service = artifactResolutionServices.getByIndex(endpointIndex);
+			if (service != null && binding.equals(service.getBinding())) {
+				return service.getLocation();
+			}
+			if (log.isDebugEnabled()) log.debug("No artifact resolution service with index " + endpointIndex + " and binding " + binding + " for " + getEntityID());
+			return getArtifactResolutionServiceLocation(binding);
+		}
+
+		/**
+		 * Get the locations of the artifact resolution services which can resolve an artifact.
+		 * 
+		 * If the endpoint index of the artifact selects a service with the binding, only the location of that service is returned, 
+		 * as other services might not know the artifact. Otherwise, the locations of all services with the binding are returned in metadata order.
+		 * 
+		 * @param endpointIndex The endpoint index from the artifact.
+		 * @param binding SAML binding name.
+		 * @throws IllegalArgumentException If there is no artifact resolution service for the binding.
+		 */
+		public List<String> getArtifactResolutionServiceLocations(int endpointIndex, String binding) throws IllegalArgumentException {
+			ArtifactResolutionService service = artifactResolutionServices.getByIndex(endpointIndex);
+			if (service != null && binding.equals(service.getBinding())) {
+				return Collections.singletonList(service.getLocation());
+			}
+			List<String> locations = new ArrayList<String>();
+			for (ArtifactResolutionService s : artifactResolutionServices.getEndpoints()) {
+				if (binding.equals(s.getBinding())) {
+					locations.add(s.getLocation());
 				}
 			}
-			throw new IllegalArgumentException("No artifact resolution service for binding " + binding);
+			if (locations.isEmpty()) {
+				throw new IllegalArgumentException("No artifact resolution service for binding " + binding);
+			}
+			return locations;
 		}
 
 		/**
@@ -199,39 +668,34 @@ public class IdpMetadata {
 		 * @throws IllegalArgumentException if the binding is not present in metadata.
 		 */
 		public String getSingleSignonServiceLocation(String binding) throws IllegalArgumentException {
-			for (SingleSignOnService service : idpSSODescriptor.getSingleSignOnServices()) {
-				if (service.getBinding().equals(binding)) {
-					return service.getLocation();
-				}
+			SingleSignOnService service = singleSignOnServices.get(binding);
+			if (service == null) {
+				throw new IllegalArgumentException("Binding " + binding + " not found");
 			}
-			throw new IllegalArgumentException("Binding " + binding + " not found");
+			return service.getLocation();
 		}
 		
 		public String getAttributeQueryServiceLocation(String binding) throws IllegalArgumentException {
-			AttributeAuthorityDescriptor descriptor = entityDescriptor.getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS);
-			if (descriptor == null) throw new IllegalArgumentException("Metadata does not contain a AttributeAuthorityDescriptor");
-			for (AttributeService service : descriptor.getAttributeServices()) {
-				if (binding.equals(service.getBinding())) {
-					return service.getLocation();
-				}
+			if (attributeServices == null) throw new IllegalArgumentException("Metadata does not contain a AttributeAuthorityDescriptor");
+			AttributeService service = attributeServices.get(binding);
+			if (service == null) {
+				throw new IllegalArgumentException("Binding " + binding + " not found in AttributeServices");
 			}
-			throw new IllegalArgumentException("Binding " + binding + " not found in AttributeServices");
+			return service.getLocation();
 		}
 
+		/**
+		 * @return All single signon services. The list cannot be modified.
+		 */
 		public List<SingleSignOnService> getSingleSignonServices() {
-			return idpSSODescriptor.getSingleSignOnServices();
+			return singleSignOnServices.getEndpoints();
 		}
 		/**
 		 * 
 		 * @return The location (URL) of {@link SingleSignOnService} at the Login Site
 		 */
 		public String getSingleLogoutServiceLocation() {
-			String url = null;
-			if (idpSSODescriptor.getSingleLogoutServices().size() > 0) {
-				SingleLogoutService singleLogoutService = idpSSODescriptor.getSingleLogoutServices().get(0);
-				url = singleLogoutService.getLocation();
-			}
-			return url;
+			return singleLogoutServiceLocation;
 		}
 
 		/**
@@ -239,25 +703,26 @@ public class IdpMetadata {
 		 * @return The response location (URL) of {@link SingleSignOnService} at the Login Site
 		 */
 		public String getSingleLogoutServiceResponseLocation() {
-			if (idpSSODescriptor.getSingleLogoutServices().size() > 0) {
-			    List<SingleLogoutService> singleLogoutServices = idpSSODescriptor.getSingleLogoutServices();
-
-                // Prefer POST binding - due to browser redirect limitations.
-			    SingleLogoutService singleLogoutService = idpSSODescriptor.getSingleLogoutServices().get(0);
-			    for (SingleLogoutService sls : singleLogoutServices) {
-			        if(sls.getBinding().equals(SAMLConstants.SAML2_POST_BINDING_URI)) {
-			            singleLogoutService = sls;
-			            break;
-			        }
-                }
-
-			    String location = singleLogoutService.getResponseLocation();
-				if (location == null) {
-					location = singleLogoutService.getLocation();
-				}
-				return location;
-			}
-			return null;
+			return singleLogoutServiceResponseLocation;
+		}
+
+		List<ArtifactResolutionService> getArtifactResolutionServices() {
+			return artifactResolutionServices.getEndpoints();
+		}
+
+		List<SingleLogoutService> getSingleLogoutServices() {
+			return singleLogoutServices.getEndpoints();
+		}
+
+		/**
+		 * @return The attribute services, or <code>null</code> if the entity has no AttributeAuthorityDescriptor.
+		 */
+		List<AttributeService> getAttributeServices() {
+			return attributeServices != null ? attributeServices.getEndpoints() : null;
+		}
+
+		Map<String, String> getAttributeNameFormats() {
+			return attributeNameFormats;
 		}
 
 
@@ -266,7 +731,7 @@ public class IdpMetadata {
 		 * @return The certificate node from the metadata associated with the Login
 		 *         Site
 		 */
-		private org.opensaml.xml.signature.X509Certificate getCertificateNode() {
+		private static org.opensaml.xml.signature.X509Certificate getCertificateNode(String entityID, IDPSSODescriptor idpSSODescriptor) {
 			if (idpSSODescriptor != null && idpSSODescriptor.getKeyDescriptors().size() > 0) {
 				for (KeyDescriptor keyDescriptor : idpSSODescriptor.getKeyDescriptors()) {
 					if (keyDescriptor.getUse() == UsageType.SIGNING) {
@@ -279,38 +744,86 @@ public class IdpMetadata {
 					}
 				}
 			}
-			throw new IllegalStateException("IdP Metadata does not contain a certificate with use signing: " + getEntityID());
+			throw new IllegalStateException("IdP Metadata does not contain a certificate with use signing: " + entityID);
 		}
 		
+		private static void addSigningMethods(Extensions extensions, List<String> methods) {
+			if (extensions == null) return;
+			for (XMLObject o : extensions.getUnknownXMLObjects(ALGSUPPORT_SIGNING_METHOD)) {
+				String algorithm = null;
+				if (o instanceof AttributeExtensibleXMLObject) {
+					algorithm = ((AttributeExtensibleXMLObject) o).getUnknownAttributes().get(ALGORITHM);
+				} else if (o.getDOM() != null && o.getDOM().hasAttribute(ALGORITHM.getLocalPart())) {
+					algorithm = o.getDOM().getAttribute(ALGORITHM.getLocalPart());
+				}
+				if (algorithm != null && !methods.contains(algorithm)) {
+					methods.add(algorithm);
+				}
+			}
+		}
+
+		/**
+		 * Get the signature algorithms supported by the IdP, as listed using the SigningMethod metadata extension.
+		 * 
+		 * Algorithms listed on the IDPSSODescriptor come before those listed on the EntityDescriptor.
+		 * @return The algorithm URIs. Empty if the IdP does not list any algorithms.
+		 */
+		public List<String> getSigningMethods() {
+			return signingMethods;
+		}
+
 		Collection<X509Certificate> getAllCertificates() {
 			return certificates;
 		}
 
 		/**
-		 * Get a list of all valid certificates for this IdP.
-		 * 
-		 * Any expired or revoked certificates will not be included in the list. 
+		 * Get the certificates which have been marked as invalid by the revocation check.
 		 */
-		public Collection<X509Certificate> getCertificates() {
-			Collection<X509Certificate> res = new ArrayList<X509Certificate>();
-			for (X509Certificate certificate : validCertificates) {
-				if (certificate.getNotAfter().after(new Date())) {
+		Collection<X509Certificate> getRevokedCertificates() {
+			List<X509Certificate> res = new ArrayList<X509Certificate>();
+			for (X509Certificate certificate : certificates) {
+				if (!validCertificates.contains(certificate)) {
 					res.add(certificate);
-				} else {
-					log.debug("Local Metadata certificate for " + getEntityID() + " expired at " + certificate.getNotAfter() + ", current: " + new Date());
 				}
 			}
 			return res;
 		}
 
+		/**
+		 * Get a list of all valid certificates for this IdP.
+		 * 
+		 * Any expired or revoked certificates will not be included in the list. 
+		 */
+		public Collection<X509Certificate> getCertificates() {
+			return getKeySnapshot().certificates;
+		}
+
 		void setCertificateValid(X509Certificate cert, boolean valid) {
+			boolean changed;
 			if (valid) {
-				validCertificates.add(cert);
+				changed = validCertificates.add(cert);
 			} else {
-				validCertificates.remove(cert);
+				changed = validCertificates.remove(cert);
+			}
+			if (changed) {
+				validCertificatesVersion.incrementAndGet();
 			}
 		}
 		
+		/**
+		 * Get the current snapshot of valid certificates, rebuilding it if the set of valid certificates has changed
+		 * or the first certificate in the snapshot has expired.
+		 */
+		private KeySnapshot getKeySnapshot() {
+			KeySnapshot snapshot = keys;
+			int version = validCertificatesVersion.get();
+			long now = System.currentTimeMillis();
+			if (snapshot == null || snapshot.version != version || now >= snapshot.expires) {
+				snapshot = new KeySnapshot(getEntityID(), validCertificates, version, now);
+				keys = snapshot;
+			}
+			return snapshot;
+		}
 
 		/**
 		 * Find a supported login endpoint.
@@ -320,10 +833,9 @@ public class IdpMetadata {
 			if (bindings == null) throw new IllegalArgumentException("bindings cannot be null");
 			
 			for (String binding : bindings) {
-				for (SingleSignOnService service : idpSSODescriptor.getSingleSignOnServices()) {
-					if (service.getBinding().equalsIgnoreCase(binding)) {
-						return service;
-					}
+				SingleSignOnService service = singleSignOnServices.getIgnoreCase(binding);
+				if (service != null) {
+					return service;
 				}
 			}
 			throw new IllegalArgumentException("No SingleSignonService found for " + Arrays.toString(bindings));
@@ -336,21 +848,24 @@ public class IdpMetadata {
 		 * @param defaultFormat The format to return if the attribute is not present in idp metadata.
 		 */
 		public String getAttributeNameFormat(String attribute, String defaultFormat) {
-			for (Attribute attr : idpSSODescriptor.getAttributes()) {
-				if (attribute.equals(attr.getName())) {
-					return attr.getNameFormat();
-				}
+			if (attributeNameFormats.containsKey(attribute)) {
+				return attributeNameFormats.get(attribute);
 			}
 			return defaultFormat;
 		}
 
 
+		/**
+		 * Get an index of the public keys of all valid certificates.
+		 * 
+		 * The index is built once, and rebuilt when a certificate is revoked, added or expires.
+		 */
+		public PublicKeyIndex getPublicKeyIndex() {
+			return getKeySnapshot().index;
+		}
+
 		public Collection<PublicKey> getPublicKeys() {
-			Collection<PublicKey> res = new ArrayList<PublicKey>();
-			for (X509Certificate cert : getCertificates()) {
-				res.add(cert.getPublicKey());
-			}
-			return res;
+			return getKeySnapshot().index.getKeys();
 		}
 	}
 	
@@ -0,0 +1,216 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+
+/**
+ * Watch the IdP metadata directory, and reload the metadata when files are added, changed or removed.
+ *
+ * The directory is polled in a background thread. Only files which have changed since the last scan are parsed,
+ * and the new metadata replaces the current {@link IdpMetadata} instance atomically, so requests are never blocked
+ * by a reload. If a file cannot be parsed, its previous contents are kept.
+ */
+public class IdpMetadataWatcher {
+	private static final Logger log = LoggerFactory.getLogger(IdpMetadataWatcher.class);
+
+	private static final FilenameFilter XML_FILES = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.toLowerCase().endsWith(".xml");
+		}
+	};
+
+	private final File directory;
+	private final String protocol;
+	private final boolean indexed;
+	private final int cacheSize;
+	private final Map<File, MetadataFile> files = new HashMap<File, MetadataFile>();
+	private boolean initialized;
+	private Timer timer;
+
+	public IdpMetadataWatcher(File directory, String protocol) {
+		this(directory, protocol, false, 0);
+	}
+
+	/**
+	 * @param indexed If <code>true</code>, files are indexed using {@link MetadataIndex} instead of being unmarshalled.
+	 * @param cacheSize Maximum number of unmarshalled entities when <code>indexed</code> is <code>true</code>.
+	 */
+	public IdpMetadataWatcher(File directory, String protocol, boolean indexed, int cacheSize) {
+		this.directory = directory;
+		this.protocol = protocol;
+		this.indexed = indexed;
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Start watching the directory.
+	 *
+	 * @param period Seconds between each check of the directory.
+	 */
+	public synchronized void startWatcher(long period) {
+		if (timer != null) return;
+
+		log.info("Watching " + directory + " for metadata changes every " + period + " seconds");
+		timer = new Timer("IdP metadata watcher", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					scan();
+				} catch (Exception e) {
+					log.error("Unable to reload metadata from " + directory, e);
+				}
+			}
+		}, 0, 1000L * period);
+	}
+
+	public synchronized void stopWatcher() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Check the directory for changes, and replace the current metadata if any file has changed.
+	 *
+	 * The first scan only records the state of the directory, as the current metadata has already been loaded from it.
+	 *
+	 * @return <code>true</code> if the metadata was replaced.
+	 */
+	synchronized boolean scan() {
+		File[] current = directory.listFiles(XML_FILES);
+		if (current == null) {
+			log.warn("Unable to list metadata directory " + directory);
+			return false;
+		}
+		Arrays.sort(current);
+
+		boolean changed = files.keySet().retainAll(Arrays.asList(current));
+		for (File file : current) {
+			MetadataFile previous = files.get(file);
+			if (previous != null && previous.lastModified == file.lastModified() && previous.length == file.length()) {
+				continue;
+			}
+			try {
+				files.put(file, new MetadataFile(file, protocol, indexed));
+				changed = true;
+				if (initialized) {
+					log.info("Metadata file " + file + " has " + (previous == null ? "been added" : "changed"));
+				}
+			} catch (RuntimeException e) {
+				log.error("Unable to load metadata from " + file + ", keeping the previous version", e);
+			}
+		}
+
+		if (!initialized) {
+			initialized = true;
+			return false;
+		}
+		if (!changed) {
+			return false;
+		}
+
+		List<EntityDescriptor> descriptors = new ArrayList<EntityDescriptor>();
+		List<MetadataIndex> indexes = new ArrayList<MetadataIndex>();
+		int entities = 0;
+		for (File file : current) {
+			MetadataFile md = files.get(file);
+			if (md == null) continue;
+
+			if (md.index != null) {
+				indexes.add(md.index);
+				entities += md.index.size();
+			} else {
+				descriptors.addAll(md.descriptors);
+				entities += md.descriptors.size();
+			}
+		}
+		if (entities == 0) {
+			log.error("No IdP descriptors found in " + directory + ", keeping the current metadata");
+			return false;
+		}
+
+		IdpMetadata previous = IdpMetadata.getInstance();
+		IdpMetadata metadata;
+		if (indexed) {
+			metadata = new IdpMetadata(protocol, cacheSize, indexes.toArray(new MetadataIndex[indexes.size()]));
+		} else {
+			metadata = new IdpMetadata(protocol, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		}
+		metadata.copyCertificateStatus(previous);
+		if (!IdpMetadata.replaceMetadata(previous, metadata)) {
+			log.warn("Metadata was replaced during reload, discarding the reloaded metadata");
+			return false;
+		}
+		log.info("Reloaded IdP metadata from " + directory + ", " + entities + " entities");
+		return true;
+	}
+
+	private static class MetadataFile {
+		private final long lastModified;
+		private final long length;
+		private final List<EntityDescriptor> descriptors;
+		private final MetadataIndex index;
+
+		private MetadataFile(File file, String protocol, boolean indexed) {
+			// read the timestamp first, so a file changed during parsing is read again on the next scan
+			lastModified = file.lastModified();
+			length = file.length();
+
+			if (indexed) {
+				index = new MetadataIndex(file, protocol);
+				descriptors = null;
+				return;
+			}
+			index = null;
+			XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(file.getAbsolutePath());
+			if (descriptor instanceof EntityDescriptor) {
+				descriptors = Collections.singletonList((EntityDescriptor) descriptor);
+			} else if (descriptor instanceof EntitiesDescriptor) {
+				descriptors = new ArrayList<EntityDescriptor>(((EntitiesDescriptor) descriptor).getEntityDescriptors());
+			} else {
+				throw new IllegalArgumentException("Metadata file " + file + " does not contain an EntityDescriptor. Found "
+						+ descriptor.getElementQName() + ", expected " + EntityDescriptor.ELEMENT_QNAME);
+			}
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+
+/**
+ * Index of the IdP entities in a metadata file, typically a large federation aggregate.
+ *
+ * The file is read once, without building a DOM, and the byte range of each top level EntityDescriptor with an
+ * IDPSSODescriptor for the protocol is recorded together with its entityID. Entities are only
+ * unmarshalled when {@link Entry#load()} is called, by reading their byte range from the file again. If the file has
+ * been modified since it was indexed, it is indexed again before the entity is read.
+ *
+ * Only ASCII compatible encodings, such as UTF-8 and ISO-8859-1, are supported.
+ */
+public class MetadataIndex {
+	private static final Logger log = LoggerFactory.getLogger(MetadataIndex.class);
+	private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+	private static final String ENTITY_DESCRIPTOR = EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME;
+	private static final String ENTITIES_DESCRIPTOR = "EntitiesDescriptor";
+	private static final String IDPSSO_DESCRIPTOR = "IDPSSODescriptor";
+
+	private final File file;
+	private final long lastModified;
+	private final long length;
+	private final String protocol;
+	private MetadataIndex reindexed;
+	private String encoding = OIOSAMLConstants.UTF_8;
+	private final Map<String, Entry> entities = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * Index a metadata file.
+	 *
+	 * @param file The file to index. The file must contain an EntityDescriptor or an EntitiesDescriptor.
+	 * @param protocol Only entities with an IDPSSODescriptor supporting this protocol are indexed.
+	 * @throws IllegalArgumentException If the file is not well-formed or not SAML metadata.
+	 */
+	public MetadataIndex(File file, String protocol) {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		this.protocol = protocol;
+
+		long start = System.currentTimeMillis();
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				new Scanner(is, protocol).scan();
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		log.info("Indexed " + entities.size() + " IdP entities in " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get all indexed entries, in document order.
+	 */
+	public Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(entities.values());
+	}
+
+	/**
+	 * @return The entry for the entity, or <code>null</code> if the entity is not in the index.
+	 */
+	public Entry getEntry(String entityID) {
+		return entities.get(entityID);
+	}
+
+	public int size() {
+		return entities.size();
+	}
+
+	/**
+	 * Check if the file has been modified since it was indexed.
+	 */
+	public boolean isModified() {
+		return file.lastModified() != lastModified || file.length() != length;
+	}
+
+	private EntityDescriptor load(Entry entry) {
+		if (isModified()) {
+			Entry current = reindex().getEntry(entry.entityID);
+			if (current == null) {
+				throw new IllegalArgumentException("No metadata found for " + entry.entityID + " in " + file);
+			}
+			return current.index.read(current);
+		}
+		return read(entry);
+	}
+
+	/**
+	 * Index the file again after it has been modified. The new index is used until the file is modified again.
+	 */
+	private synchronized MetadataIndex reindex() {
+		if (reindexed == null || reindexed.isModified()) {
+			log.info("Metadata file " + file + " has been modified since it was indexed, indexing it again");
+			reindexed = new MetadataIndex(file, protocol);
+		}
+		return reindexed;
+	}
+
+	private EntityDescriptor read(Entry entry) {
+		byte[] data = new byte[(int) (entry.end - entry.start)];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(entry.start);
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+
+			// add the namespace declarations inherited from the enclosing elements after the element name
+			int nameEnd = 1;
+			while (nameEnd < data.length && !isNameEnd(data[nameEnd])) nameEnd++;
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + entry.namespaces.length() + 64);
+			bos.write(("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>").getBytes(encoding));
+			bos.write(data, 0, nameEnd);
+			bos.write(entry.namespaces.getBytes(encoding));
+			bos.write(data, nameEnd, data.length - nameEnd);
+
+			XMLObject descriptor = SAMLUtil.unmarshallElement(new ByteArrayInputStream(bos.toByteArray()));
+			if (!(descriptor instanceof EntityDescriptor) || !entry.entityID.equals(((EntityDescriptor) descriptor).getEntityID())) {
+				throw new IllegalStateException("Unable to load " + entry.entityID + " from " + file);
+			}
+			return (EntityDescriptor) descriptor;
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	private static boolean isNameEnd(int c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '>' || c == '/';
+	}
+
+	/**
+	 * Location of a single entity in the indexed file.
+	 */
+	public static class Entry {
+		private final MetadataIndex index;
+		private final String entityID;
+		private final long start;
+		private final long end;
+		private final String namespaces;
+
+		private Entry(MetadataIndex index, String entityID, long start, long end, String namespaces) {
+			this.index = index;
+			this.entityID = entityID;
+			this.start = start;
+			this.end = end;
+			this.namespaces = namespaces;
+		}
+
+		public String getEntityID() {
+			return entityID;
+		}
+
+		/**
+		 * Unmarshal the entity from the file. If the file has been modified since it was indexed, the entity is
+		 * read from the current contents of the file.
+		 *
+		 * @throws IllegalArgumentException If the entity has been removed from the file.
+		 */
+		public EntityDescriptor load() {
+			return index.load(this);
+		}
+
+		@Override
+		public String toString() {
+			return entityID + " (" + index.file + " " + start + "-" + end + ")";
+		}
+	}
+
+	private static class Element {
+		private final String localName;
+		private final String namespace;
+		private final Map<String, String> declarations;
+
+		private Element(String localName, String namespace, Map<String, String> declarations) {
+			this.localName = localName;
+			this.namespace = namespace;
+			this.declarations = declarations;
+		}
+
+		private boolean is(String name) {
+			return SAMLConstants.SAML20MD_NS.equals(namespace) && name.equals(localName);
+		}
+	}
+
+	/**
+	 * Minimal XML tokenizer, which only reads start and end tags. Text, comments, CDATA sections, processing
+	 * instructions and DOCTYPE declarations are skipped.
+	 */
+	private class Scanner {
+		private final InputStream is;
+		private final byte[] buffer = new byte[64 * 1024];
+		private int bufferPos;
+		private int bufferLength;
+		private final String protocol;
+		private final List<Element> stack = new ArrayList<Element>();
+		private final Map<String, String> namespaceStrings = new HashMap<String, String>();
+		private final ByteArrayOutputStream tag = new ByteArrayOutputStream(256);
+		private long pos;
+		private int skipped;
+
+		private int entityDepth = -1;
+		private long entityStart;
+		private String entityID;
+		private String entityNamespaces;
+		private boolean idp;
+
+		private Scanner(InputStream is, String protocol) {
+			this.is = is;
+			this.protocol = protocol;
+		}
+
+		private int read() throws IOException {
+			if (bufferPos == bufferLength) {
+				bufferLength = is.read(buffer);
+				bufferPos = 0;
+				if (bufferLength <= 0) {
+					bufferLength = 0;
+					return -1;
+				}
+			}
+			pos++;
+			return buffer[bufferPos++] & 0xFF;
+		}
+
+		private int readRequired() throws IOException {
+			int c = read();
+			if (c == -1) throw new IllegalArgumentException("Unexpected end of file in " + file);
+			return c;
+		}
+
+		private void scan() throws IOException {
+			bufferLength = Math.max(0, is.read(buffer));
+			if (bufferLength >= 3 && (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+				bufferPos = 3;
+				pos = 3;
+			} else if (bufferLength >= 2 && ((buffer[0] & 0xFF) == 0xFE || (buffer[0] & 0xFF) == 0xFF) && ((buffer[1] & 0xFF) == 0xFE || (buffer[1] & 0xFF) == 0xFF)) {
+				throw new IllegalArgumentException("Metadata file " + file + " is UTF-16 encoded, only ASCII compatible encodings can be indexed");
+			}
+
+			int c;
+			boolean root = false;
+			while ((c = read()) != -1) {
+				if (c != '<') continue;
+
+				long start = pos - 1;
+				c = readRequired();
+				if (c == '?') {
+					String pi = readUntil("?>");
+					if (start <= 3 && pi.startsWith("xml")) {
+						Matcher m = ENCODING.matcher(pi);
+						if (m.find()) encoding = m.group(1);
+					}
+				} else if (c == '!') {
+					c = readRequired();
+					if (c == '-') {
+						readUntil("-->");
+					} else if (c == '[') {
+						readUntil("]]>");
+					} else {
+						skipDeclaration();
+					}
+				} else if (c == '/') {
+					readTag(c);
+					endElement();
+				} else {
+					boolean empty = readTag(c);
+					startElement(start, empty, !root);
+					root = true;
+				}
+			}
+			if (!root) {
+				throw new IllegalArgumentException("Metadata file " + file + " does not contain any elements");
+			}
+			if (skipped > 0) {
+				log.debug("Skipped " + skipped + " entities without an IDPSSODescriptor for " + protocol + " in " + file);
+			}
+		}
+
+		private String readUntil(String end) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int matched = 0;
+			while (matched < end.length()) {
+				int c = readRequired();
+				sb.append((char) c);
+				if (c == end.charAt(matched)) {
+					matched++;
+				} else {
+					matched = c == end.charAt(0) ? 1 : 0;
+				}
+			}
+			return sb.substring(0, sb.length() - end.length());
+		}
+
+		private void skipDeclaration() throws IOException {
+			int depth = 0;
+			int c;
+			while ((c = readRequired()) != '>' || depth > 0) {
+				if (c == '[') depth++;
+				else if (c == ']') depth--;
+			}
+		}
+
+		/**
+		 * Read the rest of a tag into {@link #tag}.
+		 * @return <code>true</code> if the tag is an empty element tag.
+		 */
+		private boolean readTag(int first) throws IOException {
+			tag.reset();
+			tag.write(first);
+			int quote = 0;
+			int prev = first;
+			int c;
+			while ((c = readRequired()) != '>' || quote != 0) {
+				if (quote == 0 && (c == '"' || c == '\'')) {
+					quote = c;
+				} else if (c == quote) {
+					quote = 0;
+				}
+				tag.write(c);
+				prev = c;
+			}
+			return prev == '/';
+		}
+
+		private void startElement(long start, boolean empty, boolean root) throws IOException {
+			String content = tag.toString(encoding);
+			int nameEnd = 0;
+			while (nameEnd < content.length() && !isNameEnd(content.charAt(nameEnd))) nameEnd++;
+			String name = content.substring(0, nameEnd);
+
+			Map<String, String> attributes = parseAttributes(content, nameEnd);
+			Map<String, String> declarations = null;
+			for (Map.Entry<String, String> a : attributes.entrySet()) {
+				if (a.getKey().equals("xmlns") || a.getKey().startsWith("xmlns:")) {
+					if (declarations == null) declarations = new LinkedHashMap<String, String>();
+					declarations.put(a.getKey(), a.getValue());
+				}
+			}
+			Map<String, String> decls = declarations == null ? Collections.<String, String>emptyMap() : declarations;
+
+			int colon = name.indexOf(':');
+			String prefix = colon > -1 ? "xmlns:" + name.substring(0, colon) : "xmlns";
+			String localName = colon > -1 ? name.substring(colon + 1) : name;
+			String namespace = decls.containsKey(prefix) ? decls.get(prefix) : lookupNamespace(prefix);
+			Element element = new Element(localName, namespace, decls);
+
+			if (root && !element.is(ENTITY_DESCRIPTOR) && !element.is(ENTITIES_DESCRIPTOR)) {
+				throw new IllegalArgumentException("Metadata file " + file + " does not contain an EntityDescriptor. Found "
+						+ namespace + ":" + localName + ", expected " + EntityDescriptor.ELEMENT_QNAME);
+			}
+
+			if (entityDepth == -1 && element.is(ENTITY_DESCRIPTOR) && inEntitiesDescriptor()) {
+				entityDepth = stack.size();
+				entityStart = start;
+				entityID = attributes.get("entityID");
+				entityNamespaces = getInheritedNamespaces(decls);
+				idp = false;
+			} else if (entityDepth > -1 && stack.size() == entityDepth + 1 && element.is(IDPSSO_DESCRIPTOR)) {
+				String protocols = attributes.get("protocolSupportEnumeration");
+				if (protocols != null) {
+					for (String p : protocols.trim().split("\\s+")) {
+						if (p.equals(protocol)) idp = true;
+					}
+				}
+			}
+
+			stack.add(element);
+			if (empty) {
+				endElement();
+			}
+		}
+
+		private void endElement() {
+			if (stack.isEmpty()) {
+				throw new IllegalArgumentException("Unbalanced end tag in " + file + " at offset " + pos);
+			}
+			stack.remove(stack.size() - 1);
+			if (stack.size() == entityDepth) {
+				if (entityID == null) {
+					throw new IllegalArgumentException("EntityDescriptor without entityID in " + file + " at offset " + entityStart);
+				}
+				if (idp) {
+					Entry entry = new Entry(MetadataIndex.this, entityID, entityStart, pos, entityNamespaces);
+					if (entities.containsKey(entityID)) {
+						log.warn("Duplicate entityID " + entityID + " in " + file + ", using the first occurrence");
+					} else {
+						entities.put(entityID, entry);
+					}
+				} else {
+					skipped++;
+				}
+				entityDepth = -1;
+				entityID = null;
+			}
+		}
+
+		private boolean inEntitiesDescriptor() {
+			for (Element e : stack) {
+				if (!e.is(ENTITIES_DESCRIPTOR)) return false;
+			}
+			return true;
+		}
+
+		private String lookupNamespace(String prefix) {
+			for (int i = stack.size() - 1; i >= 0; i--) {
+				String ns = stack.get(i).declarations.get(prefix);
+				if (ns != null) return ns;
+			}
+			return null;
+		}
+
+		/**
+		 * Get the namespace declarations in scope from the enclosing elements, except those redeclared on the entity itself.
+		 */
+		private String getInheritedNamespaces(Map<String, String> own) {
+			Map<String, String> inherited = new LinkedHashMap<String, String>();
+			for (Element e : stack) {
+				inherited.putAll(e.declarations);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> e : inherited.entrySet()) {
+				if (own.containsKey(e.getKey())) continue;
+				sb.append(' ').append(e.getKey()).append("=\"").append(escape(e.getValue())).append('"');
+			}
+			String res = sb.toString();
+			String shared = namespaceStrings.get(res);
+			if (shared == null) {
+				namespaceStrings.put(res, res);
+				shared = res;
+			}
+			return shared;
+		}
+
+		private Map<String, String> parseAttributes(String content, int offset) {
+			Map<String, String> res = new LinkedHashMap<String, String>();
+			int i = offset;
+			int len = content.length();
+			while (i < len) {
+				while (i < len && (Character.isWhitespace(content.charAt(i)) || content.charAt(i) == '/')) i++;
+				int nameStart = i;
+				while (i < len && content.charAt(i) != '=' && !Character.isWhitespace(content.charAt(i))) i++;
+				String name = content.substring(nameStart, i);
+				while (i < len && content.charAt(i) != '"' && content.charAt(i) != '\'') i++;
+				if (i >= len) break;
+				char quote = content.charAt(i++);
+				int valueStart = i;
+				while (i < len && content.charAt(i) != quote) i++;
+				res.put(name, unescape(content.substring(valueStart, Math.min(i, len))));
+				i++;
+			}
+			return res;
+		}
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('&') == -1) return value;
+
+		StringBuilder sb = new StringBuilder(value.length());
+		int i = 0;
+		while (i < value.length()) {
+			char c = value.charAt(i);
+			int semi = c == '&' ? value.indexOf(';', i) : -1;
+			if (semi == -1) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String ref = value.substring(i + 1, semi);
+			if (ref.equals("amp")) sb.append('&');
+			else if (ref.equals("lt")) sb.append('<');
+			else if (ref.equals("gt")) sb.append('>');
+			else if (ref.equals("quot")) sb.append('"');
+			else if (ref.equals("apos")) sb.append('\'');
+			else if (ref.startsWith("#x")) sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+			else if (ref.startsWith("#")) sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+			else throw new IllegalArgumentException("Unknown entity reference &" + ref + ";");
+			i = semi + 1;
+		}
+		return sb.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.AttributeService;
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.IndexedEndpoint;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
+import dk.itst.oiosaml.sp.service.util.Utils;
+import dk.itst.oiosaml.sp.util.BRSArtifact;
+
+/**
+ * Binary snapshot of compiled IdP metadata, used to avoid parsing the metadata XML on startup.
+ *
+ * The snapshot contains the entity ids, artifact SourceIDs, endpoints, attribute name formats, signing methods
+ * and DER encoded certificates of all entities. It is keyed by a hash of the metadata files it was built from,
+ * and is only used when the hash of the current files matches. The snapshot is not a trusted source of metadata,
+ * so it must be stored in a location which is only writable by the service provider, like the metadata itself.
+ */
+class MetadataSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(MetadataSnapshot.class);
+	private static final int MAGIC = 0x4f494f53;
+	private static final int VERSION = 1;
+
+	private final File file;
+
+	MetadataSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Hash the contents of metadata files.
+	 *
+	 * @param protocol The protocol used to select IdP descriptors, which also affects the compiled metadata.
+	 * @param files The metadata files, in the order they are loaded.
+	 * @return The hex encoded SHA-256 hash.
+	 */
+	static String hash(String protocol, List<File> files) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((VERSION + "\n" + protocol + "\n").getBytes(OIOSAMLConstants.UTF_8));
+			byte[] buffer = new byte[65536];
+			for (File file : files) {
+				digest.update((file.getName() + "\n").getBytes(OIOSAMLConstants.UTF_8));
+				InputStream is = new FileInputStream(file);
+				try {
+					int read;
+					while ((read = is.read(buffer)) != -1) {
+						digest.update(buffer, 0, read);
+					}
+				} finally {
+					is.close();
+				}
+				digest.update((byte) '\n');
+			}
+			return Utils.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	/**
+	 * Read the snapshot.
+	 *
+	 * @param hash The hash of the current metadata files, as returned by {@link #hash(String, List)}.
+	 * @return The metadata, or <code>null</code> if there is no snapshot, it was built from other files, or it cannot be read.
+	 */
+	IdpMetadata read(String protocol, String hash) {
+		if (!file.isFile()) {
+			log.debug("No metadata snapshot in " + file);
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					log.info("Metadata snapshot " + file + " has an unsupported format, ignoring it");
+					return null;
+				}
+				if (!hash.equals(in.readUTF())) {
+					log.info("Metadata snapshot " + file + " is out of date");
+					return null;
+				}
+				CertificateFactory factory = CertificateFactory.getInstance("X.509");
+				int count = in.readInt();
+				List<Metadata> entities = new ArrayList<Metadata>(count);
+				Map<String, String> entityIDsBySourceID = new HashMap<String, String>(count * 2);
+				for (int i = 0; i < count; i++) {
+					String entityID = in.readUTF();
+					entityIDsBySourceID.put(Base64.encodeBytes(readBytes(in), Base64.DONT_BREAK_LINES), entityID);
+
+					List<String> signingMethods = new ArrayList<String>();
+					for (int j = in.readInt(); j > 0; j--) {
+						signingMethods.add(in.readUTF());
+					}
+					List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+					for (int j = in.readInt(); j > 0; j--) {
+						certificates.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(readBytes(in))));
+					}
+					List<SingleSignOnService> singleSignOnServices = readEndpoints(in, SingleSignOnService.class);
+					List<ArtifactResolutionService> artifactResolutionServices = readEndpoints(in, ArtifactResolutionService.class);
+					List<SingleLogoutService> singleLogoutServices = readEndpoints(in, SingleLogoutService.class);
+					List<AttributeService> attributeServices = in.readBoolean() ? readEndpoints(in, AttributeService.class) : null;
+					Map<String, String> attributeNameFormats = new LinkedHashMap<String, String>();
+					for (int j = in.readInt(); j > 0; j--) {
+						attributeNameFormats.put(in.readUTF(), readString(in));
+					}
+					entities.add(new Metadata(entityID, signingMethods, certificates, singleSignOnServices, artifactResolutionServices,
+							singleLogoutServices, attributeServices, attributeNameFormats));
+				}
+				return new IdpMetadata(protocol, entities, entityIDsBySourceID);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("Unable to read metadata snapshot " + file + ", ignoring it", e);
+		} catch (CertificateException e) {
+			log.warn("Unable to read metadata snapshot " + file + ", ignoring it", e);
+		} catch (RuntimeException e) {
+			log.warn("Unable to read metadata snapshot " + file + ", ignoring it", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Write the snapshot. The snapshot is written to a temporary file first, so a snapshot is never partially written.
+	 *
+	 * @param hash The hash of the metadata files the metadata was loaded from.
+	 * @return <code>true</code> if the snapshot was written.
+	 */
+	boolean write(String hash, IdpMetadata metadata) {
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(hash);
+				Collection<String> entityIDs = metadata.getEntityIDs();
+				out.writeInt(entityIDs.size());
+				for (String entityID : entityIDs) {
+					Metadata md = metadata.getMetadata(entityID);
+					out.writeUTF(entityID);
+					writeBytes(out, BRSArtifact.getSourceID(entityID));
+
+					out.writeInt(md.getSigningMethods().size());
+					for (String method : md.getSigningMethods()) {
+						out.writeUTF(method);
+					}
+					Collection<X509Certificate> certificates = md.getAllCertificates();
+					out.writeInt(certificates.size());
+					for (X509Certificate certificate : certificates) {
+						writeBytes(out, certificate.getEncoded());
+					}
+					writeEndpoints(out, md.getSingleSignonServices());
+					writeEndpoints(out, md.getArtifactResolutionServices());
+					writeEndpoints(out, md.getSingleLogoutServices());
+					out.writeBoolean(md.getAttributeServices() != null);
+					if (md.getAttributeServices() != null) {
+						writeEndpoints(out, md.getAttributeServices());
+					}
+					out.writeInt(md.getAttributeNameFormats().size());
+					for (Map.Entry<String, String> e : md.getAttributeNameFormats().entrySet()) {
+						out.writeUTF(e.getKey());
+						writeString(out, e.getValue());
+					}
+				}
+			} finally {
+				out.close();
+			}
+			// rename does not replace existing files on all platforms
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Unable to rename " + tmp + " to " + file);
+			}
+			log.info("Wrote metadata snapshot with " + metadata.getEntityIDs().size() + " entities to " + file);
+			return true;
+		} catch (IOException e) {
+			log.warn("Unable to write metadata snapshot " + file, e);
+		} catch (CertificateEncodingException e) {
+			log.warn("Unable to write metadata snapshot " + file, e);
+		}
+		tmp.delete();
+		return false;
+	}
+
+	private static void writeEndpoints(DataOutputStream out, List<? extends Endpoint> endpoints) throws IOException {
+		out.writeInt(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			writeString(out, endpoint.getBinding());
+			writeString(out, endpoint.getLocation());
+			writeString(out, endpoint.getResponseLocation());
+			Integer index = endpoint instanceof IndexedEndpoint ? ((IndexedEndpoint) endpoint).getIndex() : null;
+			out.writeBoolean(index != null);
+			if (index != null) {
+				out.writeInt(index);
+			}
+		}
+	}
+
+	private static <T extends Endpoint> List<T> readEndpoints(DataInputStream in, Class<T> type) throws IOException {
+		int count = in.readInt();
+		List<T> res = new ArrayList<T>(count);
+		for (int i = 0; i < count; i++) {
+			T endpoint = SAMLUtil.buildXMLObject(type);
+			endpoint.setBinding(readString(in));
+			endpoint.setLocation(readString(in));
+			endpoint.setResponseLocation(readString(in));
+			if (in.readBoolean()) {
+				int index = in.readInt();
+				if (endpoint instanceof IndexedEndpoint) {
+					((IndexedEndpoint) endpoint).setIndex(index);
+				}
+			}
+			res.add(endpoint);
+		}
+		return res;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > 1024 * 1024) {
+			throw new IOException("Invalid length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
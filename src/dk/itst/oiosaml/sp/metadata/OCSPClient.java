@@ -0,0 +1,285 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * OCSP client for checking the revocation status of certificates.
+ *
+ * Several certificates from the same issuer are checked using a single request. If the responder does not
+ * accept requests for more than one certificate, each certificate is checked using a separate request.
+ * Responses must be signed by the issuer, or by a responder certificate issued by the issuer for OCSP signing.
+ * Verified responses are cached until their nextUpdate time. Responses without nextUpdate are not cached.
+ */
+class OCSPClient {
+	private static final Logger log = LoggerFactory.getLogger(OCSPClient.class);
+
+	/**
+	 * Allowed difference between the clock of the responder and the local clock.
+	 */
+	private static final long CLOCK_SKEW = 5 * 60 * 1000L;
+
+	enum Status {
+		GOOD, REVOKED, UNKNOWN
+	}
+
+	private final Map<String, CachedStatus> cache = Collections.synchronizedMap(new HashMap<String, CachedStatus>());
+	private int timeout = 10000;
+
+	/**
+	 * Get the status of certificates.
+	 *
+	 * @param responder The OCSP responder.
+	 * @param issuer The issuer of all the certificates.
+	 * @param certificates The certificates to check.
+	 * @return The status of each certificate. Certificates for which the responder did not return a status are not included.
+	 */
+	Map<X509Certificate, Status> getStatus(URL responder, X509Certificate issuer, List<X509Certificate> certificates) throws IOException, OCSPException {
+		long now = System.currentTimeMillis();
+		Map<X509Certificate, Status> res = new LinkedHashMap<X509Certificate, Status>();
+		Map<CertificateID, X509Certificate> ids = new LinkedHashMap<CertificateID, X509Certificate>();
+		X509CertificateHolder issuerHolder = getHolder(issuer);
+		for (X509Certificate certificate : certificates) {
+			CertificateID id = getCertificateID(issuerHolder, certificate);
+			CachedStatus cached = cache.get(getKey(responder, id));
+			if (cached != null && cached.nextUpdate > now) {
+				res.put(certificate, cached.status);
+			} else if (!ids.containsKey(id)) {
+				ids.put(id, certificate);
+			}
+		}
+		if (ids.isEmpty()) {
+			return res;
+		}
+
+		Map<CertificateID, Status> statuses;
+		try {
+			statuses = request(responder, issuerHolder, ids.keySet());
+		} catch (OCSPException e) {
+			if (ids.size() == 1) throw e;
+			log.debug("Responder " + responder + " did not accept a request for " + ids.size() + " certificates, checking each certificate", e);
+			statuses = new HashMap<CertificateID, Status>();
+		}
+		for (Map.Entry<CertificateID, X509Certificate> e : ids.entrySet()) {
+			Status status = statuses.get(e.getKey());
+			if (status == null && ids.size() > 1) {
+				try {
+					status = request(responder, issuerHolder, Collections.singleton(e.getKey())).get(e.getKey());
+				} catch (OCSPException ex) {
+					log.error("Unable to check " + e.getValue().getSubjectDN() + " using " + responder, ex);
+				}
+			}
+			if (status != null) {
+				res.put(e.getValue(), status);
+			}
+		}
+		return res;
+	}
+
+	private Map<CertificateID, Status> request(URL responder, X509CertificateHolder issuer, Iterable<CertificateID> ids) throws IOException, OCSPException {
+		OCSPReqBuilder builder = new OCSPReqBuilder();
+		for (CertificateID id : ids) {
+			builder.addRequest(id);
+		}
+		byte[] request = builder.build().getEncoded();
+
+		HttpURLConnection c = (HttpURLConnection) responder.openConnection();
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		c.setUseCaches(false);
+		c.setDoOutput(true);
+		c.setRequestMethod("POST");
+		c.setRequestProperty("Content-Type", "application/ocsp-request");
+		c.setRequestProperty("Accept", "application/ocsp-response");
+		byte[] body;
+		try {
+			OutputStream os = c.getOutputStream();
+			try {
+				os.write(request);
+			} finally {
+				os.close();
+			}
+			if (c.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("OCSP responder " + responder + " returned " + c.getResponseCode() + " " + c.getResponseMessage());
+			}
+			InputStream is = c.getInputStream();
+			try {
+				body = IOUtils.toByteArray(is);
+			} finally {
+				is.close();
+			}
+		} finally {
+			c.disconnect();
+		}
+
+		OCSPResp resp = new OCSPResp(body);
+		if (resp.getStatus() != OCSPResp.SUCCESSFUL) {
+			throw new OCSPException("OCSP responder " + responder + " returned status " + resp.getStatus());
+		}
+		BasicOCSPResp basic = (BasicOCSPResp) resp.getResponseObject();
+		verify(responder, basic, issuer);
+
+		long now = System.currentTimeMillis();
+		Map<CertificateID, Status> res = new HashMap<CertificateID, Status>();
+		for (SingleResp single : basic.getResponses()) {
+			CertificateID id = single.getCertID();
+			if (single.getThisUpdate().getTime() > now + CLOCK_SKEW) {
+				log.warn("Ignoring OCSP response from " + responder + " for " + id.getSerialNumber() + ", thisUpdate is in the future: " + single.getThisUpdate());
+				continue;
+			}
+			Date nextUpdate = single.getNextUpdate();
+			if (nextUpdate != null && nextUpdate.getTime() < now - CLOCK_SKEW) {
+				log.warn("Ignoring OCSP response from " + responder + " for " + id.getSerialNumber() + ", it expired at " + nextUpdate);
+				continue;
+			}
+
+			Status status;
+			CertificateStatus certStatus = single.getCertStatus();
+			if (certStatus == CertificateStatus.GOOD) {
+				status = Status.GOOD;
+			} else if (certStatus instanceof RevokedStatus) {
+				status = Status.REVOKED;
+			} else {
+				status = Status.UNKNOWN;
+			}
+			res.put(id, status);
+			if (nextUpdate != null) {
+				cache.put(getKey(responder, id), new CachedStatus(status, nextUpdate.getTime()));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Check that the response is signed by the issuer, or by a certificate issued by the issuer for OCSP signing.
+	 */
+	private void verify(URL responder, BasicOCSPResp basic, X509CertificateHolder issuer) throws OCSPException {
+		try {
+			ContentVerifierProvider issuerVerifier = new JcaContentVerifierProviderBuilder().build(issuer);
+			if (basic.isSignatureValid(issuerVerifier)) {
+				return;
+			}
+			Date now = new Date();
+			for (X509CertificateHolder cert : basic.getCerts()) {
+				if (cert.isValidOn(now) && isOCSPSigner(cert) && cert.isSignatureValid(issuerVerifier)
+						&& basic.isSignatureValid(new JcaContentVerifierProviderBuilder().build(cert))) {
+					return;
+				}
+			}
+		} catch (OperatorCreationException e) {
+			throw new OCSPException("Unable to verify OCSP response from " + responder, e);
+		} catch (CertificateException e) {
+			throw new OCSPException("Unable to verify OCSP response from " + responder, e);
+		} catch (CertException e) {
+			throw new OCSPException("Unable to verify OCSP response from " + responder, e);
+		}
+		throw new OCSPException("OCSP response from " + responder + " is not signed by " + issuer.getSubject() + " or an authorized responder");
+	}
+
+	private static boolean isOCSPSigner(X509CertificateHolder cert) {
+		Extension extension = cert.getExtension(Extension.extendedKeyUsage);
+		return extension != null && ExtendedKeyUsage.getInstance(extension.getParsedValue()).hasKeyPurposeId(KeyPurposeId.id_kp_OCSPSigning);
+	}
+
+	private static X509CertificateHolder getHolder(X509Certificate certificate) throws OCSPException {
+		try {
+			return new JcaX509CertificateHolder(certificate);
+		} catch (CertificateEncodingException e) {
+			throw new OCSPException("Unable to encode certificate " + certificate.getSubjectDN(), e);
+		}
+	}
+
+	private static CertificateID getCertificateID(X509CertificateHolder issuer, X509Certificate certificate) throws OCSPException {
+		try {
+			DigestCalculator digest = new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1);
+			return new CertificateID(digest, issuer, certificate.getSerialNumber());
+		} catch (OperatorCreationException e) {
+			throw new OCSPException("Unable to create OCSP request", e);
+		}
+	}
+
+	private static String getKey(URL responder, CertificateID id) {
+		return responder + " " + Utils.toHex(id.getIssuerKeyHash()) + " " + id.getSerialNumber();
+	}
+
+	/**
+	 * @param timeout Connect and read timeout in milliseconds.
+	 */
+	void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	void clearCache() {
+		cache.clear();
+	}
+
+	private static class CachedStatus {
+		private final Status status;
+		private final long nextUpdate;
+
+		private CachedStatus(Status status, long nextUpdate) {
+			this.status = status;
+			this.nextUpdate = nextUpdate;
+		}
+	}
+}
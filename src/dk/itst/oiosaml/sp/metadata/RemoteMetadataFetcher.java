@@ -0,0 +1,304 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
+import org.opensaml.saml2.common.CacheableSAMLObject;
+import org.opensaml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.model.OIOSamlObject;
+
+/**
+ * Fetch IdP metadata from a URL in the background.
+ *
+ * Each fetch is a conditional GET using the ETag and Last-Modified values of the previous response, so unchanged
+ * metadata is not downloaded again. New metadata must be signed by the configured key and must not have expired.
+ * It is then stored in the local metadata file, which is the last good copy used on startup and when the URL
+ * cannot be reached, and replaces the current {@link IdpMetadata} instance.
+ *
+ * The next fetch is scheduled using the cacheDuration and validUntil attributes of the metadata, so requests
+ * are never blocked by a fetch. Fetches are serialized, but the fetcher can be stopped while a fetch is in progress.
+ */
+public class RemoteMetadataFetcher {
+	private static final Logger log = LoggerFactory.getLogger(RemoteMetadataFetcher.class);
+
+	/**
+	 * Minimum time between two fetches, regardless of the cacheDuration of the metadata.
+	 */
+	static final long MIN_REFRESH = 60 * 1000L;
+
+	private final URL url;
+	private final File file;
+	private final String protocol;
+	private final PublicKey signingKey;
+	private final long defaultRefresh;
+	private final boolean indexed;
+	private final int cacheSize;
+	private int timeout = 30000;
+
+	/**
+	 * Held while fetching, instead of the monitor of the fetcher, so stopping the fetcher does not wait for network I/O.
+	 */
+	private final Object fetchLock = new Object();
+	private String etag;
+	private long lastModified;
+	private volatile long nextRefresh;
+	private Timer timer;
+
+	/**
+	 * @param url The location of the metadata.
+	 * @param file The local metadata file, which is replaced when new metadata has been fetched.
+	 * @param signingKey The key used to verify the signature of the metadata.
+	 * @param defaultRefresh Milliseconds between fetches when the metadata does not specify a cacheDuration.
+	 * @param indexed If <code>true</code>, the metadata file is indexed using {@link MetadataIndex}.
+	 * @param cacheSize Maximum number of unmarshalled entities when <code>indexed</code> is <code>true</code>.
+	 * @throws IllegalArgumentException If <code>signingKey</code> is <code>null</code>.
+	 */
+	public RemoteMetadataFetcher(URL url, File file, String protocol, PublicKey signingKey, long defaultRefresh, boolean indexed, int cacheSize) {
+		if (signingKey == null) {
+			throw new IllegalArgumentException("No certificate configured for " + url + ", metadata fetched from a URL must be signed");
+		}
+		this.url = url;
+		this.file = file;
+		this.protocol = protocol;
+		this.signingKey = signingKey;
+		this.defaultRefresh = Math.max(MIN_REFRESH, defaultRefresh);
+		this.indexed = indexed;
+		this.cacheSize = cacheSize;
+		this.nextRefresh = this.defaultRefresh;
+		if (file.isFile()) {
+			// the modification time of the file is set to the Last-Modified time of the response
+			lastModified = file.lastModified();
+		}
+	}
+
+	/**
+	 * Start fetching metadata in the background. The first fetch runs immediately.
+	 */
+	public synchronized void startFetcher() {
+		if (timer != null) return;
+
+		log.info("Fetching IdP metadata from " + url + " into " + file);
+		timer = new Timer("IdP metadata fetcher", true);
+		schedule(timer, 0);
+	}
+
+	public synchronized void stopFetcher() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	private synchronized void schedule(final Timer t, long delay) {
+		// the fetcher may have been stopped or restarted while fetching
+		if (timer != t) return;
+
+		t.schedule(new TimerTask() {
+			public void run() {
+				long delay;
+				try {
+					fetch();
+					delay = getNextRefresh();
+				} catch (Exception e) {
+					delay = Math.max(MIN_REFRESH, Math.min(defaultRefresh, 5 * MIN_REFRESH));
+					log.error("Unable to fetch metadata from " + url + ", keeping the current metadata. Retrying in " + delay / 1000 + " seconds", e);
+				}
+				schedule(t, delay);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Fetch the metadata, and replace the current metadata if it has changed.
+	 *
+	 * @return <code>true</code> if the metadata was replaced.
+	 * @throws IOException If the metadata cannot be fetched or stored.
+	 * @throws IllegalArgumentException If the metadata is not valid.
+	 */
+	public boolean fetch() throws IOException {
+		synchronized (fetchLock) {
+			return doFetch();
+		}
+	}
+
+	private boolean doFetch() throws IOException {
+		HttpURLConnection c = (HttpURLConnection) url.openConnection();
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		c.setUseCaches(false);
+		if (etag != null) {
+			c.setRequestProperty("If-None-Match", etag);
+		}
+		if (lastModified > 0) {
+			c.setIfModifiedSince(lastModified);
+		}
+
+		byte[] body;
+		String responseEtag;
+		long modified;
+		try {
+			int status = c.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				log.debug("Metadata at " + url + " has not been modified");
+				return false;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Unable to fetch metadata from " + url + ", server returned " + status + " " + c.getResponseMessage());
+			}
+			InputStream is = c.getInputStream();
+			try {
+				body = IOUtils.toByteArray(is);
+			} finally {
+				is.close();
+			}
+			responseEtag = c.getHeaderField("ETag");
+			modified = c.getLastModified();
+		} finally {
+			c.disconnect();
+		}
+
+		XMLObject md = SAMLUtil.unmarshallElement(new ByteArrayInputStream(body));
+		if (md == null) {
+			throw new IllegalArgumentException("Unable to parse metadata from " + url);
+		}
+		List<EntityDescriptor> descriptors = getDescriptors(md);
+		long next = validate(md, System.currentTimeMillis());
+
+		// store the metadata as the last good copy before it is used
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		if (modified > 0) {
+			file.setLastModified(modified);
+		}
+		etag = responseEtag;
+		lastModified = modified;
+		nextRefresh = next;
+
+		IdpMetadata previous = IdpMetadata.getInstance();
+		IdpMetadata metadata;
+		if (indexed) {
+			metadata = new IdpMetadata(protocol, cacheSize, new MetadataIndex(file, protocol));
+		} else {
+			metadata = new IdpMetadata(protocol, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		}
+		metadata.copyCertificateStatus(previous);
+		if (!IdpMetadata.replaceMetadata(previous, metadata)) {
+			log.warn("Metadata was replaced during fetch, discarding the fetched metadata");
+			return false;
+		}
+		log.info("Fetched IdP metadata from " + url + ", " + metadata.getEntityIDs().size() + " entities. Next fetch in " + next / 1000 + " seconds");
+		return true;
+	}
+
+	/**
+	 * Check the signature and validity of the metadata.
+	 *
+	 * @return Milliseconds until the metadata should be fetched again.
+	 */
+	private long validate(XMLObject md, long now) {
+		if (!new OIOSamlObject(md).verifySignature(signingKey)) {
+			throw new IllegalArgumentException("Metadata from " + url + " is not signed by the configured certificate");
+		}
+
+		long next = defaultRefresh;
+		if (md instanceof CacheableSAMLObject) {
+			Long cacheDuration = ((CacheableSAMLObject) md).getCacheDuration();
+			if (cacheDuration != null && cacheDuration > 0) {
+				next = cacheDuration;
+			}
+		}
+		if (md instanceof TimeBoundSAMLObject) {
+			DateTime validUntil = ((TimeBoundSAMLObject) md).getValidUntil();
+			if (validUntil != null) {
+				if (validUntil.getMillis() <= now) {
+					throw new IllegalArgumentException("Metadata from " + url + " expired at " + validUntil);
+				}
+				// fetch again before the metadata expires
+				next = Math.min(next, (validUntil.getMillis() - now) / 2);
+			}
+		}
+		return Math.max(MIN_REFRESH, next);
+	}
+
+	private List<EntityDescriptor> getDescriptors(XMLObject md) {
+		List<EntityDescriptor> descriptors = new ArrayList<EntityDescriptor>();
+		if (md instanceof EntityDescriptor) {
+			descriptors.add((EntityDescriptor) md);
+		} else if (md instanceof EntitiesDescriptor) {
+			descriptors.addAll(((EntitiesDescriptor) md).getEntityDescriptors());
+		} else {
+			throw new IllegalArgumentException("Metadata from " + url + " does not contain an EntityDescriptor. Found "
+					+ md.getElementQName() + ", expected " + EntityDescriptor.ELEMENT_QNAME);
+		}
+		if (descriptors.isEmpty()) {
+			throw new IllegalArgumentException("No IdP descriptors found in metadata from " + url);
+		}
+		return descriptors;
+	}
+
+	/**
+	 * @return Milliseconds until the next fetch, based on the last fetched metadata.
+	 */
+	long getNextRefresh() {
+		return nextRefresh;
+	}
+
+	/**
+	 * @param timeout Connect and read timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+}
@@ -25,10 +25,15 @@
  */
 package dk.itst.oiosaml.sp.metadata;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
+import java.util.List;
 
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
@@ -41,9 +46,12 @@ import org.opensaml.xml.signature.X509Certificate;
 import org.opensaml.xml.signature.X509Data;
 import org.opensaml.xml.util.Base64;
 
+import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.configuration.SAMLConfiguration;
 import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.sp.model.OIOSamlObject;
 import dk.itst.oiosaml.sp.service.util.Constants;
 
@@ -61,11 +69,26 @@ public class SPMetadata {
 	public static final String VERSION = "$Id: SPMetadata.java 2950 2008-05-28 08:22:34Z jre $";
 	private EntityDescriptor entityDescriptor;
 	private SPSSODescriptor spSSODescriptor;
+	private final EndpointTable<AssertionConsumerService> assertionConsumerServices;
+	private final EndpointTable<SingleLogoutService> singleLogoutServices;
+	private final AssertionConsumerService defaultAssertionConsumerService;
 	private static SPMetadata instance;
+	private volatile RenderedMetadata signedMetadata;
+	private volatile RenderedMetadata unsignedMetadata;
 
 	public SPMetadata(EntityDescriptor entityDescriptor, String protocol) {
 		this.entityDescriptor = entityDescriptor;
 		spSSODescriptor = entityDescriptor.getSPSSODescriptor(protocol);
+		if (spSSODescriptor != null) {
+			assertionConsumerServices = new EndpointTable<AssertionConsumerService>(spSSODescriptor.getAssertionConsumerServices());
+			singleLogoutServices = new EndpointTable<SingleLogoutService>(spSSODescriptor.getSingleLogoutServices());
+			AssertionConsumerService service = spSSODescriptor.getDefaultAssertionConsumerService();
+			defaultAssertionConsumerService = service != null ? service : assertionConsumerServices.first();
+		} else {
+			assertionConsumerServices = new EndpointTable<AssertionConsumerService>(null);
+			singleLogoutServices = new EndpointTable<SingleLogoutService>(null);
+			defaultAssertionConsumerService = null;
+		}
 	}
 
 	public static SPMetadata getInstance() {
@@ -93,12 +116,9 @@ public class SPMetadata {
 	 * first is selected.
 	 */
 	public AssertionConsumerService getDefaultAssertionConsumerService() {
-		AssertionConsumerService service = spSSODescriptor.getDefaultAssertionConsumerService();
-		if (service != null)
-			return service;
-		if (spSSODescriptor.getAssertionConsumerServices().isEmpty())
+		if (defaultAssertionConsumerService == null)
 			throw new IllegalStateException("No AssertionConsumerServices defined in SP metadata");
-		return spSSODescriptor.getAssertionConsumerServices().get(0);
+		return defaultAssertionConsumerService;
 	}
 
 	/**
@@ -108,9 +128,9 @@ public class SPMetadata {
 	 *         <code>index</code> at the service provider
 	 */
 	public String getAssertionConsumerServiceLocation(int index) {
-		if (spSSODescriptor.getAssertionConsumerServices().size() > index) {
-			AssertionConsumerService consumerService = spSSODescriptor.getAssertionConsumerServices().get(index);
-			return consumerService.getLocation();
+		List<AssertionConsumerService> services = assertionConsumerServices.getEndpoints();
+		if (index >= 0 && services.size() > index) {
+			return services.get(index).getLocation();
 		}
 		return null;
 	}
@@ -121,12 +141,7 @@ public class SPMetadata {
 	 *         provider for HTTP-Redirect
 	 */
 	public String getSingleLogoutServiceHTTPRedirectLocation() {
-		for (SingleLogoutService singleLogoutService : spSSODescriptor.getSingleLogoutServices()) {
-			if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(singleLogoutService.getBinding())) {
-				return singleLogoutService.getLocation();
-			}
-		}
-		return null;
+		return getLocation(singleLogoutServices.get(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
 	}
 
 	/**
@@ -135,12 +150,7 @@ public class SPMetadata {
 	 *         service provider for HTTP-Redirect
 	 */
 	public String getSingleLogoutServiceHTTPRedirectResponseLocation() {
-		for (SingleLogoutService singleLogoutService : spSSODescriptor.getSingleLogoutServices()) {
-			if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(singleLogoutService.getBinding())) {
-				return singleLogoutService.getResponseLocation();
-			}
-		}
-		return null;
+		return getResponseLocation(singleLogoutServices.get(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
 	}
 
 	/**
@@ -149,12 +159,7 @@ public class SPMetadata {
 	 *         provider for SOAP
 	 */
 	public String getSingleLogoutServiceSOAPLocation() {
-		for (SingleLogoutService singleLogoutService : spSSODescriptor.getSingleLogoutServices()) {
-			if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(singleLogoutService.getBinding())) {
-				return singleLogoutService.getLocation();
-			}
-		}
-		return null;
+		return getLocation(singleLogoutServices.get(SAMLConstants.SAML2_SOAP11_BINDING_URI));
 	}
 
 	/**
@@ -163,12 +168,7 @@ public class SPMetadata {
 	 *         provider for POST
 	 */
 	public String getSingleLogoutServiceHTTPPostLocation() {
-		for (SingleLogoutService singleLogoutService : spSSODescriptor.getSingleLogoutServices()) {
-			if (SAMLConstants.SAML2_POST_BINDING_URI.equals(singleLogoutService.getBinding())) {
-				return singleLogoutService.getLocation();
-			}
-		}
-		return null;
+		return getLocation(singleLogoutServices.get(SAMLConstants.SAML2_POST_BINDING_URI));
 	}
 
 	/**
@@ -177,12 +177,15 @@ public class SPMetadata {
 	 *         service provider for POST
 	 */
 	public String getSingleLogoutServiceHTTPPostResponseLocation() {
-		for (SingleLogoutService singleLogoutService : spSSODescriptor.getSingleLogoutServices()) {
-			if (SAMLConstants.SAML2_POST_BINDING_URI.equals(singleLogoutService.getBinding())) {
-				return singleLogoutService.getResponseLocation();
-			}
-		}
-		return null;
+		return getResponseLocation(singleLogoutServices.get(SAMLConstants.SAML2_POST_BINDING_URI));
+	}
+
+	private static String getLocation(Endpoint endpoint) {
+		return endpoint != null ? endpoint.getLocation() : null;
+	}
+
+	private static String getResponseLocation(Endpoint endpoint) {
+		return endpoint != null ? endpoint.getResponseLocation() : null;
 	}
 
 	/**
@@ -218,4 +221,73 @@ public class SPMetadata {
 		}
 		return obj.toXML();
 	}
+
+	/**
+	 * Get the metadata document as bytes, as returned by {@link #getMetadata(Credential, boolean)}.
+	 * 
+	 * The signed and unsigned documents are rendered once and cached until a different credential is passed, so the
+	 * private key is not used for every request. The cache belongs to this instance, so metadata loaded again
+	 * into a new instance is rendered again.
+	 */
+	public RenderedMetadata getRenderedMetadata(Credential signingCredential, boolean sign) {
+		RenderedMetadata current = sign ? signedMetadata : unsignedMetadata;
+		if (current != null && current.credential == signingCredential) {
+			return current;
+		}
+
+		RenderedMetadata rendered = new RenderedMetadata(signingCredential, getMetadata(signingCredential, sign), current);
+		if (sign) {
+			signedMetadata = rendered;
+		} else {
+			unsignedMetadata = rendered;
+		}
+		return rendered;
+	}
+
+	/**
+	 * A rendered metadata document, with an entity tag and modification time for conditional requests.
+	 */
+	public static class RenderedMetadata {
+		private final Credential credential;
+		private final byte[] bytes;
+		private final String etag;
+		private final long lastModified;
+
+		private RenderedMetadata(Credential credential, String xml, RenderedMetadata previous) {
+			this.credential = credential;
+			try {
+				bytes = xml.getBytes(OIOSAMLConstants.UTF_8);
+				MessageDigest md = MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM);
+				etag = "\"" + Base64.encodeBytes(md.digest(bytes), Base64.DONT_BREAK_LINES) + "\"";
+			} catch (UnsupportedEncodingException e) {
+				throw new WrappedException(Layer.BUSINESS, e);
+			} catch (NoSuchAlgorithmException e) {
+				throw new WrappedException(Layer.BUSINESS, e);
+			}
+			// an identical document keeps its modification time
+			if (previous != null && previous.etag.equals(etag)) {
+				lastModified = previous.lastModified;
+			} else {
+				lastModified = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * The UTF-8 encoded document. The array must not be modified.
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * A strong entity tag based on the document contents, including quotes.
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
 }
@@ -42,6 +42,7 @@ import org.opensaml.xml.security.credential.Credential;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.sp.NameIDFormat;
 import dk.itst.oiosaml.sp.model.validation.ValidationException;
 import dk.itst.oiosaml.sp.service.util.SOAPClient;
@@ -89,6 +90,10 @@ public class OIOAttributeQuery extends OIORequest {
 	}
 	
 	public OIOAssertion executeQuery(SOAPClient client, Credential credential, String username, String password, boolean ignoreCertPath, Collection<? extends Certificate> idpCertificates, boolean allowUnencryptedAssertion) throws IOException {
+		return executeQuery(client, credential, username, password, ignoreCertPath, new PublicKeyIndex(idpCertificates), allowUnencryptedAssertion);
+	}
+	
+	public OIOAssertion executeQuery(SOAPClient client, Credential credential, String username, String password, boolean ignoreCertPath, PublicKeyIndex idpKeys, boolean allowUnencryptedAssertion) throws IOException {
 		try {
 			sign(credential);
 			Audit.log(Operation.ATTRIBUTEQUERY, true, getID(), toXML());
@@ -102,7 +107,7 @@ public class OIOAttributeQuery extends OIORequest {
 			Audit.log(Operation.ATTRIBUTEQUERY, false, getID(), oiores.toXML());
 			
 			oiores.decryptAssertion(credential, allowUnencryptedAssertion);
-			oiores.validateResponse(null, idpCertificates, false);
+			oiores.validateResponse(null, idpKeys, false);
 			
 			return oiores.getAssertion();
 		} catch (ValidationException e) {
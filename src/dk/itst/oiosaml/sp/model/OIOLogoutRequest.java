@@ -51,14 +51,18 @@ import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.validation.ValidationException;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.RedirectDeflateCodec;
+import dk.itst.oiosaml.sp.service.util.RedirectSignature;
 import dk.itst.oiosaml.sp.service.util.Utils;
 import dk.itst.oiosaml.sp.util.LogoutRequestValidationException;
 
@@ -81,7 +85,7 @@ public class OIOLogoutRequest extends OIORequest {
 	public static OIOLogoutRequest fromRedirectRequest(HttpServletRequest request) {
 		BasicSAMLMessageContext<LogoutRequest, ?, ?> messageContext = getMessageContextFromRequest(request);
 
-		HTTPRedirectDeflateDecoder decoder = new HTTPRedirectDeflateDecoder();
+		HTTPRedirectDeflateDecoder decoder = new RedirectDeflateCodec.Decoder();
 		decoder.setURIComparator(new SSLIgnorantComparator());
 
 		try {
@@ -153,12 +157,27 @@ public class OIOLogoutRequest extends OIORequest {
 	public void validateRequest(String signature, String queryString, Collection<PublicKey> keys, String destination, String issuer) throws LogoutRequestValidationException {
 		List<String> errors = new ArrayList<String>();
 		validateRequest(issuer, destination, keys, errors);
-		
+		validateRedirectSignature(signature, queryString, keys, errors);
+	}
+
+	/**
+	 * Validate the request. Any XML signature on the request is checked against the key identified by its KeyInfo first.
+	 */
+	public void validateRequest(String signature, String queryString, PublicKeyIndex keys, String destination, String issuer) throws LogoutRequestValidationException {
+		List<String> errors = new ArrayList<String>();
+		validateRequest(issuer, destination, keys, errors);
+		validateRedirectSignature(signature, queryString, keys.getKeys(), errors);
+	}
+
+	private void validateRedirectSignature(String signature, String queryString, Collection<PublicKey> keys, List<String> errors) throws LogoutRequestValidationException {
 		if (signature != null) {
+			RedirectSignature redirectSignature = RedirectSignature.parse(queryString, Constants.SAML_SAMLREQUEST);
+			byte[] sig = Base64.decode(signature);
 			boolean valid = false;
 			for (PublicKey publicKey : keys) {
-				if (Utils.verifySignature(signature, queryString, Constants.SAML_SAMLREQUEST, publicKey)) {
+				if (redirectSignature.verify(sig, publicKey)) {
 					valid = true;
+					break;
 				}
 			}
 			if (!valid) {
@@ -23,14 +23,10 @@
  */
 package dk.itst.oiosaml.sp.model;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.security.PublicKey;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -43,25 +39,25 @@ import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
 import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
 import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
-import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
 import org.opensaml.saml2.core.LogoutResponse;
 import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.util.URLBuilder;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
-import org.opensaml.xml.security.SecurityConfiguration;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.Pair;
-import org.opensaml.xml.util.XMLHelper;
 import org.opensaml.xml.validation.ValidationException;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.RedirectDeflateCodec;
+import dk.itst.oiosaml.sp.service.util.RedirectSignature;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
 public class OIOLogoutResponse extends OIOAbstractResponse {
@@ -131,7 +127,7 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 		messageContext.setInboundMessageTransport(new HttpServletRequestAdapter(request));
 
 		try {
-			HTTPRedirectDeflateDecoder decoder = new HTTPRedirectDeflateDecoder();
+			HTTPRedirectDeflateDecoder decoder = new RedirectDeflateCodec.Decoder();
 			decoder.decode(messageContext);
 		} catch (MessageDecodingException e) {
 			throw new WrappedException(Layer.CLIENT, e);
@@ -155,14 +151,14 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 	 *         &lt;LogoutRequest&gt;
 	 */
 	public String getRedirectURL(Credential signingCredential, String relayState) {
-		Encoder enc = new Encoder();
+		RedirectDeflateCodec.Encoder enc = new RedirectDeflateCodec.Encoder(getSignatureAlgorithm());
 
 		// Build the parameters for the response
 		if (log.isDebugEnabled())
 			log.debug("Setting RelayState..:" + relayState);
 
 		try {
-			return buildRedirectURL(enc.deflateAndBase64Encode(response), relayState, signingCredential);
+			return buildRedirectURL(enc, enc.deflateAndBase64Encode(response), relayState, signingCredential);
 		} catch (MessageEncodingException e) {
 			throw new WrappedException(Layer.CLIENT, e);
 		}
@@ -172,7 +168,7 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 	 * @see org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder#buildRedirectURL(org.opensaml.common.binding.SAMLMessageContext,
 	 *      java.lang.String, java.lang.String)
 	 */
-	private String buildRedirectURL(String message, String relayState, Credential signingCredential) throws MessageEncodingException {
+	private String buildRedirectURL(RedirectDeflateCodec.Encoder enc, String message, String relayState, Credential signingCredential) throws MessageEncodingException {
 
 		if (log.isDebugEnabled())
 			log.debug("Building URL to redirect client to: " + response.getDestination());
@@ -189,13 +185,13 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 	        queryParams.add(new Pair<String, String>(Constants.SAML_RELAYSTATE, relayState));
 		}
 
-		Encoder enc = new Encoder();
 		if (signingCredential != null) {
-			queryParams.add(new Pair<String, String>(Constants.SAML_SIGALG, enc.getSignatureAlgorithmURI(signingCredential, null)));
+			String algorithm = enc.getSignatureAlgorithmURI(signingCredential, null);
+			queryParams.add(new Pair<String, String>(Constants.SAML_SIGALG, algorithm));
 			String sigMaterial = urlBuilder.buildQueryString();
 
 			queryParams.add(new Pair<String, String>(Constants.SAML_SIGNATURE,
-					enc.generateSignature(signingCredential, enc.getSignatureAlgorithmURI(signingCredential, null), sigMaterial)));
+					enc.generateSignature(signingCredential, algorithm, sigMaterial)));
 		}
 		return urlBuilder.buildURL();
 	}
@@ -218,9 +214,14 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 		validate(requestId, expectedDestination);
 		
 		boolean valid = false;
-		for (PublicKey key : keys) {
-			if (Utils.verifySignature(signature, queryString, Constants.SAML_SAMLRESPONSE, key)) {
-				valid = true;
+		if (signature != null) {
+			RedirectSignature redirectSignature = RedirectSignature.parse(queryString, Constants.SAML_SAMLRESPONSE);
+			byte[] sig = Base64.decode(signature);
+			for (PublicKey key : keys) {
+				if (redirectSignature.verify(sig, key)) {
+					valid = true;
+					break;
+				}
 			}
 		}
 		if (!valid) {
@@ -240,6 +241,7 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 		for (PublicKey key : keys) {
 			if (verifySignature(key)) {
 				valid = true;
+				break;
 			}
 		}
 
@@ -251,37 +253,17 @@ public class OIOLogoutResponse extends OIOAbstractResponse {
 		}
 	}
 	
-	protected static class Encoder extends HTTPRedirectDeflateEncoder {
-
-        @Override
-		public String deflateAndBase64Encode(SAMLObject obj) throws MessageEncodingException {
-            String messageStr = XMLHelper.nodeToString(marshallMessage(obj));
-
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-            Deflater deflater = new Deflater(Deflater.DEFLATED, true);
-            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, deflater);
-            try {
-				deflaterStream.write(messageStr.getBytes("UTF-8"));
-				deflaterStream.finish();
-			} catch (IOException e) {
-				throw new RuntimeException("Unable to deflate message", e);
-			}
+	/**
+	 * Validate the response and its xmldsig signature. The key identified by the signature KeyInfo is tried first.
+	 */
+	public void validate(String requestId, String expectedDestination, PublicKeyIndex keys) {
+		validate(requestId, expectedDestination);
 
-            return Base64.encodeBytes(bytesOut.toByteArray(), Base64.DONT_BREAK_LINES);
+		if (!verifySignature(keys)) {
+			throw new dk.itst.oiosaml.sp.model.validation.ValidationException("Invalid signature");
+		} else if (log.isDebugEnabled()) {
+			log.debug("...signature OK");
 		}
-
-        @Override
-        protected String generateSignature(Credential signingCredential, String algorithmURI, String queryString)
-                throws MessageEncodingException {
-            return super.generateSignature(signingCredential, algorithmURI, queryString);
-        }
-
-        @Override
-        protected String getSignatureAlgorithmURI(Credential credential, SecurityConfiguration config)
-                throws MessageEncodingException {
-            return super.getSignatureAlgorithmURI(credential, config);
-        }
-	
 	}
 
 }
@@ -23,26 +23,22 @@
  */
 package dk.itst.oiosaml.sp.model;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.security.PublicKey;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
 import org.opensaml.common.binding.SAMLMessageContext;
-import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
 import org.opensaml.saml2.core.RequestAbstractType;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.xml.security.credential.Credential;
-import org.opensaml.xml.util.Base64;
-import org.opensaml.xml.util.XMLHelper;
 import org.opensaml.xml.validation.ValidationException;
 
+import dk.itst.oiosaml.security.PublicKeyIndex;
+import dk.itst.oiosaml.sp.service.util.RedirectDeflateCodec;
+
 /**
  * Base class for all SAML requests.
  * 
@@ -86,22 +82,13 @@ public abstract class OIORequest extends OIOSamlObject {
 	}
 	
 	protected final void validateRequest(String expectedIssuer, String expectedDestination, Collection<PublicKey> keys, List<String> errors) {
-		try {
-			request.validate(true);
-		} catch (ValidationException e) {
-			errors.add(e.getMessage());
-		}
-		if (!isDestinationOK(expectedDestination)) {
-			errors.add("Wrong destination. Expected " + expectedDestination + " but was " + request.getDestination());
-		}
-		if (!isIssuerOK(expectedIssuer)) {
-			errors.add("Wring issuer. Expected " + expectedIssuer + " but was " + request.getIssuer());
-		}
+		validateRequestContents(expectedIssuer, expectedDestination, errors);
 		if (hasSignature()) {
 			boolean valid = false;
 			for (PublicKey key : keys) {
 				if (verifySignature(key)) {
 					valid = true;
+					break;
 				}
 			}
 			if (!valid) {
@@ -109,6 +96,30 @@ public abstract class OIORequest extends OIOSamlObject {
 			}
 		}
 	}
+
+	/**
+	 * Validate the request. If the request is signed, the key identified by the signature KeyInfo is tried first.
+	 */
+	protected final void validateRequest(String expectedIssuer, String expectedDestination, PublicKeyIndex keys, List<String> errors) {
+		validateRequestContents(expectedIssuer, expectedDestination, errors);
+		if (hasSignature() && !verifySignature(keys)) {
+			errors.add("Invalid signature in SAMLObject");
+		}
+	}
+
+	private void validateRequestContents(String expectedIssuer, String expectedDestination, List<String> errors) {
+		try {
+			request.validate(true);
+		} catch (ValidationException e) {
+			errors.add(e.getMessage());
+		}
+		if (!isDestinationOK(expectedDestination)) {
+			errors.add("Wrong destination. Expected " + expectedDestination + " but was " + request.getDestination());
+		}
+		if (!isIssuerOK(expectedIssuer)) {
+			errors.add("Wring issuer. Expected " + expectedIssuer + " but was " + request.getIssuer());
+		}
+	}
 	
 	/**
 	 * Get the request ID.
@@ -129,7 +140,11 @@ public abstract class OIORequest extends OIOSamlObject {
         return request.getDestination();
     }
 
-    protected class Encoder extends HTTPRedirectDeflateEncoder {
+    protected class Encoder extends RedirectDeflateCodec.Encoder {
+    	public Encoder() {
+    		super(OIORequest.this.getSignatureAlgorithm());
+    	}
+
 		public String buildRedirectURL(Credential signingCredential, String relayState) throws MessageEncodingException {
 			SAMLMessageContext<?, RequestAbstractType, ?> messageContext = new BasicSAMLMessageContext<SAMLObject, RequestAbstractType, SAMLObject>();
 			// Build the parameters for the request
@@ -139,20 +154,7 @@ public abstract class OIORequest extends OIOSamlObject {
 			// Sign the parameters
 			messageContext.setOutboundSAMLMessageSigningCredential(signingCredential);
 
-            String messageStr = XMLHelper.nodeToString(marshallMessage(request));
-
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-            Deflater deflater = new Deflater(Deflater.DEFLATED, true);
-            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, deflater);
-            try {
-				deflaterStream.write(messageStr.getBytes("UTF-8"));
-				deflaterStream.finish();
-			} catch (IOException e) {
-				throw new RuntimeException("Unable to deflate message", e);
-			}
-
-            String encoded = Base64.encodeBytes(bytesOut.toByteArray(), Base64.DONT_BREAK_LINES);
-			return super.buildRedirectURL(messageContext, request.getDestination(), encoded);
+			return super.buildRedirectURL(messageContext, request.getDestination(), deflateAndBase64Encode(request));
 		}
 	}
 
@@ -34,6 +34,7 @@ import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.xml.security.credential.Credential;
 
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.sp.model.validation.ValidationException;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 
@@ -87,6 +88,16 @@ public class OIOResponse extends OIOAbstractResponse {
 	}
 	
 	public void validateResponse(String expectedDestination, Collection<? extends Certificate> certificates, boolean allowPassive) throws ValidationException {
+		validateResponse(expectedDestination, new PublicKeyIndex(certificates), allowPassive);
+	}
+	
+	/**
+	 * Validate the response and its signature.
+	 * 
+	 * The signature is checked against the key identified by the signature KeyInfo first, and 
+	 * verification stops at the first matching key.
+	 */
+	public void validateResponse(String expectedDestination, PublicKeyIndex keys, boolean allowPassive) throws ValidationException {
 		validateResponse(null, expectedDestination, allowPassive);
 		
 		if (response.getAssertions().isEmpty() && !isPassive()) {
@@ -98,24 +109,12 @@ public class OIOResponse extends OIOAbstractResponse {
 		}
 		
 		if (hasSignature() || isPassive()) {
-			boolean valid = false;
-			for (Certificate certificate : certificates) {
-				if (verifySignature(certificate.getPublicKey())) {
-					valid = true;
-				}
-			}
-			if (!valid) {
+			if (!verifySignature(keys)) {
 				throw new ValidationException("The response is not signed correctly");
 			}
 		} else {
 			if (!response.getAssertions().isEmpty()) {
-				boolean valid = false;
-				for (Certificate certificate : certificates) {
-					if (getAssertion().verifySignature(certificate.getPublicKey())) {
-						valid = true;
-					}
-				}
-				if (!valid) {
+				if (!getAssertion().verifySignature(keys)) {
 					throw new ValidationException("The assertion is not signed correctly");
 				}
 			}
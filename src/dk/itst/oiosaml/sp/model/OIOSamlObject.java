@@ -55,6 +55,8 @@ import org.w3c.dom.Element;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.PublicKeyIndex;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 
 /**
  * Base class for all SAML objects.
@@ -68,6 +70,7 @@ public class OIOSamlObject {
 	private static final Logger log = LoggerFactory.getLogger(OIOSamlObject.class);
 
 	private final XMLObject obj;
+	private String signatureAlgorithm;
 
 	public OIOSamlObject(XMLObject obj) {
 		if (obj == null) throw new IllegalArgumentException("Object cannot be null");
@@ -94,6 +97,9 @@ public class OIOSamlObject {
 	 * The effect of calling this method is that a new Signature element is created, and the object is marshalled. 
 	 * If {@link #toXML()} is called, the XML will contain a valid signature.
 	 * 
+	 * The signature algorithm is the one set using {@link #setSignatureAlgorithm(String)}, if it can be used with the credential. 
+	 * Otherwise, the configured algorithm for the key type is used.
+	 * 
 	 * @param signingCredential The credential used for signing the object.
 	 */
 	@SuppressWarnings("deprecation")
@@ -111,6 +117,7 @@ public class OIOSamlObject {
 	    } catch (SecurityException e) {
 	    	throw new WrappedException(Layer.BUSINESS, e);
 	    }
+	    signature.setSignatureAlgorithm(SignatureAlgorithms.getSignatureAlgorithm(signingCredential, signatureAlgorithm, true));
 	    
 	    ((SignableSAMLObject)obj).setSignature(signature);
 	
@@ -132,6 +139,20 @@ public class OIOSamlObject {
 	    }
 	}
 
+	/**
+	 * Set the preferred signature algorithm used by {@link #sign(Credential)} and the HTTP Redirect binding.
+	 * 
+	 * @param signatureAlgorithm The algorithm URI, for example selected from the IdP metadata using 
+	 * {@link SignatureAlgorithms#select(Credential, java.util.Collection)}. <code>null</code> uses the configured algorithm.
+	 */
+	public void setSignatureAlgorithm(String signatureAlgorithm) {
+		this.signatureAlgorithm = signatureAlgorithm;
+	}
+
+	public String getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
 	/**
 	 * Encode the SAML object to a base64 encoded string.
 	 * 
@@ -162,6 +183,56 @@ public class OIOSamlObject {
 		if (publicKey == null) {
 			throw new IllegalArgumentException("Certificate cannot be null");
 		}
+		Signature signature = getProfileValidSignature();
+		if (signature == null) {
+			return false;
+		}
+
+		try {
+			validateSignature(signature, publicKey);
+			return true;
+		} catch (ValidationException e) {
+			log.warn("The signature does not match the signature of the login site", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Check that the object has been signed correctly with one of a number of keys.
+	 * 
+	 * If the signature KeyInfo identifies one of the keys, that key is tried first. Verification stops 
+	 * at the first key which matches the signature.
+	 * 
+	 * @return true, if the object has been signed correctly with one of the keys. 
+	 * 	Returns <code>false</code> if the object is not signed at all.
+	 */
+	public boolean verifySignature(PublicKeyIndex keys) {
+		if (keys == null) {
+			throw new IllegalArgumentException("Keys cannot be null");
+		}
+		Signature signature = getProfileValidSignature();
+		if (signature == null) {
+			return false;
+		}
+
+		ValidationException last = null;
+		for (PublicKey key : keys.getCandidates(signature.getKeyInfo())) {
+			try {
+				validateSignature(signature, key);
+				return true;
+			} catch (ValidationException e) {
+				last = e;
+			}
+		}
+		log.warn("The signature does not match any of the " + keys.getKeys().size() + " keys of the login site", last);
+		return false;
+	}
+
+	/**
+	 * Get the signature, if it is valid according to the SAML profile of XML signature.
+	 * @return The signature, or <code>null</code> if there is no signature or it does not meet the requirements.
+	 */
+	private Signature getProfileValidSignature() {
 		Signature signature = null;
 		if (obj instanceof SignableSAMLObject) {
 			SignableSAMLObject signableObject = (SignableSAMLObject) obj;
@@ -173,7 +244,7 @@ public class OIOSamlObject {
 		
 		if (signature == null) {
 			log.warn("No signature present in object " + obj);
-			return false;
+			return null;
 		}
 		
 		// verify signature element according to SAML profile
@@ -183,23 +254,28 @@ public class OIOSamlObject {
 		}
 		catch (Exception e) {
 			log.warn("The signature does not meet the requirements indicated by the SAML profile of the XML signature", e);
-			return false;
+			return null;
 		}
+		return signature;
+	}
 
-		// verify signature
+	private void validateSignature(Signature signature, PublicKey publicKey) throws ValidationException {
 		BasicX509Credential credential = new BasicX509Credential();
 		credential.setPublicKey(publicKey);
 		SignatureValidator validator = new SignatureValidator(credential);
-		try {
-			validator.validate(signature);
-			return true;
-		} catch (ValidationException e) {
-			log.warn("The signature does not match the signature of the login site", e);
-			return false;
-		}
+		validator.validate(signature);
 	}
 
 	public String toSoapEnvelope() {
+		return XMLHelper.nodeToString(toSoapEnvelopeElement());
+	}
+
+	/**
+	 * Wrap the object in a SOAP 1.1 envelope.
+	 * 
+	 * @return The marshalled envelope, which can be serialized directly to a stream.
+	 */
+	public Element toSoapEnvelopeElement() {
 		Body body = SAMLUtil.buildXMLObject(Body.class);
 		body.getUnknownXMLObjects().add(obj);
 
@@ -208,12 +284,10 @@ public class OIOSamlObject {
 		envelope.setBody(body);
 		Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(envelope);
 		try {
-			Element e = marshaller.marshall(envelope);
-			return XMLHelper.nodeToString(e);
+			return marshaller.marshall(envelope);
 		} catch (MarshallingException e) {
 			throw new WrappedException(Layer.CLIENT, e);
 		}
-
 	}
 
 }
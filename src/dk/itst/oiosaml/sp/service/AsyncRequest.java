@@ -0,0 +1,179 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous request, using the Servlet 3.0 AsyncContext.
+ * 
+ * The library is built against the Servlet 2.4 API, so the AsyncContext is accessed using reflection, and the
+ * AsyncListener is a dynamic proxy. In older containers, asynchronous requests are not supported.
+ * 
+ * Once the container has ended the request, because it timed out or failed, the request and response may be recycled,
+ * so they must not be used. This is checked using {@link #isActive()}.
+ * 
+ * The check is not atomic with the use of the response: the container may time out the request after {@link #isActive()}
+ * has returned <code>true</code>, while the response is being written. This race is not prevented, as the response is 
+ * written by the handlers, but the timeout is chosen to cover the calls to the IdP, so it can only happen if the 
+ * response is being written when the timeout expires. Output written after the container has ended the request may be
+ * lost, or the write may fail with an exception.
+ */
+final class AsyncRequest {
+	private static final Logger log = LoggerFactory.getLogger(AsyncRequest.class);
+
+	private static final Method IS_ASYNC_SUPPORTED;
+	private static final Method START_ASYNC;
+	private static final Method SET_TIMEOUT;
+	private static final Method COMPLETE;
+	private static final Method ADD_LISTENER;
+	private static final Class<?> ASYNC_LISTENER;
+
+	static {
+		Method isAsyncSupported = null;
+		Method startAsync = null;
+		Method setTimeout = null;
+		Method complete = null;
+		Method addListener = null;
+		Class<?> asyncListener = null;
+		try {
+			Class<?> asyncContext = Class.forName("javax.servlet.AsyncContext", false, ServletRequest.class.getClassLoader());
+			asyncListener = Class.forName("javax.servlet.AsyncListener", false, ServletRequest.class.getClassLoader());
+			isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+			startAsync = ServletRequest.class.getMethod("startAsync");
+			setTimeout = asyncContext.getMethod("setTimeout", long.class);
+			complete = asyncContext.getMethod("complete");
+			addListener = asyncContext.getMethod("addListener", asyncListener);
+		} catch (ClassNotFoundException e) {
+			log.debug("Servlet 3.0 API not available, asynchronous requests are not supported");
+		} catch (NoSuchMethodException e) {
+			log.debug("Servlet 3.0 API not available, asynchronous requests are not supported");
+		}
+		IS_ASYNC_SUPPORTED = isAsyncSupported;
+		START_ASYNC = startAsync;
+		SET_TIMEOUT = setTimeout;
+		COMPLETE = complete;
+		ADD_LISTENER = addListener;
+		ASYNC_LISTENER = asyncListener;
+	}
+
+	private final Object context;
+	private final AtomicBoolean ended = new AtomicBoolean();
+
+	private AsyncRequest(Object context) {
+		this.context = context;
+	}
+
+	/**
+	 * Put the request into asynchronous mode.
+	 * 
+	 * @param timeout Timeout in milliseconds, after which the container ends the request.
+	 * @return The asynchronous request, or <code>null</code> if the container or one of the filters of the request does not support asynchronous requests.
+	 */
+	static AsyncRequest start(ServletRequest request, long timeout) {
+		// the methods are looked up in order, so the last one is only found if all are
+		if (ADD_LISTENER == null) return null;
+
+		try {
+			if (!Boolean.TRUE.equals(IS_ASYNC_SUPPORTED.invoke(request))) {
+				log.debug("Asynchronous processing is not supported for " + request);
+				return null;
+			}
+			Object context = START_ASYNC.invoke(request);
+			SET_TIMEOUT.invoke(context, timeout);
+			AsyncRequest async = new AsyncRequest(context);
+			ADD_LISTENER.invoke(context, async.newListener());
+			return async;
+		} catch (IllegalAccessException e) {
+			log.warn("Unable to start asynchronous request", e);
+			return null;
+		} catch (InvocationTargetException e) {
+			log.warn("Unable to start asynchronous request", e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the request has been completed, or the container has ended it because it timed out or failed.
+	 */
+	boolean isActive() {
+		return !ended.get();
+	}
+
+	/**
+	 * Complete the request, which commits the response. Does nothing if the request has already ended.
+	 */
+	void complete() {
+		if (!ended.compareAndSet(false, true)) {
+			log.debug("Asynchronous request has already ended");
+			return;
+		}
+		try {
+			COMPLETE.invoke(context);
+		} catch (IllegalAccessException e) {
+			log.error("Unable to complete asynchronous request", e);
+		} catch (InvocationTargetException e) {
+			// the container has already completed the request, for example because it timed out
+			log.warn("Unable to complete asynchronous request", e.getCause());
+		}
+	}
+
+	/**
+	 * AsyncListener which marks the request as ended when the container completes it, or it times out or fails.
+	 */
+	private Object newListener() {
+		return Proxy.newProxyInstance(ASYNC_LISTENER.getClassLoader(), new Class<?>[] { ASYNC_LISTENER }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("onTimeout".equals(name)) {
+					if (!ended.getAndSet(true)) {
+						log.warn("Asynchronous request timed out before the IdP responded");
+					}
+				} else if ("onError".equals(name)) {
+					if (!ended.getAndSet(true)) {
+						log.warn("Asynchronous request failed");
+					}
+				} else if ("onComplete".equals(name)) {
+					ended.set(true);
+				} else if ("equals".equals(name)) {
+					return proxy == args[0];
+				} else if ("hashCode".equals(name)) {
+					return System.identityHashCode(proxy);
+				} else if ("toString".equals(name)) {
+					return "AsyncListener for " + context;
+				}
+				return null;
+			}
+		});
+	}
+}
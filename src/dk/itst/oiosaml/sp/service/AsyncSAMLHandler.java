@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+/**
+ * Handler which can wait for a backend, such as the IdP, without blocking a container thread.
+ * 
+ * When asynchronous processing is enabled and supported by the container, {@link DispatcherServlet} starts
+ * an asynchronous request and calls {@link #handleGetAsync(RequestContext, Callback)} instead of
+ * {@link #handleGet(RequestContext)}. The handler must eventually call {@link Callback#resume(Continuation)} exactly once,
+ * unless {@link #handleGetAsync(RequestContext, Callback)} throws an exception.
+ */
+public interface AsyncSAMLHandler extends SAMLHandler {
+
+	/**
+	 * @return <code>true</code> if the GET request can be handled asynchronously.
+	 */
+	public boolean isAsync(RequestContext context);
+
+	/**
+	 * @return The time in milliseconds needed to handle the request asynchronously, for example the timeouts of the
+	 * calls to the IdP. The container does not end the request before this time has passed.
+	 */
+	public long getAsyncTimeout(RequestContext context);
+
+	public void handleGetAsync(RequestContext context, Callback callback) throws ServletException, IOException;
+
+	public interface Callback {
+		/**
+		 * Complete the request by running the continuation on the completion pool of the servlet. Errors thrown by the continuation
+		 * are handled as errors thrown by {@link SAMLHandler#handleGet(RequestContext)}.
+		 */
+		public void resume(Continuation continuation);
+	}
+
+	public interface Continuation {
+		public void run() throws ServletException, IOException;
+	}
+}
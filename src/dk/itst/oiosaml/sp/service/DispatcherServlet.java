@@ -31,6 +31,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -50,6 +55,7 @@ import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
 import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 import dk.itst.oiosaml.sp.bindings.BindingHandlerFactory;
 import dk.itst.oiosaml.sp.bindings.DefaultBindingHandlerFactory;
 import dk.itst.oiosaml.sp.configuration.ConfigurationHandler;
@@ -88,6 +94,9 @@ public class DispatcherServlet extends HttpServlet {
 	private SessionHandlerFactory sessionHandlerFactory;
 	private ServletContext servletContext;
 
+	private ExecutorService completionPool;
+	private long asyncTimeout;
+
 	@Override
 	public final void init(ServletConfig config) throws ServletException {
 		setHandler(new ConfigurationHandler(), "configure");
@@ -122,6 +131,18 @@ public class DispatcherServlet extends HttpServlet {
 					log.debug("Found handlers: " + handlers);
 
 				setHandler(new IndexHandler(), "");
+				if (configuration.getBoolean(Constants.PROP_ASYNC, false) && completionPool == null) {
+					completionPool = Executors.newFixedThreadPool(configuration.getInt(Constants.PROP_ASYNC_THREADS, 4), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "oiosaml-async-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					asyncTimeout = 1000L * configuration.getInt(Constants.PROP_ASYNC_TIMEOUT, 60);
+				}
 				sessionHandlerFactory = SessionHandlerFactory.Factory.newInstance(configuration);
 				sessionHandlerFactory.getHandler().resetReplayProtection(
 						configuration.getInt(Constants.PROP_NUM_TRACKED_ASSERTIONIDS));
@@ -130,8 +151,10 @@ public class DispatcherServlet extends HttpServlet {
 					log.warn("Running in devel mode");
 					return;
 				}
+				SignatureAlgorithms.configure(configuration.getString(Constants.PROP_SIGNATURE_ALGORITHM, null));
 				setBindingHandler(new DefaultBindingHandlerFactory());
-				setIdPMetadata(IdpMetadata.getInstance());
+				// the IdP metadata is not kept here, as it can be reloaded. Load it now to fail early on errors
+				IdpMetadata.getInstance();
 				setSPMetadata(SPMetadata.getInstance());
 				setCredential(new CredentialRepository().getCredential(SAMLConfigurationFactory.getConfiguration()
 						.getKeystore(), configuration.getString(Constants.PROP_CERTIFICATE_PASSWORD)));
@@ -177,9 +200,11 @@ public class DispatcherServlet extends HttpServlet {
 				SAMLHandler handler = handlers.get(action);
 				SessionHandler sessionHandler = sessionHandlerFactory != null ? sessionHandlerFactory.getHandler()
 						: null;
-				RequestContext context = new RequestContext(req, res, idpMetadata, spMetadata, credential,
+				RequestContext context = new RequestContext(req, res, getIdPMetadata(), spMetadata, credential,
 						configuration, sessionHandler, bindingHandlerFactory);
-				handler.handleGet(context);
+				if (!handleAsync(action, handler, context)) {
+					handler.handleGet(context);
+				}
 			} catch (Exception e) {
 				Audit.logError(action, false, e);
 				handleError(req, res, e);
@@ -207,7 +232,7 @@ public class DispatcherServlet extends HttpServlet {
 				SAMLHandler handler = handlers.get(action);
 				SessionHandler sessionHandler = sessionHandlerFactory != null ? sessionHandlerFactory.getHandler()
 						: null;
-				RequestContext context = new RequestContext(req, res, idpMetadata, spMetadata, credential,
+				RequestContext context = new RequestContext(req, res, getIdPMetadata(), spMetadata, credential,
 						configuration, sessionHandler, bindingHandlerFactory);
 				handler.handlePost(context);
 			} catch (Exception e) {
@@ -219,6 +244,71 @@ public class DispatcherServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Handle the request asynchronously if the handler supports it, asynchronous processing is enabled, 
+	 * and the container supports it.
+	 * 
+	 * The continuation is only run if the request is still active, but the container may still end the request 
+	 * while the continuation writes the response, see {@link AsyncRequest}.
+	 * 
+	 * @return <code>false</code> if the request must be handled synchronously.
+	 */
+	private boolean handleAsync(final String action, SAMLHandler handler, final RequestContext context) {
+		if (completionPool == null || !(handler instanceof AsyncSAMLHandler) || !((AsyncSAMLHandler) handler).isAsync(context)) {
+			return false;
+		}
+		// the container must not end the request before the handler has had time to call the IdP
+		final AsyncRequest async = AsyncRequest.start(context.getRequest(), Math.max(asyncTimeout, ((AsyncSAMLHandler) handler).getAsyncTimeout(context)));
+		if (async == null) {
+			return false;
+		}
+
+		try {
+			((AsyncSAMLHandler) handler).handleGetAsync(context, new AsyncSAMLHandler.Callback() {
+				public void resume(final AsyncSAMLHandler.Continuation continuation) {
+					try {
+						completionPool.execute(new Runnable() {
+							public void run() {
+								if (!async.isActive()) {
+									log.warn("Asynchronous " + action + " request ended before the IdP responded, discarding the response");
+									return;
+								}
+								try {
+									Audit.init(context.getRequest());
+									continuation.run();
+								} catch (Exception e) {
+									handleAsyncError(action, context, async, e);
+								} finally {
+									async.complete();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						handleAsyncError(action, context, async, e);
+						async.complete();
+					}
+				}
+			});
+		} catch (Exception e) {
+			handleAsyncError(action, context, async, e);
+			async.complete();
+		}
+		return true;
+	}
+
+	private void handleAsyncError(String action, RequestContext context, AsyncRequest async, Exception e) {
+		Audit.logError(action, false, e);
+		if (!async.isActive()) {
+			log.error("Asynchronous " + action + " request has ended, unable to send error response", e);
+			return;
+		}
+		try {
+			handleError(context.getRequest(), context.getResponse(), e);
+		} catch (Exception e1) {
+			log.error("Unable to send error response", e1);
+		}
+	}
+
 	public void setInitialized(boolean b) {
 		initialized = b;
 	}
@@ -243,6 +333,13 @@ public class DispatcherServlet extends HttpServlet {
 		this.idpMetadata = metadata;
 	}
 
+	/**
+	 * Get the metadata set using {@link #setIdPMetadata(IdpMetadata)}, or the current metadata instance if none has been set.
+	 */
+	private IdpMetadata getIdPMetadata() {
+		return idpMetadata != null ? idpMetadata : IdpMetadata.getInstance();
+	}
+
 	public void setHandler(SAMLHandler handler, String dispatchPath) {
 		handlers.put(dispatchPath, handler);
 	}
@@ -308,6 +405,9 @@ public class DispatcherServlet extends HttpServlet {
 
 	@Override
 	public void destroy() {
+		if (completionPool != null) {
+			completionPool.shutdown();
+		}
 		if (sessionHandlerFactory != null) {
 			sessionHandlerFactory.close();
 		}
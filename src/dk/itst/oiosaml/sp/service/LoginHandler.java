@@ -44,6 +44,7 @@ import org.opensaml.xml.util.Base64;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 import dk.itst.oiosaml.sp.UserAssertion;
 import dk.itst.oiosaml.sp.UserAssertionHolder;
 import dk.itst.oiosaml.sp.bindings.BindingHandler;
@@ -133,6 +134,7 @@ public class LoginHandler implements SAMLHandler {
 		OIOAuthnRequest authnRequest = OIOAuthnRequest.buildAuthnRequest(signonLocation.getLocation(), context.getSpMetadata().getEntityID(), context.getSpMetadata().getDefaultAssertionConsumerService().getBinding(), context.getSessionHandler(), relayState, context.getSpMetadata().getDefaultAssertionConsumerService().getLocation());
 		authnRequest.setNameIDPolicy(conf.getString(Constants.PROP_NAMEID_POLICY, null), conf.getBoolean(Constants.PROP_NAMEID_POLICY_ALLOW_CREATE, false));
 		authnRequest.setForceAuthn(isForceAuthnEnabled(request, conf));
+		authnRequest.setSignatureAlgorithm(SignatureAlgorithms.select(context.getCredential(), metadata.getSigningMethods()));
 
 		if (ua == null) {
 			authnRequest.setPasive(conf.getBoolean(Constants.PROP_PASSIVE, false));
@@ -102,7 +102,7 @@ public class LogoutHTTPResponseHandler implements SAMLHandler{
 		String idpEntityId = ctx.getSessionHandler().removeEntityIdForRequest(logoutResponse.getInResponseTo());
 		Metadata metadata = ctx.getIdpMetadata().getMetadata(idpEntityId);
 
-		logoutResponse.validate(null, ctx.getSpMetadata().getSingleLogoutServiceHTTPPostResponseLocation(), metadata.getPublicKeys());
+		logoutResponse.validate(null, ctx.getSpMetadata().getSingleLogoutServiceHTTPPostResponseLocation(), metadata.getPublicKeyIndex());
 
 		ctx.getSessionHandler().logOut(session);
 		
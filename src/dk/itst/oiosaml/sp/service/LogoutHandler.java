@@ -32,6 +32,8 @@ import dk.itst.oiosaml.logging.Audit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
+import dk.itst.oiosaml.sp.AttributeQueryCache;
 import dk.itst.oiosaml.sp.AuthenticationHandler;
 import dk.itst.oiosaml.sp.LogoutAuthenticationHandler;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
@@ -67,12 +69,14 @@ public class LogoutHandler implements SAMLHandler{
 		Metadata metadata = context.getIdpMetadata().getMetadata(entityID);
 
 		OIOLogoutRequest lr = OIOLogoutRequest.buildLogoutRequest(session, metadata.getSingleLogoutServiceLocation(), context.getSpMetadata().getEntityID(), context.getSessionHandler());
+		lr.setSignatureAlgorithm(SignatureAlgorithms.select(context.getCredential(), metadata.getSigningMethods()));
 		String redirectURL = lr.getRedirectRequestURL(context.getCredential());
 		
 		Audit.log(Operation.LOGOUTREQUEST, true, lr.getID(), lr.toXML());
 
 		context.getSessionHandler().registerRequest(lr.getID(), metadata.getEntityID());
 		context.getSessionHandler().logOut(session);
+		AttributeQueryCache.logout(entityID, assertion.getSubjectNameIDValue());
 		
 		invokeAuthenticationHandler(context);
 
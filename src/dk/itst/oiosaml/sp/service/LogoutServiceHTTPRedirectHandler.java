@@ -35,6 +35,8 @@ import org.opensaml.saml2.core.StatusCode;
 
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
+import dk.itst.oiosaml.sp.AttributeQueryCache;
 import dk.itst.oiosaml.sp.AuthenticationHandler;
 import dk.itst.oiosaml.sp.LogoutAuthenticationHandler;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
@@ -103,6 +105,7 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
 				// Logging out
 				if (assertion != null) {
 					log.info("Logging user out via SLO HTTP Redirect: " + assertion.getSubjectNameIDValue());
+					AttributeQueryCache.logout(assertion.getIssuer(), assertion.getSubjectNameIDValue());
 				} else {
 					log.info("Logging user out via SLO HTTP Redirect without active session");
 				}
@@ -119,6 +122,7 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
 			
 			// returning...
 			OIOLogoutResponse res = OIOLogoutResponse.fromRequest(logoutRequest, statusCode, consent, ctx.getSpMetadata().getEntityID(), metadata.getSingleLogoutServiceResponseLocation());
+			res.setSignatureAlgorithm(SignatureAlgorithms.select(ctx.getCredential(), metadata.getSigningMethods()));
 			String url = res.getRedirectURL(ctx.getCredential(), relayState);
 			
 			Audit.log(Operation.LOGOUTRESPONSE, true, res.getID(), res.toXML());
@@ -171,11 +175,12 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
             Metadata metadata = ctx.getIdpMetadata().getMetadata(idpEntityId);
 
             try {
-                logoutRequest.validateRequest(sig, request.getQueryString(), metadata.getPublicKeys(), ctx.getSpMetadata().getSingleLogoutServiceHTTPPostLocation(), metadata.getEntityID());
+                logoutRequest.validateRequest(sig, request.getQueryString(), metadata.getPublicKeyIndex(), ctx.getSpMetadata().getSingleLogoutServiceHTTPPostLocation(), metadata.getEntityID());
 
                 // Logging out
                 if (assertion != null) {
                     log.info("Logging user out via SLO HTTP POST: " + assertion.getSubjectNameIDValue());
+                    AttributeQueryCache.logout(assertion.getIssuer(), assertion.getSubjectNameIDValue());
                 } else {
                     log.info("Logging user out via SLO HTTP POST without active session");
                 }
@@ -193,6 +198,7 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
             // respond with a http-redirect. This will not become a problem, since we are switching between redirect and post,
             // so the browser should not reach the limit on the amount of redirects in a row
 			OIOLogoutResponse res = OIOLogoutResponse.fromRequest(logoutRequest, statusCode, consent, ctx.getSpMetadata().getEntityID(), metadata.getSingleLogoutServiceResponseLocation());
+			res.setSignatureAlgorithm(SignatureAlgorithms.select(ctx.getCredential(), metadata.getSigningMethods()));
 			String url = res.getRedirectURL(ctx.getCredential(), relayState);
 			
 			Audit.log(Operation.LOGOUTRESPONSE, true, res.getID(), res.toXML());
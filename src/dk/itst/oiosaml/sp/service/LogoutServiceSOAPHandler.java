@@ -47,6 +47,8 @@ import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
+import dk.itst.oiosaml.sp.AttributeQueryCache;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.model.OIOLogoutRequest;
@@ -89,6 +91,7 @@ public class LogoutServiceSOAPHandler implements SAMLHandler {
 	public void handlePost(RequestContext ctx) throws ServletException, IOException {
 		String statusCode = StatusCode.SUCCESS_URI;
 		String consent = null;
+		String signatureAlgorithm = null;
 
 		OIOLogoutRequest logoutRequest = extractRequest(ctx.getRequest());
 		Audit.log(Operation.LOGOUT_SOAP, false, logoutRequest.getID(), logoutRequest.toXML());
@@ -108,9 +111,11 @@ public class LogoutServiceSOAPHandler implements SAMLHandler {
 			} else {
 				try {
 					Metadata metadata = ctx.getIdpMetadata().getMetadata(idpEntityId);
+					signatureAlgorithm = SignatureAlgorithms.select(ctx.getCredential(), metadata.getSigningMethods());
 
-					logoutRequest.validateRequest(null, null, metadata.getPublicKeys(), ctx.getSpMetadata().getSingleLogoutServiceSOAPLocation(), metadata.getEntityID());
+					logoutRequest.validateRequest(null, null, metadata.getPublicKeyIndex(), ctx.getSpMetadata().getSingleLogoutServiceSOAPLocation(), metadata.getEntityID());
 					ctx.getSessionHandler().logOut(sessionId);
+					AttributeQueryCache.logout(idpEntityId, assertion.getSubjectNameIDValue());
 					
 					Audit.log(Operation.LOGOUT, assertion.getSubjectNameIDValue());
 				} catch (LogoutRequestValidationException e) {
@@ -127,6 +132,7 @@ public class LogoutServiceSOAPHandler implements SAMLHandler {
 		if (log.isDebugEnabled()) log.debug("Logout status: " + statusCode + ", message: " + consent);
 
 		OIOLogoutResponse logoutResponse = OIOLogoutResponse.fromRequest(logoutRequest, statusCode, consent, ctx.getSpMetadata().getEntityID(), null);
+		logoutResponse.setSignatureAlgorithm(signatureAlgorithm);
 		returnResponse(ctx.getResponse(), logoutResponse, ctx.getCredential());
 		Audit.log(Operation.LOGOUT_SOAP, true, logoutRequest.getID(), logoutResponse.toXML());
 	}
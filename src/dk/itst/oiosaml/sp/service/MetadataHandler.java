@@ -26,20 +26,37 @@ package dk.itst.oiosaml.sp.service;
 import java.io.IOException;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
+import dk.itst.oiosaml.sp.metadata.SPMetadata.RenderedMetadata;
+import dk.itst.oiosaml.sp.service.util.HTTPUtils;
+
+/**
+ * Publish the SP metadata.
+ * 
+ * The rendered documents are cached by {@link dk.itst.oiosaml.sp.metadata.SPMetadata}, and conditional 
+ * requests using If-None-Match or If-Modified-Since are answered with 304 Not Modified.
+ */
 public class MetadataHandler implements SAMLHandler {
 
 	public void handleGet(RequestContext context) throws ServletException, IOException {
+		HttpServletResponse response = context.getResponse();
+		boolean sign = context.getRequest().getParameter("unsigned") == null;
+		RenderedMetadata metadata = context.getSpMetadata().getRenderedMetadata(context.getCredential(), sign);
+
+		response.setHeader("ETag", metadata.getETag());
+		response.setDateHeader("Last-Modified", metadata.getLastModified());
+		if (HTTPUtils.isNotModified(context.getRequest(), metadata.getETag(), metadata.getLastModified())) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
 		if (context.getRequest().getParameter("raw") != null) {
-			context.getResponse().setContentType("text/plain");
-		} else {
-			context.getResponse().setCharacterEncoding("utf-8");
+			response.setContentType("text/plain");
 		}
-		
-		boolean sign = context.getRequest().getParameter("unsigned") == null;
-		String metadata = context.getSpMetadata().getMetadata(context.getCredential(), sign);
-		
-		context.getResponse().getWriter().print(metadata);
+		response.setCharacterEncoding("utf-8");
+		response.setContentLength(metadata.getBytes().length);
+		response.getOutputStream().write(metadata.getBytes());
 	}
 
 	public void handlePost(RequestContext context) throws ServletException, IOException {
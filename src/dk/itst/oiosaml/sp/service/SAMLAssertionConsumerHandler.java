@@ -46,9 +46,12 @@ import dk.itst.oiosaml.sp.model.OIOResponse;
 import dk.itst.oiosaml.sp.model.RelayState;
 import dk.itst.oiosaml.sp.model.validation.AssertionValidator;
 import dk.itst.oiosaml.sp.service.util.ArtifactExtractor;
+import dk.itst.oiosaml.sp.service.util.AsyncSOAPClient;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.EndpointHealth;
 import dk.itst.oiosaml.sp.service.util.HTTPUtils;
 import dk.itst.oiosaml.sp.service.util.HttpSOAPClient;
+import dk.itst.oiosaml.sp.service.util.HttpSOAPTransport;
 import dk.itst.oiosaml.sp.service.util.PostResponseExtractor;
 import dk.itst.oiosaml.sp.service.util.SOAPClient;
 import dk.itst.oiosaml.sp.service.util.Utils;
@@ -57,7 +60,8 @@ import dk.itst.oiosaml.sp.service.util.Utils;
  * Servlet for receiving SAML asertions from the IdP.
  * 
  * <p>The servlet supports both POST and Artifact binding. POST reception is handled by
- * {@link PostResponseExtractor} while Artifact is handled by {@link ArtifactExtractor}.</p>
+ * {@link PostResponseExtractor} while Artifact is handled by {@link ArtifactExtractor}. Artifacts can be resolved
+ * asynchronously, see {@link AsyncSAMLHandler}.</p>
  * 
  * <p>Upon reception, SAML responses are validated using {@link OIOResponse#validateResponse(String, java.security.cert.Certificate)},
  * and the attached signature is also checked.</p>
@@ -70,7 +74,7 @@ import dk.itst.oiosaml.sp.service.util.Utils;
  * @author Joakim Recht <jre@trifork.com>
  * @author Rolf Njor Jensen <rolf@trifork.com>
  */
-public class SAMLAssertionConsumerHandler implements SAMLHandler {
+public class SAMLAssertionConsumerHandler implements AsyncSAMLHandler {
 
 	@SuppressWarnings("unused")
 	private static final long serialVersionUID = -8417816228519917989L;
@@ -79,10 +83,12 @@ public class SAMLAssertionConsumerHandler implements SAMLHandler {
 	private static final Logger log = LoggerFactory.getLogger(SAMLAssertionConsumerHandler.class);
 	private SOAPClient client;
 	private final AssertionValidator validator;
+	private final EndpointHealth resolutionServices;
 
 	public SAMLAssertionConsumerHandler(Configuration config) {
 		this.validator = (AssertionValidator) Utils.newInstance(config, Constants.PROP_VALIDATOR);
-		setSoapClient(new HttpSOAPClient());
+		this.resolutionServices = new EndpointHealth(config.getInt(Constants.PROP_RESOLVE_FAILURES, 3), config.getInt(Constants.PROP_RESOLVE_RETRY, 30) * 1000L);
+		setSoapClient(new HttpSOAPClient(config));
 	}
 	
 	public void setSoapClient(SOAPClient soapClient) {
@@ -103,13 +109,50 @@ public class SAMLAssertionConsumerHandler implements SAMLHandler {
 		if (ctx.getRequest().getParameter(Constants.SAML_SAMLRESPONSE) != null) {
 			handlePost(ctx);
 		} else {
-			ArtifactExtractor extractor = new ArtifactExtractor(ctx.getIdpMetadata(), ctx.getSpMetadata().getEntityID(), 
-					client, ctx.getConfiguration().getString(Constants.PROP_RESOLVE_USERNAME), 
-					ctx.getConfiguration().getString(Constants.PROP_RESOLVE_PASSWORD),
-					ctx.getConfiguration().getBoolean(Constants.PROP_IGNORE_CERTPATH, false));
-			handleSAMLResponse(ctx, extractor.extract(ctx.getRequest()));
+			handleSAMLResponse(ctx, newExtractor(ctx).extract(ctx.getRequest()));
 		}
 	} 
+
+	/**
+	 * Artifacts can be resolved asynchronously if the SOAP client supports it.
+	 */
+	public boolean isAsync(RequestContext ctx) {
+		return client instanceof AsyncSOAPClient && ctx.getRequest().getParameter(Constants.SAML_SAMLRESPONSE) == null;
+	}
+
+	/**
+	 * The artifact resolution services are called in turn, so the time needed is the SOAP timeouts for each of them.
+	 * Waiting for a connection, connecting and reading are each limited by a timeout.
+	 */
+	public long getAsyncTimeout(RequestContext ctx) {
+		HttpSOAPTransport transport = HttpSOAPTransport.getInstance(ctx.getConfiguration());
+		long timeout = 2L * transport.getConnectTimeout() + transport.getReadTimeout();
+		return newExtractor(ctx).getServiceCount(ctx.getRequest()) * timeout;
+	}
+
+	/**
+	 * Resolve the artifact without blocking the container thread. The response is validated and the user logged in
+	 * on the completion pool.
+	 */
+	public void handleGetAsync(final RequestContext ctx, final AsyncSAMLHandler.Callback callback) throws IOException, ServletException {
+		newExtractor(ctx).extractAsync(ctx.getRequest(), new ArtifactExtractor.Listener() {
+			public void resolved(final ArtifactExtractor.Resolution resolution) {
+				callback.resume(new AsyncSAMLHandler.Continuation() {
+					public void run() throws ServletException, IOException {
+						handleSAMLResponse(ctx, resolution.getResponse());
+					}
+				});
+			}
+		});
+	}
+
+	private ArtifactExtractor newExtractor(RequestContext ctx) {
+		return new ArtifactExtractor(ctx.getIdpMetadata(), ctx.getSpMetadata().getEntityID(), 
+				client, ctx.getConfiguration().getString(Constants.PROP_RESOLVE_USERNAME), 
+				ctx.getConfiguration().getString(Constants.PROP_RESOLVE_PASSWORD),
+				ctx.getConfiguration().getBoolean(Constants.PROP_IGNORE_CERTPATH, false),
+				resolutionServices, ctx.getConfiguration().getBoolean(Constants.PROP_RESOLVE_HEDGE, false));
+	}
 	
 	private void handleSAMLResponse(RequestContext ctx, OIOResponse response) throws IOException, ServletException {
 		Audit.log(Operation.AUTHNREQUEST_SEND, false, response.getInResponseTo(), response.toXML());
@@ -130,7 +173,7 @@ public class SAMLAssertionConsumerHandler implements SAMLHandler {
 		boolean allowPassive = ctx.getConfiguration().getBoolean(Constants.PROP_PASSIVE, false);
 		Metadata metadata = ctx.getIdpMetadata().getMetadata(idpEntityId);
 		response.decryptAssertion(ctx.getCredential(), !ctx.getConfiguration().getBoolean(Constants.PROP_REQUIRE_ENCRYPTION, false));
-		response.validateResponse(ctx.getSpMetadata().getAssertionConsumerServiceLocation(0), metadata.getCertificates(), allowPassive);
+		response.validateResponse(ctx.getSpMetadata().getAssertionConsumerServiceLocation(0), metadata.getPublicKeyIndex(), allowPassive);
 		if (allowPassive && response.isPassive()) {
 			log.debug("Received passive response, setting passive userassertion");
 			Assertion assertion = SAMLUtil.buildXMLObject(Assertion.class);
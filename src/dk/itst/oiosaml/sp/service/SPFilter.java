@@ -24,7 +24,10 @@
  */
 package dk.itst.oiosaml.sp.service;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.Filter;
@@ -43,6 +46,7 @@ import org.apache.commons.configuration.Configuration;
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.xml.ConfigurationException;
 
+import dk.itst.oiosaml.configuration.FileConfiguration;
 import dk.itst.oiosaml.configuration.SAMLConfiguration;
 import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
 import dk.itst.oiosaml.error.Layer;
@@ -51,6 +55,7 @@ import dk.itst.oiosaml.logging.Audit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 import dk.itst.oiosaml.sp.UserAssertion;
 import dk.itst.oiosaml.sp.UserAssertionHolder;
 import dk.itst.oiosaml.sp.bindings.BindingHandler;
@@ -58,6 +63,8 @@ import dk.itst.oiosaml.sp.develmode.DevelMode;
 import dk.itst.oiosaml.sp.develmode.DevelModeImpl;
 import dk.itst.oiosaml.sp.metadata.CRLChecker;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata;
+import dk.itst.oiosaml.sp.metadata.IdpMetadataWatcher;
+import dk.itst.oiosaml.sp.metadata.RemoteMetadataFetcher;
 import dk.itst.oiosaml.sp.metadata.SPMetadata;
 import dk.itst.oiosaml.sp.service.session.Request;
 import dk.itst.oiosaml.sp.service.session.SessionCleaner;
@@ -101,6 +108,8 @@ import dk.itst.oiosaml.sp.service.util.Constants;
 public class SPFilter implements Filter {
 	private static final Logger log = LoggerFactory.getLogger(SPFilter.class);
 	private CRLChecker crlChecker = new CRLChecker();
+	private IdpMetadataWatcher metadataWatcher;
+	private RemoteMetadataFetcher metadataFetcher;
 	private boolean filterInitialized;
 	private SAMLConfiguration conf;
 	private String hostname;
@@ -121,6 +130,8 @@ public class SPFilter implements Filter {
 	public void destroy() {
 		SessionCleaner.stopCleaner();
 		crlChecker.stopChecker();
+		stopMetadataWatcher();
+		stopMetadataFetcher();
 		if (sessionHandlerFactory != null) {
 			sessionHandlerFactory.close();
 		}
@@ -246,8 +257,11 @@ public class SPFilter implements Filter {
 
 	private void setRuntimeConfiguration(Configuration conf) {
 		restartCRLChecker(conf);
+		restartMetadataWatcher(conf);
+		restartMetadataFetcher(conf);
 		setFilterInitialized(true);
 		setConfiguration(conf);
+		SignatureAlgorithms.configure(conf.getString(Constants.PROP_SIGNATURE_ALGORITHM, null));
 		if (!IdpMetadata.getInstance().enableDiscovery()) {
 			log.info("Discovery profile disabled, only one metadata file found");
 		} else {
@@ -273,7 +287,67 @@ public class SPFilter implements Filter {
 		crlChecker.stopChecker();
 		int period = conf.getInt(Constants.PROP_CRL_CHECK_PERIOD, 600);
 		if (period > 0) {
-			crlChecker.startChecker(period, IdpMetadata.getInstance(), conf);
+			crlChecker.startChecker(period, conf);
+		}
+	}
+
+	private void restartMetadataWatcher(Configuration conf) {
+		stopMetadataWatcher();
+		int period = conf.getInt(Constants.PROP_IDP_METADATA_RELOAD_PERIOD, 60);
+		if (period <= 0) return;
+
+		SAMLConfiguration samlConfiguration = SAMLConfigurationFactory.getConfiguration();
+		if (!(samlConfiguration instanceof FileConfiguration)) return;
+
+		File directory = ((FileConfiguration) samlConfiguration).getIdpMetadataDirectory();
+		if (directory != null) {
+			metadataWatcher = new IdpMetadataWatcher(directory, conf.getString(Constants.PROP_PROTOCOL),
+					conf.getBoolean(Constants.PROP_IDP_METADATA_INDEXED, false), conf.getInt(Constants.PROP_IDP_METADATA_CACHE_SIZE, 500));
+			metadataWatcher.startWatcher(period);
+		}
+	}
+
+	private void stopMetadataWatcher() {
+		if (metadataWatcher != null) {
+			metadataWatcher.stopWatcher();
+			metadataWatcher = null;
+		}
+	}
+
+	private void restartMetadataFetcher(Configuration conf) {
+		stopMetadataFetcher();
+		String location = conf.getString(Constants.PROP_IDP_METADATA_URL);
+		if (location == null || location.trim().length() == 0) return;
+
+		SAMLConfiguration samlConfiguration = SAMLConfigurationFactory.getConfiguration();
+		if (!(samlConfiguration instanceof FileConfiguration) || conf.getString(Constants.IDP_METADATA_FILE) == null) {
+			throw new IllegalStateException(Constants.PROP_IDP_METADATA_URL + " requires " + Constants.IDP_METADATA_FILE + ", which is used to store the fetched metadata");
+		}
+		FileConfiguration fileConfiguration = (FileConfiguration) samlConfiguration;
+		File file = fileConfiguration.getIdpMetadataFiles().get(0);
+		X509Certificate certificate = fileConfiguration.getIdpMetadataUrlCertificate();
+		if (certificate == null) {
+			throw new IllegalStateException(Constants.PROP_IDP_METADATA_URL + " requires " + Constants.PROP_IDP_METADATA_URL_CERTIFICATE + ", which is used to verify the metadata signature");
+		}
+		try {
+			metadataFetcher = new RemoteMetadataFetcher(new URL(location), file, conf.getString(Constants.PROP_PROTOCOL),
+					certificate.getPublicKey(), 1000L * conf.getLong(Constants.PROP_IDP_METADATA_URL_REFRESH, 3600),
+					conf.getBoolean(Constants.PROP_IDP_METADATA_INDEXED, false), conf.getInt(Constants.PROP_IDP_METADATA_CACHE_SIZE, 500));
+			if (!file.isFile()) {
+				// there is no local copy to start from, so the first fetch must complete before requests are handled
+				log.info("No local copy of " + location + " in " + file + ", fetching metadata");
+				metadataFetcher.fetch();
+			}
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		metadataFetcher.startFetcher();
+	}
+
+	private void stopMetadataFetcher() {
+		if (metadataFetcher != null) {
+			metadataFetcher.stopFetcher();
+			metadataFetcher = null;
 		}
 	}
 
@@ -24,6 +24,15 @@
 package dk.itst.oiosaml.sp.service.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -43,6 +52,7 @@ import org.opensaml.xml.validation.ValidationException;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.common.SOAPException;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.logging.Audit;
@@ -51,6 +61,15 @@ import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.model.OIOResponse;
 import dk.itst.oiosaml.sp.util.BRSArtifact;
 
+/**
+ * Resolve artifacts using the artifact resolution services of the IdP.
+ * 
+ * <p>If the artifact selects one of the services using its endpoint index, only that service is used. Otherwise, the services
+ * are tried in order of their {@link EndpointHealth} until one of them responds. If hedging is enabled, a second request is sent
+ * to the next service when the first service has not responded within its usual response time.</p>
+ * 
+ * <p>Each service is sent its own &lt;ArtifactResolve&gt;, with a new ID and the location of the service as destination.</p>
+ */
 public class ArtifactExtractor  {
 	private static final Logger log = LoggerFactory.getLogger(ArtifactExtractor.class);
 	private final String spEntityID;
@@ -59,18 +78,197 @@ public class ArtifactExtractor  {
 	private final IdpMetadata idpMetadata;
 	private final SOAPClient client;
 	private final boolean ignoreCertPath;
+	private final EndpointHealth health;
+	private final boolean hedge;
 	
 	public ArtifactExtractor(IdpMetadata idpMetadata, String spEntityID, SOAPClient client, String resolveUsername, String resolvePassword, boolean ignoreCertPath) {
+		this(idpMetadata, spEntityID, client, resolveUsername, resolvePassword, ignoreCertPath, new EndpointHealth(3, 30000), false);
+	}
+
+	/**
+	 * @param health Health of the artifact resolution services. Should be shared by all extractors.
+	 * @param hedge <code>true</code> to send a hedged request to another service when a service is slower than usual. 
+	 * Requires an {@link AsyncSOAPClient}.
+	 */
+	public ArtifactExtractor(IdpMetadata idpMetadata, String spEntityID, SOAPClient client, String resolveUsername, String resolvePassword, boolean ignoreCertPath, EndpointHealth health, boolean hedge) {
 		this.idpMetadata = idpMetadata;
 		this.spEntityID = spEntityID;
 		this.client = client;
 		this.resolveUsername = resolveUsername;
 		this.resolvePassword = resolvePassword;
 		this.ignoreCertPath = ignoreCertPath;
+		this.health = health;
+		this.hedge = hedge;
 	}
 	
 
 	public OIOResponse extract(HttpServletRequest request) throws IOException {
+		List<String> locations = new ArrayList<String>();
+		String samlArt = getArtifact(request, locations);
+		long delay = hedge && locations.size() > 1 && client instanceof AsyncSOAPClient ? health.getHedgeDelay(locations.get(0)) : -1;
+		if (delay >= 0) {
+			return resolveHedged(samlArt, locations, delay);
+		} else {
+			return resolve(samlArt, locations);
+		}
+	}
+
+	/**
+	 * Try the services in turn until one of them responds.
+	 */
+	private OIOResponse resolve(String samlArt, List<String> locations) throws IOException {
+		IOException failure = null;
+		for (String location : locations) {
+			ArtifactResolve artifactResolve = buildArtifactResolve(samlArt, location);
+			health.begin(location);
+			long start = System.currentTimeMillis();
+			try {
+				Envelope env = client.wsCall(artifactResolve, location, resolveUsername, resolvePassword, ignoreCertPath);
+				health.success(location, System.currentTimeMillis() - start);
+				return getResponse(artifactResolve, env);
+			} catch (SOAPException e) {
+				// the service responded, so the artifact is not resolved by another service
+				health.success(location, System.currentTimeMillis() - start);
+				throw e;
+			} catch (IOException e) {
+				health.failure(location);
+				log.warn("Unable to resolve artifact " + artifactResolve.getID() + " using " + location, e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Call the first service, and if it has not responded after the delay, the next service. The first response is used.
+	 * If a call fails, the next service is called immediately.
+	 */
+	private OIOResponse resolveHedged(String samlArt, List<String> locations, long delay) throws IOException {
+		BlockingQueue<Attempt> completed = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> pending = new ArrayList<Attempt>();
+		IOException failure = null;
+		int next = 0;
+		try {
+			pending.add(start(samlArt, locations.get(next++), completed));
+			boolean hedged = false;
+			while (!pending.isEmpty()) {
+				Attempt attempt;
+				if (!hedged && next < locations.size()) {
+					attempt = completed.poll(delay, TimeUnit.MILLISECONDS);
+					if (attempt == null) {
+						log.debug("No response from " + locations.get(next - 1) + " after " + delay + " ms, sending hedged request to " + locations.get(next));
+						hedged = true;
+						pending.add(start(samlArt, locations.get(next++), completed));
+						continue;
+					}
+				} else {
+					attempt = completed.take();
+				}
+				pending.remove(attempt);
+				
+				Envelope env;
+				try {
+					env = attempt.get();
+				} catch (SOAPException e) {
+					failure = e;
+					continue;
+				} catch (IOException e) {
+					log.warn("Unable to resolve artifact " + attempt.artifactResolve.getID() + " using " + attempt.location, e);
+					if (!(failure instanceof SOAPException)) {
+						failure = e;
+					}
+					if (pending.isEmpty() && next < locations.size()) {
+						pending.add(start(samlArt, locations.get(next++), completed));
+					}
+					continue;
+				}
+				if (!pending.isEmpty() && !isResolved(env)) {
+					// the artifact may have been resolved by the pending call, which consumed it before this service saw it
+					log.warn("Artifact " + attempt.artifactResolve.getID() + " was not resolved by " + attempt.location + ", waiting for " + pending.size() + " pending calls");
+					continue;
+				}
+				return getResponse(attempt.artifactResolve, env);
+			}
+			throw failure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resolving artifact " + samlArt);
+		} finally {
+			for (Attempt attempt : pending) {
+				attempt.cancel();
+			}
+		}
+	}
+
+	private Attempt start(String samlArt, String location, final BlockingQueue<Attempt> completed) {
+		health.begin(location);
+		final Attempt attempt = new Attempt(buildArtifactResolve(samlArt, location), location);
+		attempt.result = ((AsyncSOAPClient) client).wsCallAsync(attempt.artifactResolve, location, resolveUsername, resolvePassword, ignoreCertPath, new AsyncSOAPClient.Listener() {
+			public void completed(Future<Envelope> result) {
+				attempt.result = result;
+				completed.add(attempt);
+			}
+		});
+		return attempt;
+	}
+
+	/**
+	 * @return The number of artifact resolution services which can be called to resolve the artifact in the request.
+	 * The health of the services is not consulted, as the count does not depend on their order.
+	 */
+	public int getServiceCount(HttpServletRequest request) {
+		List<String> locations = new ArrayList<String>();
+		getArtifact(request, locations, false);
+		return locations.size();
+	}
+
+	/**
+	 * Resolve the artifact without blocking the calling thread. The client must be an {@link AsyncSOAPClient}.
+	 * 
+	 * If a service fails, the next service is called from the listener of the failed call.
+	 * 
+	 * @param listener Notified when the IdP has responded or the call has failed. The listener must not block, 
+	 * validation of the response using {@link Resolution#getResponse()} should be done on another thread.
+	 */
+	public void extractAsync(HttpServletRequest request, final Listener listener) throws IOException {
+		if (!(client instanceof AsyncSOAPClient)) {
+			throw new IllegalStateException("SOAP client " + client + " does not support asynchronous calls");
+		}
+		List<String> locations = new ArrayList<String>();
+		String samlArt = getArtifact(request, locations);
+		resolveAsync(samlArt, locations, 0, listener);
+	}
+
+	private void resolveAsync(final String samlArt, final List<String> locations, final int index, final Listener listener) {
+		final Attempt attempt = new Attempt(buildArtifactResolve(samlArt, locations.get(index)), locations.get(index));
+		health.begin(attempt.location);
+		((AsyncSOAPClient) client).wsCallAsync(attempt.artifactResolve, attempt.location, resolveUsername, resolvePassword, ignoreCertPath, new AsyncSOAPClient.Listener() {
+			public void completed(Future<Envelope> result) {
+				attempt.result = result;
+				if (!attempt.isFailed() || index + 1 == locations.size()) {
+					listener.resolved(new Resolution(attempt.artifactResolve, result));
+				} else {
+					log.warn("Unable to resolve artifact " + attempt.artifactResolve.getID() + " using " + attempt.location + ", trying " + locations.get(index + 1));
+					resolveAsync(samlArt, locations, index + 1, listener);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the artifact in the request, and the artifact resolution services which can resolve it. 
+	 * 
+	 * @param locations Receives the locations of the artifact resolution services which should be tried, in order. 
+	 */
+	private String getArtifact(HttpServletRequest request, List<String> locations) {
+		return getArtifact(request, locations, true);
+	}
+
+	/**
+	 * @param order <code>true</code> if the locations should be ordered by their {@link EndpointHealth}, otherwise they are
+	 * in the order of the metadata.
+	 */
+	private String getArtifact(HttpServletRequest request, List<String> locations, boolean order) {
 		String samlArt = request.getParameter(Constants.SAML_SAMLART);
 		if (log.isDebugEnabled()) log.debug("Got SAMLart..:" + samlArt);
 		
@@ -82,7 +280,7 @@ public class ArtifactExtractor  {
 		int endpointIndex = 0;
 		BRSArtifact artifact;
 		try {
-			artifact = new BRSArtifact(samlArt, idpMetadata.getEntityIDs().toArray(new String[0]));
+			artifact = new BRSArtifact(samlArt, idpMetadata);
 			endpointIndex = artifact.getEndpointIndex();
 			if (log.isDebugEnabled()) log.debug("Got endpointIndex..:" + endpointIndex);
 		} catch (BindingException e) {
@@ -90,15 +288,36 @@ public class ArtifactExtractor  {
 		} catch (NullPointerException e) {
 			throw new IllegalArgumentException(samlArt, e);
 		}
-		String artifactResolutionServiceLocation = idpMetadata.getMetadata(artifact.getEntityId()).getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI);
-		
-		// Build the <ArtifactResolve>
-		String id = Utils.generateUUID();
-		ArtifactResolve artifactResolve = buildArtifactResolve(samlArt, id, artifactResolutionServiceLocation);
-		
+		List<String> services = idpMetadata.getMetadata(artifact.getEntityId()).getArtifactResolutionServiceLocations(endpointIndex, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		locations.addAll(order ? health.order(services) : services);
+		return samlArt;
+	}
+
+	/**
+	 * Build an &lt;ArtifactResolve&gt; with a new ID for a single artifact resolution service. 
+	 */
+	private ArtifactResolve buildArtifactResolve(String samlArt, String location) {
+		ArtifactResolve artifactResolve = buildArtifactResolve(samlArt, Utils.generateUUID(), location);
 		Audit.log(Operation.ARTIFACTRESOLVE, true, artifactResolve.getID(), XMLHelper.nodeToString(SAMLUtil.marshallObject(artifactResolve)));
+		return artifactResolve;
+	}
+
+	/**
+	 * @return <code>true</code> if the envelope contains a successful &lt;ArtifactResponse&gt; with a message.
+	 */
+	private boolean isResolved(Envelope env) {
+		if (env.getBody() == null || env.getBody().getUnknownXMLObjects().isEmpty() || !(env.getBody().getUnknownXMLObjects().get(0) instanceof ArtifactResponse)) {
+			return false;
+		}
+		ArtifactResponse artifactResponse = (ArtifactResponse) env.getBody().getUnknownXMLObjects().get(0);
+		if (artifactResponse.getStatus() == null || artifactResponse.getStatus().getStatusCode() == null) {
+			return false;
+		}
+		return StatusCode.SUCCESS_URI.equals(artifactResponse.getStatus().getStatusCode().getValue()) && artifactResponse.getMessage() != null;
+	}
 
-		Envelope env = client.wsCall(artifactResolve, artifactResolutionServiceLocation, resolveUsername, resolvePassword, ignoreCertPath);
+	private OIOResponse getResponse(ArtifactResolve artifactResolve, Envelope env) {
+		String id = artifactResolve.getID();
 		ArtifactResponse artifactResponse = (ArtifactResponse)env.getBody().getUnknownXMLObjects().get(0); 
 		try {
 			artifactResponse.validate(false);
@@ -121,11 +340,137 @@ public class ArtifactExtractor  {
 			Audit.logError(Operation.ARTIFACTRESOLVE, false, artifactResolve.getID(), e);
 			throw e;
 		}
+		if (!(artifactResponse.getMessage() instanceof Response)) {
+			RuntimeException e = new RuntimeException("ArtifactResponse does not contain a Response: " + artifactResponse.getMessage());
+			Audit.logError(Operation.ARTIFACTRESOLVE, false, artifactResolve.getID(), e);
+			throw e;
+		}
 		OIOResponse response = new OIOResponse((Response) artifactResponse.getMessage());
 		Audit.log(Operation.ARTIFACTRESOLVE, false, artifactResolve.getID(), response.toXML());
 		return response;
 	}
 
+	public interface Listener {
+		public void resolved(Resolution resolution);
+	}
+
+	/**
+	 * A call to a single artifact resolution service. The outcome is recorded in the {@link EndpointHealth}.
+	 */
+	private class Attempt {
+		private final ArtifactResolve artifactResolve;
+		private final String location;
+		private final long start = System.currentTimeMillis();
+		private volatile Future<Envelope> result;
+		private boolean recorded;
+
+		private Attempt(ArtifactResolve artifactResolve, String location) {
+			this.artifactResolve = artifactResolve;
+			this.location = location;
+		}
+
+		/**
+		 * @return The response of a completed call.
+		 * @throws IOException If the call failed.
+		 */
+		private Envelope get() throws IOException {
+			isFailed();
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while calling " + location);
+			} catch (CancellationException e) {
+				throw new InterruptedIOException("Call to " + location + " was cancelled");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new WrappedException(Layer.CLIENT, e.getCause());
+			}
+		}
+
+		/**
+		 * Cancel the call, unless it has completed.
+		 */
+		private synchronized void cancel() {
+			if (result.cancel(true) && !recorded) {
+				recorded = true;
+				health.cancelled(location);
+			}
+		}
+
+		/**
+		 * Record the outcome of a completed call.
+		 * 
+		 * @return <code>true</code> if the service could not be reached, so another service should be tried.
+		 */
+		private synchronized boolean isFailed() {
+			boolean failed = false;
+			if (result.isCancelled()) {
+				return false;
+			}
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				failed = e.getCause() instanceof IOException && !(e.getCause() instanceof SOAPException);
+			}
+			if (!recorded) {
+				recorded = true;
+				if (failed) {
+					health.failure(location);
+				} else {
+					health.success(location, System.currentTimeMillis() - start);
+				}
+			}
+			return failed;
+		}
+	}
+
+	/**
+	 * The result of an asynchronous artifact resolution.
+	 */
+	public class Resolution {
+		private final ArtifactResolve artifactResolve;
+		private final Future<Envelope> result;
+
+		private Resolution(ArtifactResolve artifactResolve, Future<Envelope> result) {
+			this.artifactResolve = artifactResolve;
+			this.result = result;
+		}
+
+		/**
+		 * Validate the &lt;ArtifactResponse&gt; received from the IdP.
+		 * 
+		 * @return The response contained in the &lt;ArtifactResponse&gt;.
+		 * @throws IOException If the call to the IdP failed.
+		 */
+		public OIOResponse getResponse() throws IOException {
+			Envelope env;
+			try {
+				env = result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while resolving artifact " + artifactResolve.getID());
+			} catch (CancellationException e) {
+				throw new InterruptedIOException("Resolution of artifact " + artifactResolve.getID() + " was cancelled");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new WrappedException(Layer.CLIENT, e.getCause());
+			}
+			return ArtifactExtractor.this.getResponse(artifactResolve, env);
+		}
+	}
+
 	/**
 	 * @param artifactValue
 	 *            The SAML artifact
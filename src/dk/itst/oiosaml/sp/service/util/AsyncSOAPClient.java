@@ -0,0 +1,54 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.util.concurrent.Future;
+
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.XMLObject;
+
+/**
+ * {@link SOAPClient} which can execute calls without blocking the calling thread.
+ */
+public interface AsyncSOAPClient extends SOAPClient {
+
+	/**
+	 * Execute a call in the background.
+	 * 
+	 * The object is marshalled before the method returns, so the caller may modify or discard it afterwards.
+	 * 
+	 * @param listener Notified when the call has completed, failed, or been cancelled. The listener is invoked on the thread which executed the call,
+	 * so it must not block. Can be <code>null</code>.
+	 * @return The response envelope. If the call failed, {@link Future#get()} throws an {@link java.util.concurrent.ExecutionException}
+	 * wrapping the {@link java.io.IOException} thrown by the call.
+	 */
+	public Future<Envelope> wsCallAsync(XMLObject obj, String location, String username, String password, boolean ignoreCertPath, Listener listener);
+
+	public interface Listener {
+		/**
+		 * @param result The completed call.
+		 */
+		public void completed(Future<Envelope> result);
+	}
+}
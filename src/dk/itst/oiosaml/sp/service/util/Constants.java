@@ -52,6 +52,43 @@ public interface Constants {
 	static final String PROP_IGNORE_CERTPATH = "oiosaml-sp.resolve.ignorecert";
 	static final String PROP_RESOLVE_USERNAME = "oiosaml-sp.resolve.username";
 	static final String PROP_RESOLVE_PASSWORD = "oiosaml-sp.resolve.password";
+	/**
+	 * Number of consecutive failures after which an artifact resolution service is skipped.
+	 */
+	static final String PROP_RESOLVE_FAILURES = "oiosaml-sp.resolve.failures";
+	/**
+	 * Seconds an artifact resolution service is skipped after failing.
+	 */
+	static final String PROP_RESOLVE_RETRY = "oiosaml-sp.resolve.retry";
+	/**
+	 * Send a hedged ArtifactResolve to another artifact resolution service when the IdP responds slower than usual.
+	 */
+	static final String PROP_RESOLVE_HEDGE = "oiosaml-sp.resolve.hedge";
+	/**
+	 * Connect timeout in seconds for SOAP requests to the IdP.
+	 */
+	static final String PROP_SOAP_CONNECT_TIMEOUT = "oiosaml-sp.soap.timeout.connect";
+	/**
+	 * Read timeout in seconds for SOAP requests to the IdP.
+	 */
+	static final String PROP_SOAP_READ_TIMEOUT = "oiosaml-sp.soap.timeout.read";
+	/**
+	 * Maximum number of concurrent SOAP connections to each host.
+	 */
+	static final String PROP_SOAP_CONNECTIONS = "oiosaml-sp.soap.connections";
+	/**
+	 * Resolve artifacts asynchronously, so container threads are not blocked while waiting for the IdP. Requires a Servlet 3.0 container.
+	 */
+	static final String PROP_ASYNC = "oiosaml-sp.async";
+	/**
+	 * Number of threads completing asynchronous requests.
+	 */
+	static final String PROP_ASYNC_THREADS = "oiosaml-sp.async.threads";
+	/**
+	 * Minimum timeout in seconds for asynchronous requests. The timeout is increased to cover the SOAP timeouts of
+	 * every artifact resolution service which may be called.
+	 */
+	static final String PROP_ASYNC_TIMEOUT = "oiosaml-sp.async.timeout";
 	static final String PROP_ASSURANCE_LEVEL = "oiosaml-sp.assurancelevel";
 	static final String PROP_HTTP_PROXY_HOST = "oiosaml-sp.http.proxy.host";
 	static final String PROP_HTTP_PROXY_PORT = "oiosaml-sp.http.proxy.port";
@@ -59,9 +96,74 @@ public interface Constants {
 	static final String PROP_CRL_CHECK_PERIOD = "oiosaml-sp.crl.period";
 	static final String PROP_CRL_TRUSTSTORE = "oiosaml-sp.crl.truststore";
 	static final String PROP_CRL_TRUSTSTORE_PASSWORD = "oiosaml-sp.crl.truststore.password";
+	/**
+	 * Maximum number of certificates checked in parallel by the CRL checker.
+	 */
+	static final String PROP_CRL_THREADS = "oiosaml-sp.crl.threads";
+	/**
+	 * Connect and read timeout in seconds used when fetching CRLs and CA certificates.
+	 */
+	static final String PROP_CRL_TIMEOUT = "oiosaml-sp.crl.timeout";
+	/**
+	 * Seconds a revocation check of a single certificate may take before the certificate is treated as revoked.
+	 */
+	static final String PROP_CRL_DEADLINE = "oiosaml-sp.crl.deadline";
+	/**
+	 * Directory where downloaded CRLs are stored, so they are not downloaded again after a restart.
+	 */
+	static final String PROP_CRL_CACHE = "oiosaml-sp.crl.cache";
+	/**
+	 * Seconds between checks of the IdP metadata directory for changed files. Set to 0 to disable reloading.
+	 */
+	static final String PROP_IDP_METADATA_RELOAD_PERIOD = "oiosaml-sp.metadata.idp.reload.period";
+	/**
+	 * Index IdP metadata files instead of unmarshalling every entity on startup. Used for large federation aggregates.
+	 */
+	static final String PROP_IDP_METADATA_INDEXED = "oiosaml-sp.metadata.idp.indexed";
+	/**
+	 * Maximum number of unmarshalled entities kept in memory when IdP metadata is indexed.
+	 */
+	static final String PROP_IDP_METADATA_CACHE_SIZE = "oiosaml-sp.metadata.idp.cache.size";
+	/**
+	 * Location of a binary snapshot of the compiled IdP metadata, which is used on startup instead of parsing the metadata files when they have not changed.
+	 */
+	static final String PROP_IDP_METADATA_SNAPSHOT = "oiosaml-sp.metadata.idp.snapshot";
+	/**
+	 * Maximum number of threads used to parse the files in the IdP metadata directory on startup.
+	 */
+	static final String PROP_IDP_METADATA_LOAD_THREADS = "oiosaml-sp.metadata.idp.load.threads";
+	/**
+	 * URL of IdP metadata which is fetched in the background and stored in the IdP metadata file.
+	 */
+	static final String PROP_IDP_METADATA_URL = "oiosaml-sp.metadata.idp.url";
+	/**
+	 * Certificate used to verify the signature of metadata fetched from {@link #PROP_IDP_METADATA_URL}. Required when the URL is set.
+	 */
+	static final String PROP_IDP_METADATA_URL_CERTIFICATE = "oiosaml-sp.metadata.idp.url.certificate";
+	/**
+	 * Seconds between fetches of {@link #PROP_IDP_METADATA_URL} when the metadata does not specify a cacheDuration.
+	 */
+	static final String PROP_IDP_METADATA_URL_REFRESH = "oiosaml-sp.metadata.idp.url.refresh";
 	static final String PROP_OCSP_CA = "oiosaml-sp.ocsp.ca";
 	static final String PROP_OCSP_RESPONDER = "oiosaml-sp.ocsp.responder";
+	/**
+	 * Signature algorithm URI used when signing messages, for example http://www.w3.org/2001/04/xmldsig-more#rsa-sha256.
+	 * The algorithm must match the type of the signing key. If the IdP lists its supported algorithms in metadata, one of those is used instead.
+	 */
+	static final String PROP_SIGNATURE_ALGORITHM = "oiosaml-sp.signature.algorithm";
 	static final String PROP_REQUIRE_ENCRYPTION = "oiosaml-sp.encryption.force";
+	/**
+	 * Seconds attribute query results are cached. 0 disables the cache.
+	 */
+	static final String PROP_ATTRIBUTE_QUERY_CACHE_TTL = "oiosaml-sp.attributequery.cache.ttl";
+	/**
+	 * Seconds an attribute query response which could not be validated is cached.
+	 */
+	static final String PROP_ATTRIBUTE_QUERY_CACHE_NEGATIVE_TTL = "oiosaml-sp.attributequery.cache.negativettl";
+	/**
+	 * Maximum number of subjects with cached attribute query results.
+	 */
+	static final String PROP_ATTRIBUTE_QUERY_CACHE_SIZE = "oiosaml-sp.attributequery.cache.size";
 	static final String PROP_NUM_TRACKED_ASSERTIONIDS = "common.saml2.loggedinhandler.numusedassertionids";
 	static final String PROP_VALIDATOR = "oiosaml-sp.assertion.validator";
 	
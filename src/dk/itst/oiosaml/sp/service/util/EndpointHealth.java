@@ -0,0 +1,232 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health of a set of endpoints, used to choose between redundant endpoints of the same service.
+ * 
+ * <p>Each endpoint has a score, which is a moving average of the outcome of recent calls. After a number of consecutive
+ * failures, the circuit of the endpoint is opened, and the endpoint is not used for a period. After the period, a single call
+ * is allowed. If it succeeds, the circuit is closed again, otherwise it stays open for another period. Callers must call 
+ * {@link #begin(String)} before calling an endpoint, so the trial call is only granted to a call which is actually made.</p>
+ * 
+ * <p>The latencies of the most recent successful calls are kept, so a hedged request can be sent when a call takes 
+ * longer than most calls to the endpoint.</p>
+ * 
+ * <p>This class is thread safe.</p>
+ */
+public class EndpointHealth {
+	private static final Logger log = LoggerFactory.getLogger(EndpointHealth.class);
+
+	/**
+	 * Weight of the latest outcome in the score.
+	 */
+	private static final double WEIGHT = 0.2;
+	private static final int SAMPLES = 100;
+	/**
+	 * Number of latency samples needed before a hedge delay is calculated.
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	private final int failureThreshold;
+	private final long openPeriod;
+	private final Map<String, State> states = new HashMap<String, State>();
+
+	/**
+	 * @param failureThreshold Number of consecutive failures after which the circuit of an endpoint is opened.
+	 * @param openPeriod Milliseconds during which an endpoint with an open circuit is not used.
+	 */
+	public EndpointHealth(int failureThreshold, long openPeriod) {
+		if (failureThreshold < 1) throw new IllegalArgumentException("failureThreshold must be at least 1, not " + failureThreshold);
+		this.failureThreshold = failureThreshold;
+		this.openPeriod = openPeriod;
+	}
+
+	/**
+	 * Order endpoints by health.
+	 * 
+	 * Endpoints which can be called are ordered by descending score, with endpoints with the same score in their original order. 
+	 * Endpoints with an open circuit are placed last, so they are only used if all other endpoints fail.
+	 * 
+	 * @return A new list with the endpoints.
+	 */
+	public List<String> order(List<String> locations) {
+		if (locations.size() < 2) {
+			return new ArrayList<String>(locations);
+		}
+		final Map<String, Double> scores = new HashMap<String, Double>();
+		List<String> available = new ArrayList<String>(locations.size());
+		List<String> open = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		synchronized (states) {
+			for (String location : locations) {
+				State state = states.get(location);
+				if (state == null || state.isAvailable(now)) {
+					available.add(location);
+					scores.put(location, state == null ? 1.0 : state.score);
+				} else {
+					open.add(location);
+				}
+			}
+		}
+		Collections.sort(available, new Comparator<String>() {
+			public int compare(String o1, String o2) {
+				return scores.get(o2).compareTo(scores.get(o1));
+			}
+		});
+		available.addAll(open);
+		return available;
+	}
+
+	/**
+	 * Record that a call to an endpoint is about to be made. If the open period of the endpoint has passed, the call is the 
+	 * trial call, and the endpoint is not available to other callers until its outcome has been recorded.
+	 */
+	public void begin(String location) {
+		synchronized (states) {
+			State state = states.get(location);
+			if (state != null && state.openUntil != 0 && state.isAvailable(System.currentTimeMillis())) {
+				state.trial = true;
+			}
+		}
+	}
+
+	/**
+	 * Record that a call was cancelled before it completed. If it was the trial call, another trial call is allowed.
+	 */
+	public void cancelled(String location) {
+		synchronized (states) {
+			State state = states.get(location);
+			if (state != null) {
+				state.trial = false;
+			}
+		}
+	}
+
+	/**
+	 * Record a successful call.
+	 * 
+	 * @param latency Duration of the call in milliseconds.
+	 */
+	public void success(String location, long latency) {
+		synchronized (states) {
+			State state = getState(location);
+			if (state.openUntil != 0) {
+				log.info("Endpoint " + location + " is available again");
+			}
+			state.score = state.score * (1 - WEIGHT) + WEIGHT;
+			state.failures = 0;
+			state.openUntil = 0;
+			state.trial = false;
+			state.latencies[state.samples++ % SAMPLES] = latency;
+		}
+	}
+
+	/**
+	 * Record a failed call.
+	 */
+	public void failure(String location) {
+		synchronized (states) {
+			State state = getState(location);
+			state.score = state.score * (1 - WEIGHT);
+			state.failures++;
+			state.trial = false;
+			if (state.failures >= failureThreshold) {
+				if (state.openUntil == 0) {
+					log.warn("Endpoint " + location + " failed " + state.failures + " times, not using it for " + openPeriod + " ms");
+				}
+				state.openUntil = System.currentTimeMillis() + openPeriod;
+			}
+		}
+	}
+
+	/**
+	 * Get the delay after which a hedged request should be sent to another endpoint.
+	 * 
+	 * @return The 95th percentile of the latency of recent successful calls in milliseconds, or -1 if there are too few calls to tell.
+	 */
+	public long getHedgeDelay(String location) {
+		long[] latencies;
+		synchronized (states) {
+			State state = states.get(location);
+			if (state == null || state.samples < MIN_SAMPLES) {
+				return -1;
+			}
+			int count = Math.min(state.samples, SAMPLES);
+			latencies = new long[count];
+			System.arraycopy(state.latencies, 0, latencies, 0, count);
+		}
+		Arrays.sort(latencies);
+		return latencies[latencies.length * 95 / 100];
+	}
+
+	/**
+	 * @return The score of the endpoint, between 0 and 1. Endpoints which have not been called have score 1.
+	 */
+	public double getScore(String location) {
+		synchronized (states) {
+			State state = states.get(location);
+			return state == null ? 1.0 : state.score;
+		}
+	}
+
+	private State getState(String location) {
+		State state = states.get(location);
+		if (state == null) {
+			state = new State();
+			states.put(location, state);
+		}
+		return state;
+	}
+
+	private static class State {
+		private double score = 1.0;
+		private int failures;
+		private long openUntil;
+		/**
+		 * <code>true</code> while a trial call is made after the circuit has been open.
+		 */
+		private boolean trial;
+		private final long[] latencies = new long[SAMPLES];
+		private int samples;
+
+		/**
+		 * Check if the endpoint can be called. When the open period has passed, it can be called until a trial call has begun.
+		 */
+		private boolean isAvailable(long now) {
+			return openUntil == 0 || (now >= openUntil && !trial);
+		}
+	}
+}
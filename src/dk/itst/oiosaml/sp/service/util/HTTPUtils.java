@@ -94,6 +94,38 @@ public class HTTPUtils {
 		res.addHeader("Cache-Control", "no-store");
 	}
 	
+	/**
+	 * Check if a conditional GET request can be answered with 304 Not Modified.
+	 * 
+	 * If-None-Match takes precedence over If-Modified-Since, as required by RFC 2616, section 14.26.
+	 * 
+	 * @param etag The current entity tag of the resource, including quotes.
+	 * @param lastModified The time the resource was last modified, in milliseconds.
+	 */
+	public static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		try {
+			long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+			// http dates have second precision
+			return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			log.debug("Invalid If-Modified-Since header: " + req.getHeader("If-Modified-Since"));
+			return false;
+		}
+	}
+
 	public static String getFragmentCookie(HttpServletRequest req) {
 		Cookie[] cookies = req.getCookies();
 		if (cookies == null) return null;
@@ -23,19 +23,24 @@
  */
 package dk.itst.oiosaml.sp.service.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.IOUtils;
 import org.opensaml.ws.soap.soap11.Envelope;
 import org.opensaml.ws.soap.soap11.Fault;
@@ -43,27 +48,110 @@ import org.opensaml.ws.soap.util.SOAPConstants;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.common.SOAPException;
 import dk.itst.oiosaml.sp.model.OIOSamlObject;
 
-public class HttpSOAPClient implements SOAPClient {
+public class HttpSOAPClient implements AsyncSOAPClient {
 	private static final String START_SOAP_ENVELOPE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" + "<soapenv:Header/><soapenv:Body>";
 	private static final String END_SOAP_ENVELOPE = "</soapenv:Body></soapenv:Envelope>";
+	private static final String SOAP11_CONTENT_TYPE = "text/xml; charset=utf-8";
+	private static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
 	private static final Logger log = LoggerFactory.getLogger(HttpSOAPClient.class);
+	private static final int ASYNC_THREADS = 20;
+	private static ExecutorService sharedExecutor;
+
+	private final SOAPTransport transport;
+	private Executor executor;
+
+	/**
+	 * Create a client using the shared transport with default timeouts.
+	 */
+	public HttpSOAPClient() {
+		this(HttpSOAPTransport.getInstance(null));
+	}
+
+	/**
+	 * Create a client using the shared transport with the timeouts and connection limit from the configuration.
+	 */
+	public HttpSOAPClient(Configuration conf) {
+		this(HttpSOAPTransport.getInstance(conf));
+	}
+
+	public HttpSOAPClient(SOAPTransport transport) {
+		this.transport = transport;
+	}
 
 	public XMLObject wsCall(OIOSamlObject obj, String location, String username, String password, boolean ignoreCertPath) throws IOException {
-		return wsCall(location, username, password, ignoreCertPath, obj.toSoapEnvelope(), "http://www.oasis-open.org/committees/security").getBody().getUnknownXMLObjects().get(0);
+		return invoke(location, username, password, ignoreCertPath, new ElementRequest(obj.toSoapEnvelopeElement(), false), SOAP_ACTION).getBody().getUnknownXMLObjects().get(0);
 	}
 	
 	public Envelope wsCall(XMLObject obj, String location, String username, String password, boolean ignoreCertPath) throws IOException {
-		String xml = XMLHelper.nodeToString(SAMLUtil.marshallObject(obj));
-		xml = START_SOAP_ENVELOPE + xml.substring(xml.indexOf("?>") + 2) + END_SOAP_ENVELOPE;
-		return wsCall(location, username, password, ignoreCertPath, xml, "http://www.oasis-open.org/committees/security");
+		return invoke(location, username, password, ignoreCertPath, new ElementRequest(SAMLUtil.marshallObject(obj), true), SOAP_ACTION);
+	}
+
+	public Future<Envelope> wsCallAsync(XMLObject obj, final String location, final String username, final String password, final boolean ignoreCertPath, final Listener listener) {
+		// XMLObjects are not thread safe, so the request is marshalled by the caller
+		final Request request = new ElementRequest(SAMLUtil.marshallObject(obj), true);
+		FutureTask<Envelope> task = new FutureTask<Envelope>(new Callable<Envelope>() {
+			public Envelope call() throws IOException {
+				return invoke(location, username, password, ignoreCertPath, request, SOAP_ACTION);
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (listener != null) {
+					listener.completed(this);
+				}
+			}
+		};
+		getExecutor().execute(task);
+		return task;
+	}
+
+	/**
+	 * Set the executor used for calls made with {@link #wsCallAsync(XMLObject, String, String, String, boolean, Listener)}.
+	 * 
+	 * If no executor is set, a pool of {@value #ASYNC_THREADS} threads shared by all clients is used.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private Executor getExecutor() {
+		if (executor != null) {
+			return executor;
+		}
+		synchronized (HttpSOAPClient.class) {
+			if (sharedExecutor == null) {
+				sharedExecutor = Executors.newFixedThreadPool(ASYNC_THREADS, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "oiosaml-soap-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			return sharedExecutor;
+		}
 	}
 
 	public Envelope wsCall(String location, String username, String password, boolean ignoreCertPath, String xml, String soapAction) throws IOException, SOAPException {
+		if (log.isDebugEnabled()) log.debug("SOAP Request: " + xml);
+		return invoke(location, username, password, ignoreCertPath, new BytesRequest(getContentType(xml), xml.getBytes("UTF-8")), soapAction);
+	}
+
+	/**
+	 * Send a request and parse the response directly from the connection.
+	 */
+	private Envelope invoke(String location, String username, String password, boolean ignoreCertPath, Request request, String soapAction) throws IOException, SOAPException {
 		URI serviceLocation;
 		try {
 			serviceLocation = new URI(location);
@@ -71,75 +159,191 @@ public class HttpSOAPClient implements SOAPClient {
 			throw new IOException("Invalid uri for artifact resolve: " + location);
 		}
 		if (log.isDebugEnabled()) log.debug("serviceLocation..:" + serviceLocation);
-		if (log.isDebugEnabled()) log.debug("SOAP Request: " + xml);
 
-		HttpURLConnection c = (HttpURLConnection) serviceLocation.toURL().openConnection();
-		if (c instanceof HttpsURLConnection) {
-			HttpsURLConnection sc = (HttpsURLConnection) c;
+		int status;
+		Envelope envelope = null;
+		String result = null;
+		SOAPTransport.Exchange exchange = transport.open(serviceLocation, ignoreCertPath);
+		try {
+			exchange.setHeader("Content-Type", request.getContentType());
+			exchange.setHeader("SOAPAction",  "\"" + (soapAction == null ? "" : soapAction) + "\"");
 			
-			if (ignoreCertPath) {
-				sc.setSSLSocketFactory(new DummySSLSocketFactory());
-				sc.setHostnameVerifier(new HostnameVerifier() {
-					public boolean verify(String hostname, SSLSession session) {
-						return true;
-					}
-				});
+			if (username != null && password != null) {
+				exchange.setHeader("Authorization", "Basic " + Base64.encodeBytes((username + ":" + password).getBytes(), Base64.DONT_BREAK_LINES));
 			}
+			OutputStream outputStream = exchange.send(request.getLength());
+			request.writeTo(outputStream);
+			outputStream.flush();
+			outputStream.close();
+			
+			status = exchange.getStatus();
+			InputStream inputStream = exchange.getBody();
+			if (status == 200 && !log.isDebugEnabled()) {
+				envelope = parse(inputStream, serviceLocation);
+			} else {
+				result = IOUtils.toString(inputStream, "UTF-8");
+			}
+			inputStream.close();
+		} catch (IOException e) {
+			exchange.abort();
+			throw e;
+		} finally {
+			exchange.close();
 		}
-		c.setAllowUserInteraction(false);
-		c.setDoInput(true);
-		c.setDoOutput(true);
-		c.setFixedLengthStreamingMode(xml.getBytes("UTF-8").length);
-		c.setRequestMethod("POST");
-		c.setReadTimeout(20000);
-		c.setConnectTimeout(30000);
-		
-		addContentTypeHeader(xml, c);
-		c.addRequestProperty("SOAPAction",  "\"" + (soapAction == null ? "" : soapAction) + "\"");
-		
-		if (username != null && password != null) {
-			c.addRequestProperty("Authorization", "Basic " + Base64.encodeBytes((username + ":" + password).getBytes(), Base64.DONT_BREAK_LINES));
-		}
-		OutputStream outputStream = c.getOutputStream();
-		IOUtils.write(xml, outputStream, "UTF-8");
-		outputStream.flush();
-		outputStream.close();
 		
-		if (c.getResponseCode() == 200) {
-			InputStream inputStream = c.getInputStream();
-			String result = IOUtils.toString(inputStream, "UTF-8");
-			inputStream.close();
-			
-			if (log.isDebugEnabled()) log.debug("Server SOAP response: " + result);
-			XMLObject res = SAMLUtil.unmarshallElementFromString(result);
+		if (status == 200) {
+			if (envelope == null) {
+				log.debug("Server SOAP response: " + result);
+				envelope = (Envelope) SAMLUtil.unmarshallElementFromString(result);
+			}
 			
-			Envelope envelope = (Envelope) res;
 			if (SAMLUtil.getFirstElement(envelope.getBody(), Fault.class) != null) {
 				log.warn("Result has soap11:Fault, but server returned 200 OK. Treating as error, please fix the server");
-				throw new SOAPException(c.getResponseCode(), result);
+				throw new SOAPException(status, result != null ? result : XMLHelper.nodeToString(envelope.getDOM()));
 			}
 			return envelope;
 		} else {
-			log.debug("Response code: " + c.getResponseCode());
-			
-			InputStream inputStream = c.getErrorStream();
-			String result = IOUtils.toString(inputStream, "UTF-8");
-			inputStream.close();
+			log.debug("Response code: " + status);
 			if (log.isDebugEnabled()) log.debug("Server SOAP fault: " + result);
 			
-			throw new SOAPException(c.getResponseCode(), result);
+			throw new SOAPException(status, result);
 		}
 	}
 
-	private void addContentTypeHeader(String xml, HttpURLConnection c) {
+	private Envelope parse(InputStream inputStream, URI serviceLocation) throws IOException {
+		Element element = SAMLUtil.loadElement(inputStream);
+		if (element == null) {
+			throw new IOException("Unable to parse SOAP response from " + serviceLocation);
+		}
+		XMLObject res = SAMLUtil.unmarshallElement(element);
+		if (!(res instanceof Envelope)) {
+			throw new IOException("SOAP response from " + serviceLocation + " is not a SOAP 1.1 Envelope: " + res);
+		}
+		return (Envelope) res;
+	}
+
+	private String getContentType(String xml) {
 		String soapVersion = Utils.getSoapVersion(xml);
 		if (SOAPConstants.SOAP11_NS.equals(soapVersion)) {
-			c.addRequestProperty("Content-Type", "text/xml; charset=utf-8");
+			return SOAP11_CONTENT_TYPE;
 		} else if (SOAPConstants.SOAP12_NS.equals(soapVersion)){
-			c.addRequestProperty("Content-Type", "application/soap+xml; charset=utf-8");
+			return "application/soap+xml; charset=utf-8";
 		} else {
 			throw new UnsupportedOperationException("SOAP version " + soapVersion + " not supported");
 		}
 	}
-	
+
+	private interface Request {
+		public String getContentType();
+
+		/**
+		 * @return Length of the request in bytes, or -1 if the request is streamed.
+		 */
+		public int getLength() throws IOException;
+
+		public void writeTo(OutputStream os) throws IOException;
+	}
+
+	private static class BytesRequest implements Request {
+		private final String contentType;
+		private final byte[] bytes;
+
+		private BytesRequest(String contentType, byte[] bytes) {
+			this.contentType = contentType;
+			this.bytes = bytes;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public int getLength() {
+			return bytes.length;
+		}
+
+		public void writeTo(OutputStream os) throws IOException {
+			os.write(bytes);
+		}
+	}
+
+	/**
+	 * SOAP 1.1 request serialized directly from the DOM, without building a string. The request is serialized into a 
+	 * buffer owned by the calling thread, so it can be sent with a Content-Length, which all servers and proxies accept.
+	 * {@link #getLength()} and {@link #writeTo(OutputStream)} must be called by the same thread.
+	 */
+	private static class ElementRequest implements Request {
+		/**
+		 * Buffers larger than this are not kept for the next request.
+		 */
+		private static final int MAX_BUFFER = 64 * 1024;
+		private static final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+			@Override
+			protected ByteArrayOutputStream initialValue() {
+				return new ByteArrayOutputStream(4096);
+			}
+		};
+
+		private final Element element;
+		private final boolean wrap;
+		private ByteArrayOutputStream buffer;
+
+		/**
+		 * @param element The element to send.
+		 * @param wrap <code>true</code> if the element should be wrapped in a SOAP envelope, <code>false</code> if it is the envelope.
+		 */
+		private ElementRequest(Element element, boolean wrap) {
+			this.element = element;
+			this.wrap = wrap;
+		}
+
+		public String getContentType() {
+			return SOAP11_CONTENT_TYPE;
+		}
+
+		public int getLength() throws IOException {
+			return serialize().size();
+		}
+
+		public void writeTo(OutputStream os) throws IOException {
+			ByteArrayOutputStream buffer = serialize();
+			this.buffer = null;
+			try {
+				buffer.writeTo(os);
+			} finally {
+				if (buffer.size() > MAX_BUFFER) {
+					buffers.remove();
+				}
+				buffer.reset();
+			}
+		}
+
+		private ByteArrayOutputStream serialize() throws IOException {
+			if (buffer == null) {
+				buffer = buffers.get();
+				buffer.reset();
+				serialize(buffer);
+			}
+			return buffer;
+		}
+
+		private void serialize(OutputStream os) throws IOException {
+			if (log.isDebugEnabled()) log.debug("SOAP Request: " + (wrap ? START_SOAP_ENVELOPE : "") + XMLHelper.nodeToString(element) + (wrap ? END_SOAP_ENVELOPE : ""));
+
+			if (wrap) {
+				os.write(START_SOAP_ENVELOPE.getBytes("UTF-8"));
+			}
+			DOMImplementationLS ls = (DOMImplementationLS) element.getOwnerDocument().getImplementation().getFeature("LS", "3.0");
+			LSSerializer serializer = ls.createLSSerializer();
+			serializer.getDomConfig().setParameter("xml-declaration", Boolean.FALSE);
+			LSOutput output = ls.createLSOutput();
+			output.setByteStream(os);
+			output.setEncoding("UTF-8");
+			if (!serializer.write(element, output)) {
+				throw new IOException("Unable to serialize " + element.getLocalName());
+			}
+			if (wrap) {
+				os.write(END_SOAP_ENVELOPE.getBytes("UTF-8"));
+			}
+		}
+	}
 }
@@ -0,0 +1,230 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * {@link SOAPTransport} using {@link HttpURLConnection}.
+ * 
+ * <p>Connections are kept alive and reused through the keep-alive cache of the JVM, which holds up to
+ * <code>http.maxConnections</code> idle connections per host. Connections which ignore certificate path errors
+ * share a single SSL socket factory, so they can be reused too, and TLS sessions are resumed.</p>
+ * 
+ * <p>The number of concurrent connections to each host is limited. A request waits up to the connect timeout for
+ * a connection to become available.</p>
+ */
+public class HttpSOAPTransport implements SOAPTransport {
+	private static final SSLSocketFactory TRUST_ALL = new DummySSLSocketFactory();
+	private static final HostnameVerifier ACCEPT_ALL = new HostnameVerifier() {
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+	private static final Map<String, HttpSOAPTransport> instances = new HashMap<String, HttpSOAPTransport>();
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxConnections;
+	private final Map<String, Semaphore> hosts = new HashMap<String, Semaphore>();
+
+	/**
+	 * @param connectTimeout Connect timeout in milliseconds.
+	 * @param readTimeout Read timeout in milliseconds.
+	 * @param maxConnections Maximum number of concurrent connections to each host.
+	 */
+	public HttpSOAPTransport(int connectTimeout, int readTimeout, int maxConnections) {
+		if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1, not " + maxConnections);
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Get a transport shared by all clients with the same settings.
+	 * 
+	 * @param conf Configuration with the timeouts and connection limit. If <code>null</code>, the defaults are used.
+	 */
+	public static synchronized HttpSOAPTransport getInstance(Configuration conf) {
+		int connectTimeout = 1000 * (conf == null ? 30 : conf.getInt(Constants.PROP_SOAP_CONNECT_TIMEOUT, 30));
+		int readTimeout = 1000 * (conf == null ? 20 : conf.getInt(Constants.PROP_SOAP_READ_TIMEOUT, 20));
+		int maxConnections = conf == null ? 20 : conf.getInt(Constants.PROP_SOAP_CONNECTIONS, 20);
+
+		String key = connectTimeout + ":" + readTimeout + ":" + maxConnections;
+		HttpSOAPTransport transport = instances.get(key);
+		if (transport == null) {
+			transport = new HttpSOAPTransport(connectTimeout, readTimeout, maxConnections);
+			instances.put(key, transport);
+		}
+		return transport;
+	}
+
+	public Exchange open(URI location, boolean ignoreCertPath) throws IOException {
+		URL url = location.toURL();
+		Semaphore permits = getPermits(url);
+		try {
+			if (connectTimeout > 0) {
+				if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+					throw new IOException("Timeout waiting for one of " + maxConnections + " connections to " + url.getHost());
+				}
+			} else {
+				permits.acquire();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+		}
+
+		boolean opened = false;
+		try {
+			HttpURLConnection c = (HttpURLConnection) url.openConnection();
+			if (c instanceof HttpsURLConnection && ignoreCertPath) {
+				HttpsURLConnection sc = (HttpsURLConnection) c;
+				sc.setSSLSocketFactory(TRUST_ALL);
+				sc.setHostnameVerifier(ACCEPT_ALL);
+			}
+			c.setAllowUserInteraction(false);
+			c.setUseCaches(false);
+			c.setDoInput(true);
+			c.setDoOutput(true);
+			c.setRequestMethod("POST");
+			c.setConnectTimeout(connectTimeout);
+			c.setReadTimeout(readTimeout);
+			opened = true;
+			return new HttpExchange(c, permits);
+		} finally {
+			if (!opened) {
+				permits.release();
+			}
+		}
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	private Semaphore getPermits(URL url) {
+		String host = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		synchronized (hosts) {
+			Semaphore permits = hosts.get(host);
+			if (permits == null) {
+				permits = new Semaphore(maxConnections, true);
+				hosts.put(host, permits);
+			}
+			return permits;
+		}
+	}
+
+	private static class HttpExchange implements Exchange {
+		private final HttpURLConnection c;
+		private final Semaphore permits;
+		private InputStream body;
+		private boolean closed;
+
+		private HttpExchange(HttpURLConnection c, Semaphore permits) {
+			this.c = c;
+			this.permits = permits;
+		}
+
+		public void setHeader(String name, String value) {
+			c.setRequestProperty(name, value);
+		}
+
+		public OutputStream send(int length) throws IOException {
+			if (length >= 0) {
+				c.setFixedLengthStreamingMode(length);
+			} else {
+				c.setChunkedStreamingMode(0);
+			}
+			return c.getOutputStream();
+		}
+
+		public int getStatus() throws IOException {
+			return c.getResponseCode();
+		}
+
+		public InputStream getBody() throws IOException {
+			if (body == null) {
+				body = c.getErrorStream();
+				if (body == null) {
+					body = c.getResponseCode() >= 400 ? new ByteArrayInputStream(new byte[0]) : c.getInputStream();
+				}
+			}
+			return body;
+		}
+
+		public synchronized void close() {
+			if (closed) return;
+			closed = true;
+			try {
+				if (body != null) {
+					// the JVM only reuses the connection when the response has been read and closed
+					body.close();
+				} else {
+					c.disconnect();
+				}
+			} catch (IOException e) {
+				c.disconnect();
+			} finally {
+				permits.release();
+			}
+		}
+
+		public synchronized void abort() {
+			if (closed) return;
+			closed = true;
+			try {
+				c.disconnect();
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
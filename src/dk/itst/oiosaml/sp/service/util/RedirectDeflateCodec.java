@@ -0,0 +1,231 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.opensaml.common.SAMLObject;
+import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
+
+/**
+ * DEFLATE encoding and decoding of messages for the SAML HTTP Redirect binding.
+ *
+ * {@link Deflater} and {@link Inflater} instances hold native zlib memory, which is only released when
+ * <code>end()</code> is called or the object is finalized. This class keeps a bounded pool of instances, which are
+ * reset and reused. Instances which do not fit in the pool are ended immediately.
+ *
+ * Inflated messages are limited in size, so a small compressed request cannot expand into an arbitrarily large message.
+ */
+public final class RedirectDeflateCodec {
+	private static final Logger log = LoggerFactory.getLogger(RedirectDeflateCodec.class);
+
+	/**
+	 * Default maximum size of an inflated message.
+	 */
+	public static final int DEFAULT_MAX_INFLATED_SIZE = 512 * 1024;
+
+	private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+	private RedirectDeflateCodec() {}
+
+	/**
+	 * Deflate a message and encode it using base64, without line breaks.
+	 *
+	 * The result is not url encoded.
+	 */
+	public static String deflateAndBase64Encode(byte[] message) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFLATED, true);
+		}
+		try {
+			deflater.setInput(message);
+			deflater.finish();
+
+			byte[] buffer = new byte[Math.max(256, message.length / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buffer.length) {
+					buffer = grow(buffer, buffer.length * 2);
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			return Base64.encodeBytes(buffer, 0, length, Base64.DONT_BREAK_LINES);
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Base64 decode and inflate a message.
+	 *
+	 * @param message The base64 encoded message. Must not be url encoded.
+	 * @param maxSize Maximum number of bytes in the inflated message.
+	 * @return The inflated message.
+	 * @throws DataFormatException If the message is not valid base64 or DEFLATE data, or if the inflated message is larger than <code>maxSize</code>.
+	 */
+	public static byte[] base64DecodeAndInflate(String message, int maxSize) throws DataFormatException {
+		byte[] compressed = Base64.decode(message);
+		if (compressed == null) {
+			throw new DataFormatException("Unable to base64 decode message");
+		}
+
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			inflater.setInput(compressed);
+
+			// one byte more than allowed, so an oversized message can be detected
+			int limit = maxSize + 1;
+			byte[] buffer = new byte[Math.min(limit, Math.max(256, compressed.length * 4))];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == buffer.length) {
+					if (buffer.length == limit) {
+						throw new DataFormatException("Inflated message exceeds " + maxSize + " bytes");
+					}
+					buffer = grow(buffer, (int) Math.min(limit, buffer.length * 2L));
+				}
+				int n = inflater.inflate(buffer, length, buffer.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated DEFLATE data");
+				}
+				length += n;
+			}
+			if (length > maxSize) {
+				throw new DataFormatException("Inflated message exceeds " + maxSize + " bytes");
+			}
+			return length == buffer.length ? buffer : grow(buffer, length);
+		} finally {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+
+	private static byte[] grow(byte[] buffer, int size) {
+		byte[] res = new byte[size];
+		System.arraycopy(buffer, 0, res, 0, Math.min(buffer.length, size));
+		return res;
+	}
+
+	/**
+	 * HTTP Redirect decoder which inflates using the pooled inflaters and rejects messages larger than a maximum size.
+	 */
+	public static class Decoder extends HTTPRedirectDeflateDecoder {
+		private final int maxSize;
+
+		public Decoder() {
+			this(DEFAULT_MAX_INFLATED_SIZE);
+		}
+
+		public Decoder(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected InputStream decodeMessage(String message) throws MessageDecodingException {
+			try {
+				return new ByteArrayInputStream(base64DecodeAndInflate(message, maxSize));
+			} catch (DataFormatException e) {
+				log.error("Unable to decode redirect message: " + e.getMessage());
+				throw new MessageDecodingException("Unable to decode redirect message", e);
+			}
+		}
+	}
+
+	/**
+	 * HTTP Redirect encoder which deflates using the pooled deflaters, and signs using the algorithms in {@link SignatureAlgorithms}.
+	 */
+	public static class Encoder extends HTTPRedirectDeflateEncoder {
+		private final String signatureAlgorithm;
+
+		public Encoder() {
+			this(null);
+		}
+
+		/**
+		 * @param signatureAlgorithm The preferred signature algorithm URI. If <code>null</code>, or if it cannot be used
+		 * with the signing credential, the configured algorithm for the key type is used.
+		 */
+		public Encoder(String signatureAlgorithm) {
+			this.signatureAlgorithm = signatureAlgorithm;
+		}
+
+		@Override
+		public String deflateAndBase64Encode(SAMLObject obj) throws MessageEncodingException {
+			String messageStr = XMLHelper.nodeToString(marshallMessage(obj));
+			try {
+				return RedirectDeflateCodec.deflateAndBase64Encode(messageStr.getBytes(OIOSAMLConstants.UTF_8));
+			} catch (UnsupportedEncodingException e) {
+				throw new MessageEncodingException("Unable to deflate message", e);
+			}
+		}
+
+		@Override
+		public String getSignatureAlgorithmURI(Credential credential, SecurityConfiguration config) throws MessageEncodingException {
+			return SignatureAlgorithms.getSignatureAlgorithm(credential, signatureAlgorithm, false);
+		}
+
+		@Override
+		public String generateSignature(Credential signingCredential, String algorithmURI, String queryString) throws MessageEncodingException {
+			if (log.isDebugEnabled()) log.debug("Generating " + algorithmURI + " signature for " + queryString);
+			try {
+				byte[] signature = SignatureAlgorithms.sign(algorithmURI, signingCredential.getPrivateKey(), queryString.getBytes(OIOSAMLConstants.UTF_8));
+				return Base64.encodeBytes(signature, Base64.DONT_BREAK_LINES);
+			} catch (UnsupportedEncodingException e) {
+				throw new MessageEncodingException("Unable to sign message", e);
+			} catch (IllegalArgumentException e) {
+				throw new MessageEncodingException("Unable to sign message", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.PublicKey;
+
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
+
+/**
+ * The signed part of a SAML HTTP Redirect query string.
+ *
+ * The query string is parsed once, recording only the offsets of the SAML message, RelayState, SigAlg and Signature
+ * parameters. The signed octets are built directly from these offsets in the order required by the binding
+ * (saml-bindings-2.0-os, lines 601-605), so the same instance can be used to check the signature against
+ * any number of keys.
+ *
+ * The supported algorithms are the ones in {@link SignatureAlgorithms}.
+ */
+public final class RedirectSignature {
+	private static final Logger log = LoggerFactory.getLogger(RedirectSignature.class);
+
+	private final String query;
+	private final String messageParameter;
+	private int messageStart = -1, messageEnd;
+	private int relayStateStart = -1, relayStateEnd;
+	private int sigAlgStart = -1, sigAlgEnd;
+	private int signatureStart = -1, signatureEnd;
+	private byte[] signedContent;
+
+	private RedirectSignature(String query, String messageParameter) {
+		this.query = query;
+		this.messageParameter = messageParameter;
+	}
+
+	/**
+	 * Parse a query string.
+	 *
+	 * @param queryString The raw (still url encoded) query string. If it contains a '?', everything before it is ignored.
+	 * @param messageParameter The name of the parameter holding the message, {@link Constants#SAML_SAMLREQUEST} or {@link Constants#SAML_SAMLRESPONSE}.
+	 */
+	public static RedirectSignature parse(String queryString, String messageParameter) {
+		if (queryString == null) throw new IllegalArgumentException("queryString cannot be null");
+		RedirectSignature rs = new RedirectSignature(queryString, messageParameter);
+
+		int pos = queryString.indexOf('?') + 1;
+		int len = queryString.length();
+		while (pos < len) {
+			int end = queryString.indexOf('&', pos);
+			if (end == -1) end = len;
+			int eq = queryString.indexOf('=', pos);
+			if (eq > -1 && eq < end) {
+				rs.found(pos, eq, end);
+			}
+			pos = end + 1;
+		}
+		return rs;
+	}
+
+	private void found(int keyStart, int eq, int end) {
+		int keyLength = eq - keyStart;
+		if (messageStart == -1 && matches(messageParameter, keyStart, keyLength)) {
+			messageStart = keyStart;
+			messageEnd = end;
+		} else if (relayStateStart == -1 && matches(Constants.SAML_RELAYSTATE, keyStart, keyLength)) {
+			relayStateStart = keyStart;
+			relayStateEnd = end;
+		} else if (sigAlgStart == -1 && matches(Constants.SAML_SIGALG, keyStart, keyLength)) {
+			sigAlgStart = eq + 1;
+			sigAlgEnd = end;
+		} else if (signatureStart == -1 && matches(Constants.SAML_SIGNATURE, keyStart, keyLength)) {
+			signatureStart = eq + 1;
+			signatureEnd = end;
+		}
+	}
+
+	private boolean matches(String name, int start, int length) {
+		return name.length() == length && query.regionMatches(start, name, 0, length);
+	}
+
+	/**
+	 * @return <code>true</code> if the query contains both the message and a SigAlg parameter.
+	 */
+	public boolean isSigned() {
+		return messageStart > -1 && sigAlgStart > -1;
+	}
+
+	/**
+	 * Get the url decoded signature algorithm URI, or <code>null</code> if the query does not contain a SigAlg.
+	 */
+	public String getSignatureAlgorithm() {
+		if (sigAlgStart == -1) return null;
+		return decode(query.substring(sigAlgStart, sigAlgEnd));
+	}
+
+	/**
+	 * Get the url and base64 decoded Signature parameter, or <code>null</code> if the query does not contain a Signature.
+	 */
+	public byte[] getSignature() {
+		if (signatureStart == -1) return null;
+		return Base64.decode(decode(query.substring(signatureStart, signatureEnd)));
+	}
+
+	/**
+	 * Get the signed octets: <code>message=value[&amp;RelayState=value]&amp;SigAlg=value</code>, exactly as they appear in the query.
+	 *
+	 * @return The octets, or <code>null</code> if the query is not signed.
+	 */
+	public byte[] getSignedContent() {
+		if (!isSigned()) return null;
+		if (signedContent != null) return signedContent;
+
+		int sigAlgKeyStart = sigAlgStart - Constants.SAML_SIGALG.length() - 1;
+		int length = (messageEnd - messageStart) + 1 + (sigAlgEnd - sigAlgKeyStart);
+		if (relayStateStart > -1) {
+			length += (relayStateEnd - relayStateStart) + 1;
+		}
+
+		byte[] b = new byte[length];
+		int pos = copy(b, 0, messageStart, messageEnd);
+		if (pos > -1 && relayStateStart > -1) {
+			b[pos++] = '&';
+			pos = copy(b, pos, relayStateStart, relayStateEnd);
+		}
+		if (pos > -1) {
+			b[pos++] = '&';
+			pos = copy(b, pos, sigAlgKeyStart, sigAlgEnd);
+		}
+		if (pos == -1) {
+			// not a plain url encoded query, fall back to encoding the characters
+			StringBuilder sb = new StringBuilder(length);
+			sb.append(query, messageStart, messageEnd);
+			if (relayStateStart > -1) {
+				sb.append('&').append(query, relayStateStart, relayStateEnd);
+			}
+			sb.append('&').append(query, sigAlgKeyStart, sigAlgEnd);
+			try {
+				b = sb.toString().getBytes(OIOSAMLConstants.UTF_8);
+			} catch (UnsupportedEncodingException e) {
+				throw new WrappedException(Layer.CLIENT, e);
+			}
+		}
+
+		signedContent = b;
+		return b;
+	}
+
+	/**
+	 * Copy ASCII characters from the query into <code>dest</code>.
+	 * @return The next position in dest, or -1 if a non-ASCII character was found.
+	 */
+	private int copy(byte[] dest, int pos, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = query.charAt(i);
+			if (c > 0x7f) {
+				return -1;
+			}
+			dest[pos++] = (byte) c;
+		}
+		return pos;
+	}
+
+	/**
+	 * Verify the signature in the query.
+	 *
+	 * @param key The key to verify against.
+	 * @return <code>true</code> if the signature was made with the private key matching <code>key</code>.
+	 */
+	public boolean verify(PublicKey key) {
+		byte[] signature = getSignature();
+		if (signature == null) {
+			return false;
+		}
+		return verify(signature, key);
+	}
+
+	/**
+	 * Verify a signature against the query.
+	 *
+	 * @param signature The base64 decoded signature value.
+	 * @param key The key to verify against.
+	 * @return <code>true</code> if the signature was made with the private key matching <code>key</code>. <code>false</code> if
+	 * the query is not signed, the signature algorithm is not supported or the key cannot be used with the algorithm.
+	 */
+	public boolean verify(byte[] signature, PublicKey key) {
+		if (!isSigned()) {
+			log.debug("Query does not contain a " + messageParameter + " and a SigAlg parameter");
+			return false;
+		}
+		String algorithm = getSignatureAlgorithm();
+		if (SignatureAlgorithms.getJCAAlgorithm(algorithm) == null) {
+			log.warn("Unsupported signature algorithm " + algorithm);
+			return false;
+		}
+		if (!SignatureAlgorithms.isCompatible(algorithm, key)) {
+			log.debug("Key of type " + key.getAlgorithm() + " cannot be used with " + algorithm);
+			return false;
+		}
+		return SignatureAlgorithms.verify(algorithm, key, getSignedContent(), signature);
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, OIOSAMLConstants.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new WrappedException(Layer.CLIENT, e);
+		}
+	}
+}
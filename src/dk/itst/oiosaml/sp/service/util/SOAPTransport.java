@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Transport used by {@link HttpSOAPClient} to send requests to SOAP endpoints.
+ * 
+ * Implementations can reuse connections, so every {@link Exchange} must be closed after use.
+ */
+public interface SOAPTransport {
+
+	/**
+	 * Open an exchange for a single POST request.
+	 * 
+	 * @param location HTTP Endpoint for the service.
+	 * @param ignoreCertPath Set to <code>true</code> to ignore certificate path errors on ssl connections.
+	 * @throws IOException If the connection could not be opened.
+	 */
+	public Exchange open(URI location, boolean ignoreCertPath) throws IOException;
+
+	/**
+	 * A single request and response.
+	 */
+	public interface Exchange {
+		public void setHeader(String name, String value);
+
+		/**
+		 * Start sending the request body.
+		 * 
+		 * @param length Length of the body in bytes, or -1 if the length is not known in advance.
+		 */
+		public OutputStream send(int length) throws IOException;
+
+		/**
+		 * @return The HTTP status code of the response.
+		 */
+		public int getStatus() throws IOException;
+
+		/**
+		 * @return The response body, also for error responses. 
+		 */
+		public InputStream getBody() throws IOException;
+
+		/**
+		 * Release the exchange. If the response has been read completely, the connection can be reused.
+		 */
+		public void close();
+
+		/**
+		 * Abort the exchange. The connection is closed and not reused.
+		 */
+		public void abort();
+	}
+}
@@ -24,11 +24,7 @@
 package dk.itst.oiosaml.sp.service.util;
 
 import java.lang.reflect.Constructor;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -43,8 +39,7 @@ import org.opensaml.ws.soap.util.SOAPConstants;
 import org.opensaml.xml.util.Base64;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
-import dk.itst.oiosaml.error.Layer;
-import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.security.SignatureAlgorithms;
 import dk.itst.oiosaml.sp.service.SAMLHandler;
 
 /**
@@ -103,18 +98,10 @@ public final class Utils {
 			return false;
 		}
 
-		byte[] buffer = Base64.decode(signature);
-		
-		String data = parseSignedQueryString(queryString, queryParameter);
-
-//        String data = queryString.substring(queryString.indexOf(firstQueryParameter), queryString.lastIndexOf("&"));
-		if (log.isDebugEnabled())
-			log.debug("data.......:" + data);
-
 		if (log.isDebugEnabled())
 			log.debug("Verifying Signature...");
 		
-		return verifySignature(data.getBytes(), publicKey, buffer);
+		return RedirectSignature.parse(queryString, queryParameter).verify(Base64.decode(signature), publicKey);
 	}
 
     /**
@@ -139,18 +126,7 @@ public final class Utils {
 		if (log.isDebugEnabled())
 			log.debug("key....:" + key.toString());
 
-		try {
-			Signature signer = Signature.getInstance(OIOSAMLConstants.SHA1_WITH_RSA);
-			signer.initVerify(key);
-			signer.update(data);
-			return signer.verify(sig);
-		} catch (InvalidKeyException e) {
-			throw new WrappedException(Layer.CLIENT, e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new WrappedException(Layer.CLIENT, e);
-		} catch (SignatureException e) {
-			throw new WrappedException(Layer.CLIENT, e);
-		}
+		return SignatureAlgorithms.verifyJCA(OIOSAMLConstants.SHA1_WITH_RSA, key, data, sig);
 	}
 
 	/**
@@ -216,6 +192,17 @@ public final class Utils {
 		return "_" + UUID.randomUUID().toString();
 	}
 	
+	/**
+	 * Encode bytes as a lowercase hex string, two characters for each byte.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+	
 	/**
 	 * Get the SOAP version from an Envelope.
 	 * @param xml The complete envelope as a String.
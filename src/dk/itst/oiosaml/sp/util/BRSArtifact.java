@@ -39,6 +39,7 @@ import org.opensaml.xml.util.DatatypeHelper;
 import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 
 /**
  * Utility methods related to extract the content of a SAML Artifact
@@ -67,6 +68,38 @@ public class BRSArtifact {
     	samlArtifact = decodeArtifact(samlArt);
     	entityId = validate(relyingParty);
     }
+
+    /**
+	 * Build the class from a base64 encoded SAML artifact, and find the issuing Login Site using the SourceID index of the metadata.
+	 * 
+	 * @param samlArt
+	 *            The base64 encoded SAML artifact received from the Login Site
+	 * @param metadata
+	 *            Metadata of the Login Sites which can issue artifacts
+	 * @throws BindingException
+	 *             If the SAML artifact is not valid, or if it was not issued by a Login Site in <code>metadata</code>
+	 */
+    public BRSArtifact(String samlArt, IdpMetadata metadata) throws BindingException {
+    	samlArtifact = decodeArtifact(samlArt);
+    	entityId = metadata.findEntityIDBySourceID(samlArtifact.getSourceID());
+    	if (entityId == null) {
+    		throw new BindingException("The sourceID:"+new String(samlArtifact.getSourceID())+" does not match the expected sourceId");
+    	}
+    }
+
+    /**
+     * Get the SourceID of artifacts issued by an entity, which is the SHA-1 digest of the entityID.
+     */
+    public static byte[] getSourceID(String entityID) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM);
+			return md.digest(entityID.getBytes(OIOSAMLConstants.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		} catch (UnsupportedEncodingException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+    }
     
     /**
      * Decode the SAML artifact
@@ -94,23 +127,13 @@ public class BRSArtifact {
 	 */
 	private String validate(String ... relyingParties) throws BindingException {
 		byte[] sourceID = samlArtifact.getSourceID();
-		try {
-			for (String entityId : relyingParties) {
-				MessageDigest md = MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM);
-		        byte[] expectedSourceID = md.digest(entityId.getBytes(OIOSAMLConstants.UTF_8));
-
-		        if (Arrays.equals(expectedSourceID, sourceID)) {
-
-		        	return entityId;
-		        }
-			}
-
-			throw new BindingException("The sourceID:"+new String(sourceID)+" does not match the expected sourceId");
-		} catch (NoSuchAlgorithmException e) {
-			throw new WrappedException(Layer.DATAACCESS, e);
-		} catch (UnsupportedEncodingException e) {
-			throw new WrappedException(Layer.DATAACCESS, e);
+		for (String entityId : relyingParties) {
+	        if (Arrays.equals(getSourceID(entityId), sourceID)) {
+	        	return entityId;
+	        }
 		}
+
+		throw new BindingException("The sourceID:"+new String(sourceID)+" does not match the expected sourceId");
 	}
 
 	/**
@@ -143,8 +166,7 @@ public class BRSArtifact {
             trimmedIndex[0] = endpointIndex[2];
             trimmedIndex[1] = endpointIndex[3];
 
-            MessageDigest sha1Digester = MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM);
-            byte[] source = sha1Digester.digest(entityID.getBytes());
+            byte[] source = getSourceID(entityID);
 
             SecureRandom handleGenerator = SecureRandom.getInstance("SHA1PRNG");
             byte[] assertionHandle;
@@ -0,0 +1,168 @@
+package dk.itst.oiosaml.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+public class FileConfigurationTest extends AbstractTests {
+	private Credential credential;
+	private File dir;
+	private Map<String, String> props;
+	private FileConfiguration configuration;
+
+	@Before
+	public void setUp() throws Exception {
+		credential = TestHelper.getCredential();
+		dir = new File(File.createTempFile("test", "test").getAbsolutePath() + ".home");
+		new File(dir, "metadata").mkdirs();
+
+		configuration = new FileConfiguration();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(Constants.INIT_OIOSAML_HOME, dir.getAbsolutePath());
+		configuration.setInitConfiguration(params);
+
+		props = new HashMap<String, String>();
+		props.put(Constants.IDP_METADATA_DIRECTORY, "metadata");
+		props.put(Constants.PROP_IDP_METADATA_LOAD_THREADS, "4");
+		configuration.setConfiguration(TestHelper.buildConfiguration(props));
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : new File(dir, "metadata").listFiles()) {
+			f.delete();
+		}
+		new File(dir, "metadata").delete();
+		new File(dir, "keystore.jks").delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testLoadDirectoryInFileOrder() throws Exception {
+		write("c.xml", buildDescriptor("idp5"));
+		write("a.xml", buildAggregate("idp1", "idp2"));
+		write("d.XML", buildDescriptor("idp6"));
+		write("b.xml", buildAggregate("idp3", "idp4"));
+		write("ignored.txt", buildDescriptor("idp7"));
+
+		assertEntityIDs(configuration.getListOfIdpMetadata(), "idp1", "idp2", "idp3", "idp4", "idp5", "idp6");
+
+		props.put(Constants.PROP_IDP_METADATA_LOAD_THREADS, "1");
+		assertEntityIDs(configuration.getListOfIdpMetadata(), "idp1", "idp2", "idp3", "idp4", "idp5", "idp6");
+	}
+
+	@Test
+	public void testLoadSingleFile() throws Exception {
+		write("a.xml", buildDescriptor("idp1"));
+		write("b.xml", buildDescriptor("idp2"));
+		props.put(Constants.IDP_METADATA_FILE, "b.xml");
+
+		assertEntityIDs(configuration.getListOfIdpMetadata(), "idp2");
+	}
+
+	@Test
+	public void testFailOnInvalidFile() throws Exception {
+		write("a.xml", buildDescriptor("idp1"));
+		write("b.xml", "<foo");
+		write("c.xml", buildDescriptor("idp3"));
+
+		try {
+			configuration.getListOfIdpMetadata();
+			fail("Invalid metadata file should fail");
+		} catch (RuntimeException e) {}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFailOnNoMetadata() throws Exception {
+		configuration.getListOfIdpMetadata();
+	}
+
+	@Test
+	public void testReuseUnchangedKeystore() throws Exception {
+		File file = new File(dir, "keystore.jks");
+		writeKeystore(file, TestHelper.getCredential());
+		file.setLastModified(System.currentTimeMillis() - 60000);
+		props.put(Constants.PROP_CERTIFICATE_LOCATION, file.getAbsolutePath());
+		props.put(Constants.PROP_CERTIFICATE_PASSWORD, "test");
+
+		KeyStore keystore = configuration.getKeystore();
+		BasicX509Credential cred = configuration.getCredential();
+		assertSame(keystore, configuration.getKeystore());
+		assertSame(cred, configuration.getCredential());
+
+		BasicX509Credential other = TestHelper.getCredential();
+		writeKeystore(file, other);
+		assertNotSame(keystore, configuration.getKeystore());
+		assertEquals(other.getEntityCertificate(), configuration.getCredential().getEntityCertificate());
+	}
+
+	private void writeKeystore(File file, BasicX509Credential cred) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("oiosaml", cred.getPrivateKey(), "test".toCharArray(), new Certificate[] { cred.getEntityCertificate() });
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			ks.store(os, "test".toCharArray());
+		} finally {
+			os.close();
+		}
+	}
+
+	private void assertEntityIDs(List<XMLObject> descriptors, String ... entityIDs) {
+		assertEquals(entityIDs.length, descriptors.size());
+		for (int i = 0; i < entityIDs.length; i++) {
+			assertEquals(entityIDs[i], ((EntityDescriptor) descriptors.get(i)).getEntityID());
+		}
+	}
+
+	private EntityDescriptor buildDescriptor(String entityId) {
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(credential);
+		ed.setEntityID(entityId);
+		return ed;
+	}
+
+	private EntitiesDescriptor buildAggregate(String ... entityIds) {
+		EntitiesDescriptor eds = SAMLUtil.buildXMLObject(EntitiesDescriptor.class);
+		for (String entityId : entityIds) {
+			eds.getEntityDescriptors().add(buildDescriptor(entityId));
+		}
+		return eds;
+	}
+
+	private void write(String name, XMLObject md) throws IOException {
+		write(name, SAMLUtil.getSAMLObjectAsPrettyPrintXML(md));
+	}
+
+	private void write(String name, String content) throws IOException {
+		FileOutputStream os = new FileOutputStream(new File(new File(dir, "metadata"), name));
+		try {
+			os.write(content.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -24,11 +24,25 @@ package dk.itst.oiosaml.configuration;
 
 import static org.junit.Assert.*;
 
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.MapConfiguration;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.util.Constants;
 
-public class SAMLConfigurationFactoryTest {
+public class SAMLConfigurationFactoryTest extends AbstractTests {
+	private Mockery context = new Mockery();
 
 	
 	@Before
@@ -43,4 +57,25 @@ public class SAMLConfigurationFactoryTest {
 	public void testGetConfiguration() {
 		assertNotNull(SAMLConfigurationFactory.getConfiguration());
 	}
+
+	@Test
+	public void testCacheCredentialOfCustomConfiguration() throws Exception {
+		BasicX509Credential cred = TestHelper.getCredential();
+		final KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("oiosaml", cred.getPrivateKey(), "test".toCharArray(), new Certificate[] { cred.getEntityCertificate() });
+		final Map<String, String> props = new HashMap<String, String>();
+		props.put(Constants.PROP_CERTIFICATE_PASSWORD, "test");
+
+		final SAMLConfiguration configuration = context.mock(SAMLConfiguration.class);
+		context.checking(new Expectations() {{
+			allowing(configuration).getKeystore(); will(returnValue(ks));
+			allowing(configuration).getSystemConfiguration(); will(returnValue(new MapConfiguration(props)));
+		}});
+
+		BasicX509Credential credential = SAMLConfigurationFactory.getCredential(configuration);
+		assertEquals(cred.getEntityCertificate(), credential.getEntityCertificate());
+		assertEquals(cred.getPrivateKey(), credential.getPrivateKey());
+		assertSame(credential, SAMLConfigurationFactory.getCredential(configuration));
+	}
 }
@@ -0,0 +1,66 @@
+package dk.itst.oiosaml.security;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
+/**
+ * Benchmark of signing and verification throughput for each supported signature algorithm.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.security.SignatureAlgorithmsBenchmark [iterations]
+ * </pre>
+ *
+ * The default is 2000 iterations. The RSA key has 2048 bits and the EC key 256 bits.
+ */
+public class SignatureAlgorithmsBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(SignatureAlgorithmsBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		DefaultBootstrap.bootstrap();
+
+		KeyPair kp = SecurityHelper.generateKeyPair("RSA", 2048, null);
+		Credential rsaCredential = org.opensaml.xml.security.SecurityHelper.getSimpleCredential(kp.getPublic(), kp.getPrivate());
+		kp = SecurityHelper.generateKeyPair("EC", 256, null);
+		Credential ecCredential = org.opensaml.xml.security.SecurityHelper.getSimpleCredential(kp.getPublic(), kp.getPrivate());
+
+		byte[] data = new byte[2048];
+		Arrays.fill(data, (byte) 'a');
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			for (String alg : Arrays.asList(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256)) {
+				Credential cred = SignatureAlgorithms.isCompatible(alg, ecCredential.getPrivateKey()) ? ecCredential : rsaCredential;
+				run(alg, cred, data, iterations);
+			}
+		}
+	}
+
+	private static void run(String alg, Credential cred, byte[] data, int iterations) {
+		byte[] sig = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sig = SignatureAlgorithms.sign(alg, cred.getPrivateKey(), data);
+		}
+		long signTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (!SignatureAlgorithms.verify(alg, cred.getPublicKey(), data, sig)) {
+				throw new IllegalStateException("Signature not verified using " + alg);
+			}
+		}
+		long verifyTime = System.nanoTime() - start;
+
+		log.info(alg + ": " + (iterations * 1000000000L / Math.max(1, signTime)) + " signatures/s, "
+				+ (iterations * 1000000000L / Math.max(1, verifyTime)) + " verifications/s");
+	}
+}
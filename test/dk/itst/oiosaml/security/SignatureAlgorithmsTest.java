@@ -0,0 +1,129 @@
+package dk.itst.oiosaml.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.security.DefaultSecurityConfigurationBootstrap;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.sp.model.OIOAuthnRequest;
+import dk.itst.oiosaml.sp.service.AbstractServiceTests;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.RedirectSignature;
+
+public class SignatureAlgorithmsTest extends AbstractServiceTests {
+	private SecurityConfiguration original;
+	private Credential ecCredential;
+
+	@Before
+	public void setUpAlgorithms() throws Exception {
+		original = Configuration.getGlobalSecurityConfiguration();
+		Configuration.setGlobalSecurityConfiguration(DefaultSecurityConfigurationBootstrap.buildDefaultConfig());
+
+		KeyPair kp = SecurityHelper.generateKeyPair("EC", 256, null);
+		ecCredential = org.opensaml.xml.security.SecurityHelper.getSimpleCredential(kp.getPublic(), kp.getPrivate());
+	}
+
+	@After
+	public void restoreConfiguration() {
+		Configuration.setGlobalSecurityConfiguration(original);
+	}
+
+	@Test
+	public void testDefaultAlgorithms() {
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureAlgorithms.getSignatureAlgorithm(credential, null, false));
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, SignatureAlgorithms.getSignatureAlgorithm(ecCredential, null, false));
+
+		// algorithms which cannot be used with the key are ignored
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureAlgorithms.getSignatureAlgorithm(credential, OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, false));
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SignatureAlgorithms.getSignatureAlgorithm(credential, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, false));
+	}
+
+	@Test
+	public void testConfigure() {
+		SignatureAlgorithms.configure(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SignatureAlgorithms.getSignatureAlgorithm(credential, null, false));
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, Configuration.getGlobalSecurityConfiguration().getSignatureAlgorithmURI(credential));
+
+		// xmlsec 1.4 does not support ECDSA-SHA256, so EC keys are registered with ECDSA-SHA1
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, Configuration.getGlobalSecurityConfiguration().getSignatureAlgorithmURI(ecCredential));
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, SignatureAlgorithms.getSignatureAlgorithm(ecCredential, null, true));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failOnUnknownAlgorithm() {
+		SignatureAlgorithms.configure("http://www.w3.org/2000/09/xmldsig#dsa-sha1");
+	}
+
+	@Test
+	public void testSelectFromPeerAlgorithms() {
+		assertNull(SignatureAlgorithms.select(credential, Collections.<String>emptyList()));
+		assertNull(SignatureAlgorithms.select(credential, Arrays.asList(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256)));
+
+		// the configured algorithm wins if the peer supports it
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureAlgorithms.select(credential, Arrays.asList(
+				OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256)));
+		SignatureAlgorithms.configure(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SignatureAlgorithms.select(credential, Arrays.asList(
+				OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256)));
+
+		// otherwise the strongest algorithm supported by the peer and the key
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureAlgorithms.select(credential, Arrays.asList(
+				OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1)));
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, SignatureAlgorithms.select(ecCredential, Arrays.asList(
+				OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1)));
+	}
+
+	@Test
+	public void testSignAndVerify() {
+		byte[] data = "SAMLRequest=msg&SigAlg=alg".getBytes();
+		for (String alg : Arrays.asList(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256)) {
+			byte[] sig = SignatureAlgorithms.sign(alg, credential.getPrivateKey(), data);
+			assertTrue(SignatureAlgorithms.verify(alg, credential.getPublicKey(), data, sig));
+			assertFalse(SignatureAlgorithms.verify(alg, ecCredential.getPublicKey(), data, sig));
+		}
+		byte[] sig = SignatureAlgorithms.sign(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, ecCredential.getPrivateKey(), data);
+		assertTrue(SignatureAlgorithms.verify(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, ecCredential.getPublicKey(), data, sig));
+		assertFalse(SignatureAlgorithms.verify(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, ecCredential.getPublicKey(), "other".getBytes(), sig));
+		assertFalse(SignatureAlgorithms.verify(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, credential.getPublicKey(), data, sig));
+	}
+
+	@Test
+	public void testRedirectURLWithPreferredAlgorithm() throws Exception {
+		OIOAuthnRequest request = OIOAuthnRequest.buildAuthnRequest("http://ssoServiceLocation", "spEntityId", SAMLConstants.SAML2_ARTIFACT_BINDING_URI, handler, "state", "http://localhost");
+		request.setSignatureAlgorithm(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+		RedirectSignature rs = RedirectSignature.parse(request.getRedirectURL(credential), Constants.SAML_SAMLREQUEST);
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, rs.getSignatureAlgorithm());
+		assertTrue(rs.verify(credential.getPublicKey()));
+	}
+
+	@Test
+	public void testRedirectURLWithECCredential() throws Exception {
+		OIOAuthnRequest request = OIOAuthnRequest.buildAuthnRequest("http://ssoServiceLocation", "spEntityId", SAMLConstants.SAML2_ARTIFACT_BINDING_URI, handler, "state", "http://localhost");
+		RedirectSignature rs = RedirectSignature.parse(request.getRedirectURL(ecCredential), Constants.SAML_SAMLREQUEST);
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, rs.getSignatureAlgorithm());
+		assertTrue(rs.verify(ecCredential.getPublicKey()));
+		assertFalse(rs.verify(credential.getPublicKey()));
+	}
+
+	@Test
+	public void testGenerateECCertificate() throws Exception {
+		X509Certificate cert = SecurityHelper.generateCertificate(ecCredential, "spEntityId");
+		assertEquals(OIOSAMLConstants.SHA256_WITH_ECDSA.toUpperCase(), cert.getSigAlgName().toUpperCase());
+		cert.verify(ecCredential.getPublicKey());
+	}
+}
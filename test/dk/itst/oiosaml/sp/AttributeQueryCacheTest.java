@@ -0,0 +1,205 @@
+package dk.itst.oiosaml.sp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.itst.oiosaml.sp.model.validation.ValidationException;
+
+public class AttributeQueryCacheTest {
+	private static final UserAttribute[] ATTRIBUTES = new UserAttribute[] { UserAttribute.create("attr1", null), UserAttribute.create("attr2", null) };
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@After
+	public void tearDown() {
+		AttributeQueryCache.setInstance(null);
+	}
+
+	@Test
+	public void testCacheResult() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(60000, 1000, 10);
+		assertEquals(1, cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value")).size());
+		Collection<UserAttribute> attrs = cache.get("idp", "user", NameIDFormat.PERSISTENT, 
+				new UserAttribute[] { UserAttribute.create("attr2", null), UserAttribute.create("attr1", null) }, loader("other"));
+		assertEquals("value", attrs.iterator().next().getValue());
+		assertEquals(1, loads.get());
+
+		cache.get("idp", "user", NameIDFormat.TRANSIENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "other", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, new UserAttribute[] { UserAttribute.create("attr1", null) }, loader("value"));
+		assertEquals(4, loads.get());
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(0.2, cache.getHitRate(), 0.001);
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(50, 50, 10);
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		Thread.sleep(100);
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testPurgeExpiredResults() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(50, 50, 10);
+		cache.get("idp", "user1", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user2", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(2, cache.size());
+		Thread.sleep(100);
+
+		// a query for another subject removes the expired results
+		cache.get("idp", "user3", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(0, 0, 10);
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testCacheValidationError() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(60000, 50, 10);
+		final ValidationException error = new ValidationException("Unknown principal");
+		AttributeQueryCache.Loader failing = new AttributeQueryCache.Loader() {
+			public Collection<UserAttribute> load() throws IOException {
+				loads.incrementAndGet();
+				throw error;
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, failing);
+				fail("Query fails");
+			} catch (ValidationException e) {
+				assertSame(error, e);
+			}
+		}
+		assertEquals(1, loads.get());
+
+		Thread.sleep(100);
+		assertEquals(1, cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value")).size());
+	}
+
+	@Test
+	public void testDoNotCacheIOException() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(60000, 60000, 10);
+		try {
+			cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, new AttributeQueryCache.Loader() {
+				public Collection<UserAttribute> load() throws IOException {
+					throw new IOException("IdP unavailable");
+				}
+			});
+			fail("Query fails");
+		} catch (IOException e) {}
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testCoalesceConcurrentQueries() throws Exception {
+		final AttributeQueryCache cache = new AttributeQueryCache(60000, 1000, 10);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AttributeQueryCache.Loader slow = new AttributeQueryCache.Loader() {
+			public Collection<UserAttribute> load() throws IOException {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				return loader("value").load();
+			}
+		};
+		Callable<Collection<UserAttribute>> query = new Callable<Collection<UserAttribute>>() {
+			public Collection<UserAttribute> call() throws Exception {
+				return cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, slow);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<Collection<UserAttribute>> first = executor.submit(query);
+			started.await();
+			Future<Collection<UserAttribute>> second = executor.submit(query);
+			Future<Collection<UserAttribute>> third = executor.submit(query);
+			while (cache.getCoalesced() < 2) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+
+			assertEquals(1, first.get().size());
+			assertEquals(1, second.get().size());
+			assertEquals(1, third.get().size());
+			assertEquals(1, loads.get());
+			assertEquals(2 / 3.0, cache.getHitRate(), 0.001);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInvalidateOnLogout() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(60000, 1000, 10);
+		AttributeQueryCache.setInstance(cache);
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user", NameIDFormat.TRANSIENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "other", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(2, cache.size());
+
+		AttributeQueryCache.logout("idp", "user");
+		assertEquals(1, cache.size());
+		cache.get("idp", "user", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "other", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsedSubject() throws Exception {
+		AttributeQueryCache cache = new AttributeQueryCache(60000, 1000, 2);
+		cache.get("idp", "user1", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user2", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user1", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		cache.get("idp", "user3", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(2, cache.size());
+
+		cache.get("idp", "user1", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(3, loads.get());
+		cache.get("idp", "user2", NameIDFormat.PERSISTENT, ATTRIBUTES, loader("value"));
+		assertEquals(4, loads.get());
+	}
+
+	private AttributeQueryCache.Loader loader(final String value) {
+		return new AttributeQueryCache.Loader() {
+			public Collection<UserAttribute> load() throws IOException {
+				loads.incrementAndGet();
+				Collection<UserAttribute> attrs = new ArrayList<UserAttribute>();
+				attrs.add(new UserAttribute("attr1", null, Collections.singletonList(value), null));
+				return attrs;
+			}
+		};
+	}
+}
@@ -25,16 +25,23 @@
 package dk.itst.oiosaml.sp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jmock.Expectations;
 import org.junit.After;
@@ -45,7 +52,10 @@ import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.util.XMLHelper;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.configuration.SAMLConfiguration;
@@ -54,6 +64,7 @@ import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.metadata.SPMetadata;
 import dk.itst.oiosaml.sp.model.OIOAttributeQuery;
 import dk.itst.oiosaml.sp.model.OIOResponse;
+import dk.itst.oiosaml.sp.model.OIOSamlObject;
 import dk.itst.oiosaml.sp.service.AbstractServiceTests;
 import dk.itst.oiosaml.sp.service.TestHelper;
 import dk.itst.oiosaml.sp.service.util.Constants;
@@ -157,4 +168,105 @@ public class UserAttributeQueryTest extends AbstractServiceTests {
 		Collection<UserAttribute> attrs = q.query("name", NameIDFormat.EMAIL,"attr1", "attr2");
 		assertEquals(2, attrs.size());
 	}
+
+	@Test
+	public void testBulkQuery() throws Exception {
+		Assertion ass = TestHelper.buildAssertion(null, spMetadata.getEntityID());
+		ass.getAttributeStatements().get(0).getAttributes().clear();
+		ass.getAttributeStatements().get(0).getAttributes().add(AttributeUtil.createAttribute("attr1", null, null));
+		Response resp = SAMLUtil.buildXMLObject(Response.class);
+		resp.getAssertions().add(ass);
+		resp.setIssuer(SAMLUtil.createIssuer(idpEntityId));
+		resp.setStatus(SAMLUtil.createStatus(StatusCode.SUCCESS_URI));
+		new OIOResponse(resp).sign(credential);
+		final String xml = XMLHelper.nodeToString(SAMLUtil.marshallObject(resp));
+
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		SOAPClient client = new SOAPClient() {
+			public XMLObject wsCall(OIOSamlObject obj, String location, String username, String password, boolean ignoreCertPath) throws IOException {
+				int n = active.incrementAndGet();
+				synchronized (maxActive) {
+					maxActive.set(Math.max(n, maxActive.get()));
+				}
+				try {
+					Thread.sleep(20);
+					if (obj.toXML().contains(">fail<")) {
+						throw new IOException("IdP failed");
+					} else if (obj.toXML().contains(">error<")) {
+						throw new LinkageError("Broken client");
+					}
+					return SAMLUtil.unmarshallElementFromString(xml);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+
+			public Envelope wsCall(XMLObject obj, String location, String username, String password, boolean ignoreCertPath) {
+				throw new UnsupportedOperationException();
+			}
+
+			public Envelope wsCall(String location, String username, String password, boolean ignoreCertPath, String xml, String soapAction) {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		List<String> nameIds = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			nameIds.add("user" + i);
+		}
+		nameIds.add("fail");
+		nameIds.add("error");
+		final List<UserAttributeQuery.Result> results = new ArrayList<UserAttributeQuery.Result>();
+		UserAttributeQuery q = new UserAttributeQuery(idpMetadata.getFirstMetadata(), null, null, client, credential, true, false, spMetadata.getEntityID());
+
+		// another batch to the same IdP shares the limit
+		final UserAttributeQuery other = new UserAttributeQuery(idpMetadata.getFirstMetadata(), null, null, client, credential, true, false, spMetadata.getEntityID());
+		final List<String> otherNameIds = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			otherNameIds.add("other" + i);
+		}
+		final AtomicInteger otherResults = new AtomicInteger();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					other.query(otherNameIds, NameIDFormat.PERSISTENT, 4, new UserAttributeQuery.ResultHandler() {
+						public void handle(UserAttributeQuery.Result result) {
+							if (result.isSuccess()) otherResults.incrementAndGet();
+						}
+					}, UserAttribute.create("attr1", null));
+				} catch (InterruptedException e) {}
+			}
+		};
+		t.start();
+		q.query(nameIds, NameIDFormat.PERSISTENT, 4, new UserAttributeQuery.ResultHandler() {
+			public void handle(UserAttributeQuery.Result result) {
+				results.add(result);
+			}
+		}, UserAttribute.create("attr1", null));
+		t.join(10000);
+
+		assertEquals(22, results.size());
+		assertEquals(20, otherResults.get());
+		assertTrue(maxActive.get() > 1);
+		assertTrue(maxActive.get() <= 4);
+		Set<String> received = new HashSet<String>();
+		for (UserAttributeQuery.Result result : results) {
+			received.add(result.getNameId());
+			assertTrue(result.getLatency() >= 0);
+			if (result.getNameId().equals("fail")) {
+				assertFalse(result.isSuccess());
+				assertTrue(result.getError() instanceof IOException);
+			} else if (result.getNameId().equals("error")) {
+				assertFalse(result.isSuccess());
+				assertTrue(result.getError().getCause() instanceof LinkageError);
+			} else {
+				assertTrue(result.isSuccess());
+				assertEquals(1, result.getAttributes().size());
+			}
+		}
+		assertEquals(new HashSet<String>(nameIds), received);
+	}
 }
@@ -0,0 +1,319 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.CRLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.xml.security.x509.X509Credential;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class CRLCacheTest extends AbstractTests {
+	private X509Credential cred;
+	private File crlFile;
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		cred = TestHelper.getCredential();
+		crlFile = File.createTempFile("test", ".crl");
+		directory = new File(crlFile.getAbsolutePath() + ".cache");
+	}
+
+	@After
+	public void tearDown() {
+		crlFile.delete();
+		if (directory.isDirectory()) {
+			for (File f : directory.listFiles()) {
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testReuseUnchangedCRL() throws Exception {
+		write(crlFile, generateCRL(null));
+		crlFile.setLastModified(System.currentTimeMillis() - 60000);
+		CRLCache cache = new CRLCache(null);
+		URL url = crlFile.toURI().toURL();
+
+		CRLCache.Entry entry = cache.get(url, 1000, null);
+		assertFalse(entry.isRevoked(BigInteger.ONE));
+		assertSame(entry, cache.get(url, 1000, null));
+
+		write(crlFile, generateCRL(BigInteger.ONE));
+		CRLCache.Entry changed = cache.get(url, 1000, null);
+		assertNotSame(entry, changed);
+		assertTrue(changed.isRevoked(BigInteger.ONE));
+		assertFalse(changed.isRevoked(BigInteger.TEN));
+	}
+
+	@Test
+	public void testPersistCRL() throws Exception {
+		write(crlFile, generateCRL(BigInteger.ONE));
+		URL url = crlFile.toURI().toURL();
+		new CRLCache(directory).get(url, 1000, null);
+		assertEquals(2, directory.listFiles().length);
+
+		// a new cache, for example after a restart, uses the stored CRL while the distribution point is unavailable
+		crlFile.delete();
+		CRLCache.Entry entry = new CRLCache(directory).get(url, 1000, null);
+		assertTrue(entry.isRevoked(BigInteger.ONE));
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailWhenUnavailableAndNotCached() throws Exception {
+		crlFile.delete();
+		new CRLCache(directory).get(crlFile.toURI().toURL(), 1000, null);
+	}
+
+	@Test
+	public void testConditionalDownload() throws Exception {
+		CRLServer server = new CRLServer();
+		new Thread(server).start();
+		try {
+			URL url = new URL("http://localhost:" + server.ss.getLocalPort() + "/crl");
+			server.respond("200 OK", "ETag: \"v1\"\r\n", generateCRL(BigInteger.ONE));
+			server.respond("304 Not Modified", "", new byte[0]);
+			server.respond("200 OK", "ETag: \"v2\"\r\n", generateCRL(BigInteger.TEN));
+
+			CRLCache cache = new CRLCache(null);
+			CRLCache.Entry entry = cache.get(url, 5000, null);
+			assertTrue(entry.isRevoked(BigInteger.ONE));
+			assertSame(entry, cache.get(url, 5000, null));
+			assertEquals("\"v1\"", server.requests.get(1).get("If-None-Match"));
+
+			entry = cache.get(url, 5000, null);
+			assertFalse(entry.isRevoked(BigInteger.ONE));
+			assertTrue(entry.isRevoked(BigInteger.TEN));
+		} finally {
+			server.ss.close();
+		}
+	}
+
+	@Test
+	public void testDownloadNotModifiedCRLAfterNextUpdate() throws Exception {
+		CRLServer server = new CRLServer();
+		new Thread(server).start();
+		try {
+			URL url = new URL("http://localhost:" + server.ss.getLocalPort() + "/crl");
+			X509v2CRLBuilder gen = builder(null);
+			gen.setNextUpdate(new Date(System.currentTimeMillis() + 1000));
+			server.respond("200 OK", "ETag: \"v1\"\r\n", sign(gen));
+			server.respond("304 Not Modified", "", new byte[0]);
+			server.respond("200 OK", "ETag: \"v2\"\r\n", generateCRL(BigInteger.TEN));
+
+			CRLCache cache = new CRLCache(null);
+			CRLCache.Entry entry = cache.get(url, 5000, null);
+			Thread.sleep(1500);
+
+			entry = cache.get(url, 5000, null);
+			assertTrue(entry.isRevoked(BigInteger.TEN));
+			assertEquals("\"v1\"", server.requests.get(1).get("If-None-Match"));
+			assertNull(server.requests.get(2).get("If-None-Match"));
+		} finally {
+			server.ss.close();
+		}
+	}
+
+	@Test(expected = CRLException.class)
+	public void testRejectCRLAfterNextUpdate() throws Exception {
+		X509v2CRLBuilder gen = builder(null);
+		gen.setNextUpdate(new Date(System.currentTimeMillis() - 1000));
+		write(crlFile, sign(gen));
+		new CRLCache(null).get(crlFile.toURI().toURL(), 1000, null);
+	}
+
+	@Test
+	public void testClearDeletesTemporaryFiles() throws Exception {
+		write(crlFile, generateCRL(BigInteger.ONE));
+		File tmp = crlFile.getParentFile();
+		int files = countTemporaryFiles(tmp);
+		CRLCache cache = new CRLCache(null);
+		cache.get(crlFile.toURI().toURL(), 1000, null);
+		assertTrue(countTemporaryFiles(tmp) > files);
+
+		cache.clear();
+		assertEquals(files, countTemporaryFiles(tmp));
+	}
+
+	@Test
+	public void testApplyDeltaCRL() throws Exception {
+		File deltaFile = File.createTempFile("delta", ".crl");
+		try {
+			X509v2CRLBuilder base = builder(BigInteger.valueOf(1));
+			base.addCRLEntry(BigInteger.ONE, new Date(), CRLReason.certificateHold);
+			base.addCRLEntry(BigInteger.valueOf(2), new Date(), CRLReason.keyCompromise);
+			GeneralNames names = new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, deltaFile.toURI().toString()));
+			base.addExtension(Extension.freshestCRL, false, new CRLDistPoint(new DistributionPoint[] { new DistributionPoint(new DistributionPointName(names), null, null) }));
+			write(crlFile, sign(base));
+
+			X509v2CRLBuilder delta = builder(BigInteger.valueOf(2));
+			delta.addExtension(Extension.deltaCRLIndicator, true, new CRLNumber(BigInteger.ONE));
+			delta.addCRLEntry(BigInteger.ONE, new Date(), CRLReason.removeFromCRL);
+			delta.addCRLEntry(BigInteger.TEN, new Date(), CRLReason.keyCompromise);
+			write(deltaFile, sign(delta));
+
+			CRLCache.Entry entry = new CRLCache(null).get(crlFile.toURI().toURL(), 1000, null);
+			assertFalse(entry.isRevoked(BigInteger.ONE));
+			assertTrue(entry.isRevoked(BigInteger.valueOf(2)));
+			assertTrue(entry.isRevoked(BigInteger.TEN));
+			assertEquals(2, entry.getRevokedCount());
+
+			// the base CRL is used if the delta CRL cannot be read
+			deltaFile.delete();
+			entry = new CRLCache(null).get(crlFile.toURI().toURL(), 1000, null);
+			assertTrue(entry.isRevoked(BigInteger.ONE));
+			assertFalse(entry.isRevoked(BigInteger.TEN));
+		} finally {
+			deltaFile.delete();
+		}
+	}
+
+	@Test
+	public void testRejectUntrustedCRL() throws Exception {
+		write(crlFile, generateCRL(BigInteger.ONE));
+		URL url = crlFile.toURI().toURL();
+		CRLCache cache = new CRLCache(null);
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setCertificateEntry("ca", cred.getEntityCertificate());
+		assertTrue(cache.get(url, 1000, new CRLTrustStore(ks)).isRevoked(BigInteger.ONE));
+
+		ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setCertificateEntry("other", TestHelper.getCredential().getEntityCertificate());
+		try {
+			cache.get(url, 1000, new CRLTrustStore(ks));
+			fail("CRL is not signed by the trusted certificate");
+		} catch (CRLException e) {}
+	}
+
+	private byte[] generateCRL(BigInteger serial) throws Exception {
+		X509v2CRLBuilder gen = builder(null);
+		if (serial != null) {
+			gen.addCRLEntry(serial, new Date(System.currentTimeMillis() - 1000), CRLReason.keyCompromise);
+		}
+		return sign(gen);
+	}
+
+	private X509v2CRLBuilder builder(BigInteger crlNumber) throws Exception {
+		X509v2CRLBuilder gen = new X509v2CRLBuilder(X500Name.getInstance(cred.getEntityCertificate().getSubjectX500Principal().getEncoded()), new Date());
+		gen.setNextUpdate(new Date(System.currentTimeMillis() + 60000));
+		if (crlNumber != null) {
+			gen.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+		}
+		return gen;
+	}
+
+	private byte[] sign(X509v2CRLBuilder gen) throws Exception {
+		ContentSigner sigGen = new JcaContentSignerBuilder("SHA1withRSA").setProvider("BC").build(cred.getPrivateKey());
+		return gen.build(sigGen).getEncoded();
+	}
+
+	private static int countTemporaryFiles(File directory) {
+		int count = 0;
+		for (String name : directory.list()) {
+			if (name.startsWith("crl")) count++;
+		}
+		return count;
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Minimal HTTP server, which answers each connection with the next queued response.
+	 */
+	private static class CRLServer implements Runnable {
+		private final ServerSocket ss;
+		private final List<byte[]> responses = Collections.synchronizedList(new ArrayList<byte[]>());
+		private final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+
+		private CRLServer() throws IOException {
+			ss = new ServerSocket(0);
+		}
+
+		private void respond(String status, String headers, byte[] body) throws IOException {
+			byte[] head = ("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+			byte[] response = new byte[head.length + body.length];
+			System.arraycopy(head, 0, response, 0, head.length);
+			System.arraycopy(body, 0, response, head.length, body.length);
+			responses.add(response);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = ss.accept();
+					try {
+						BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+						Map<String, String> headers = new HashMap<String, String>();
+						String line = in.readLine();
+						while ((line = in.readLine()) != null && line.length() > 0) {
+							int idx = line.indexOf(':');
+							if (idx > 0) {
+								headers.put(line.substring(0, idx), line.substring(idx + 1).trim());
+							}
+						}
+						requests.add(headers);
+						OutputStream os = client.getOutputStream();
+						os.write(responses.remove(0));
+						os.flush();
+					} finally {
+						client.close();
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed
+			}
+		}
+	}
+}
@@ -2,11 +2,13 @@ package dk.itst.oiosaml.sp.metadata;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
@@ -33,6 +35,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.security.x509.X509Credential;
 
 import dk.itst.oiosaml.common.SAMLUtil;
@@ -89,6 +92,37 @@ public class CRLCheckerTest extends AbstractTests {
 	}
 
 
+	@Test
+	public void revocation_should_survive_eviction_of_indexed_entities() throws Exception {
+		X509Certificate cert = cred.getEntityCertificate();
+		final File crlFile = generateCRL(cert);
+		File metadataFile = File.createTempFile("metadata", ".xml");
+		try {
+			StringBuilder sb = new StringBuilder("<md:EntitiesDescriptor xmlns:md=\"" + SAMLConstants.SAML20MD_NS + "\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">");
+			final Map<String, String> props = new HashMap<String, String>();
+			for (int i = 0; i < 5; i++) {
+				sb.append("<md:EntityDescriptor entityID=\"idp" + i + "\"><md:IDPSSODescriptor protocolSupportEnumeration=\"" + SAMLConstants.SAML20P_NS + "\">"
+						+ "<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>" + Base64.encodeBytes(cert.getEncoded()) + "</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>"
+						+ "<md:SingleSignOnService Binding=\"" + SAMLConstants.SAML2_REDIRECT_BINDING_URI + "\" Location=\"https://idp.example.com/sso\"/>"
+						+ "</md:IDPSSODescriptor></md:EntityDescriptor>");
+				props.put(Constants.PROP_CRL + "idp" + i, crlFile.toURI().toString());
+			}
+			FileOutputStream fos = new FileOutputStream(metadataFile);
+			IOUtils.write(sb.append("</md:EntitiesDescriptor>").toString(), fos, "UTF-8");
+			fos.close();
+
+			// the cache is smaller than the number of entities, so most entities are evicted before their check completes
+			IdpMetadata indexed = new IdpMetadata(SAMLConstants.SAML20P_NS, 2, new MetadataIndex(metadataFile, SAMLConstants.SAML20P_NS));
+			CRLChecker.Summary summary = checker.checkCertificates(indexed, TestHelper.buildConfiguration(props));
+			assertEquals(5, summary.getRevoked());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("idp" + i, 0, indexed.getMetadata("idp" + i).getCertificates().size());
+			}
+		} finally {
+			metadataFile.delete();
+		}
+	}
+
 //	@Test(expected=InvalidCertificateException.class)
 	@Test
 	public void testTimer() throws Exception {
@@ -174,8 +208,116 @@ public class CRLCheckerTest extends AbstractTests {
 		assertEquals(1, idp.getFirstMetadata().getCertificates().size());
 	}
 	
+	@Test
+	public void slow_crl_should_not_affect_other_certificates() throws Exception {
+		// accepts connections, but never answers
+		ServerSocket ss = new ServerSocket(0);
+		try {
+			EntityDescriptor slow = TestHelper.buildEntityDescriptor(cred);
+			slow.setEntityID("slow");
+			EntityDescriptor fast = TestHelper.buildEntityDescriptor(cred);
+			fast.setEntityID("fast");
+			IdpMetadata md = new IdpMetadata(SAMLConstants.SAML20P_NS, slow, fast);
+
+			final File crlFile = generateCRL(null);
+			final int port = ss.getLocalPort();
+			Configuration conf = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+				put(Constants.PROP_CRL + "slow", "http://localhost:" + port + "/crl");
+				put(Constants.PROP_CRL + "fast", crlFile.toURI().toString());
+				put(Constants.PROP_CRL_TIMEOUT, "30");
+				put(Constants.PROP_CRL_DEADLINE, "1");
+			}});
+
+			long start = System.currentTimeMillis();
+			CRLChecker.Summary summary = checker.checkCertificates(md, conf);
+			assertTrue(System.currentTimeMillis() - start < 10000);
+
+			assertEquals(2, summary.getCertificates());
+			assertEquals(1, summary.getValid());
+			assertEquals(1, summary.getTimedOut());
+			assertEquals(0, summary.getRevoked());
+			assertEquals(0, md.getMetadata("slow").getCertificates().size());
+			assertEquals(1, md.getMetadata("fast").getCertificates().size());
+		} finally {
+			ss.close();
+		}
+	}
+
+	@Test
+	public void summary_should_count_revoked_certificates() throws Exception {
+		X509Certificate cert = (X509Certificate) idp.getFirstMetadata().getCertificates().iterator().next();
+		final File crlFile = generateCRL(cert);
+
+		Configuration conf = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+			put(Constants.PROP_CRL + idp.getFirstMetadata().getEntityID(), crlFile.toURI().toString());
+		}});
+
+		CRLChecker.Summary summary = checker.checkCertificates(idp, conf);
+		assertEquals(1, summary.getEntities());
+		assertEquals(1, summary.getRevoked());
+		assertEquals(0, summary.getValid());
+	}
+
+	@Test
+	public void ocsp_should_be_used_when_configured() throws Exception {
+		X509Certificate cert = (X509Certificate) idp.getFirstMetadata().getCertificates().iterator().next();
+		OCSPClientTest.Responder responder = new OCSPClientTest.Responder(cert, cred.getPrivateKey());
+		new Thread(responder).start();
+		try {
+			final File caFile = File.createTempFile("test", "test");
+			caFile.deleteOnExit();
+			FileOutputStream fos = new FileOutputStream(caFile);
+			IOUtils.write(cert.getEncoded(), fos);
+			fos.close();
+
+			final String url = "http://localhost:" + responder.ss.getLocalPort() + "/ocsp";
+			Configuration conf = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+				put(Constants.PROP_OCSP_RESPONDER, url);
+				put(Constants.PROP_OCSP_CA, caFile.toURI().toString());
+			}});
+
+			CRLChecker.Summary summary = checker.checkCertificates(idp, conf);
+			assertEquals(1, summary.getValid());
+			assertEquals(1, idp.getFirstMetadata().getCertificates().size());
+
+			responder.revoked.add(cert.getSerialNumber());
+			summary = new CRLChecker().checkCertificates(idp, conf);
+			assertEquals(1, summary.getRevoked());
+			assertEquals(0, idp.getFirstMetadata().getCertificates().size());
+		} finally {
+			responder.ss.close();
+		}
+	}
+
+	@Test
+	public void ocsp_should_not_be_used_for_certificates_from_another_ca() throws Exception {
+		X509Credential other = TestHelper.getCredential();
+		OCSPClientTest.Responder responder = new OCSPClientTest.Responder(other.getEntityCertificate(), other.getPrivateKey());
+		new Thread(responder).start();
+		try {
+			final File caFile = File.createTempFile("test", "test");
+			caFile.deleteOnExit();
+			FileOutputStream fos = new FileOutputStream(caFile);
+			IOUtils.write(other.getEntityCertificate().getEncoded(), fos);
+			fos.close();
+
+			final String url = "http://localhost:" + responder.ss.getLocalPort() + "/ocsp";
+			Configuration conf = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+				put(Constants.PROP_OCSP_RESPONDER, url);
+				put(Constants.PROP_OCSP_CA, caFile.toURI().toString());
+			}});
+
+			CRLChecker.Summary summary = checker.checkCertificates(idp, conf);
+			assertEquals(1, summary.getRevoked());
+			assertEquals(0, idp.getFirstMetadata().getCertificates().size());
+			assertTrue(responder.requests.isEmpty());
+		} finally {
+			responder.ss.close();
+		}
+	}
+
 	private File generateCRL(X509Certificate cert) throws CRLException, NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException, OperatorCreationException {
-        X500Name issuer = new X500Name("CN=ca");
+        X500Name issuer = X500Name.getInstance(cred.getEntityCertificate().getSubjectX500Principal().getEncoded());
         Date thisUpdate = new Date();
         X509v2CRLBuilder gen = new X509v2CRLBuilder(issuer, thisUpdate);
 		gen.setNextUpdate(new Date(System.currentTimeMillis() + 60000));
@@ -0,0 +1,208 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.Random;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmark of reading a synthetic CRL into a {@link CRLIndex}, looking up serial numbers, and applying a delta.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java -Xmx64m dk.itst.oiosaml.sp.metadata.CRLIndexBenchmark [entries] [compare]
+ * </pre>
+ *
+ * The default is 1000000 entries. If <code>compare</code> is given, the CRL is also parsed into an
+ * {@link X509CRL} for comparison, which needs a much larger heap.
+ */
+public class CRLIndexBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(CRLIndexBenchmark.class);
+	// SHA256withRSA
+	private static final byte[] SIGNATURE_ALGORITHM = { 0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00 };
+	private static final byte[] TIME = { 0x17, 0x0d, '2', '4', '0', '1', '0', '1', '0', '0', '0', '0', '0', '0', 'Z' };
+	private static final byte[] NEXT_UPDATE = { 0x17, 0x0d, '4', '9', '0', '1', '0', '1', '0', '0', '0', '0', '0', '0', 'Z' };
+	// reasonCode keyCompromise
+	private static final byte[] ENTRY_EXTENSIONS = { 0x30, 0x0c, 0x30, 0x0a, 0x06, 0x03, 0x55, 0x1d, 0x15, 0x04, 0x03, 0x0a, 0x01, 0x01 };
+	private static final int ENTRY_LENGTH = 2 + 10 + TIME.length + ENTRY_EXTENSIONS.length;
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		File crlFile = File.createTempFile("benchmark", ".crl");
+		crlFile.deleteOnExit();
+
+		long start = System.currentTimeMillis();
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair keyPair = kpg.generateKeyPair();
+		generate(crlFile, entries, keyPair);
+		log.info("Generated CRL with " + entries + " entries, " + crlFile.length() / 1024 + " KB, in " + (System.currentTimeMillis() - start) + " ms");
+
+		long heap = usedHeap();
+		start = System.currentTimeMillis();
+		CRLIndex.Builder builder = new CRLIndex.Builder(tempFile());
+		CRLInfo info = CRLInfo.read(crlFile, builder, null);
+		CRLIndex index = builder.build();
+		long time = System.currentTimeMillis() - start;
+		log.info("Indexed " + index.size() + " serial numbers in " + time + " ms, heap used by index: " + (usedHeap() - heap) / 1024 + " KB");
+
+		start = System.currentTimeMillis();
+		boolean valid = info.verify(keyPair.getPublic());
+		log.info("Verified signature (" + valid + ") in " + (System.currentTimeMillis() - start) + " ms");
+
+		long[] lookups = new long[1000000];
+		Random random = new Random(1);
+		for (int i = 0; i < lookups.length; i++) {
+			// every second lookup is a revoked serial number
+			lookups[i] = i % 2 == 0 ? serial(random.nextInt(entries)).longValue() : random.nextLong() & 0xffffffffffffffL;
+		}
+		int hits = 0;
+		for (int round = 0; round < 3; round++) {
+			hits = 0;
+			start = System.nanoTime();
+			for (long serial : lookups) {
+				if (index.contains(BigInteger.valueOf(serial))) hits++;
+			}
+			time = System.nanoTime() - start;
+		}
+		log.info("Lookups: " + time / lookups.length + " ns per lookup, " + hits + " hits");
+
+		CRLIndex.Builder added = new CRLIndex.Builder(tempFile());
+		CRLIndex.Builder removed = new CRLIndex.Builder(tempFile());
+		for (int i = 0; i < 1000; i++) {
+			added.add(serial(entries + i));
+			removed.add(serial(i));
+		}
+		start = System.currentTimeMillis();
+		CRLIndex merged = CRLIndex.merge(index, added.build(), removed.build(), tempFile());
+		log.info("Applied delta of 1000 added and 1000 removed serial numbers in " + (System.currentTimeMillis() - start) + " ms, " + merged.size() + " serial numbers");
+
+		if (args.length > 1 && "compare".equals(args[1])) {
+			heap = usedHeap();
+			start = System.currentTimeMillis();
+			FileInputStream is = new FileInputStream(crlFile);
+			X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(is);
+			is.close();
+			crl.getRevokedCertificate(BigInteger.ONE);
+			log.info("X509CRL parsed in " + (System.currentTimeMillis() - start) + " ms, heap used: " + (usedHeap() - heap) / 1024 + " KB");
+
+			start = System.nanoTime();
+			hits = 0;
+			for (long serial : lookups) {
+				if (crl.getRevokedCertificate(BigInteger.valueOf(serial)) != null) hits++;
+			}
+			log.info("X509CRL lookups: " + (System.nanoTime() - start) / lookups.length + " ns per lookup, " + hits + " hits");
+		}
+	}
+
+	/**
+	 * Unique 8 octet serial numbers, in random order.
+	 */
+	private static BigInteger serial(int i) {
+		return BigInteger.valueOf((i * 0x9e3779b97f4a7c15L & 0xffffffffffffffL) | 0x0100000000000000L);
+	}
+
+	/**
+	 * Write a signed CRL as a stream, so large CRLs can be generated without keeping them in memory.
+	 */
+	private static void generate(File file, int entries, KeyPair keyPair) throws Exception {
+		byte[] issuer = new X500Principal("CN=Benchmark CA, O=test, C=DK").getEncoded();
+		long revokedLength = (long) entries * ENTRY_LENGTH;
+		byte[] revokedHeader = header(0x30, revokedLength);
+		long tbsContent = 3 + SIGNATURE_ALGORITHM.length + issuer.length + TIME.length + NEXT_UPDATE.length + revokedHeader.length + revokedLength;
+		byte[] tbsHeader = header(0x30, tbsContent);
+
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		int signatureLength = 256;
+		byte[] bitStringHeader = header(0x03, signatureLength + 1);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		try {
+			os.write(header(0x30, tbsHeader.length + tbsContent + SIGNATURE_ALGORITHM.length + bitStringHeader.length + signatureLength + 1));
+
+			ByteArrayOutputStream tbs = new ByteArrayOutputStream();
+			tbs.write(tbsHeader);
+			tbs.write(new byte[] { 0x02, 0x01, 0x01 });
+			tbs.write(SIGNATURE_ALGORITHM);
+			tbs.write(issuer);
+			tbs.write(TIME);
+			tbs.write(NEXT_UPDATE);
+			tbs.write(revokedHeader);
+			write(os, signature, tbs.toByteArray());
+
+			byte[] entry = new byte[ENTRY_LENGTH];
+			entry[0] = 0x30;
+			entry[1] = (byte) (ENTRY_LENGTH - 2);
+			entry[2] = 0x02;
+			entry[3] = 0x08;
+			System.arraycopy(TIME, 0, entry, 12, TIME.length);
+			System.arraycopy(ENTRY_EXTENSIONS, 0, entry, 12 + TIME.length, ENTRY_EXTENSIONS.length);
+			for (int i = 0; i < entries; i++) {
+				long serial = serial(i).longValue();
+				for (int k = 0; k < 8; k++) {
+					entry[4 + k] = (byte) (serial >>> (56 - 8 * k));
+				}
+				write(os, signature, entry);
+			}
+
+			os.write(SIGNATURE_ALGORITHM);
+			os.write(bitStringHeader);
+			os.write(0);
+			os.write(signature.sign());
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void write(OutputStream os, Signature signature, byte[] bytes) throws Exception {
+		os.write(bytes);
+		signature.update(bytes);
+	}
+
+	private static byte[] header(int tag, long length) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(tag);
+		if (length < 0x80) {
+			bos.write((int) length);
+		} else {
+			int octets = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+			bos.write(0x80 | octets);
+			for (int i = octets - 1; i >= 0; i--) {
+				bos.write((int) (length >> (8 * i)));
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	private static File tempFile() throws IOException {
+		File file = File.createTempFile("benchmark", ".idx");
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,99 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CRLIndexTest {
+	private List<File> files = new ArrayList<File>();
+
+	@After
+	public void tearDown() {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLookupUnsortedSerials() throws Exception {
+		Random random = new Random(1);
+		List<BigInteger> serials = new ArrayList<BigInteger>();
+		CRLIndex.Builder builder = new CRLIndex.Builder(newFile());
+		for (int i = 0; i < 1000; i++) {
+			BigInteger serial = new BigInteger(1 + random.nextInt(159), random);
+			serials.add(serial);
+			builder.add(serial);
+		}
+		BigInteger max = BigInteger.ONE.shiftLeft(160).subtract(BigInteger.ONE);
+		builder.add(max);
+		builder.add(BigInteger.valueOf(-1));
+		builder.add(BigInteger.ZERO);
+
+		CRLIndex index = builder.build();
+		assertEquals(1003, index.size());
+		for (BigInteger serial : serials) {
+			assertTrue(index.contains(serial));
+			assertFalse(index.contains(serial.negate().subtract(BigInteger.TEN)));
+		}
+		assertTrue(index.contains(max));
+		assertTrue(index.contains(BigInteger.valueOf(-1)));
+		assertTrue(index.contains(BigInteger.ZERO));
+		assertFalse(index.contains(BigInteger.valueOf(-2)));
+		assertFalse(index.contains(BigInteger.ONE.shiftLeft(200)));
+	}
+
+	@Test
+	public void testEmptyIndex() throws Exception {
+		CRLIndex index = new CRLIndex.Builder(newFile()).build();
+		assertEquals(0, index.size());
+		assertFalse(index.contains(BigInteger.ONE));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectLongSerial() throws Exception {
+		new CRLIndex.Builder(newFile()).add(BigInteger.ONE.shiftLeft(170));
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		CRLIndex base = build(1, 3, 5, 7);
+		CRLIndex added = build(2, 3, 8);
+		CRLIndex removed = build(5, 8, 9);
+
+		CRLIndex merged = CRLIndex.merge(base, added, removed, newFile());
+		assertEquals(4, merged.size());
+		for (int i : new int[] { 1, 2, 3, 7 }) {
+			assertTrue(merged.contains(BigInteger.valueOf(i)));
+		}
+		for (int i : new int[] { 4, 5, 8, 9 }) {
+			assertFalse(merged.contains(BigInteger.valueOf(i)));
+		}
+		// the input indexes are not changed
+		assertTrue(base.contains(BigInteger.valueOf(5)));
+		assertEquals(4, base.size());
+	}
+
+	private CRLIndex build(int... serials) throws IOException {
+		CRLIndex.Builder builder = new CRLIndex.Builder(newFile());
+		for (int serial : serials) {
+			builder.add(BigInteger.valueOf(serial));
+		}
+		return builder.build();
+	}
+
+	private File newFile() throws IOException {
+		File file = File.createTempFile("test", ".idx");
+		files.add(file);
+		return file;
+	}
+}
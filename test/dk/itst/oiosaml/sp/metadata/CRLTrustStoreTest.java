@@ -0,0 +1,101 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.xml.security.x509.X509Credential;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class CRLTrustStoreTest extends AbstractTests {
+	private X509Credential issuer1;
+	private X509Credential issuer2;
+	private CRLTrustStore trustStore;
+	private List<File> files = new ArrayList<File>();
+
+	@Before
+	public void setUp() throws Exception {
+		issuer1 = TestHelper.getCredential();
+		issuer2 = TestHelper.getCredential();
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, "password".toCharArray());
+		ks.setCertificateEntry("issuer1", issuer1.getEntityCertificate());
+		ks.setCertificateEntry("issuer2", issuer2.getEntityCertificate());
+		ks.setKeyEntry("key", issuer1.getPrivateKey(), "password".toCharArray(), new java.security.cert.Certificate[] { issuer1.getEntityCertificate() });
+		trustStore = new CRLTrustStore(ks);
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testVerifyByKeyIdentifier() throws Exception {
+		assertEquals(2, trustStore.size());
+		assertTrue(trustStore.verify(generateCRL(issuer2, getName(issuer2), true)));
+		assertFalse(trustStore.verify(generateCRL(TestHelper.getCredential(), getName(issuer2), true)));
+	}
+
+	@Test
+	public void testVerifyByIssuer() throws Exception {
+		// both certificates have the same subject, so both keys are candidates
+		assertTrue(trustStore.verify(generateCRL(issuer1, getName(issuer1), false)));
+		assertTrue(trustStore.verify(generateCRL(issuer2, getName(issuer2), false)));
+		assertFalse(trustStore.verify(generateCRL(issuer1, new X500Name("CN=other"), false)));
+		assertFalse(trustStore.verify(generateCRL(TestHelper.getCredential(), getName(issuer1), false)));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		assertEquals(0, CRLTrustStore.EMPTY.size());
+		assertFalse(CRLTrustStore.EMPTY.verify(generateCRL(issuer1, getName(issuer1), true)));
+	}
+
+	private static X500Name getName(X509Credential cred) {
+		return X500Name.getInstance(cred.getEntityCertificate().getSubjectX500Principal().getEncoded());
+	}
+
+	private CRLInfo generateCRL(X509Credential signer, X500Name issuer, boolean keyIdentifier) throws Exception {
+		X509v2CRLBuilder gen = new X509v2CRLBuilder(issuer, new Date());
+		gen.setNextUpdate(new Date(System.currentTimeMillis() + 60000));
+		if (keyIdentifier) {
+			gen.addExtension(Extension.authorityKeyIdentifier, false, new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(signer.getPublicKey()));
+		}
+		File file = File.createTempFile("test", ".crl");
+		File index = File.createTempFile("test", ".idx");
+		files.add(file);
+		files.add(index);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(gen.build(new JcaContentSignerBuilder("SHA1withRSA").build(signer.getPrivateKey())).getEncoded());
+		} finally {
+			os.close();
+		}
+		CRLIndex.Builder builder = new CRLIndex.Builder(index);
+		CRLInfo info = CRLInfo.read(file, builder, null);
+		builder.build();
+		return info;
+	}
+}
@@ -4,13 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xml.security.credential.Credential;
 
@@ -103,10 +108,60 @@ public class IdpMetadataTest extends AbstractTests {
 	
 	@Test(expected=IllegalArgumentException.class)
 	public void testAttributeServiceLocationShouldFailOnNoDescriptor() {
-		ed1.getRoleDescriptors().clear();
-		md.getMetadata("ed1").getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		ed1.getRoleDescriptors().remove(ed1.getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS));
+		new IdpMetadata(SAMLConstants.SAML20P_NS, ed1).getMetadata("ed1").getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI);
 	}
 	
+	@Test
+	public void testArtifactResolutionServiceByEndpointIndex() throws Exception {
+		ArtifactResolutionService ars = SAMLUtil.buildXMLObject(ArtifactResolutionService.class);
+		ars.setBinding(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		ars.setLocation("https://idp.example.com/ars1");
+		ars.setIndex(1);
+		ed1.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getArtifactResolutionServices().add(ars);
+		Metadata metadata = new IdpMetadata(SAMLConstants.SAML20P_NS, ed1).getMetadata("ed1");
+
+		String first = metadata.getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		assertEquals(first, metadata.getArtifactResolutionServiceLocation(0, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		assertEquals("https://idp.example.com/ars1", metadata.getArtifactResolutionServiceLocation(1, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		assertEquals(first, metadata.getArtifactResolutionServiceLocation(5, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+	}
+
+	@Test
+	public void testArtifactResolutionServiceLocations() throws Exception {
+		ArtifactResolutionService ars = SAMLUtil.buildXMLObject(ArtifactResolutionService.class);
+		ars.setBinding(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		ars.setLocation("https://idp.example.com/ars1");
+		ars.setIndex(1);
+		ed1.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getArtifactResolutionServices().add(ars);
+		Metadata metadata = new IdpMetadata(SAMLConstants.SAML20P_NS, ed1).getMetadata("ed1");
+		String first = metadata.getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+
+		assertEquals(Arrays.asList("https://idp.example.com/ars1"), metadata.getArtifactResolutionServiceLocations(1, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		// an unknown index can be resolved by all services
+		assertEquals(Arrays.asList(first, "https://idp.example.com/ars1"), metadata.getArtifactResolutionServiceLocations(5, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void artifactResolutionServiceShouldFailOnInvalidBinding() {
+		md.getMetadata("ed1").getArtifactResolutionServiceLocation(0, SAMLConstants.SAML2_POST_BINDING_URI);
+	}
+
+	@Test
+	public void testFindLoginEndpoint() {
+		Metadata metadata = md.getMetadata("ed1");
+		Endpoint endpoint = metadata.findLoginEndpoint(new String[] { "test", SAMLConstants.SAML2_REDIRECT_BINDING_URI.toUpperCase(), SAMLConstants.SAML2_POST_BINDING_URI });
+		assertEquals(SAMLConstants.SAML2_REDIRECT_BINDING_URI, endpoint.getBinding());
+		assertEquals(4, metadata.getSingleSignonServices().size());
+	}
+
+	@Test
+	public void testSingleLogoutServiceLocations() {
+		Metadata metadata = md.getMetadata("ed1");
+		assertEquals("https://saml-idp.trifork.com:9031/idp/SLO.saml2", metadata.getSingleLogoutServiceLocation());
+		assertEquals("https://saml-idp.trifork.com:9031/idp/SLO.saml2", metadata.getSingleLogoutServiceResponseLocation());
+	}
+
 	@Test
 	public void same_entity_id_must_be_merged_to_one_with_multiple_certificates() throws Exception {
 		EntityDescriptor ed3 = TestHelper.buildEntityDescriptor(TestHelper.getCredential());
@@ -117,4 +172,21 @@ public class IdpMetadataTest extends AbstractTests {
 		assertEquals(2, md.getMetadata("ed1").getCertificates().size());
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void keySnapshotIsReusedUntilRevocation() throws Exception {
+		Metadata metadata = md.getMetadata("ed1");
+		assertSame(metadata.getCertificates(), metadata.getCertificates());
+		assertSame(metadata.getPublicKeyIndex(), metadata.getPublicKeyIndex());
+		assertEquals(1, metadata.getPublicKeys().size());
+
+		X509Certificate cert = metadata.getCertificates().iterator().next();
+		metadata.setCertificateValid(cert, false);
+		assertEquals(0, metadata.getCertificates().size());
+		assertTrue(metadata.getPublicKeyIndex().isEmpty());
+
+		metadata.setCertificateValid(cert, true);
+		assertEquals(1, metadata.getCertificates().size());
+		assertEquals(cert.getPublicKey(), metadata.getPublicKeys().iterator().next());
+	}
+
+}
@@ -0,0 +1,133 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class IdpMetadataWatcherTest extends AbstractTests {
+	private File dir;
+	private Credential credential;
+	private IdpMetadataWatcher watcher;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(File.createTempFile("test", "test").getAbsolutePath() + ".metadata");
+		dir.mkdir();
+		credential = TestHelper.getCredential();
+
+		writeMetadata("idp1.xml", "idp1", 1000);
+		IdpMetadata.setMetadata(new IdpMetadata(SAMLConstants.SAML20P_NS, buildDescriptor("idp1")));
+		watcher = new IdpMetadataWatcher(dir, SAMLConstants.SAML20P_NS);
+	}
+
+	@After
+	public void tearDown() {
+		watcher.stopWatcher();
+		IdpMetadata.setMetadata(null);
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testFirstScanDoesNotReload() throws Exception {
+		IdpMetadata current = IdpMetadata.getInstance();
+		assertFalse(watcher.scan());
+		assertFalse(watcher.scan());
+		assertSame(current, IdpMetadata.getInstance());
+	}
+
+	@Test
+	public void testReloadOnAddAndRemove() throws Exception {
+		watcher.scan();
+
+		writeMetadata("idp2.xml", "idp2", 1000);
+		assertTrue(watcher.scan());
+		assertEquals(2, IdpMetadata.getInstance().getEntityIDs().size());
+		assertTrue(IdpMetadata.getInstance().enableDiscovery());
+
+		new File(dir, "idp1.xml").delete();
+		assertTrue(watcher.scan());
+		assertEquals(1, IdpMetadata.getInstance().getEntityIDs().size());
+		assertEquals("idp2", IdpMetadata.getInstance().getFirstMetadata().getEntityID());
+	}
+
+	@Test
+	public void testReloadChangedFile() throws Exception {
+		watcher.scan();
+		IdpMetadata current = IdpMetadata.getInstance();
+
+		writeMetadata("idp1.xml", "idp1-changed", 2000);
+		assertTrue(watcher.scan());
+		assertNotSame(current, IdpMetadata.getInstance());
+		assertEquals("idp1-changed", IdpMetadata.getInstance().getFirstMetadata().getEntityID());
+	}
+
+	@Test
+	public void testKeepPreviousOnInvalidFile() throws Exception {
+		watcher.scan();
+		IdpMetadata current = IdpMetadata.getInstance();
+
+		write("idp1.xml", "<invalid", 2000);
+		assertFalse(watcher.scan());
+		assertSame(current, IdpMetadata.getInstance());
+
+		writeMetadata("idp2.xml", "idp2", 1000);
+		assertTrue(watcher.scan());
+		assertEquals(2, IdpMetadata.getInstance().getEntityIDs().size());
+	}
+
+	@Test
+	public void testRevokedCertificatesStayRevoked() throws Exception {
+		watcher.scan();
+		IdpMetadata.Metadata md = IdpMetadata.getInstance().getMetadata("idp1");
+		X509Certificate certificate = md.getAllCertificates().iterator().next();
+		md.setCertificateValid(certificate, false);
+		assertTrue(md.getCertificates().isEmpty());
+
+		writeMetadata("idp2.xml", "idp2", 1000);
+		assertTrue(watcher.scan());
+		assertTrue(IdpMetadata.getInstance().getMetadata("idp1").getCertificates().isEmpty());
+		assertEquals(1, IdpMetadata.getInstance().getMetadata("idp2").getCertificates().size());
+	}
+
+	private EntityDescriptor buildDescriptor(String entityId) throws Exception {
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(credential);
+		ed.setEntityID(entityId);
+		return ed;
+	}
+
+	private void writeMetadata(String name, String entityId, long lastModified) throws Exception {
+		write(name, SAMLUtil.getSAMLObjectAsPrettyPrintXML(buildDescriptor(entityId)), lastModified);
+	}
+
+	private void write(String name, String content, long lastModified) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(content.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+		file.setLastModified(lastModified);
+	}
+}
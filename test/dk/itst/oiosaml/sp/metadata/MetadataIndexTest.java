@@ -0,0 +1,221 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class MetadataIndexTest extends AbstractTests {
+	private static final Logger log = LoggerFactory.getLogger(MetadataIndexTest.class);
+	private static final String MD_NS = SAMLConstants.SAML20MD_NS;
+	private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+	private Credential credential;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		credential = TestHelper.getCredential();
+		file = File.createTempFile("metadata", ".xml");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testIndexAggregate() throws Exception {
+		String cert = getCertificate();
+		write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- <md:EntityDescriptor entityID=\"comment\"> -->\n"
+				+ "<md:EntitiesDescriptor xmlns:md=\"" + MD_NS + "\" xmlns:ds=\"" + DS_NS + "\">\n"
+				+ idp("md:", "https://idp1.example.com/?a=1&amp;b=2", cert) + "\n"
+				+ "<md:EntityDescriptor entityID=\"sp\"><md:SPSSODescriptor protocolSupportEnumeration=\"" + SAMLConstants.SAML20P_NS + "\"/></md:EntityDescriptor>\n"
+				+ "<md:EntitiesDescriptor Name=\"nested\">" + idp("", "idp2", cert).replaceFirst("<EntityDescriptor", "<EntityDescriptor xmlns=\"" + MD_NS + "\"") + "</md:EntitiesDescriptor>\n"
+				+ "</md:EntitiesDescriptor>");
+
+		MetadataIndex index = new MetadataIndex(file, SAMLConstants.SAML20P_NS);
+		assertEquals(2, index.size());
+		assertNull(index.getEntry("sp"));
+
+		EntityDescriptor ed = index.getEntry("https://idp1.example.com/?a=1&b=2").load();
+		assertEquals("https://idp1.example.com/?a=1&b=2", ed.getEntityID());
+		assertNotNull(ed.getIDPSSODescriptor(SAMLConstants.SAML20P_NS));
+		assertEquals(1, new IdpMetadata(SAMLConstants.SAML20P_NS, ed).getFirstMetadata().getCertificates().size());
+
+		assertEquals("idp2", index.getEntry("idp2").load().getEntityID());
+	}
+
+	@Test
+	public void testSingleEntityDescriptor() throws Exception {
+		write(SAMLUtil.getSAMLObjectAsPrettyPrintXML(TestHelper.buildEntityDescriptor(credential)));
+		MetadataIndex index = new MetadataIndex(file, SAMLConstants.SAML20P_NS);
+		assertEquals(1, index.size());
+		index.getEntries().iterator().next().load();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failOnOtherDocuments() throws Exception {
+		write("<md:SPSSODescriptor xmlns:md=\"" + MD_NS + "\"/>");
+		new MetadataIndex(file, SAMLConstants.SAML20P_NS);
+	}
+
+	@Test
+	public void testLoadWhenFileIsModified() throws Exception {
+		String cert = getCertificate();
+		write("<md:EntitiesDescriptor xmlns:md=\"" + MD_NS + "\" xmlns:ds=\"" + DS_NS + "\">" + idp("md:", "idp1", cert) + idp("md:", "idp2", cert) + "</md:EntitiesDescriptor>");
+		MetadataIndex index = new MetadataIndex(file, SAMLConstants.SAML20P_NS);
+
+		// the entities move to other offsets, so the file must be indexed again
+		write("<md:EntitiesDescriptor xmlns:md=\"" + MD_NS + "\" xmlns:ds=\"" + DS_NS + "\">" + idp("md:", "idp0", cert) + idp("md:", "idp2", cert) + "</md:EntitiesDescriptor>");
+		assertTrue(index.isModified());
+		assertEquals("idp2", index.getEntry("idp2").load().getEntityID());
+		try {
+			index.getEntry("idp1").load();
+			fail("idp1 has been removed from the file");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testLazyIdpMetadata() throws Exception {
+		String cert = getCertificate();
+		StringBuilder sb = new StringBuilder("<md:EntitiesDescriptor xmlns:md=\"" + MD_NS + "\" xmlns:ds=\"" + DS_NS + "\">");
+		for (int i = 0; i < 5; i++) {
+			sb.append(idp("md:", "idp" + i, cert));
+		}
+		write(sb.append("</md:EntitiesDescriptor>").toString());
+
+		IdpMetadata md = new IdpMetadata(SAMLConstants.SAML20P_NS, 2, new MetadataIndex(file, SAMLConstants.SAML20P_NS));
+		assertEquals(5, md.getEntityIDs().size());
+		assertTrue(md.enableDiscovery());
+		assertEquals("idp0", md.getFirstMetadata().getEntityID());
+		assertNull(md.findSupportedEntity("unknown"));
+		assertEquals("idp3", md.findSupportedEntity("unknown", "idp3").getEntityID());
+
+		Metadata idp1 = md.getMetadata("idp1");
+		assertSame(idp1, md.getMetadata("idp1"));
+		X509Certificate certificate = idp1.getAllCertificates().iterator().next();
+		idp1.setCertificateValid(certificate, false);
+
+		// evict idp1 from the cache, the revocation must survive
+		md.getMetadata("idp2");
+		md.getMetadata("idp3");
+		Metadata reloaded = md.getMetadata("idp1");
+		assertFalse(idp1 == reloaded);
+		assertTrue(reloaded.getCertificates().isEmpty());
+
+		// and also survive a reload of the metadata
+		md.getMetadata("idp2");
+		md.getMetadata("idp3");
+		IdpMetadata copy = new IdpMetadata(SAMLConstants.SAML20P_NS, 2, new MetadataIndex(file, SAMLConstants.SAML20P_NS));
+		copy.copyCertificateStatus(md);
+		assertTrue(copy.getMetadata("idp1").getCertificates().isEmpty());
+		assertEquals(1, copy.getMetadata("idp2").getCertificates().size());
+	}
+
+	/**
+	 * Compare loading a 5,000 entity aggregate eagerly and using the index. Timings are logged at debug level.
+	 */
+	@Test
+	public void testLargeAggregate() throws Exception {
+		int entities = 5000;
+		String cert = getCertificate();
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			w.write("<md:EntitiesDescriptor xmlns:md=\"" + MD_NS + "\" xmlns:ds=\"" + DS_NS + "\">\n");
+			for (int i = 0; i < entities; i++) {
+				w.write(idp("md:", "https://idp" + i + ".example.com", cert));
+				w.write('\n');
+			}
+			w.write("</md:EntitiesDescriptor>");
+		} finally {
+			w.close();
+		}
+
+		long base = usedMemory();
+		long start = System.currentTimeMillis();
+		MetadataIndex index = new MetadataIndex(file, SAMLConstants.SAML20P_NS);
+		IdpMetadata indexed = new IdpMetadata(SAMLConstants.SAML20P_NS, 100, index);
+		long indexTime = System.currentTimeMillis() - start;
+		long indexMemory = usedMemory() - base;
+		assertEquals(entities, indexed.getEntityIDs().size());
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < entities; i += 50) {
+			assertEquals(1, indexed.getMetadata("https://idp" + i + ".example.com").getCertificates().size());
+		}
+		long lookupTime = System.currentTimeMillis() - start;
+
+		base = usedMemory();
+		start = System.currentTimeMillis();
+		List<EntityDescriptor> descriptors = ((EntitiesDescriptor) SAMLUtil.unmarshallElementFromFile(file.getAbsolutePath())).getEntityDescriptors();
+		IdpMetadata eager = new IdpMetadata(SAMLConstants.SAML20P_NS, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		long eagerTime = System.currentTimeMillis() - start;
+		long eagerMemory = usedMemory() - base;
+		assertEquals(entities, eager.getEntityIDs().size());
+
+		// the index keeps offsets instead of DOM trees
+		assertTrue(indexMemory * 10 < eagerMemory);
+
+		log.debug(entities + " entities, " + file.length() / 1024 + " KB");
+		log.debug("Indexed: " + indexTime + " ms, " + indexMemory / 1024 + " KB, " + lookupTime + " ms for " + (entities / 50) + " uncached lookups");
+		log.debug("Eager: " + eagerTime + " ms, " + eagerMemory / 1024 + " KB");
+	}
+
+	private static long usedMemory() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+
+	private String getCertificate() throws Exception {
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(credential);
+		return ed.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getKeyDescriptors().get(0).getKeyInfo().getX509Datas().get(0).getX509Certificates().get(0).getValue();
+	}
+
+	private static String idp(String prefix, String entityId, String cert) {
+		return "<" + prefix + "EntityDescriptor entityID=\"" + entityId + "\">"
+				+ "<" + prefix + "IDPSSODescriptor protocolSupportEnumeration=\"" + SAMLConstants.SAML20P_NS + "\">"
+				+ "<" + prefix + "KeyDescriptor use=\"signing\"><ds:KeyInfo>"
+				+ "<ds:X509Data><ds:X509Certificate>" + cert + "</ds:X509Certificate></ds:X509Data></ds:KeyInfo></" + prefix + "KeyDescriptor>"
+				+ "<" + prefix + "SingleSignOnService Binding=\"" + SAMLConstants.SAML2_REDIRECT_BINDING_URI + "\" Location=\"https://idp.example.com/sso\"/>"
+				+ "</" + prefix + "IDPSSODescriptor></" + prefix + "EntityDescriptor>";
+	}
+
+	private void write(String content) throws IOException {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(content.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
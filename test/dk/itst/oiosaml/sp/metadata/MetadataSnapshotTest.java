@@ -0,0 +1,165 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.util.BRSArtifact;
+
+public class MetadataSnapshotTest extends AbstractTests {
+	private static final Logger log = LoggerFactory.getLogger(MetadataSnapshotTest.class);
+	private Credential credential;
+	private File metadataFile;
+	private File snapshotFile;
+	private MetadataSnapshot snapshot;
+
+	@Before
+	public void setUp() throws Exception {
+		credential = TestHelper.getCredential();
+		metadataFile = File.createTempFile("metadata", ".xml");
+		snapshotFile = File.createTempFile("metadata", ".snapshot");
+		snapshotFile.delete();
+		snapshot = new MetadataSnapshot(snapshotFile);
+	}
+
+	@After
+	public void tearDown() {
+		metadataFile.delete();
+		snapshotFile.delete();
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		EntityDescriptor ed1 = buildDescriptor("idp1");
+		EntityDescriptor ed2 = buildDescriptor("idp2");
+		EntityDescriptor ed3 = buildDescriptor("idp1");
+		IdpMetadata md = new IdpMetadata(SAMLConstants.SAML20P_NS, ed1, ed2, ed3);
+		write(SAMLUtil.getSAMLObjectAsPrettyPrintXML(ed1));
+		String hash = MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, Collections.singletonList(metadataFile));
+
+		assertNull(snapshot.read(SAMLConstants.SAML20P_NS, hash));
+		assertTrue(snapshot.write(hash, md));
+
+		IdpMetadata copy = snapshot.read(SAMLConstants.SAML20P_NS, hash);
+		assertNotNull(copy);
+		assertEquals(md.getEntityIDs(), copy.getEntityIDs());
+		assertEquals("idp2", copy.findEntityIDBySourceID(BRSArtifact.getSourceID("idp2")));
+
+		Metadata expected = md.getMetadata("idp1");
+		Metadata actual = copy.getMetadata("idp1");
+		assertEquals(2, actual.getAllCertificates().size());
+		assertEquals(expected.getAllCertificates(), actual.getAllCertificates());
+		assertEquals(expected.getSigningMethods(), actual.getSigningMethods());
+		assertEquals(expected.getSingleSignonServiceLocation(SAMLConstants.SAML2_REDIRECT_BINDING_URI), actual.getSingleSignonServiceLocation(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
+		assertEquals(expected.getSingleSignonServices().size(), actual.getSingleSignonServices().size());
+		assertEquals(expected.getArtifactResolutionServiceLocation(0, SAMLConstants.SAML2_SOAP11_BINDING_URI), actual.getArtifactResolutionServiceLocation(0, SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		assertEquals(expected.getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI), actual.getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		assertEquals(expected.getSingleLogoutServiceLocation(), actual.getSingleLogoutServiceLocation());
+		assertEquals(expected.getSingleLogoutServiceResponseLocation(), actual.getSingleLogoutServiceResponseLocation());
+		assertEquals(expected.getAttributeNameFormats(), actual.getAttributeNameFormats());
+	}
+
+	@Test
+	public void testIgnoreOutdatedSnapshot() throws Exception {
+		write("<a/>");
+		List<File> files = Collections.singletonList(metadataFile);
+		String hash = MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, files);
+		assertTrue(snapshot.write(hash, new IdpMetadata(SAMLConstants.SAML20P_NS, buildDescriptor("idp1"))));
+
+		write("<b/>");
+		String changed = MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, files);
+		assertFalse(hash.equals(changed));
+		assertNull(snapshot.read(SAMLConstants.SAML20P_NS, changed));
+		assertFalse(hash.equals(MetadataSnapshot.hash(SAMLConstants.SAML11P_NS, files)));
+	}
+
+	@Test
+	public void testIgnoreCorruptSnapshot() throws Exception {
+		assertTrue(snapshot.write("hash", new IdpMetadata(SAMLConstants.SAML20P_NS, buildDescriptor("idp1"))));
+		assertNotNull(snapshot.read(SAMLConstants.SAML20P_NS, "hash"));
+
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+		raf.setLength(snapshotFile.length() / 2);
+		raf.close();
+		assertNull(snapshot.read(SAMLConstants.SAML20P_NS, "hash"));
+	}
+
+	/**
+	 * Compare starting from the metadata XML and from the snapshot with 1,000 entities. Timings are logged at debug level.
+	 */
+	@Test
+	public void testColdStart() throws Exception {
+		int entities = 1000;
+		EntitiesDescriptor eds = SAMLUtil.buildXMLObject(EntitiesDescriptor.class);
+		for (int i = 0; i < entities; i++) {
+			eds.getEntityDescriptors().add(buildDescriptor("https://idp" + i + ".example.com"));
+		}
+		write(SAMLUtil.getSAMLObjectAsPrettyPrintXML(eds));
+		List<File> files = Arrays.asList(metadataFile);
+
+		long start = System.currentTimeMillis();
+		List<EntityDescriptor> descriptors = ((EntitiesDescriptor) SAMLUtil.unmarshallElementFromFile(metadataFile.getAbsolutePath())).getEntityDescriptors();
+		IdpMetadata md = new IdpMetadata(SAMLConstants.SAML20P_NS, descriptors.toArray(new EntityDescriptor[descriptors.size()]));
+		long parseTime = System.currentTimeMillis() - start;
+
+		String hash = MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, files);
+		assertTrue(snapshot.write(hash, md));
+
+		start = System.currentTimeMillis();
+		IdpMetadata copy = snapshot.read(SAMLConstants.SAML20P_NS, MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, files));
+		long snapshotTime = System.currentTimeMillis() - start;
+		assertEquals(entities, copy.getEntityIDs().size());
+		assertTrue(snapshotFile.length() < metadataFile.length());
+		for (int i = 0; i < entities; i += 100) {
+			String entityID = "https://idp" + i + ".example.com";
+			assertEquals(new ArrayList<X509Certificate>(md.getMetadata(entityID).getCertificates()),
+					new ArrayList<X509Certificate>(copy.getMetadata(entityID).getCertificates()));
+			assertEquals(md.getMetadata(entityID).getSingleSignonServiceLocation(SAMLConstants.SAML2_REDIRECT_BINDING_URI),
+					copy.getMetadata(entityID).getSingleSignonServiceLocation(SAMLConstants.SAML2_REDIRECT_BINDING_URI));
+		}
+
+		log.debug(entities + " entities, " + metadataFile.length() / 1024 + " KB metadata, " + snapshotFile.length() / 1024 + " KB snapshot");
+		log.debug("Parsing XML: " + parseTime + " ms, reading snapshot: " + snapshotTime + " ms, saved " + (parseTime - snapshotTime) + " ms");
+	}
+
+	private EntityDescriptor buildDescriptor(String entityId) {
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(credential);
+		ed.setEntityID(entityId);
+		return ed;
+	}
+
+	private void write(String content) throws IOException {
+		FileOutputStream os = new FileOutputStream(metadataFile);
+		try {
+			os.write(content.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
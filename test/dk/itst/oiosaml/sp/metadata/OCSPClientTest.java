@@ -0,0 +1,198 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v1CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.xml.security.x509.X509Credential;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class OCSPClientTest extends AbstractTests {
+	private X509Credential ca;
+	private Responder responder;
+	private URL url;
+	private OCSPClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		ca = TestHelper.getCredential();
+		responder = new Responder(ca.getEntityCertificate(), ca.getPrivateKey());
+		new Thread(responder).start();
+		url = new URL("http://localhost:" + responder.ss.getLocalPort() + "/ocsp");
+		client = new OCSPClient();
+		client.setTimeout(5000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		responder.ss.close();
+	}
+
+	@Test
+	public void testCombinedRequestAndCache() throws Exception {
+		X509Certificate good = issue(BigInteger.valueOf(1));
+		X509Certificate revoked = issue(BigInteger.valueOf(2));
+		responder.revoked.add(revoked.getSerialNumber());
+
+		Map<X509Certificate, OCSPClient.Status> status = client.getStatus(url, ca.getEntityCertificate(), Arrays.asList(good, revoked));
+		assertEquals(OCSPClient.Status.GOOD, status.get(good));
+		assertEquals(OCSPClient.Status.REVOKED, status.get(revoked));
+		assertEquals(Arrays.asList(2), responder.requests);
+
+		status = client.getStatus(url, ca.getEntityCertificate(), Collections.singletonList(revoked));
+		assertEquals(OCSPClient.Status.REVOKED, status.get(revoked));
+		assertEquals(1, responder.requests.size());
+	}
+
+	@Test
+	public void testSingleRequestsWhenCombinedRequestIsRejected() throws Exception {
+		X509Certificate c1 = issue(BigInteger.valueOf(1));
+		X509Certificate c2 = issue(BigInteger.valueOf(2));
+		responder.maxCertificates = 1;
+
+		Map<X509Certificate, OCSPClient.Status> status = client.getStatus(url, ca.getEntityCertificate(), Arrays.asList(c1, c2));
+		assertEquals(OCSPClient.Status.GOOD, status.get(c1));
+		assertEquals(OCSPClient.Status.GOOD, status.get(c2));
+		assertEquals(Arrays.asList(2, 1, 1), responder.requests);
+	}
+
+	@Test
+	public void testRejectResponseFromOtherSigner() throws Exception {
+		responder.signingKey = TestHelper.getCredential().getPrivateKey();
+		try {
+			client.getStatus(url, ca.getEntityCertificate(), Collections.singletonList(issue(BigInteger.ONE)));
+			fail("Response is not signed by the CA");
+		} catch (OCSPException e) {}
+	}
+
+	private X509Certificate issue(BigInteger serial) throws Exception {
+		X509Credential cred = TestHelper.getCredential();
+		X500Name issuer = new JcaX509CertificateHolder(ca.getEntityCertificate()).getSubject();
+		X509v1CertificateBuilder gen = new X509v1CertificateBuilder(issuer, serial, new Date(System.currentTimeMillis() - 10000),
+				new Date(System.currentTimeMillis() + 100000L), new X500Name("CN=test" + serial), SubjectPublicKeyInfo.getInstance(cred.getPublicKey().getEncoded()));
+		X509CertificateHolder holder = gen.build(new JcaContentSignerBuilder("SHA1withRSA").build(ca.getPrivateKey()));
+		return new JcaX509CertificateConverter().getCertificate(holder);
+	}
+
+	/**
+	 * Minimal OCSP responder, which reports the certificates in {@link #revoked} as revoked and all other certificates as good.
+	 */
+	static class Responder implements Runnable {
+		final ServerSocket ss;
+		final Set<BigInteger> revoked = Collections.synchronizedSet(new HashSet<BigInteger>());
+		/**
+		 * The number of certificates in each request.
+		 */
+		final List<Integer> requests = Collections.synchronizedList(new ArrayList<Integer>());
+		private final X509CertificateHolder certificate;
+		volatile PrivateKey signingKey;
+		volatile int maxCertificates = Integer.MAX_VALUE;
+
+		Responder(X509Certificate certificate, PrivateKey signingKey) throws Exception {
+			this.certificate = new JcaX509CertificateHolder(certificate);
+			this.signingKey = signingKey;
+			ss = new ServerSocket(0);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = ss.accept();
+					try {
+						DataInputStream in = new DataInputStream(client.getInputStream());
+						int length = 0;
+						String line;
+						while ((line = readLine(in)).length() > 0) {
+							if (line.toLowerCase().startsWith("content-length:")) {
+								length = Integer.parseInt(line.substring(15).trim());
+							}
+						}
+						byte[] body = new byte[length];
+						in.readFully(body);
+
+						byte[] response = respond(new OCSPReq(body));
+						OutputStream os = client.getOutputStream();
+						os.write(("HTTP/1.1 200 OK\r\nContent-Type: application/ocsp-response\r\nContent-Length: " + response.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+						os.write(response);
+						os.flush();
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						client.close();
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed
+			}
+		}
+
+		private byte[] respond(OCSPReq req) throws Exception {
+			Req[] list = req.getRequestList();
+			requests.add(list.length);
+			if (list.length > maxCertificates) {
+				return new OCSPRespBuilder().build(OCSPRespBuilder.MALFORMED_REQUEST, null).getEncoded();
+			}
+
+			BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(certificate.getSubject()));
+			Date now = new Date();
+			for (Req r : list) {
+				CertificateStatus status = CertificateStatus.GOOD;
+				if (revoked.contains(r.getCertID().getSerialNumber())) {
+					status = new RevokedStatus(now, CRLReason.keyCompromise);
+				}
+				builder.addResponse(r.getCertID(), status, now, new Date(now.getTime() + 60000), null);
+			}
+			return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL,
+					builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(signingKey), null, now)).getEncoded();
+		}
+
+		private static String readLine(DataInputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') sb.append((char) c);
+			}
+			return sb.toString();
+		}
+	}
+}
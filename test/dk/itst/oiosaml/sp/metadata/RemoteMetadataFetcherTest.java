@@ -0,0 +1,238 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.model.OIOSamlObject;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class RemoteMetadataFetcherTest extends AbstractTests {
+	private static final long HOUR = 3600 * 1000L;
+
+	private BasicX509Credential credential;
+	private File file;
+	private MetadataServer server;
+	private RemoteMetadataFetcher fetcher;
+	private IdpMetadata initial;
+
+	@Before
+	public void setUp() throws Exception {
+		credential = TestHelper.getCredential();
+		file = File.createTempFile("metadata", ".xml");
+		file.delete();
+		server = new MetadataServer();
+		new Thread(server).start();
+
+		initial = new IdpMetadata(SAMLConstants.SAML20P_NS, buildDescriptor("initial"));
+		IdpMetadata.setMetadata(initial);
+		fetcher = new RemoteMetadataFetcher(new URL("http://localhost:" + server.ss.getLocalPort() + "/metadata"), file,
+				SAMLConstants.SAML20P_NS, credential.getPublicKey(), HOUR, false, 0);
+		fetcher.setTimeout(5000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fetcher.stopFetcher();
+		server.ss.close();
+		IdpMetadata.setMetadata(null);
+		file.delete();
+	}
+
+	@Test
+	public void testFetchAndConditionalGet() throws Exception {
+		EntitiesDescriptor eds = buildAggregate("idp1", "idp2");
+		eds.setCacheDuration(2 * HOUR);
+		server.respond("200 OK", "ETag: \"v1\"\r\nLast-Modified: Tue, 15 Nov 1994 08:12:31 GMT\r\n", sign(eds));
+
+		assertTrue(fetcher.fetch());
+		assertEquals(2, IdpMetadata.getInstance().getEntityIDs().size());
+		assertTrue(IdpMetadata.getInstance().getEntityIDs().contains("idp2"));
+		assertTrue(file.isFile());
+		assertEquals(2 * HOUR, fetcher.getNextRefresh());
+
+		IdpMetadata current = IdpMetadata.getInstance();
+		server.respond("304 Not Modified", "", "");
+		assertFalse(fetcher.fetch());
+		assertSame(current, IdpMetadata.getInstance());
+		assertEquals("\"v1\"", server.requests.get(1).get("If-None-Match"));
+		assertNotNull(server.requests.get(1).get("If-Modified-Since"));
+	}
+
+	@Test
+	public void testValidUntilLimitsRefresh() throws Exception {
+		EntitiesDescriptor eds = buildAggregate("idp1");
+		eds.setCacheDuration(24 * HOUR);
+		eds.setValidUntil(new DateTime().plusHours(4));
+		server.respond("200 OK", "", sign(eds));
+
+		assertTrue(fetcher.fetch());
+		assertTrue(fetcher.getNextRefresh() <= 2 * HOUR);
+		assertTrue(fetcher.getNextRefresh() > HOUR);
+	}
+
+	@Test
+	public void testRejectExpiredMetadata() throws Exception {
+		EntitiesDescriptor eds = buildAggregate("idp1");
+		eds.setValidUntil(new DateTime().minusMinutes(1));
+		server.respond("200 OK", "", sign(eds));
+		assertRejected();
+	}
+
+	@Test
+	public void testRejectInvalidSignature() throws Exception {
+		String xml = sign(buildAggregate("idp1"));
+		server.respond("200 OK", "", xml.replace("idp1", "idp2"));
+		assertRejected();
+
+		server.respond("200 OK", "", new OIOSamlObject(buildAggregate("idp1")).toXML());
+		assertRejected();
+	}
+
+	@Test
+	public void testKeepMetadataOnServerError() throws Exception {
+		server.respond("500 Internal Server Error", "", "error");
+		try {
+			fetcher.fetch();
+			fail("Fetch should fail");
+		} catch (IOException e) {}
+		assertSame(initial, IdpMetadata.getInstance());
+		assertFalse(file.exists());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failWithoutCertificate() throws Exception {
+		new RemoteMetadataFetcher(new URL("http://localhost/metadata"), file, SAMLConstants.SAML20P_NS, null, HOUR, false, 0);
+	}
+
+	@Test
+	public void testStopDuringFetch() throws Exception {
+		// a server which accepts connections, but never answers
+		ServerSocket silent = new ServerSocket(0);
+		try {
+			final RemoteMetadataFetcher slow = new RemoteMetadataFetcher(new URL("http://localhost:" + silent.getLocalPort() + "/metadata"), file,
+					SAMLConstants.SAML20P_NS, credential.getPublicKey(), HOUR, false, 0);
+			slow.setTimeout(5000);
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						slow.fetch();
+					} catch (IOException e) {}
+				}
+			};
+			t.start();
+			Thread.sleep(500);
+			assertTrue(t.isAlive());
+
+			long start = System.currentTimeMillis();
+			slow.startFetcher();
+			slow.stopFetcher();
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			t.join();
+		} finally {
+			silent.close();
+		}
+	}
+
+	private void assertRejected() throws IOException {
+		try {
+			fetcher.fetch();
+			fail("Metadata should be rejected");
+		} catch (IllegalArgumentException e) {}
+		assertSame(initial, IdpMetadata.getInstance());
+		assertFalse(file.exists());
+	}
+
+	private EntitiesDescriptor buildAggregate(String ... entityIds) {
+		EntitiesDescriptor eds = SAMLUtil.buildXMLObject(EntitiesDescriptor.class);
+		for (String entityId : entityIds) {
+			eds.getEntityDescriptors().add(buildDescriptor(entityId));
+		}
+		return eds;
+	}
+
+	private EntityDescriptor buildDescriptor(String entityId) {
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(credential);
+		ed.setEntityID(entityId);
+		return ed;
+	}
+
+	private String sign(EntitiesDescriptor eds) {
+		OIOSamlObject obj = new OIOSamlObject(eds);
+		obj.sign(credential);
+		return obj.toXML();
+	}
+
+	/**
+	 * Minimal HTTP server, which answers each connection with the next queued response.
+	 */
+	private static class MetadataServer implements Runnable {
+		private final ServerSocket ss;
+		private final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+		private final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+
+		private MetadataServer() throws IOException {
+			ss = new ServerSocket(0);
+		}
+
+		private void respond(String status, String headers, String body) throws IOException {
+			byte[] bytes = body.getBytes("UTF-8");
+			responses.add("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + bytes.length + "\r\nConnection: close\r\n\r\n" + body);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = ss.accept();
+					try {
+						BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+						Map<String, String> headers = new HashMap<String, String>();
+						String line = in.readLine();
+						while ((line = in.readLine()) != null && line.length() > 0) {
+							int idx = line.indexOf(':');
+							if (idx > 0) {
+								headers.put(line.substring(0, idx), line.substring(idx + 1).trim());
+							}
+						}
+						requests.add(headers);
+						OutputStream os = client.getOutputStream();
+						os.write(responses.remove(0).getBytes("UTF-8"));
+						os.flush();
+					} finally {
+						client.close();
+					}
+				}
+			} catch (IOException e) {
+				// server socket closed
+			}
+		}
+	}
+}
@@ -25,6 +25,7 @@ package dk.itst.oiosaml.sp.metadata;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 import org.opensaml.saml2.metadata.EntityDescriptor;
@@ -53,4 +54,18 @@ public class SPMetadataTest extends AbstractTests{
 		
 		new OIOSamlObject(desc).verifySignature(credential.getPublicKey());
 	}
+
+	@Test
+	public void testEndpointLocations() throws Exception {
+		SPMetadata metadata = TestHelper.buildSPMetadata();
+
+		assertEquals("http://jre-mac.trifork.com:8080/saml/SAMLAssertionConsumer", metadata.getDefaultAssertionConsumerService().getLocation());
+		assertEquals("http://jre-mac.trifork.com:8080/saml/SAMLAssertionConsumer", metadata.getAssertionConsumerServiceLocation(0));
+		assertNull(metadata.getAssertionConsumerServiceLocation(10));
+
+		assertEquals("http://jre-mac.trifork.com:8080/saml/LogoutServiceHTTPRedirect", metadata.getSingleLogoutServiceHTTPRedirectLocation());
+		assertEquals("http://jre-mac.trifork.com:8080/saml/LogoutServiceSOAP", metadata.getSingleLogoutServiceSOAPLocation());
+		assertNull(metadata.getSingleLogoutServiceHTTPPostLocation());
+		assertNull(metadata.getSingleLogoutServiceHTTPPostResponseLocation());
+	}
 }
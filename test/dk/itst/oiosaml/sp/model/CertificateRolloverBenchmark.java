@@ -0,0 +1,107 @@
+package dk.itst.oiosaml.sp.model;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.security.PublicKeyIndex;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+/**
+ * Benchmark of the verification of a signed response from an IdP which is rolling over its certificate, so the
+ * metadata has three certificates. The signing certificate is the last one in the metadata.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.sp.model.CertificateRolloverBenchmark [verifications]
+ * </pre>
+ *
+ * The default is 2000 verifications. In the first variant, the keys not used for signing fail verification, which
+ * {@link OIOSamlObject} and xmlsec log as warnings, so run it with a log configuration which only logs errors.
+ */
+public class CertificateRolloverBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(CertificateRolloverBenchmark.class);
+
+	private interface Verifier {
+		boolean verify(OIOResponse response);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int verifications = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		DefaultBootstrap.bootstrap();
+		Security.addProvider(new BouncyCastleProvider());
+
+		List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+		BasicX509Credential signing = null;
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		for (int i = 0; i < 3; i++) {
+			KeyPair kp = kpg.generateKeyPair();
+			signing = new BasicX509Credential();
+			signing.setPublicKey(kp.getPublic());
+			signing.setPrivateKey(kp.getPrivate());
+			signing.setEntityCertificate(TestHelper.getCertificate(signing));
+			certificates.add(signing.getEntityCertificate());
+		}
+
+		Response srt = (Response) ((ArtifactResponse) SAMLUtil.unmarshallElement(CertificateRolloverBenchmark.class.getResourceAsStream("response.xml"))).getMessage();
+		OIOResponse response = new OIOResponse(srt);
+		response.sign(signing);
+
+		final List<PublicKey> keys = new ArrayList<PublicKey>();
+		for (X509Certificate certificate : certificates) {
+			keys.add(certificate.getPublicKey());
+		}
+		// the index is built when the metadata is loaded
+		final PublicKeyIndex index = new PublicKeyIndex(certificates);
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			run("Each key in metadata order", response, verifications, new Verifier() {
+				public boolean verify(OIOResponse response) {
+					for (PublicKey key : keys) {
+						if (response.verifySignature(key)) {
+							return true;
+						}
+					}
+					return false;
+				}
+			});
+			run("Key named by KeyInfo", response, verifications, new Verifier() {
+				public boolean verify(OIOResponse response) {
+					return response.verifySignature(index);
+				}
+			});
+		}
+	}
+
+	private static void run(String name, OIOResponse response, int verifications, Verifier verifier) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < verifications; i++) {
+			if (!verifier.verify(response)) {
+				throw new IllegalStateException("Signature not verified");
+			}
+		}
+		long time = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - bytes;
+		log.info(name + ": " + time / verifications / 1000 + " us and " + allocated / verifications / 1024 + " KB allocated per verification");
+	}
+}
@@ -3,12 +3,15 @@ package dk.itst.oiosaml.sp.model;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -24,10 +27,15 @@ import org.opensaml.xml.encryption.EncryptionParameters;
 import org.opensaml.xml.encryption.KeyEncryptionParameters;
 import org.opensaml.xml.security.SecurityTestHelper;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.signature.X509SKI;
 import org.opensaml.xml.util.XMLHelper;
 import org.w3c.dom.Element;
 
 import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.security.PublicKeyIndex;
 import dk.itst.oiosaml.sp.AbstractTests;
 import dk.itst.oiosaml.sp.model.validation.ValidationException;
 import dk.itst.oiosaml.sp.service.TestHelper;
@@ -104,6 +112,47 @@ public class OIOResponseTest extends AbstractTests {
 		response.validateResponse(srt.getDestination(), cert, false); 
 	} 
 	
+	@Test
+	public void testValidateResponseWithRolledOverCertificates() throws Exception {
+		X509Certificate old1 = TestHelper.getCertificate(TestHelper.getCredential());
+		X509Certificate old2 = TestHelper.getCertificate(TestHelper.getCredential());
+		X509Certificate signing = ((X509Credential) credential).getEntityCertificate();
+		PublicKeyIndex keys = new PublicKeyIndex(Arrays.asList(old1, old2, signing));
+
+		assertEquals(3, keys.getKeys().size());
+		assertSame(keys.getKeys().get(2), keys.findKey(srt.getSignature().getKeyInfo()));
+		assertSame(keys.getKeys().get(2), keys.getCandidates(srt.getSignature().getKeyInfo()).get(0));
+
+		response.validateResponse(srt.getDestination(), keys, false);
+	}
+
+	@Test
+	public void testIgnoreMalformedKeyInfo() throws Exception {
+		X509Certificate old = TestHelper.getCertificate(TestHelper.getCredential());
+		PublicKeyIndex keys = new PublicKeyIndex(Arrays.asList(old, cert));
+
+		KeyInfo keyInfo = SAMLUtil.buildXMLObject(KeyInfo.class);
+		X509Data data = SAMLUtil.buildXMLObject(X509Data.class);
+		org.opensaml.xml.signature.X509Certificate malformed = SAMLUtil.buildXMLObject(org.opensaml.xml.signature.X509Certificate.class);
+		malformed.setValue("%%% not base64 %%%");
+		data.getX509Certificates().add(malformed);
+		X509SKI ski = SAMLUtil.buildXMLObject(X509SKI.class);
+		ski.setValue("%%% not base64 %%%");
+		data.getX509SKIs().add(ski);
+		keyInfo.getX509Datas().add(data);
+
+		assertNull(keys.findKey(keyInfo));
+		// every key is tried instead
+		assertEquals(keys.getKeys(), keys.getCandidates(keyInfo));
+	}
+
+	@Test(expected=ValidationException.class)
+	public void validateFailOnUnknownCertificates() throws Exception {
+		X509Certificate old1 = TestHelper.getCertificate(TestHelper.getCredential());
+		X509Certificate old2 = TestHelper.getCertificate(TestHelper.getCredential());
+		response.validateResponse(srt.getDestination(), new PublicKeyIndex(Arrays.asList(old1, old2)), false);
+	}
+
 	@Test(expected=ValidationException.class)
 	public void validateFailOnWrongStatus() throws Exception {
 		srt.setStatus(SAMLUtil.createStatus(StatusCode.AUTHN_FAILED_URI));
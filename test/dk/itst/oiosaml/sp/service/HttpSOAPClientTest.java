@@ -1,6 +1,7 @@
 package dk.itst.oiosaml.sp.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
@@ -10,6 +11,9 @@ import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -23,6 +27,7 @@ import org.opensaml.xml.util.XMLHelper;
 
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.util.AsyncSOAPClient;
 import dk.itst.oiosaml.sp.service.util.HttpSOAPClient;
 
 public class HttpSOAPClientTest extends AbstractTests {
@@ -52,6 +57,25 @@ public class HttpSOAPClientTest extends AbstractTests {
 		assertEquals("\"http://www.oasis-open.org/committees/security\"", ds.headers.get("SOAPAction"));
 		
 		assertEquals("test:test", new String(Base64.decode(ds.headers.get("Authorization").split(" ")[1]), "UTF-8"));
+		assertNull(ds.headers.get("Transfer-Encoding"));
+		assertEquals(ds.body.getBytes("UTF-8").length, Integer.parseInt(ds.headers.get("Content-Length")));
+		assertTrue(ds.body.startsWith("<soapenv:Envelope"));
+		assertTrue(ds.body.contains("ArtifactResolve"));
+	}
+
+	@Test
+	public void testArtifactResolveAsync() throws Exception {
+		ArtifactResolve ar = SAMLUtil.buildXMLObject(ArtifactResolve.class);
+		final CountDownLatch completed = new CountDownLatch(1);
+		
+		Future<Envelope> result = client.wsCallAsync(ar, "http://localhost:12349", null, null, true, new AsyncSOAPClient.Listener() {
+			public void completed(Future<Envelope> result) {
+				completed.countDown();
+			}
+		});
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertTrue(result.isDone());
+		assertTrue(result.get().getBody().getUnknownXMLObjects().get(0) instanceof ArtifactResponse);
 	}
 
 	@Test
@@ -64,6 +88,7 @@ public class HttpSOAPClientTest extends AbstractTests {
 	private static class DummyServer implements Runnable {
 		private ServerSocket ss;
 		private HashMap<String, String> headers;
+		private String body;
 
 		public DummyServer() throws IOException {
 			ss = new ServerSocket(12349);
@@ -81,9 +106,21 @@ public class HttpSOAPClientTest extends AbstractTests {
 				headers = new HashMap<String, String>();
 				while ((line = in.readLine()) != null) {
 					if ("".equals(line.trim())) {
-						for (int i = 0; i < Integer.parseInt(headers.get("Content-Length")); i++) {
-							sb.append((char)in.read());
+						if ("chunked".equals(headers.get("Transfer-Encoding"))) {
+							int length;
+							while ((length = Integer.parseInt(in.readLine().trim(), 16)) > 0) {
+								for (int i = 0; i < length; i++) {
+									sb.append((char)in.read());
+								}
+								in.readLine();
+							}
+							in.readLine();
+						} else {
+							for (int i = 0; i < Integer.parseInt(headers.get("Content-Length")); i++) {
+								sb.append((char)in.read());
+							}
 						}
+						body = sb.toString();
 						break;
 					}
 					String[] h = line.split(": ");
@@ -0,0 +1,97 @@
+package dk.itst.oiosaml.sp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.metadata.SPMetadata.RenderedMetadata;
+
+public class MetadataHandlerTest extends AbstractServiceTests {
+	private MetadataHandler mh;
+	private RequestContext ctx;
+
+	@Before
+	public void setUp() {
+		mh = new MetadataHandler();
+		ctx = new RequestContext(req, res, idpMetadata, spMetadata, credential, null, handler, bindingHandlerFactory);
+		context.checking(new Expectations() {{
+			allowing(req).getParameter("unsigned"); will(returnValue(null));
+			allowing(req).getParameter("raw"); will(returnValue(null));
+		}});
+	}
+
+	@Test
+	public void testRenderedMetadataIsCached() throws Exception {
+		RenderedMetadata rendered = spMetadata.getRenderedMetadata(credential, true);
+		assertSame(rendered, spMetadata.getRenderedMetadata(credential, true));
+
+		EntityDescriptor ed = (EntityDescriptor) SAMLUtil.unmarshallElementFromString(new String(rendered.getBytes(), "UTF-8"));
+		assertEquals(spMetadata.getEntityID(), ed.getEntityID());
+
+		RenderedMetadata unsigned = spMetadata.getRenderedMetadata(credential, false);
+		assertTrue(!unsigned.getETag().equals(rendered.getETag()));
+
+		// a replaced credential is rendered again
+		RenderedMetadata rerendered = spMetadata.getRenderedMetadata(TestHelper.getCredential(), true);
+		assertTrue(rendered != rerendered);
+		assertTrue(!rerendered.getETag().equals(rendered.getETag()));
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		final RenderedMetadata rendered = spMetadata.getRenderedMetadata(credential, true);
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		context.checking(new Expectations() {{
+			one(req).getHeader("If-None-Match"); will(returnValue(null));
+			one(req).getDateHeader("If-Modified-Since"); will(returnValue(-1L));
+			one(res).setHeader("ETag", rendered.getETag());
+			one(res).setDateHeader("Last-Modified", rendered.getLastModified());
+			one(res).setCharacterEncoding("utf-8");
+			one(res).setContentLength(rendered.getBytes().length);
+			one(res).getOutputStream(); will(returnValue(new ServletOutputStream() {
+				public void write(int b) throws IOException {
+					bos.write(b);
+				}
+			}));
+		}});
+		mh.handleGet(ctx);
+		assertEquals(new String(rendered.getBytes(), "UTF-8"), new String(bos.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void testNotModified() throws Exception {
+		final RenderedMetadata rendered = spMetadata.getRenderedMetadata(credential, true);
+		context.checking(new Expectations() {{
+			one(req).getHeader("If-None-Match"); will(returnValue("\"other\", " + rendered.getETag()));
+			one(res).setHeader("ETag", rendered.getETag());
+			one(res).setDateHeader("Last-Modified", rendered.getLastModified());
+			one(res).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}});
+		mh.handleGet(ctx);
+	}
+
+	@Test
+	public void testNotModifiedSince() throws Exception {
+		final RenderedMetadata rendered = spMetadata.getRenderedMetadata(credential, true);
+		context.checking(new Expectations() {{
+			one(req).getHeader("If-None-Match"); will(returnValue(null));
+			one(req).getDateHeader("If-Modified-Since"); will(returnValue(rendered.getLastModified() + 1000));
+			one(res).setHeader("ETag", rendered.getETag());
+			one(res).setDateHeader("Last-Modified", rendered.getLastModified());
+			one(res).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}});
+		mh.handleGet(ctx);
+	}
+}
@@ -1,6 +1,8 @@
 package dk.itst.oiosaml.sp.service;
 
 import static dk.itst.oiosaml.sp.service.TestHelper.buildAssertion;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -14,7 +16,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -51,6 +57,7 @@ import dk.itst.oiosaml.sp.PassiveUserAssertion;
 import dk.itst.oiosaml.sp.UserAssertion;
 import dk.itst.oiosaml.sp.model.validation.OIOSAMLAssertionValidator;
 import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.util.AsyncSOAPClient;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.SOAPClient;
 import dk.itst.oiosaml.sp.service.util.Utils;
@@ -143,11 +150,72 @@ public class SAMLAssertionConsumerHandlerTest extends AbstractServiceTests {
 			one(res).sendRedirect("requesturi?query");
 		}});
 		sh.setSoapClient(client);
+		assertFalse(sh.isAsync(ctx));
 		
 		expectCacheHeaders();
 		sh.handleGet(ctx);
 	}
 	
+	@Test
+	public void testResolveAsync() throws Exception {
+		final ByteArrayOutputStream bos = generateArtifact();
+		final AsyncSOAPClient client = context.mock(AsyncSOAPClient.class);
+
+		context.checking(new Expectations() {{
+			allowing(req).getCookies(); will(returnValue(null));
+			allowing(req).getParameter(Constants.SAML_SAMLART); will(returnValue(Base64.encodeBytes(bos.toByteArray())));
+			allowing(req).getParameter(Constants.SAML_SAMLRESPONSE); will(returnValue(null));
+			one(req).getParameter(Constants.SAML_RELAYSTATE); will(returnValue(handler.saveRequest(new Request("requesturi", "query", "GET", new HashMap<String, String[]>()))));
+			one(client).wsCallAsync(with(any(XMLObject.class)), with(equal(idpMetadata.getMetadata("idp1.test.oio.dk").getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI))), with(aNull(String.class)), with(aNull(String.class)), with(any(Boolean.class)), with(any(AsyncSOAPClient.Listener.class)));
+			will(new Action() {
+				public void describeTo(Description description) {}
+
+				public Object invoke(Invocation invocation) throws Throwable {
+					final ArtifactResolve req = (ArtifactResolve) invocation.getParameter(0);
+					FutureTask<Envelope> result = new FutureTask<Envelope>(new Callable<Envelope>() {
+						public Envelope call() throws Exception {
+							return buildResponse(req.getID(), true, false, null);
+						}
+					});
+					result.run();
+					((AsyncSOAPClient.Listener) invocation.getParameter(5)).completed(result);
+					return result;
+				}
+			});
+			one(session).setAttribute(with(equal(Constants.SESSION_USER_ASSERTION)), with(any(UserAssertion.class)));
+			one(session).getMaxInactiveInterval(); will(returnValue(30));
+			one(res).sendRedirect("requesturi?query");
+		}});
+		sh.setSoapClient(client);
+		assertTrue(sh.isAsync(ctx));
+
+		final List<AsyncSAMLHandler.Continuation> continuations = new ArrayList<AsyncSAMLHandler.Continuation>();
+		sh.handleGetAsync(ctx, new AsyncSAMLHandler.Callback() {
+			public void resume(AsyncSAMLHandler.Continuation continuation) {
+				continuations.add(continuation);
+			}
+		});
+		assertEquals(1, continuations.size());
+
+		expectCacheHeaders();
+		continuations.get(0).run();
+	}
+	
+	@Test
+	public void testAsyncTimeoutCoversSOAPTimeouts() throws Exception {
+		final ByteArrayOutputStream bos = generateArtifact();
+		context.checking(new Expectations() {{
+			allowing(req).getParameter(Constants.SAML_SAMLART); will(returnValue(Base64.encodeBytes(bos.toByteArray())));
+		}});
+		conf.put(Constants.PROP_SOAP_CONNECT_TIMEOUT, "2");
+		conf.put(Constants.PROP_SOAP_READ_TIMEOUT, "3");
+		configuration = TestHelper.buildConfiguration(conf);
+		ctx = new RequestContext(req, res, idpMetadata, spMetadata, credential, configuration, handler, bindingHandlerFactory);
+
+		// the artifact selects a single service, which may wait for a connection, connect and read
+		assertEquals(2000 + 2000 + 3000, sh.getAsyncTimeout(ctx));
+	}
+
 	@Test
 	public void testPost() throws Exception {
 		String id = Utils.generateUUID();
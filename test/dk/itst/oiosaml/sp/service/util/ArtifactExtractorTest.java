@@ -0,0 +1,278 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jmock.Expectations;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.artifact.SAML2ArtifactType0004;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata;
+import dk.itst.oiosaml.sp.model.OIOResponse;
+import dk.itst.oiosaml.sp.service.AbstractServiceTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class ArtifactExtractorTest extends AbstractServiceTests {
+	private static final Pattern ID = Pattern.compile("ArtifactResolve[^>]*\\sID=\"([^\"]+)\"");
+	private static final Pattern DESTINATION = Pattern.compile("ArtifactResolve[^>]*\\sDestination=\"([^\"]+)\"");
+
+	private List<Service> services = new ArrayList<Service>();
+	private EntityDescriptor ed;
+	private String entityId;
+	private HttpSOAPClient client;
+	
+	@Before
+	public void setUp() throws Exception {
+		ed = TestHelper.buildEntityDescriptor(credential);
+		entityId = ed.getEntityID();
+		ed.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getArtifactResolutionServices().clear();
+		client = new HttpSOAPClient(new HttpSOAPTransport(1000, 5000, 5));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Service service : services) {
+			service.ss.close();
+		}
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		String unavailable = addUnavailableService();
+		Service service = addService();
+		EndpointHealth health = new EndpointHealth(1, 60000);
+		ArtifactExtractor extractor = newExtractor(health, false);
+
+		expectArtifact(5);
+		assertNotNull(extractor.extract(req));
+		assertEquals(1, service.requests.get());
+		assertTrue(health.getScore(unavailable) < 1);
+
+		// the unavailable service is skipped
+		assertNotNull(extractor.extract(req));
+		assertEquals(2, service.requests.get());
+		assertEquals(service.getLocation(), health.order(getLocations()).get(0));
+	}
+
+	@Test
+	public void testFailWhenAllServicesAreUnavailable() throws Exception {
+		addUnavailableService();
+		addUnavailableService();
+		expectArtifact(5);
+		try {
+			newExtractor(new EndpointHealth(3, 60000), false).extract(req);
+			fail("No service is available");
+		} catch (IOException e) {}
+	}
+
+	@Test
+	public void testUseServiceSelectedByEndpointIndex() throws Exception {
+		Service other = addService();
+		Service selected = addService();
+		expectArtifact(1);
+
+		assertNotNull(newExtractor(new EndpointHealth(3, 60000), false).extract(req));
+		assertEquals(1, selected.requests.get());
+		assertEquals(0, other.requests.get());
+	}
+
+	@Test
+	public void testHedgeSlowService() throws Exception {
+		Service slow = addService();
+		slow.delay = 3000;
+		Service fast = addService();
+		EndpointHealth health = new EndpointHealth(3, 60000);
+		for (int i = 0; i < 20; i++) {
+			health.success(slow.getLocation(), 10);
+		}
+		expectArtifact(5);
+
+		long start = System.currentTimeMillis();
+		assertNotNull(newExtractor(health, true).extract(req));
+		assertTrue(System.currentTimeMillis() - start < slow.delay);
+		assertEquals(1, slow.requests.get());
+		assertEquals(1, fast.requests.get());
+
+		// each service gets its own request
+		assertEquals(slow.getLocation(), slow.destinations.get(0));
+		assertEquals(fast.getLocation(), fast.destinations.get(0));
+		assertFalse(slow.ids.get(0).equals(fast.ids.get(0)));
+	}
+
+	@Test
+	public void testWaitForHedgedServiceWhenArtifactIsConsumed() throws Exception {
+		Service slow = addService();
+		slow.delay = 1000;
+		Service fast = addService();
+		// the slow service has already consumed the artifact when the hedged request arrives
+		fast.empty = true;
+		EndpointHealth health = new EndpointHealth(3, 60000);
+		for (int i = 0; i < 20; i++) {
+			health.success(slow.getLocation(), 10);
+		}
+		expectArtifact(5);
+
+		long start = System.currentTimeMillis();
+		OIOResponse response = newExtractor(health, true).extract(req);
+		assertNotNull(response.getResponse());
+		assertTrue(System.currentTimeMillis() - start >= slow.delay);
+		assertEquals(1, slow.requests.get());
+		assertEquals(1, fast.requests.get());
+	}
+
+	@Test
+	public void testFailoverAsync() throws Exception {
+		addUnavailableService();
+		Service service = addService();
+		expectArtifact(5);
+
+		final List<ArtifactExtractor.Resolution> resolutions = new ArrayList<ArtifactExtractor.Resolution>();
+		newExtractor(new EndpointHealth(3, 60000), false).extractAsync(req, new ArtifactExtractor.Listener() {
+			public void resolved(ArtifactExtractor.Resolution resolution) {
+				synchronized (resolutions) {
+					resolutions.add(resolution);
+					resolutions.notify();
+				}
+			}
+		});
+		synchronized (resolutions) {
+			if (resolutions.isEmpty()) {
+				resolutions.wait(5000);
+			}
+		}
+		assertEquals(1, resolutions.size());
+		assertNotNull(resolutions.get(0).getResponse());
+		assertEquals(1, service.requests.get());
+	}
+
+	private ArtifactExtractor newExtractor(EndpointHealth health, boolean hedge) {
+		return new ArtifactExtractor(new IdpMetadata(SAMLConstants.SAML20P_NS, ed), spMetadata.getEntityID(), client, null, null, false, health, hedge);
+	}
+
+	private Service addService() throws Exception {
+		Service service = new Service();
+		new Thread(service).start();
+		services.add(service);
+		addLocation(service.getLocation());
+		return service;
+	}
+
+	private String addUnavailableService() throws Exception {
+		ServerSocket ss = new ServerSocket(0);
+		ss.close();
+		String location = "http://localhost:" + ss.getLocalPort() + "/ars";
+		addLocation(location);
+		return location;
+	}
+
+	private void addLocation(String location) {
+		List<ArtifactResolutionService> list = ed.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getArtifactResolutionServices();
+		ArtifactResolutionService ars = SAMLUtil.buildXMLObject(ArtifactResolutionService.class);
+		ars.setBinding(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+		ars.setLocation(location);
+		ars.setIndex(list.size());
+		list.add(ars);
+	}
+
+	private List<String> getLocations() {
+		List<String> locations = new ArrayList<String>();
+		for (ArtifactResolutionService ars : ed.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getArtifactResolutionServices()) {
+			locations.add(ars.getLocation());
+		}
+		return locations;
+	}
+
+	private void expectArtifact(int endpointIndex) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(SAML2ArtifactType0004.TYPE_CODE);
+		bos.write(endpointIndex >> 8);
+		bos.write(endpointIndex);
+		bos.write(MessageDigest.getInstance(OIOSAMLConstants.SHA_HASH_ALGORHTM).digest(entityId.getBytes("UTF-8")));
+		bos.write("12345678901234567890".getBytes());
+		final String artifact = Base64.encodeBytes(bos.toByteArray());
+		context.checking(new Expectations() {{
+			allowing(req).getParameter(Constants.SAML_SAMLART); will(returnValue(artifact));
+		}});
+	}
+
+	/**
+	 * Artifact resolution service, which answers every &lt;ArtifactResolve&gt; with a successful &lt;ArtifactResponse&gt;.
+	 */
+	private class Service extends HttpSOAPTransportTest.Server {
+		private final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		private final List<String> destinations = Collections.synchronizedList(new ArrayList<String>());
+		/**
+		 * Answer with a successful &lt;ArtifactResponse&gt; without a message.
+		 */
+		private volatile boolean empty;
+
+		private Service() throws IOException {
+			super(new ServerSocket(0), null);
+		}
+
+		private String getLocation() {
+			return "http://localhost:" + ss.getLocalPort() + "/ars";
+		}
+
+		@Override
+		protected void received(byte[] request) throws IOException {
+			Matcher m = ID.matcher(new String(request, "UTF-8"));
+			ids.add(m.find() ? m.group(1) : null);
+			m = DESTINATION.matcher(new String(request, "UTF-8"));
+			destinations.add(m.find() ? m.group(1) : null);
+		}
+
+		@Override
+		protected byte[] respond(byte[] request) throws IOException {
+			Matcher m = ID.matcher(new String(request, "UTF-8"));
+			if (!m.find()) {
+				throw new IOException("Not an ArtifactResolve: " + new String(request, "UTF-8"));
+			}
+			ArtifactResponse res = SAMLUtil.buildXMLObject(ArtifactResponse.class);
+			res.setID(Utils.generateUUID());
+			res.setIssueInstant(new DateTime());
+			res.setIssuer(SAMLUtil.createIssuer(entityId));
+			res.setInResponseTo(m.group(1));
+			res.setStatus(SAMLUtil.createStatus(StatusCode.SUCCESS_URI));
+			Response response = SAMLUtil.buildXMLObject(Response.class);
+			response.setStatus(SAMLUtil.createStatus(StatusCode.SUCCESS_URI));
+			if (!empty) {
+				res.setMessage(response);
+			}
+
+			Envelope env = SAMLUtil.buildXMLObject(Envelope.class);
+			Body body = SAMLUtil.buildXMLObject(Body.class);
+			env.setBody(body);
+			body.getUnknownXMLObjects().add(res);
+			return XMLHelper.nodeToString(SAMLUtil.marshallObject(env)).getBytes("UTF-8");
+		}
+	}
+}
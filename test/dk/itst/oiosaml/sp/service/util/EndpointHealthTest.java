@@ -0,0 +1,81 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EndpointHealthTest {
+	private static final List<String> LOCATIONS = Arrays.asList("a", "b", "c");
+
+	@Test
+	public void testOrderByScore() {
+		EndpointHealth health = new EndpointHealth(3, 1000);
+		assertEquals(LOCATIONS, health.order(LOCATIONS));
+
+		health.failure("a");
+		assertEquals(Arrays.asList("b", "c", "a"), health.order(LOCATIONS));
+		assertTrue(health.getScore("a") < 1.0);
+
+		health.success("a", 10);
+		health.success("a", 10);
+		health.failure("b");
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+	}
+
+	@Test
+	public void testOpenCircuit() throws Exception {
+		EndpointHealth health = new EndpointHealth(3, 100);
+		for (int i = 0; i < 4; i++) {
+			health.failure("b");
+			health.success("b", 10);
+		}
+		health.failure("b");
+		health.failure("b");
+		health.failure("a");
+		health.failure("a");
+		health.failure("a");
+		assertTrue(health.getScore("a") > health.getScore("b"));
+		// the circuit of a is open, so it is placed last even though b has a lower score
+		assertEquals(Arrays.asList("c", "b", "a"), health.order(LOCATIONS));
+
+		Thread.sleep(150);
+		// a single trial call is allowed after the open period, ordering alone does not use it
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+		health.begin("a");
+		assertEquals(Arrays.asList("c", "b", "a"), health.order(LOCATIONS));
+
+		// a cancelled trial call does not keep the circuit open
+		health.cancelled("a");
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+		health.begin("a");
+		assertEquals(Arrays.asList("c", "b", "a"), health.order(LOCATIONS));
+
+		health.success("a", 10);
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+		health.failure("a");
+		assertEquals(Arrays.asList("c", "a", "b"), health.order(LOCATIONS));
+	}
+
+	@Test
+	public void testHedgeDelay() {
+		EndpointHealth health = new EndpointHealth(3, 1000);
+		for (int i = 1; i <= 19; i++) {
+			health.success("a", i);
+		}
+		assertEquals(-1, health.getHedgeDelay("a"));
+		assertEquals(-1, health.getHedgeDelay("b"));
+
+		health.success("a", 20);
+		assertEquals(20, health.getHedgeDelay("a"));
+
+		for (int i = 1; i <= 100; i++) {
+			health.success("a", i);
+		}
+		assertEquals(96, health.getHedgeDelay("a"));
+	}
+}
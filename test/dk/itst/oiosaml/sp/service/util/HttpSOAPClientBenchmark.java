@@ -0,0 +1,144 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.URI;
+
+import org.apache.commons.io.IOUtils;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.NameIDFormat;
+import dk.itst.oiosaml.sp.model.OIOAttributeQuery;
+import dk.itst.oiosaml.sp.util.AttributeUtil;
+
+/**
+ * Benchmark of the memory allocated by an attribute query with a large response, comparing the streaming
+ * {@link HttpSOAPClient} with the previous string based pipeline, which serialized the request to a string,
+ * encoded it twice, read the response into a string, and parsed the string.
+ *
+ * This is not run as part of the tests. Run it with the test classpath on a HotSpot JVM:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.sp.service.util.HttpSOAPClientBenchmark [attributes] [requests]
+ * </pre>
+ *
+ * The default is a response with 5000 attributes and 200 requests. The results are logged at info level. Use a
+ * log4j configuration without debug logging for dk.itst, because {@link HttpSOAPClient} reads the response into a
+ * string to log it when debug logging is enabled.
+ */
+public class HttpSOAPClientBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(HttpSOAPClientBenchmark.class);
+	private static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
+
+	private interface Call {
+		XMLObject call(OIOAttributeQuery query) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int attributes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		DefaultBootstrap.bootstrap();
+
+		byte[] response = createResponse(attributes);
+		log.info("Response with " + attributes + " attributes: " + response.length / 1024 + " KB");
+
+		HttpSOAPTransportTest.Server server = new HttpSOAPTransportTest.Server(new ServerSocket(0), response);
+		new Thread(server).start();
+		try {
+			final String location = "http://localhost:" + server.ss.getLocalPort() + "/aqs";
+			final HttpSOAPTransport transport = new HttpSOAPTransport(30000, 20000, 1);
+			final HttpSOAPClient client = new HttpSOAPClient(transport);
+			for (int round = 0; round < 2; round++) {
+				// the first round warms up the JIT
+				run("String pipeline", location, requests, new Call() {
+					public XMLObject call(OIOAttributeQuery query) throws Exception {
+						return stringCall(transport, location, query);
+					}
+				});
+				run("Streaming pipeline", location, requests, new Call() {
+					public XMLObject call(OIOAttributeQuery query) throws Exception {
+						return client.wsCall(query, location, null, null, false);
+					}
+				});
+			}
+		} finally {
+			server.ss.close();
+		}
+	}
+
+	private static void run(String name, String location, int requests, Call call) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long allocated = 0;
+		long time = 0;
+		for (int i = 0; i < requests; i++) {
+			// the query is created outside the measurement, it is the same for both pipelines
+			OIOAttributeQuery query = OIOAttributeQuery.newQuery(location, "joetest", NameIDFormat.PERSISTENT, "http://sp");
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			if (!(call.call(query) instanceof Response)) {
+				throw new IllegalStateException("Unexpected response");
+			}
+			time += System.nanoTime() - start;
+			allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+		}
+		log.info(name + ": " + allocated / requests / 1024 + " KB allocated and " + time / requests / 1000 + " us per request");
+	}
+
+	/**
+	 * The pipeline used by {@link HttpSOAPClient} before requests and responses were streamed.
+	 */
+	private static XMLObject stringCall(SOAPTransport transport, String location, OIOAttributeQuery query) throws Exception {
+		String xml = query.toSoapEnvelope();
+		SOAPTransport.Exchange exchange = transport.open(new URI(location), false);
+		String result;
+		try {
+			exchange.setHeader("Content-Type", "text/xml; charset=utf-8");
+			exchange.setHeader("SOAPAction", "\"" + SOAP_ACTION + "\"");
+			OutputStream os = exchange.send(xml.getBytes("UTF-8").length);
+			IOUtils.write(xml, os, "UTF-8");
+			os.close();
+			exchange.getStatus();
+			InputStream is = exchange.getBody();
+			result = IOUtils.toString(is, "UTF-8");
+			is.close();
+		} finally {
+			exchange.close();
+		}
+		Envelope envelope = (Envelope) SAMLUtil.unmarshallElementFromString(result);
+		return envelope.getBody().getUnknownXMLObjects().get(0);
+	}
+
+	private static byte[] createResponse(int attributes) throws Exception {
+		AttributeStatement statement = SAMLUtil.buildXMLObject(AttributeStatement.class);
+		for (int i = 0; i < attributes; i++) {
+			org.opensaml.saml2.core.Attribute attribute = AttributeUtil.createAttribute("urn:oid:1.3.6.1.4.1.1466.115.121.1." + i, "attribute" + i, "urn:oasis:names:tc:SAML:2.0:attrname-format:basic");
+			attribute.getAttributeValues().add(AttributeUtil.createAttributeValue("Value of attribute number " + i + " in a large attribute query response"));
+			statement.getAttributes().add(attribute);
+		}
+		Assertion assertion = SAMLUtil.buildXMLObject(Assertion.class);
+		assertion.setIssuer(SAMLUtil.createIssuer("http://idp"));
+		assertion.getAttributeStatements().add(statement);
+		Response response = SAMLUtil.buildXMLObject(Response.class);
+		response.setStatus(SAMLUtil.createStatus("urn:oasis:names:tc:SAML:2.0:status:Success"));
+		response.getAssertions().add(assertion);
+
+		Body body = SAMLUtil.buildXMLObject(Body.class);
+		body.getUnknownXMLObjects().add(response);
+		Envelope envelope = SAMLUtil.buildXMLObject(Envelope.class);
+		envelope.setBody(body);
+		return XMLHelper.nodeToString(SAMLUtil.marshallObject(envelope)).getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,196 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509v1CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.opensaml.DefaultBootstrap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmark of artifact resolution against a local stand-in IdP over TLS, comparing the shared
+ * {@link HttpSOAPTransport} with a connection per call, which is how {@link HttpSOAPClient} used to
+ * connect when certificate path errors are ignored.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.sp.service.util.HttpSOAPTransportBenchmark [requests] [threads]
+ * </pre>
+ *
+ * The default is 2000 requests from 8 threads.
+ */
+public class HttpSOAPTransportBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(HttpSOAPTransportBenchmark.class);
+	private static final String REQUEST = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+		+ "<samlp:ArtifactResolve xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_benchmark\" Version=\"2.0\" IssueInstant=\"2013-01-01T00:00:00Z\">"
+		+ "<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">http://sp</saml:Issuer>"
+		+ "<samlp:Artifact>AAQAAMFbLinlXaCM+FIxiDwGOLAy2T71gbpO7ZhNzAgEANlB90ECfpNEVLg=</samlp:Artifact>"
+		+ "</samlp:ArtifactResolve></soapenv:Body></soapenv:Envelope>";
+	private static final String RESPONSE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+		+ "<samlp:ArtifactResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_response\" InResponseTo=\"_benchmark\" Version=\"2.0\" IssueInstant=\"2013-01-01T00:00:00Z\">"
+		+ "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+		+ "</samlp:ArtifactResponse></soapenv:Body></soapenv:Envelope>";
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		DefaultBootstrap.bootstrap();
+
+		HttpSOAPTransportTest.Server server = new HttpSOAPTransportTest.Server(createSSLContext().getServerSocketFactory().createServerSocket(0), RESPONSE.getBytes("UTF-8"));
+		new Thread(server).start();
+		try {
+			String location = "https://localhost:" + server.ss.getLocalPort() + "/ars";
+			for (int round = 0; round < 2; round++) {
+				// the first round warms up the JIT
+				run("Connection per call", new HttpSOAPClient(new PerCallTransport()), location, requests, threads, server);
+				run("Shared transport", new HttpSOAPClient(new HttpSOAPTransport(30000, 20000, threads)), location, requests, threads, server);
+			}
+		} finally {
+			server.ss.close();
+		}
+	}
+
+	private static void run(String name, final HttpSOAPClient client, final String location, int requests, int threads, HttpSOAPTransportTest.Server server) throws Exception {
+		final long[] latencies = new long[requests];
+		final int perThread = requests / threads;
+		final CountDownLatch done = new CountDownLatch(threads);
+		int connections = server.connections.get();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * perThread;
+			new Thread() {
+				public void run() {
+					try {
+						for (int i = offset; i < offset + perThread; i++) {
+							long s = System.nanoTime();
+							client.wsCall(location, null, null, true, REQUEST, "http://www.oasis-open.org/committees/security");
+							latencies[i] = System.nanoTime() - s;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		long time = System.nanoTime() - start;
+
+		int count = perThread * threads;
+		long[] sorted = new long[count];
+		System.arraycopy(latencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long l : sorted) {
+			total += l;
+		}
+		log.info(name + ": " + count + " requests in " + time / 1000000 + " ms, mean " + total / count / 1000 + " us, p95 "
+				+ sorted[count * 95 / 100] / 1000 + " us, p99 " + sorted[count * 99 / 100] / 1000 + " us, " + (server.connections.get() - connections) + " connections");
+	}
+
+	private static SSLContext createSSLContext() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair keyPair = kpg.generateKeyPair();
+		X500Name name = new X500Name("CN=localhost");
+		X509v1CertificateBuilder gen = new X509v1CertificateBuilder(name, BigInteger.ONE, new Date(System.currentTimeMillis() - 10000),
+				new Date(System.currentTimeMillis() + 3600000L), name, SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()));
+		Certificate certificate = new JcaX509CertificateConverter().getCertificate(gen.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("idp", keyPair.getPrivate(), "secret".toCharArray(), new Certificate[] { certificate });
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, "secret".toCharArray());
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		return ctx;
+	}
+
+	/**
+	 * Opens connections the way {@link HttpSOAPClient} did before {@link HttpSOAPTransport}: a new SSL socket factory
+	 * for each call, so connections are never reused and each call makes a full TLS handshake.
+	 */
+	private static class PerCallTransport implements SOAPTransport {
+		public Exchange open(URI location, boolean ignoreCertPath) throws IOException {
+			final HttpURLConnection c = (HttpURLConnection) location.toURL().openConnection();
+			if (c instanceof HttpsURLConnection && ignoreCertPath) {
+				HttpsURLConnection sc = (HttpsURLConnection) c;
+				sc.setSSLSocketFactory(new DummySSLSocketFactory());
+				sc.setHostnameVerifier(new HostnameVerifier() {
+					public boolean verify(String hostname, SSLSession session) {
+						return true;
+					}
+				});
+			}
+			c.setDoInput(true);
+			c.setDoOutput(true);
+			c.setRequestMethod("POST");
+			c.setReadTimeout(20000);
+			c.setConnectTimeout(30000);
+			return new Exchange() {
+				private InputStream body;
+
+				public void setHeader(String name, String value) {
+					c.setRequestProperty(name, value);
+				}
+
+				public OutputStream send(int length) throws IOException {
+					c.setFixedLengthStreamingMode(length);
+					return c.getOutputStream();
+				}
+
+				public int getStatus() throws IOException {
+					return c.getResponseCode();
+				}
+
+				public InputStream getBody() throws IOException {
+					if (body == null) {
+						body = c.getErrorStream();
+						if (body == null) {
+							body = c.getResponseCode() >= 400 ? new ByteArrayInputStream(new byte[0]) : c.getInputStream();
+						}
+					}
+					return body;
+				}
+
+				public void close() {
+					if (body != null) {
+						try {
+							body.close();
+						} catch (IOException e) {}
+					}
+				}
+
+				public void abort() {
+					c.disconnect();
+				}
+			};
+		}
+	}
+}
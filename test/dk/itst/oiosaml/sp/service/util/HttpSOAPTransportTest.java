@@ -0,0 +1,211 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpSOAPTransportTest {
+	private Server server;
+	private URI uri;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Server(new ServerSocket(0), "<response/>".getBytes("UTF-8"));
+		new Thread(server).start();
+		uri = new URI("http://localhost:" + server.ss.getLocalPort() + "/soap");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.ss.close();
+	}
+
+	@Test
+	public void testReuseConnection() throws Exception {
+		HttpSOAPTransport transport = new HttpSOAPTransport(5000, 5000, 2);
+		assertEquals("<response/>", post(transport, "<request/>"));
+		assertEquals("<response/>", post(transport, "<request/>"));
+		assertEquals(1, server.connections.get());
+		assertEquals(2, server.requests.get());
+	}
+
+	@Test
+	public void testConnectionLimit() throws Exception {
+		HttpSOAPTransport transport = new HttpSOAPTransport(200, 5000, 1);
+		SOAPTransport.Exchange first = transport.open(uri, false);
+		try {
+			transport.open(uri, false);
+			fail("Only one connection is allowed");
+		} catch (IOException e) {}
+
+		first.close();
+		assertEquals("<response/>", post(transport, "<request/>"));
+	}
+
+	@Test
+	public void testReadTimeout() throws Exception {
+		server.delay = 2000;
+		HttpSOAPTransport transport = new HttpSOAPTransport(1000, 200, 1);
+		try {
+			post(transport, "<request/>");
+			fail("Server does not respond in time");
+		} catch (SocketTimeoutException e) {}
+
+		// the connection is released after a failure
+		transport.open(uri, false).abort();
+	}
+
+	@Test
+	public void testSharedInstance() {
+		assertSame(HttpSOAPTransport.getInstance(null), HttpSOAPTransport.getInstance(null));
+		assertEquals(20000, HttpSOAPTransport.getInstance(null).getReadTimeout());
+	}
+
+	private String post(HttpSOAPTransport transport, String body) throws IOException {
+		SOAPTransport.Exchange exchange = transport.open(uri, false);
+		try {
+			byte[] bytes = body.getBytes("UTF-8");
+			OutputStream os = exchange.send(bytes.length);
+			os.write(bytes);
+			os.close();
+			assertEquals(200, exchange.getStatus());
+			InputStream is = exchange.getBody();
+			String res = IOUtils.toString(is, "UTF-8");
+			is.close();
+			return res;
+		} catch (IOException e) {
+			exchange.abort();
+			throw e;
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * HTTP server which keeps connections alive and answers every request with the same response, unless {@link #respond(byte[])} is overridden.
+	 */
+	static class Server implements Runnable {
+		final ServerSocket ss;
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger requests = new AtomicInteger();
+		private final byte[] response;
+		volatile long delay;
+
+		Server(ServerSocket ss, byte[] response) throws IOException {
+			this.ss = ss;
+			this.response = response;
+		}
+
+		/**
+		 * Called for every request body as soon as it has been read, before the delay.
+		 */
+		protected void received(byte[] request) throws IOException {
+		}
+
+		/**
+		 * @return The response body for a request body.
+		 */
+		protected byte[] respond(byte[] request) throws IOException {
+			return response;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket client = ss.accept();
+					connections.incrementAndGet();
+					Thread t = new Thread() {
+						public void run() {
+							handle(client);
+						}
+					};
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// server socket closed
+			}
+		}
+
+		private void handle(Socket client) {
+			try {
+				client.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(client.getInputStream());
+				OutputStream os = client.getOutputStream();
+				while (true) {
+					String line = readLine(in);
+					if (line == null) return;
+
+					int length = 0;
+					boolean chunked = false;
+					while ((line = readLine(in)) != null && line.length() > 0) {
+						if (line.toLowerCase().startsWith("content-length:")) {
+							length = Integer.parseInt(line.substring(15).trim());
+						} else if (line.toLowerCase().startsWith("transfer-encoding:")) {
+							chunked = line.toLowerCase().endsWith("chunked");
+						}
+					}
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					if (chunked) {
+						while ((length = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+							byte[] chunk = new byte[length];
+							in.readFully(chunk);
+							body.write(chunk);
+							readLine(in);
+						}
+						readLine(in);
+					} else {
+						byte[] bytes = new byte[length];
+						in.readFully(bytes);
+						body.write(bytes);
+					}
+					requests.incrementAndGet();
+					received(body.toByteArray());
+					if (delay > 0) {
+						Thread.sleep(delay);
+					}
+					byte[] res = respond(body.toByteArray());
+					byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/xml; charset=utf-8\r\nContent-Length: " + res.length + "\r\n\r\n").getBytes("US-ASCII");
+					byte[] message = new byte[head.length + res.length];
+					System.arraycopy(head, 0, message, 0, head.length);
+					System.arraycopy(res, 0, message, head.length, res.length);
+					os.write(message);
+					os.flush();
+				}
+			} catch (IOException e) {
+				// connection closed
+			} catch (InterruptedException e) {
+				// stopped
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') sb.append((char) c);
+			}
+			return c == -1 && sb.length() == 0 ? null : sb.toString();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmark of DEFLATE encoding and decoding of HTTP Redirect messages, comparing {@link RedirectDeflateCodec} with
+ * a new {@link Deflater} or {@link Inflater} and stream copies for each message.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.sp.service.util.RedirectDeflateBenchmark [messages]
+ * </pre>
+ *
+ * The default is 20000 messages. The allocation does not include the native zlib memory of the deflaters and
+ * inflaters, which is only released when they are finalized if they are not ended.
+ */
+public class RedirectDeflateBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(RedirectDeflateBenchmark.class);
+
+	private interface Codec {
+		Object run(byte[] message, String encoded) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		StringBuilder xml = new StringBuilder("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_8a6f3d7c\" Version=\"2.0\"");
+		xml.append(" AssertionConsumerServiceURL=\"https://sp.example.com/saml/SAMLAssertionConsumer\" Destination=\"https://idp.example.com/sso\">");
+		xml.append("<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">https://sp.example.com</saml:Issuer>");
+		xml.append("<samlp:NameIDPolicy AllowCreate=\"true\" Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:persistent\"/>");
+		xml.append("<samlp:RequestedAuthnContext Comparison=\"minimum\">");
+		for (int i = 0; i < 20; i++) {
+			xml.append("<saml:AuthnContextClassRef xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">urn:dk:gov:saml:attribute:AssuranceLevel:" + i + "</saml:AuthnContextClassRef>");
+		}
+		xml.append("</samlp:RequestedAuthnContext></samlp:AuthnRequest>");
+		byte[] message = xml.toString().getBytes("UTF-8");
+		String encoded = RedirectDeflateCodec.deflateAndBase64Encode(message);
+		log.info("Message of " + message.length + " bytes, " + encoded.length() + " characters encoded");
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			run("Deflate with new Deflater", message, encoded, messages, new Codec() {
+				public Object run(byte[] message, String encoded) throws Exception {
+					ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+					DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, new Deflater(Deflater.DEFLATED, true));
+					deflaterStream.write(message);
+					deflaterStream.finish();
+					return Base64.encodeBytes(bytesOut.toByteArray(), Base64.DONT_BREAK_LINES);
+				}
+			});
+			run("Deflate with RedirectDeflateCodec", message, encoded, messages, new Codec() {
+				public Object run(byte[] message, String encoded) throws Exception {
+					return RedirectDeflateCodec.deflateAndBase64Encode(message);
+				}
+			});
+			run("Inflate with new Inflater", message, encoded, messages, new Codec() {
+				public Object run(byte[] message, String encoded) throws Exception {
+					InputStream is = new InflaterInputStream(new ByteArrayInputStream(Base64.decode(encoded)), new Inflater(true));
+					return IOUtils.toByteArray(is);
+				}
+			});
+			run("Inflate with RedirectDeflateCodec", message, encoded, messages, new Codec() {
+				public Object run(byte[] message, String encoded) throws Exception {
+					return RedirectDeflateCodec.base64DecodeAndInflate(encoded, RedirectDeflateCodec.DEFAULT_MAX_INFLATED_SIZE);
+				}
+			});
+		}
+	}
+
+	private static void run(String name, byte[] message, String encoded, int messages, Codec codec) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			if (codec.run(message, encoded) == null) {
+				throw new IllegalStateException("No result");
+			}
+		}
+		long time = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - bytes;
+		log.info(name + ": " + messages * 1000000000L / Math.max(1, time) + " messages/s, " + allocated / messages + " bytes allocated per message");
+	}
+}
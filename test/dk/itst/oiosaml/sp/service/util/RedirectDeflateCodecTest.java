@@ -0,0 +1,59 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.opensaml.xml.util.Base64;
+
+public class RedirectDeflateCodecTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] message = "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\"/>".getBytes("UTF-8");
+		String encoded = RedirectDeflateCodec.deflateAndBase64Encode(message);
+
+		assertTrue(Arrays.equals(message, RedirectDeflateCodec.base64DecodeAndInflate(encoded, 1024)));
+
+		// compatible with a plain raw inflater
+		InflaterInputStream is = new InflaterInputStream(new ByteArrayInputStream(Base64.decode(encoded)), new Inflater(true));
+		assertTrue(Arrays.equals(message, IOUtils.toByteArray(is)));
+	}
+
+	@Test
+	public void testLargeMessage() throws Exception {
+		byte[] message = new byte[200000];
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte) ('a' + (i * 31 % 26));
+		}
+		String encoded = RedirectDeflateCodec.deflateAndBase64Encode(message);
+		assertTrue(Arrays.equals(message, RedirectDeflateCodec.base64DecodeAndInflate(encoded, message.length)));
+	}
+
+	@Test
+	public void testMaxSizeIsEnforced() throws Exception {
+		byte[] message = new byte[10000];
+		String encoded = RedirectDeflateCodec.deflateAndBase64Encode(message);
+		assertEquals(10000, RedirectDeflateCodec.base64DecodeAndInflate(encoded, 10000).length);
+		try {
+			RedirectDeflateCodec.base64DecodeAndInflate(encoded, 9999);
+			fail("message is too large");
+		} catch (DataFormatException e) {}
+	}
+
+	@Test(expected=DataFormatException.class)
+	public void failOnTruncatedData() throws Exception {
+		byte[] compressed = Base64.decode(RedirectDeflateCodec.deflateAndBase64Encode(new byte[10000]));
+		byte[] truncated = new byte[compressed.length / 2];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		RedirectDeflateCodec.base64DecodeAndInflate(Base64.encodeBytes(truncated, Base64.DONT_BREAK_LINES), 100000);
+	}
+}
@@ -0,0 +1,114 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
+/**
+ * Benchmark of the verification of a signed HTTP Redirect logout request against the three keys of an IdP which is
+ * rolling over its certificate. The signing key is the last key in the metadata.
+ *
+ * This is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ * java dk.itst.oiosaml.sp.service.util.RedirectSignatureBenchmark [verifications]
+ * </pre>
+ *
+ * The default is 5000 verifications.
+ */
+public class RedirectSignatureBenchmark {
+	private static final Logger log = LoggerFactory.getLogger(RedirectSignatureBenchmark.class);
+
+	private interface Verifier {
+		boolean verify(String query, String signature, List<PublicKey> keys) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int verifications = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair signing = kpg.generateKeyPair();
+		List<PublicKey> keys = Arrays.asList(kpg.generateKeyPair().getPublic(), kpg.generateKeyPair().getPublic(), signing.getPublic());
+
+		StringBuilder xml = new StringBuilder("<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_8a6f3d7c\" Version=\"2.0\">");
+		xml.append("<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">https://idp.example.com</saml:Issuer>");
+		xml.append("<saml:NameID xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">CN=Test User,SERIALNUMBER=PID:9208-2002-2-123456789012</saml:NameID>");
+		xml.append("<samlp:SessionIndex>_2c1f8e6b7a9d4c3e</samlp:SessionIndex></samlp:LogoutRequest>");
+		String signed = Constants.SAML_SAMLREQUEST + "=" + URLEncoder.encode(RedirectDeflateCodec.deflateAndBase64Encode(xml.toString().getBytes("UTF-8")), "UTF-8")
+				+ "&RelayState=" + URLEncoder.encode("https://sp.example.com/page?a=1&b=2", "UTF-8")
+				+ "&SigAlg=" + URLEncoder.encode(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, "UTF-8");
+		Signature signer = Signature.getInstance(OIOSAMLConstants.SHA1_WITH_RSA);
+		signer.initSign(signing.getPrivate());
+		signer.update(signed.getBytes("UTF-8"));
+		// the Signature request parameter, which the container has url decoded
+		String signature = Base64.encodeBytes(signer.sign(), Base64.DONT_BREAK_LINES);
+		String query = signed + "&Signature=" + URLEncoder.encode(signature, "UTF-8");
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			run("Query parsed per key", query, signature, keys, verifications, new Verifier() {
+				public boolean verify(String query, String signature, List<PublicKey> keys) throws Exception {
+					boolean valid = false;
+					for (PublicKey key : keys) {
+						if (legacyVerify(signature, query, key)) {
+							valid = true;
+						}
+					}
+					return valid;
+				}
+			});
+			run("RedirectSignature", query, signature, keys, verifications, new Verifier() {
+				public boolean verify(String query, String signature, List<PublicKey> keys) throws Exception {
+					RedirectSignature rs = RedirectSignature.parse(query, Constants.SAML_SAMLREQUEST);
+					byte[] sig = Base64.decode(signature);
+					for (PublicKey key : keys) {
+						if (rs.verify(sig, key)) {
+							return true;
+						}
+					}
+					return false;
+				}
+			});
+		}
+	}
+
+	private static void run(String name, String query, String signature, List<PublicKey> keys, int verifications, Verifier verifier) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < verifications; i++) {
+			if (!verifier.verify(query, signature, keys)) {
+				throw new IllegalStateException("Signature not verified");
+			}
+		}
+		long time = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - bytes;
+		log.info(name + ": " + time / verifications / 1000 + " us and " + allocated / verifications + " bytes allocated per verification");
+	}
+
+	/**
+	 * The verification done for each key before {@link RedirectSignature}: the signature is decoded, the signed
+	 * content is rebuilt from the query string, and a new {@link Signature} is created.
+	 */
+	private static boolean legacyVerify(String signature, String query, PublicKey key) throws Exception {
+		byte[] sig = Base64.decode(signature);
+		String data = Utils.parseSignedQueryString(query, Constants.SAML_SAMLREQUEST);
+		Signature verifier = Signature.getInstance(OIOSAMLConstants.SHA1_WITH_RSA);
+		verifier.initVerify(key);
+		verifier.update(data.getBytes());
+		return verifier.verify(sig);
+	}
+}
@@ -0,0 +1,72 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URLEncoder;
+import java.security.Signature;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.xml.util.Base64;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.sp.model.OIOAuthnRequest;
+import dk.itst.oiosaml.sp.service.AbstractServiceTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class RedirectSignatureTest extends AbstractServiceTests {
+
+	@Test
+	public void testSignedContentMatchesParsedQueryString() throws Exception {
+		OIOAuthnRequest request = OIOAuthnRequest.buildAuthnRequest("http://ssoServiceLocation", "spEntityId", SAMLConstants.SAML2_ARTIFACT_BINDING_URI, handler, "state", "http://localhost");
+		String url = request.getRedirectURL(credential);
+
+		RedirectSignature rs = RedirectSignature.parse(url, Constants.SAML_SAMLREQUEST);
+		assertTrue(rs.isSigned());
+		assertEquals(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA1, rs.getSignatureAlgorithm());
+		assertTrue(Arrays.equals(Utils.parseSignedQueryString(url, Constants.SAML_SAMLREQUEST).getBytes(), rs.getSignedContent()));
+		assertTrue(rs.verify(credential.getPublicKey()));
+		assertFalse(rs.verify(TestHelper.getCredential().getPublicKey()));
+	}
+
+	@Test
+	public void testParameterOrderIsNormalized() throws Exception {
+		RedirectSignature rs = RedirectSignature.parse("SigAlg=alg&Signature=sig&RelayState=state&SAMLResponse=msg&other=x", Constants.SAML_SAMLRESPONSE);
+		assertEquals("SAMLResponse=msg&RelayState=state&SigAlg=alg", new String(rs.getSignedContent()));
+
+		rs = RedirectSignature.parse("SAMLResponse=msg&SigAlg=alg", Constants.SAML_SAMLRESPONSE);
+		assertEquals("SAMLResponse=msg&SigAlg=alg", new String(rs.getSignedContent()));
+		assertNull(rs.getSignature());
+	}
+
+	@Test
+	public void testUnsignedQuery() {
+		RedirectSignature rs = RedirectSignature.parse("SAMLRequest=msg&RelayState=state", Constants.SAML_SAMLREQUEST);
+		assertFalse(rs.isSigned());
+		assertNull(rs.getSignedContent());
+		assertFalse(rs.verify(new byte[0], credential.getPublicKey()));
+	}
+
+	@Test
+	public void testVerifyRsaSha256() throws Exception {
+		String signed = "SAMLRequest=msg&RelayState=state&SigAlg=" + URLEncoder.encode(OIOSAMLConstants.ALGO_ID_SIGNATURE_RSA_SHA256, "UTF-8");
+		Signature signer = Signature.getInstance(OIOSAMLConstants.SHA256_WITH_RSA);
+		signer.initSign(credential.getPrivateKey());
+		signer.update(signed.getBytes());
+		String query = signed + "&Signature=" + URLEncoder.encode(Base64.encodeBytes(signer.sign(), Base64.DONT_BREAK_LINES), "UTF-8");
+
+		RedirectSignature rs = RedirectSignature.parse(query, Constants.SAML_SAMLREQUEST);
+		assertTrue(rs.verify(credential.getPublicKey()));
+		assertFalse(RedirectSignature.parse(query.replace("state", "other"), Constants.SAML_SAMLREQUEST).verify(credential.getPublicKey()));
+	}
+
+	@Test
+	public void testUnsupportedAlgorithm() throws Exception {
+		RedirectSignature rs = RedirectSignature.parse("SAMLRequest=msg&SigAlg=unknown&Signature=AAAA", Constants.SAML_SAMLREQUEST);
+		assertFalse(rs.verify(credential.getPublicKey()));
+	}
+}
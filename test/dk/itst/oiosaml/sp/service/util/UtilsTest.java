@@ -163,6 +163,12 @@ public class UtilsTest extends AbstractServiceTests {
 		assertTrue(Utils.generateUUID().startsWith("_"));
 	}
 
+	@Test
+	public void testToHex() {
+		assertEquals("", Utils.toHex(new byte[0]));
+		assertEquals("000fa0ff", Utils.toHex(new byte[] { 0, 15, (byte) 0xa0, (byte) 0xff }));
+	}
+
 	@Test
 	public void testVerifySignature() throws UnsupportedEncodingException, NoSuchAlgorithmException, NoSuchProviderException {
 		OIOAuthnRequest request = OIOAuthnRequest.buildAuthnRequest("http://ssoServiceLocation", "spEntityId", SAMLConstants.SAML2_ARTIFACT_BINDING_URI, handler, "state", "http://localhost");
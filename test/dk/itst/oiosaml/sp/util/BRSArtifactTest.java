@@ -0,0 +1,93 @@
+package dk.itst.oiosaml.sp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.binding.BindingException;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.artifact.SAML2ArtifactType0004;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class BRSArtifactTest extends AbstractTests {
+	private static final Logger log = LoggerFactory.getLogger(BRSArtifactTest.class);
+	private Credential credential;
+
+	@Before
+	public void setUp() throws Exception {
+		credential = TestHelper.getCredential();
+	}
+
+	@Test
+	public void testFindEntityBySourceID() throws Exception {
+		IdpMetadata metadata = buildMetadata(3);
+		String samlArt = encode(BRSArtifact.buildArtifact(2, "idp1"));
+
+		BRSArtifact artifact = new BRSArtifact(samlArt, metadata);
+		assertEquals("idp1", artifact.getEntityId());
+		assertEquals(2, artifact.getEndpointIndex());
+
+		assertEquals("idp1", new BRSArtifact(samlArt, "idp0", "idp1").getEntityId());
+		assertEquals("idp2", metadata.findEntityIDBySourceID(BRSArtifact.getSourceID("idp2")));
+		assertNull(metadata.findEntityIDBySourceID(BRSArtifact.getSourceID("unknown")));
+	}
+
+	@Test(expected=BindingException.class)
+	public void failOnUnknownSource() throws Exception {
+		new BRSArtifact(encode(BRSArtifact.buildArtifact(0, "unknown")), buildMetadata(2));
+	}
+
+	@Test(expected=BindingException.class)
+	public void failOnUnknownSourceWithEntityIds() throws Exception {
+		new BRSArtifact(encode(BRSArtifact.buildArtifact(0, "unknown")), "idp0", "idp1");
+	}
+
+	/**
+	 * Compare resolving the issuer of an artifact by digesting every entity id and by using the SourceID index, with 1,000 IdPs.
+	 * Results are logged at debug level.
+	 */
+	@Test
+	public void testResolveThroughput() throws Exception {
+		int idps = 1000;
+		int iterations = 2000;
+		IdpMetadata metadata = buildMetadata(idps);
+		String samlArt = encode(BRSArtifact.buildArtifact(0, "idp" + (idps - 1)));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			new BRSArtifact(samlArt, metadata.getEntityIDs().toArray(new String[0]));
+		}
+		long loop = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			assertEquals("idp" + (idps - 1), new BRSArtifact(samlArt, metadata).getEntityId());
+		}
+		long indexed = System.nanoTime() - start;
+
+		log.debug(idps + " IdPs: " + (loop / iterations / 1000) + " us per artifact using entity ids, "
+				+ (indexed / iterations / 1000) + " us per artifact using the SourceID index");
+	}
+
+	private IdpMetadata buildMetadata(int count) {
+		EntityDescriptor[] descriptors = new EntityDescriptor[count];
+		for (int i = 0; i < count; i++) {
+			descriptors[i] = TestHelper.buildEntityDescriptor(credential);
+			descriptors[i].setEntityID("idp" + i);
+		}
+		return new IdpMetadata(SAMLConstants.SAML20P_NS, descriptors);
+	}
+
+	private static String encode(SAML2ArtifactType0004 artifact) {
+		return Base64.encodeBytes(artifact.getArtifactBytes(), Base64.DONT_BREAK_LINES);
+	}
+}